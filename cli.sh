@@ -0,0 +1,24 @@
+#!/bin/bash
+# Headless batch mode: runs encrypt/decrypt/verify/rewrap without starting the web server.
+# Usage: HSM_PIN=... ./cli.sh <encrypt|decrypt|verify|rewrap> [file...] [--verbose]
+APP_NAME="file-encryption-1.0.0.jar"
+JAR_PATH="target/$APP_NAME"
+CLI_DIR="target/cli"
+
+if [ ! -f "$JAR_PATH" ]; then
+    echo "Error: Jar file not found at $JAR_PATH. Please run ./build.sh first."
+    exit 1
+fi
+
+# The jar is extracted once (again after each build), so every run starts from a plain
+# classpath instead of going through the nested-jar launcher
+if [ ! -d "$CLI_DIR/BOOT-INF" ] || [ "$JAR_PATH" -nt "$CLI_DIR" ]; then
+    rm -rf "$CLI_DIR" && mkdir -p "$CLI_DIR"
+    (cd "$CLI_DIR" && jar xf "../$APP_NAME") || exit 1
+    touch "$CLI_DIR"
+fi
+
+# C1-only JIT and serial GC keep startup and teardown short for small batch jobs
+exec java -XX:TieredStopAtLevel=1 -XX:+UseSerialGC -Xshare:auto \
+    -cp "$CLI_DIR/BOOT-INF/classes:$CLI_DIR/BOOT-INF/lib/*" \
+    com.crypto.fileencryption.CliApplication "$@"
@@ -0,0 +1,7 @@
+#!/bin/bash
+# Runs the end-to-end HTTP load test against an in-process instance with the simulated HSM.
+# The harness (src/loadtest/java) is only compiled by the harness profile, not into the application jar.
+# Options: --concurrency=8 --duration=30 --warmup=5 --sizes=4KB:60,256KB:30,4MB:10 --report=target/loadtest.txt
+echo "Running load test..."
+export JAVA_HOME=/usr/lib/jvm/java-11-openjdk-11.0.25.0.9-2.el8.x86_64
+mvn -q -Pharness compile exec:java -Dexec.args="$*"
@@ -0,0 +1,8 @@
+#!/bin/bash
+# Benchmarks DEK and IV generation with a shared SecureRandom against per-thread generators.
+# Like the load test harness, it lives in src/loadtest/java and is not compiled into the application jar.
+# Options: --threads=1,2,4,8 --duration=5 --warmup=2 --report=target/randombench.txt
+echo "Running random generation benchmark..."
+export JAVA_HOME=/usr/lib/jvm/java-11-openjdk-11.0.25.0.9-2.el8.x86_64
+mvn -q -Pharness compile exec:java -Dharness.main=com.crypto.fileencryption.loadtest.RandomBenchmark \
+    -Dexec.args="$*"
@@ -0,0 +1,71 @@
+package com.crypto.fileencryption.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-operation latency histograms for the load test.
+ *
+ * Each operation has its own HdrHistogram Recorder, so worker threads can
+ * record concurrently without locking.
+ */
+public class LatencyRecorder {
+
+    // Track latencies from 1 microsecond to 10 minutes with 3 significant digits
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private final Map<String, Recorder> recorders = new LinkedHashMap<>();
+
+    public LatencyRecorder(String... operations) {
+        for (String operation : operations) {
+            recorders.put(operation, new Recorder(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS));
+        }
+    }
+
+    public void record(String operation, long nanos) {
+        recorders.get(operation).recordValue(Math.min(nanos, HIGHEST_TRACKABLE_NANOS));
+    }
+
+    /**
+     * Discard everything recorded so far (e.g. warm-up samples)
+     */
+    public void reset() {
+        recorders.values().forEach(Recorder::reset);
+    }
+
+    /**
+     * Build a plain-text report of latency percentiles and throughput
+     */
+    public String report(double elapsedSeconds, long bytesProcessed, long errors, String description) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("=== Load test report ===\n");
+        sb.append(description).append('\n');
+        sb.append(String.format("elapsed=%.1fs errors=%d throughput=%.2f MB/s%n%n",
+                elapsedSeconds, errors, bytesProcessed / elapsedSeconds / (1024 * 1024)));
+        sb.append(String.format("%-18s %10s %10s %10s %10s %10s %10s%n",
+                "operation", "count", "ops/s", "p50(ms)", "p99(ms)", "p999(ms)", "max(ms)"));
+
+        for (Map.Entry<String, Recorder> entry : recorders.entrySet()) {
+            Histogram histogram = entry.getValue().getIntervalHistogram();
+            long count = histogram.getTotalCount();
+            sb.append(String.format("%-18s %10d %10.1f %10.2f %10.2f %10.2f %10.2f%n",
+                    entry.getKey(),
+                    count,
+                    count / elapsedSeconds,
+                    millis(histogram.getValueAtPercentile(50)),
+                    millis(histogram.getValueAtPercentile(99)),
+                    millis(histogram.getValueAtPercentile(99.9)),
+                    millis(histogram.getMaxValue())));
+        }
+        return sb.toString();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
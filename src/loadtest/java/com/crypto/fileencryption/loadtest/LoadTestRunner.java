@@ -0,0 +1,324 @@
+package com.crypto.fileencryption.loadtest;
+
+import com.crypto.fileencryption.Application;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end HTTP load test of the encryption and decryption flows.
+ *
+ * Starts the application in-process with the simulated HSM on a random port
+ * and a throw-away DATA and audit directory, then drives
+ * encrypt select/process and decrypt select/process/download from a number
+ * of concurrent workers for a fixed duration. Latencies are recorded per
+ * operation in HdrHistograms and reported as p50/p99/p999 plus throughput.
+ *
+ * Lives in src/loadtest/java, which only the harness Maven profile
+ * compiles, so neither the harness nor HdrHistogram ship in the application
+ * jar.
+ *
+ * Usage (see loadtest.sh):
+ *
+ * <pre>
+ * --concurrency=8 --duration=30 --warmup=5 --sizes=4KB:60,256KB:30,4MB:10 --report=target/loadtest.txt
+ * </pre>
+ *
+ * Any other --key=value option is passed to the application, e.g. a simulated
+ * HSM profile for capacity planning:
+ *
+ * <pre>
+ * --hsm.simulated.latency.distribution=long-tail --hsm.simulated.latency.ms=5 --hsm.simulated.latency.p99-ms=40
+ * </pre>
+ */
+@Slf4j
+public class LoadTestRunner {
+
+    private static final Set<String> RUNNER_OPTIONS = Set.of("concurrency", "duration", "warmup", "sizes", "report");
+
+    private static final String[] OPERATIONS = {
+            "encrypt.select", "encrypt.process", "decrypt.select", "decrypt.process", "decrypt.download", "cycle"
+    };
+
+    private final int concurrency;
+    private final int durationSeconds;
+    private final int warmupSeconds;
+    private final List<SizeClass> sizeMix;
+    private final String reportPath;
+    private final List<String> applicationArgs = new ArrayList<>();
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    private final LatencyRecorder recorder = new LatencyRecorder(OPERATIONS);
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong bytesProcessed = new AtomicLong();
+
+    private String baseUrl;
+    private volatile boolean recording = false;
+
+    public LoadTestRunner(Map<String, String> options) {
+        this.concurrency = Integer.parseInt(options.getOrDefault("concurrency", "8"));
+        this.durationSeconds = Integer.parseInt(options.getOrDefault("duration", "30"));
+        this.warmupSeconds = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        this.sizeMix = SizeClass.parseMix(options.getOrDefault("sizes", "4KB:60,256KB:30,4MB:10"));
+        this.reportPath = options.get("report");
+        options.forEach((key, value) -> {
+            if (!RUNNER_OPTIONS.contains(key)) {
+                applicationArgs.add("--" + key + "=" + value);
+            }
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        new LoadTestRunner(options).run();
+    }
+
+    public void run() throws Exception {
+        Path dataDir = Files.createTempDirectory("loadtest-data");
+        ConfigurableApplicationContext context = null;
+        try {
+            prepareFiles(dataDir);
+
+            // As arguments rather than default properties, so they override application.yml
+            List<String> args = new ArrayList<>(List.of(
+                    "--server.port=0",
+                    "--file.storage.location=" + dataDir,
+                    "--audit.directory=" + dataDir.resolve(".audit"),
+                    "--hsm.provider=simulated",
+                    "--logging.level.root=WARN"));
+            args.addAll(applicationArgs);
+            context = new SpringApplicationBuilder(Application.class)
+                    .run(args.toArray(new String[0]));
+            int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            baseUrl = "http://localhost:" + port;
+            log.info("Application started on port {}, DATA at {}", port, dataDir);
+
+            ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupSeconds + durationSeconds);
+            for (int i = 0; i < concurrency; i++) {
+                int workerId = i;
+                workers.submit(() -> workerLoop(workerId, deadline));
+            }
+
+            // Warm-up samples are discarded; the measurement window starts afterwards
+            Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+            recorder.reset();
+            bytesProcessed.set(0);
+            errors.set(0);
+            recording = true;
+            long measureStart = System.nanoTime();
+
+            workers.shutdown();
+            workers.awaitTermination(durationSeconds + 60L, TimeUnit.SECONDS);
+            double elapsedSeconds = (System.nanoTime() - measureStart) / 1e9;
+
+            String report = recorder.report(elapsedSeconds, bytesProcessed.get(), errors.get(), describe());
+            System.out.println(report);
+            if (reportPath != null) {
+                Path path = Paths.get(reportPath);
+                if (path.getParent() != null) {
+                    Files.createDirectories(path.getParent());
+                }
+                Files.write(path, report.getBytes(StandardCharsets.UTF_8));
+                log.info("Report written to {}", path.toAbsolutePath());
+            }
+        } finally {
+            if (context != null) {
+                context.close();
+            }
+            FileUtils.deleteQuietly(dataDir.toFile());
+        }
+    }
+
+    private String describe() {
+        String description = String.format("concurrency=%d duration=%ds warmup=%ds sizes=%s",
+                concurrency, durationSeconds, warmupSeconds, sizeMix);
+        return applicationArgs.isEmpty() ? description : description + "\n" + String.join(" ", applicationArgs);
+    }
+
+    /**
+     * Create one source file per worker and size class, so workers never
+     * race on the same output names
+     */
+    private void prepareFiles(Path dataDir) throws IOException {
+        Random random = new Random(42);
+        for (SizeClass sizeClass : sizeMix) {
+            byte[] content = new byte[(int) sizeClass.bytes];
+            random.nextBytes(content);
+            for (int worker = 0; worker < concurrency; worker++) {
+                Files.write(dataDir.resolve(sourceName(worker, sizeClass)), content);
+            }
+        }
+    }
+
+    private static String sourceName(int worker, SizeClass sizeClass) {
+        return "w" + worker + "-" + sizeClass.label + ".bin";
+    }
+
+    private void workerLoop(int workerId, long deadline) {
+        while (System.nanoTime() < deadline) {
+            SizeClass sizeClass = SizeClass.pick(sizeMix, ThreadLocalRandom.current());
+            try {
+                runCycle(sourceName(workerId, sizeClass));
+                if (recording) {
+                    bytesProcessed.addAndGet(sizeClass.bytes);
+                }
+            } catch (Exception e) {
+                if (recording) {
+                    errors.incrementAndGet();
+                }
+                log.warn("Worker {} cycle failed: {}", workerId, e.getMessage());
+            }
+        }
+    }
+
+    private void runCycle(String filename) throws Exception {
+        long cycleStart = System.nanoTime();
+
+        JsonNode selected = timed("encrypt.select", () -> postJson("/api/encrypt/select",
+                Map.of("filename", filename)));
+        String fileId = selected.path("data").path("fileId").asText();
+        timed("encrypt.process", () -> postJson("/api/encrypt/process/" + fileId, Map.of()));
+
+        JsonNode decryptSelected = timed("decrypt.select", () -> postJson("/api/decrypt/select",
+                Map.of("encryptedFilename", filename + ".encrypted", "dekFilename", filename + ".dek")));
+        String decryptFileId = decryptSelected.path("data").path("fileId").asText();
+        timed("decrypt.process", () -> postJson("/api/decrypt/process/" + decryptFileId, Map.of()));
+        timed("decrypt.download", () -> download("/api/decrypt/download/" + decryptFileId));
+
+        record("cycle", System.nanoTime() - cycleStart);
+    }
+
+    @FunctionalInterface
+    private interface Step<T> {
+        T run() throws Exception;
+    }
+
+    private <T> T timed(String operation, Step<T> step) throws Exception {
+        long start = System.nanoTime();
+        T result = step.run();
+        record(operation, System.nanoTime() - start);
+        return result;
+    }
+
+    private void record(String operation, long nanos) {
+        if (recording) {
+            recorder.record(operation, nanos);
+        }
+    }
+
+    private JsonNode postJson(String path, Map<String, String> body) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(body)))
+                .build();
+        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        JsonNode json = objectMapper.readTree(response.body());
+        if (response.statusCode() != 200 || !json.path("success").asBoolean()) {
+            throw new IOException(path + " failed with HTTP " + response.statusCode() + ": "
+                    + json.path("message").asText());
+        }
+        return json;
+    }
+
+    private long download(String path) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + path)).GET().build();
+        HttpResponse<byte[]> response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() != 200) {
+            throw new IOException(path + " failed with HTTP " + response.statusCode());
+        }
+        return response.body().length;
+    }
+
+    /**
+     * A file size and its relative weight in the mix
+     */
+    static class SizeClass {
+        final String label;
+        final long bytes;
+        final int weight;
+
+        SizeClass(String label, long bytes, int weight) {
+            this.label = label;
+            this.bytes = bytes;
+            this.weight = weight;
+        }
+
+        /**
+         * Parse a mix like "4KB:60,256KB:30,4MB:10"
+         */
+        static List<SizeClass> parseMix(String mix) {
+            List<SizeClass> classes = new ArrayList<>();
+            for (String entry : mix.split(",")) {
+                String[] parts = entry.trim().split(":");
+                int weight = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+                classes.add(new SizeClass(parts[0], parseSize(parts[0]), weight));
+            }
+            return classes;
+        }
+
+        static long parseSize(String size) {
+            String upper = size.toUpperCase();
+            if (upper.endsWith("GB")) {
+                return Long.parseLong(upper.substring(0, upper.length() - 2)) << 30;
+            } else if (upper.endsWith("MB")) {
+                return Long.parseLong(upper.substring(0, upper.length() - 2)) << 20;
+            } else if (upper.endsWith("KB")) {
+                return Long.parseLong(upper.substring(0, upper.length() - 2)) << 10;
+            }
+            return Long.parseLong(upper.endsWith("B") ? upper.substring(0, upper.length() - 1) : upper);
+        }
+
+        static SizeClass pick(List<SizeClass> classes, Random random) {
+            int total = classes.stream().mapToInt(c -> c.weight).sum();
+            int roll = random.nextInt(total);
+            for (SizeClass sizeClass : classes) {
+                roll -= sizeClass.weight;
+                if (roll < 0) {
+                    return sizeClass;
+                }
+            }
+            return classes.get(classes.size() - 1);
+        }
+
+        @Override
+        public String toString() {
+            return label + ":" + weight;
+        }
+    }
+}
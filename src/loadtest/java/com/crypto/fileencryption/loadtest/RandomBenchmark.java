@@ -0,0 +1,175 @@
+package com.crypto.fileencryption.loadtest;
+
+import com.crypto.fileencryption.service.RandomSource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MapPropertySource;
+
+import javax.crypto.KeyGenerator;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Micro-benchmark of DEK and IV generation across thread counts.
+ *
+ * One operation generates an AES-256 DEK through KeyGenerator and a 12-byte
+ * IV, as encrypting a file does. It is measured for each thread count with
+ * three sources of randomness:
+ *
+ * <ul>
+ * <li>shared: one SecureRandom for all threads, as before RandomSource</li>
+ * <li>per-thread-drbg: RandomSource with Hash_DRBG/SHA-256 (the default)</li>
+ * <li>per-thread-default: RandomSource with the platform default SecureRandom</li>
+ * </ul>
+ *
+ * Usage (see randombench.sh):
+ *
+ * <pre>
+ * --threads=1,2,4,8 --duration=5 --warmup=2 --report=target/randombench.txt
+ * </pre>
+ *
+ * Thread counts default to powers of two up to twice the available cores.
+ */
+@Slf4j
+public class RandomBenchmark {
+
+    private static final int DEK_KEY_SIZE = 256;
+    private static final int IV_SIZE = 12;
+
+    private final List<Integer> threadCounts = new ArrayList<>();
+    private final int durationSeconds;
+    private final int warmupSeconds;
+    private final String reportPath;
+
+    public RandomBenchmark(Map<String, String> options) {
+        String threads = options.get("threads");
+        if (threads != null) {
+            for (String count : threads.split(",")) {
+                threadCounts.add(Integer.parseInt(count.trim()));
+            }
+        } else {
+            int cores = Runtime.getRuntime().availableProcessors();
+            for (int count = 1; count <= 2 * cores; count *= 2) {
+                threadCounts.add(count);
+            }
+        }
+        this.durationSeconds = Integer.parseInt(options.getOrDefault("duration", "5"));
+        this.warmupSeconds = Integer.parseInt(options.getOrDefault("warmup", "2"));
+        this.reportPath = options.get("report");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        new RandomBenchmark(options).run();
+    }
+
+    public void run() throws Exception {
+        SecureRandom shared = new SecureRandom();
+        Map<String, Supplier<SecureRandom>> strategies = new LinkedHashMap<>();
+        strategies.put("shared", () -> shared);
+        try (var drbg = randomSource("DRBG");
+                var platform = randomSource("default")) {
+            RandomSource drbgSource = drbg.getBean(RandomSource.class);
+            RandomSource platformSource = platform.getBean(RandomSource.class);
+            strategies.put("per-thread-drbg", drbgSource::current);
+            strategies.put("per-thread-default", platformSource::current);
+
+            StringBuilder report = new StringBuilder();
+            report.append(String.format("DEK + IV generation, %d cores, duration=%ds warmup=%ds%n",
+                    Runtime.getRuntime().availableProcessors(), durationSeconds, warmupSeconds));
+            report.append(String.format("%-20s %8s %14s %10s%n", "strategy", "threads", "ops/s", "scaling"));
+            for (var strategy : strategies.entrySet()) {
+                double single = 0;
+                for (int threads : threadCounts) {
+                    double opsPerSecond = measure(strategy.getValue(), threads);
+                    if (single == 0) {
+                        single = opsPerSecond / threads;
+                    }
+                    report.append(String.format("%-20s %8d %14.0f %9.2fx%n",
+                            strategy.getKey(), threads, opsPerSecond, opsPerSecond / single));
+                    log.info("{} with {} threads: {} ops/s", strategy.getKey(), threads, (long) opsPerSecond);
+                }
+            }
+
+            System.out.println(report);
+            if (reportPath != null) {
+                Path path = Paths.get(reportPath);
+                if (path.getParent() != null) {
+                    Files.createDirectories(path.getParent());
+                }
+                Files.write(path, report.toString().getBytes(StandardCharsets.UTF_8));
+                log.info("Report written to {}", path.toAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Operations per second of all threads together over the measurement window
+     */
+    private double measure(Supplier<SecureRandom> random, int threads) throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            long measureStart = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupSeconds);
+            long deadline = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+            List<Future<Long>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(workers.submit(() -> {
+                    KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+                    byte[] iv = new byte[IV_SIZE];
+                    long operations = 0;
+                    start.await();
+                    for (long now = System.nanoTime(); now < deadline; now = System.nanoTime()) {
+                        SecureRandom source = random.get();
+                        keyGen.init(DEK_KEY_SIZE, source);
+                        keyGen.generateKey();
+                        source.nextBytes(iv);
+                        if (now >= measureStart) {
+                            operations++;
+                        }
+                    }
+                    return operations;
+                }));
+            }
+            start.countDown();
+            long total = 0;
+            for (Future<Long> result : results) {
+                total += result.get();
+            }
+            return total / (double) durationSeconds;
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private static AnnotationConfigApplicationContext randomSource(String algorithm) {
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources()
+                .addFirst(new MapPropertySource("benchmark", Map.of("encryption.random.algorithm", algorithm)));
+        context.registerBean(PropertySourcesPlaceholderConfigurer.class);
+        context.registerBean(SimpleMeterRegistry.class);
+        context.register(RandomSource.class);
+        context.refresh();
+        return context;
+    }
+}
@@ -0,0 +1,253 @@
+package com.crypto.fileencryption;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.crypto.fileencryption.service.BatchCryptoService;
+import com.crypto.fileencryption.service.FileStorageService;
+import com.crypto.fileencryption.service.HsmRouterService;
+import com.crypto.fileencryption.service.InPlaceEncryptionService;
+import com.crypto.fileencryption.service.IntegrityVerificationService;
+import com.crypto.fileencryption.service.WarmUpService;
+import com.crypto.fileencryption.service.WatchFolderService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.LazyInitializationBeanFactoryPostProcessor;
+import org.springframework.boot.env.YamlPropertySourceLoader;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.FilterType;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.MutablePropertySources;
+import org.springframework.core.env.PropertySource;
+import org.springframework.core.env.SimpleCommandLinePropertySource;
+import org.springframework.core.io.ClassPathResource;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Headless command-line entry point for batch jobs.
+ *
+ * Runs encrypt, decrypt, verify and rewrap directly against the services in a
+ * minimal, lazily initialized Spring context (CliConfiguration): no web
+ * server, no Thymeleaf and no Spring Boot auto-configuration. Beans are only
+ * created when a command needs them, and the real HSM is only touched when a
+ * PIN is given.
+ *
+ * <pre>
+ * cli.sh encrypt [file...]      encrypt files (default: all plaintext files in DATA)
+ *                               (--in-place: within the file's own disk space)
+ * cli.sh decrypt [file...]      decrypt .encrypted files (default: all with a .dek)
+ * cli.sh verify  [file...]      authenticate .encrypted files without writing plaintext
+ *                               (default: parallel scan of the whole DATA tree,
+ *                               see --verify.threads and --verify.max-bytes-per-second)
+ * cli.sh rewrap  [file...]      re-wrap .dek files with the current KEK
+ *
+ * Options: HSM_PIN in the environment to use the real HSM (--hsm-pin=PIN
+ * also works, but is visible to other users in the process list), --verbose,
+ * and any application property, e.g. --file.storage.location=/data
+ * </pre>
+ */
+public class CliApplication {
+
+    private static final int EXIT_OK = 0;
+    private static final int EXIT_FAILED = 1;
+    private static final int EXIT_USAGE = 2;
+
+    private static final List<String> COMMANDS = List.of("encrypt", "decrypt", "verify", "rewrap");
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    static int run(String[] args) {
+        SimpleCommandLinePropertySource commandLine = new SimpleCommandLinePropertySource(args);
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                positional.add(arg);
+            }
+        }
+        if (positional.isEmpty()) {
+            printUsage();
+            return EXIT_USAGE;
+        }
+        String command = positional.get(0);
+        List<String> files = positional.subList(1, positional.size());
+        if (!COMMANDS.contains(command)) {
+            System.err.println("Unknown command: " + command);
+            printUsage();
+            return EXIT_USAGE;
+        }
+
+        Logger root = (Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME);
+        root.setLevel(commandLine.containsProperty("verbose") ? Level.INFO : Level.WARN);
+
+        String pin = System.getenv("HSM_PIN");
+        if (commandLine.containsProperty("hsm-pin")) {
+            System.err.println("Warning: --hsm-pin is visible to other users in the process list; "
+                    + "set HSM_PIN in the environment instead");
+            if (pin == null) {
+                pin = commandLine.getProperty("hsm-pin");
+            }
+        }
+
+        try (AnnotationConfigApplicationContext context = createContext(commandLine)) {
+            // Resolved on first use, so an empty batch never initializes the HSM
+            Supplier<BatchCryptoService> batch = () -> context.getBean(BatchCryptoService.class);
+            FileStorageService storage = context.getBean(FileStorageService.class);
+
+            if (pin != null) {
+                context.getBean(HsmRouterService.class).configure(true, pin);
+            }
+
+            Set<String> available = new HashSet<>(storage.listInputFiles());
+            Predicate<String> isEncrypted = name -> name.endsWith(BatchCryptoService.ENCRYPTED_SUFFIX)
+                    && available.contains(BatchCryptoService.dekFilename(name));
+
+            switch (command) {
+                case "encrypt":
+                    if (commandLine.containsProperty("in-place")) {
+                        // Also completes an interrupted in-place encryption of the same file
+                        InPlaceEncryptionService inPlace = context.getBean(InPlaceEncryptionService.class);
+                        return forEach(files, storage, CliApplication::isPlaintext, name -> {
+                            long size = inPlace.encrypt(name);
+                            return name + BatchCryptoService.ENCRYPTED_SUFFIX + " (" + size + " bytes, in place)";
+                        });
+                    }
+                    return forEach(files, storage, CliApplication::isPlaintext, name -> {
+                        long size = batch.get().encrypt(name);
+                        return name + BatchCryptoService.ENCRYPTED_SUFFIX + " (" + size + " bytes)";
+                    });
+                case "decrypt":
+                    return forEach(files, storage, isEncrypted, name -> {
+                        long size = batch.get().decrypt(name, BatchCryptoService.dekFilename(name));
+                        return BatchCryptoService.decryptedFilename(name) + " (" + size + " bytes)";
+                    });
+                case "verify":
+                    if (files.isEmpty()) {
+                        return scan(context.getBean(IntegrityVerificationService.class));
+                    }
+                    return forEach(files, storage, isEncrypted, name -> {
+                        long size = batch.get().verify(name, BatchCryptoService.dekFilename(name));
+                        return "authentic (" + size + " bytes)";
+                    });
+                case "rewrap":
+                    return forEach(files, storage, name -> name.endsWith(BatchCryptoService.DEK_SUFFIX), name -> {
+                        batch.get().rewrap(name);
+                        return "rewrapped";
+                    });
+                default:
+                    return EXIT_USAGE;
+            }
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            return EXIT_FAILED;
+        }
+    }
+
+    @FunctionalInterface
+    private interface FileCommand {
+        String apply(String filename) throws Exception;
+    }
+
+    /**
+     * Run a command on the given files, or on every matching file in DATA
+     */
+    private static int forEach(List<String> files, FileStorageService storage, Predicate<String> defaultFilter,
+            FileCommand fileCommand) throws Exception {
+        List<String> targets = new ArrayList<>(files);
+        if (targets.isEmpty()) {
+            storage.listInputFiles().stream().filter(defaultFilter).sorted().forEach(targets::add);
+        }
+
+        int failures = 0;
+        for (String name : targets) {
+            try {
+                System.out.println("OK     " + name + " -> " + fileCommand.apply(name));
+            } catch (Exception e) {
+                failures++;
+                System.out.println("FAILED " + name + ": " + e.getMessage());
+            }
+        }
+        System.out.println(targets.size() - failures + " succeeded, " + failures + " failed");
+        return failures == 0 ? EXIT_OK : EXIT_FAILED;
+    }
+
+    /**
+     * Verify every encrypted file in the DATA tree in parallel
+     */
+    private static int scan(IntegrityVerificationService verifier) {
+        var report = verifier.scan((name, failure) -> System.out.println(failure == null
+                ? "OK     " + name + " -> authentic"
+                : "FAILED " + name + ": " + failure));
+        System.out.printf("%d authentic, %d corrupted, %d bytes in %.2fs (%.3f GB/s, %d threads)%n",
+                report.getFilesAuthentic(), report.getCorrupted().size(), report.getBytesVerified(),
+                report.getElapsedSeconds(), report.getGigabytesPerSecond(), report.getThreads());
+        if (report.getMessage() != null) {
+            System.err.println("Error: " + report.getMessage());
+        }
+        return "COMPLETED".equals(report.getStatus()) && report.getCorrupted().isEmpty() ? EXIT_OK : EXIT_FAILED;
+    }
+
+    private static boolean isPlaintext(String name) {
+        return !name.endsWith(BatchCryptoService.ENCRYPTED_SUFFIX) && !name.endsWith(BatchCryptoService.DEK_SUFFIX);
+    }
+
+    /**
+     * The service layer, found by scanning its package, without the web
+     * controllers, Spring Boot auto-configuration or scheduling. Services
+     * that only make sense in a long-running server are left out. Not a
+     * component itself, so the web application's scan does not pick it up.
+     * New services are included without touching this class.
+     */
+    @ComponentScan(basePackageClasses = BatchCryptoService.class, excludeFilters = @ComponentScan.Filter(
+            type = FilterType.ASSIGNABLE_TYPE, classes = { WarmUpService.class, WatchFolderService.class }))
+    static class CliConfiguration {
+    }
+
+    /**
+     * Build a lazily initialized context of the service layer
+     */
+    private static AnnotationConfigApplicationContext createContext(SimpleCommandLinePropertySource commandLine)
+            throws Exception {
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+
+        MutablePropertySources sources = context.getEnvironment().getPropertySources();
+        sources.addFirst(commandLine);
+        for (PropertySource<?> source : new YamlPropertySourceLoader()
+                .load("application.yml", new ClassPathResource("application.yml"))) {
+            sources.addLast(source);
+        }
+
+        // Batch defaults, overridable from the command line
+        Map<String, Object> defaults = new HashMap<>();
+        // Another instance may be serving from the same DATA directory
+        defaults.put("file.storage.clean-temp-on-startup", "false");
+        // Short jobs should not pay for the provider benchmark, even where the server opts into it
+        defaults.put("encryption.provider.name", "SunJCE");
+        // A chain of its own: the server holds the lock on ./audit while it runs
+        defaults.put("audit.directory", "./audit-cli");
+        sources.addAfter(commandLine.getName(), new MapPropertySource("cliDefaults", defaults));
+
+        context.addBeanFactoryPostProcessor(new LazyInitializationBeanFactoryPostProcessor());
+        context.registerBean(PropertySourcesPlaceholderConfigurer.class);
+        context.registerBean(SimpleMeterRegistry.class);
+        context.register(CliConfiguration.class);
+        context.refresh();
+        return context;
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: cli.sh <encrypt|decrypt|verify|rewrap> [file...] [--in-place] [--verbose]");
+        System.err.println("       Files are relative to the DATA directory (file.storage.location).");
+        System.err.println("       Set HSM_PIN in the environment to use the real HSM.");
+    }
+}
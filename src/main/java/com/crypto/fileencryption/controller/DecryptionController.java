@@ -1,20 +1,28 @@
 package com.crypto.fileencryption.controller;
 
 import com.crypto.fileencryption.model.ApiResponse;
+import com.crypto.fileencryption.model.DecryptionSession;
 import com.crypto.fileencryption.model.DecryptionResult;
+import com.crypto.fileencryption.service.AdmissionRejectedException;
+import com.crypto.fileencryption.service.AuditLogService;
 import com.crypto.fileencryption.service.DekService;
 import com.crypto.fileencryption.service.FileEncryptionService;
 import com.crypto.fileencryption.service.FileStorageService;
+import com.crypto.fileencryption.service.HsmUnavailableException;
+import com.crypto.fileencryption.service.MemoryAdmissionController;
+import com.crypto.fileencryption.service.SessionStore;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import javax.crypto.SecretKey;
+import java.nio.file.Files;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -27,12 +35,16 @@ import java.util.Map;
 @RequiredArgsConstructor
 public class DecryptionController {
 
+    private static final String SESSION_TYPE = "decryption";
+
     private final DekService dekService;
     private final FileEncryptionService fileEncryptionService;
     private final FileStorageService fileStorageService;
+    private final AuditLogService auditLogService;
+    private final MemoryAdmissionController admissionController;
 
-    // Temporary storage for decryption session data
-    private final Map<String, DecryptionSession> sessions = new HashMap<>();
+    // Select/process session state; shared between nodes when session.store=filesystem
+    private final SessionStore sessionStore;
 
     /**
      * Select encrypted file and DEK for decryption
@@ -51,9 +63,9 @@ public class DecryptionController {
 
             log.info("Selected files for decryption: {}, {}", encryptedFilename, dekFilename);
 
-            // Load encrypted file
-            var encryptedData = fileStorageService.readFromInput(encryptedFilename);
-            var fileId = fileStorageService.storeTemp(encryptedData, encryptedFilename);
+            // Copy encrypted file into the temp session
+            var fileId = fileStorageService.copyToTemp(encryptedFilename);
+            long encryptedSize = Files.size(fileStorageService.tempPath(fileId));
 
             // Read encrypted DEK
             var dekData = fileStorageService.readFromInput(dekFilename);
@@ -61,16 +73,16 @@ public class DecryptionController {
 
             // Create session
             var session = new DecryptionSession();
-            session.fileId = fileId;
-            session.originalFilename = encryptedFilename;
-            session.encryptedSize = encryptedData.length;
-            session.encryptedDek = encryptedDekBase64;
-            sessions.put(fileId, session);
+            session.setFileId(fileId);
+            session.setOriginalFilename(encryptedFilename);
+            session.setEncryptedSize(encryptedSize);
+            session.setEncryptedDek(encryptedDekBase64);
+            sessionStore.save(SESSION_TYPE, fileId, session);
 
             var response = new HashMap<String, Object>();
             response.put("fileId", fileId);
             response.put("filename", encryptedFilename);
-            response.put("size", encryptedData.length);
+            response.put("size", encryptedSize);
 
             return ResponseEntity.ok(ApiResponse.success("Files selected successfully", response));
 
@@ -85,60 +97,78 @@ public class DecryptionController {
      * Process decryption
      */
     @PostMapping("/process/{fileId}")
+    @SuppressWarnings("try")
     public ResponseEntity<ApiResponse<DecryptionResult>> processDecryption(
             @PathVariable String fileId) {
+        DecryptionSession session = sessionStore.load(SESSION_TYPE, fileId, DecryptionSession.class);
         try {
-            DecryptionSession session = sessions.get(fileId);
             if (session == null) {
                 return ResponseEntity.badRequest()
                         .body(ApiResponse.error("Invalid file ID or session expired"));
             }
 
-            log.info("Processing decryption for file: {}", session.originalFilename);
-
-            // Step 1: Load encrypted file
-            var encryptedData = fileStorageService.loadTemp(fileId);
-
-            // Step 2: Decrypt DEK using HSM KEK
-            var dek = dekService.decryptDekFromBase64(session.encryptedDek);
-            log.info("Decrypted DEK with HSM KEK");
+            log.info("Processing decryption for file: {}", session.getOriginalFilename());
 
-            // Step 3: Decrypt file with DEK
-            var decryptedData = fileEncryptionService.decryptFile(encryptedData, dek);
-            log.info("Decrypted file with DEK");
-
-            // SECURITY: Destroy plaintext DEK immediately after use
-            dekService.destroyDek(dek);
+            String decryptedFilename = session.getOriginalFilename().replace(".encrypted", "");
+            if (decryptedFilename.equals(session.getOriginalFilename())) {
+                decryptedFilename = "decrypted_" + session.getOriginalFilename();
+            }
 
-            // Step 4: Save decrypted file to output
-            String decryptedFilename = session.originalFilename.replace(".encrypted", "");
-            if (decryptedFilename.equals(session.originalFilename)) {
-                decryptedFilename = "decrypted_" + session.originalFilename;
+            long decryptedSize;
+            // Reserve memory for the cipher before any key work, so a rejected request costs nothing
+            try (var in = fileStorageService.openTemp(fileId);
+                    var reservation = admissionController.admit(
+                            fileEncryptionService.decryptWorkingSet(in), in.size())) {
+                // Step 1: Decrypt DEK using HSM KEK
+                var dek = dekService.decryptDekFromBase64(session.getEncryptedDek());
+                log.info("Decrypted DEK with HSM KEK");
+
+                // Step 2: Stream the encrypted file through the cipher into the output directory
+                try {
+                    decryptedSize = fileStorageService.writeToOutput(decryptedFilename,
+                            out -> fileEncryptionService.decrypt(in, out, dek));
+                    log.info("Decrypted file with DEK");
+                } finally {
+                    // SECURITY: Destroy plaintext DEK immediately after use
+                    dekService.destroyDek(dek);
+                }
             }
-            fileStorageService.writeToOutput(decryptedFilename, decryptedData);
 
             // Store in temp for consistency if needed
-            var decryptedFileId = fileStorageService.storeTemp(
-                    decryptedData,
-                    decryptedFilename);
+            var decryptedFileId = fileStorageService.copyToTemp(decryptedFilename);
 
             // Update session
-            session.decryptedFileId = decryptedFileId;
-            session.decryptedSize = decryptedData.length;
+            session.setDecryptedFileId(decryptedFileId);
+            session.setDecryptedSize(decryptedSize);
+            sessionStore.save(SESSION_TYPE, fileId, session);
 
             // Create result
             var result = new DecryptionResult(
                     decryptedFileId,
                     decryptedFilename,
-                    session.encryptedSize,
-                    session.decryptedSize,
+                    session.getEncryptedSize(),
+                    session.getDecryptedSize(),
                     "File decrypted successfully",
                     true);
 
             log.info("Decryption completed successfully");
+            auditLogService.success("file.decrypt", session.getOriginalFilename(), "bytes=" + decryptedSize);
             return ResponseEntity.ok(ApiResponse.success(result));
 
+        } catch (AdmissionRejectedException e) {
+            auditLogService.failure("file.decrypt", session.getOriginalFilename(), e);
+            log.warn("Decryption rejected by admission control: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, e.getRetryAfterMs() / 1000)))
+                    .body(ApiResponse.error("Server busy: " + e.getMessage()));
+        } catch (HsmUnavailableException e) {
+            auditLogService.failure("file.decrypt", session.getOriginalFilename(), e);
+            log.warn("HSM unavailable during decryption: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, e.getRetryAfterMs() / 1000)))
+                    .body(ApiResponse.error("HSM temporarily unavailable: " + e.getMessage()));
         } catch (Exception e) {
+            auditLogService.failure("file.decrypt", session.getOriginalFilename(), e);
             log.error("Error processing decryption", e);
             return ResponseEntity.internalServerError()
                     .body(ApiResponse.error("Decryption failed: " + e.getMessage()));
@@ -151,21 +181,20 @@ public class DecryptionController {
     @GetMapping("/download/{fileId}")
     public ResponseEntity<Resource> downloadDecryptedFile(@PathVariable String fileId) {
         try {
-            DecryptionSession session = sessions.get(fileId);
-            if (session == null || session.decryptedFileId == null) {
+            DecryptionSession session = sessionStore.load(SESSION_TYPE, fileId, DecryptionSession.class);
+            if (session == null || session.getDecryptedFileId() == null) {
                 return ResponseEntity.notFound().build();
             }
 
-            var data = fileStorageService.loadTemp(session.decryptedFileId);
-            ByteArrayResource resource = new ByteArrayResource(data);
+            var resource = new FileSystemResource(fileStorageService.tempPath(session.getDecryptedFileId()));
 
-            String filename = session.originalFilename.replace(".encrypted", "");
+            String filename = session.getOriginalFilename().replace(".encrypted", "");
 
             return ResponseEntity.ok()
                     .header(HttpHeaders.CONTENT_DISPOSITION,
                             "attachment; filename=\"" + filename + "\"")
                     .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                    .contentLength(data.length)
+                    .contentLength(resource.contentLength())
                     .body(resource);
 
         } catch (Exception e) {
@@ -173,16 +202,4 @@ public class DecryptionController {
             return ResponseEntity.internalServerError().build();
         }
     }
-
-    /**
-     * Internal class to store decryption session data
-     */
-    private static class DecryptionSession {
-        String fileId;
-        String originalFilename;
-        long encryptedSize;
-        String encryptedDek;
-        String decryptedFileId;
-        long decryptedSize;
-    }
 }
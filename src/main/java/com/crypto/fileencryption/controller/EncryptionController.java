@@ -1,20 +1,31 @@
 package com.crypto.fileencryption.controller;
 
 import com.crypto.fileencryption.model.ApiResponse;
+import com.crypto.fileencryption.model.EncryptionSession;
 import com.crypto.fileencryption.model.EncryptionResult;
+import com.crypto.fileencryption.service.AdmissionRejectedException;
+import com.crypto.fileencryption.service.AuditLogService;
 import com.crypto.fileencryption.service.DekService;
 import com.crypto.fileencryption.service.FileEncryptionService;
 import com.crypto.fileencryption.service.FileStorageService;
+import com.crypto.fileencryption.service.HsmUnavailableException;
+import com.crypto.fileencryption.service.InPlaceEncryptionService;
+import com.crypto.fileencryption.service.IncrementalEncryptionService;
+import com.crypto.fileencryption.service.MemoryAdmissionController;
+import com.crypto.fileencryption.service.SessionStore;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.bind.annotation.*;
 
+import java.nio.file.Files;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -27,12 +38,18 @@ import java.util.Map;
 @RequiredArgsConstructor
 public class EncryptionController {
 
+    private static final String SESSION_TYPE = "encryption";
+
     private final DekService dekService;
     private final FileEncryptionService fileEncryptionService;
     private final FileStorageService fileStorageService;
+    private final AuditLogService auditLogService;
+    private final MemoryAdmissionController admissionController;
+    private final IncrementalEncryptionService incrementalEncryptionService;
+    private final InPlaceEncryptionService inPlaceEncryptionService;
 
-    // Temporary storage for encryption session data
-    private final Map<String, EncryptionSession> sessions = new HashMap<>();
+    // Select/process session state; shared between nodes when session.store=filesystem
+    private final SessionStore sessionStore;
 
     /**
      * Select file from server input directory for encryption
@@ -49,23 +66,21 @@ public class EncryptionController {
 
             log.info("Selected file for encryption: {}", filename);
 
-            // Load file from input directory
-            var fileData = fileStorageService.readFromInput(filename);
-
-            // Store in temp session
-            var fileId = fileStorageService.storeTemp(fileData, filename);
+            // Copy file from input directory into the temp session
+            var fileId = fileStorageService.copyToTemp(filename);
+            long size = Files.size(fileStorageService.tempPath(fileId));
 
             // Create session
             var session = new EncryptionSession();
-            session.fileId = fileId;
-            session.originalFilename = filename;
-            session.originalSize = fileData.length;
-            sessions.put(fileId, session);
+            session.setFileId(fileId);
+            session.setOriginalFilename(filename);
+            session.setOriginalSize(size);
+            sessionStore.save(SESSION_TYPE, fileId, session);
 
             var response = new HashMap<String, Object>();
             response.put("fileId", fileId);
             response.put("filename", filename);
-            response.put("size", fileData.length);
+            response.put("size", size);
 
             return ResponseEntity.ok(ApiResponse.success("File selected successfully", response));
 
@@ -80,95 +95,177 @@ public class EncryptionController {
      * Process encryption
      */
     @PostMapping("/process/{fileId}")
+    @SuppressWarnings("try")
     public ResponseEntity<ApiResponse<EncryptionResult>> processEncryption(
             @PathVariable String fileId) {
+        var session = sessionStore.load(SESSION_TYPE, fileId, EncryptionSession.class);
         try {
-            var session = sessions.get(fileId);
             if (session == null) {
                 return ResponseEntity.badRequest()
                         .body(ApiResponse.error("Invalid file ID or session expired"));
             }
 
-            log.info("Processing encryption for file: {}", session.originalFilename);
-
-            // Step 1: Load original file
-            var originalData = fileStorageService.loadTemp(fileId);
-
-            // Step 2: Generate DEK
-            var dek = dekService.generateDek();
-            log.info("Generated DEK");
-
-            // Step 3: Encrypt file with DEK
-            var encryptedData = fileEncryptionService.encryptFile(originalData, dek);
-            log.info("Encrypted file with DEK");
-
-            // Step 4: Encrypt DEK with HSM KEK
-            var encryptedDekBase64 = dekService.encryptDekToBase64(dek);
-            log.info("Encrypted DEK with HSM KEK");
-
-            // Step 5: Save to output directory
-            String encryptedFilename = session.originalFilename + ".encrypted";
-            fileStorageService.writeToOutput(encryptedFilename, encryptedData);
-            log.info("Saved encrypted file to output: {}", encryptedFilename);
-
-            // Save DEK to output directory
-            String dekFilename = session.originalFilename + ".dek";
-            fileStorageService.writeToOutput(dekFilename, encryptedDekBase64.getBytes());
-            log.info("Saved DEK to output: {}", dekFilename);
+            log.info("Processing encryption for file: {}", session.getOriginalFilename());
+
+            String encryptedDekBase64;
+            long encryptedSize;
+            String auditDetail = "bytes=" + session.getOriginalSize();
+            String encryptedFilename = session.getOriginalFilename() + ".encrypted";
+            String dekFilename = session.getOriginalFilename() + ".dek";
+            // Reserve memory for the cipher before any key work, so a rejected request costs nothing
+            long originalSize = session.getOriginalSize();
+            try (var reservation = admissionController.admit(
+                    fileEncryptionService.encryptWorkingSet(originalSize), originalSize)) {
+                if (incrementalEncryptionService.isEnabled()) {
+                    // Reuses the previous DEK and unchanged chunks when the file was encrypted before
+                    try (var in = fileStorageService.openTemp(fileId)) {
+                        var outcome = incrementalEncryptionService.encrypt(session.getOriginalFilename(), in,
+                                in.size());
+                        encryptedDekBase64 = outcome.getEncryptedDek();
+                        encryptedSize = outcome.getEncryptedSize();
+                        auditDetail += " chunksSealed=" + outcome.getSealed() + "/" + outcome.getChunks();
+                    }
+                    log.info("Encrypted file and saved to output: {}, {}", encryptedFilename, dekFilename);
+                } else {
+                    // Step 1: Generate DEK
+                    var dek = dekService.generateDek();
+                    log.info("Generated DEK");
+
+                    try {
+                        // Step 2: Encrypt DEK with HSM KEK
+                        encryptedDekBase64 = dekService.encryptDekToBase64(dek);
+                        log.info("Encrypted DEK with HSM KEK");
+
+                        // Step 3: Stream the original file through the cipher into the output directory
+                        try (var in = fileStorageService.openTemp(fileId)) {
+                            long size = in.size();
+                            encryptedSize = fileStorageService.writeToOutput(encryptedFilename,
+                                    out -> fileEncryptionService.encrypt(in, size, out, dek));
+                        }
+                        log.info("Encrypted file with DEK and saved to output: {}", encryptedFilename);
+                    } finally {
+                        // SECURITY: Destroy plaintext DEK
+                        dekService.destroyDek(dek);
+                    }
+
+                    // Save DEK to output directory
+                    fileStorageService.writeToOutput(dekFilename, encryptedDekBase64.getBytes());
+                    log.info("Saved DEK to output: {}", dekFilename);
+                }
+            }
 
             // Cleanup: Delete the input temp file now that processing is done
             fileStorageService.deleteTemp(fileId);
 
             // Update session (Only what is needed for simple status, no IDs for download
             // needed now)
-            session.encryptedDek = encryptedDekBase64;
-            session.encryptedSize = encryptedData.length;
+            session.setEncryptedDek(encryptedDekBase64);
+            session.setEncryptedSize(encryptedSize);
             // session.encryptedFileId is no longer needed/stored in temp
+            sessionStore.save(SESSION_TYPE, fileId, session);
 
             // Create result
             var result = new EncryptionResult(
                     null,
-                    session.originalFilename,
-                    session.originalFilename + ".encrypted",
-                    session.originalSize,
-                    session.encryptedSize,
+                    session.getOriginalFilename(),
+                    session.getOriginalFilename() + ".encrypted",
+                    session.getOriginalSize(),
+                    session.getEncryptedSize(),
                     encryptedDekBase64,
                     "File encrypted successfully",
                     true);
 
             log.info("Encryption completed successfully. Encrypted DEK length: {}", encryptedDekBase64.length());
-
-            // SECURITY: Destroy plaintext DEK
-            dekService.destroyDek(dek);
+            auditLogService.success("file.encrypt", session.getOriginalFilename(), auditDetail);
 
             return ResponseEntity.ok(ApiResponse.success(result));
 
+        } catch (AdmissionRejectedException e) {
+            auditLogService.failure("file.encrypt", session.getOriginalFilename(), e);
+            log.warn("Encryption rejected by admission control: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, e.getRetryAfterMs() / 1000)))
+                    .body(ApiResponse.error("Server busy: " + e.getMessage()));
+        } catch (HsmUnavailableException e) {
+            auditLogService.failure("file.encrypt", session.getOriginalFilename(), e);
+            log.warn("HSM unavailable during encryption: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, e.getRetryAfterMs() / 1000)))
+                    .body(ApiResponse.error("HSM temporarily unavailable: " + e.getMessage()));
         } catch (Exception e) {
+            auditLogService.failure("file.encrypt", session.getOriginalFilename(), e);
             log.error("Error processing encryption", e);
             return ResponseEntity.internalServerError()
                     .body(ApiResponse.error("Encryption failed: " + e.getMessage()));
         }
     }
 
+    /**
+     * Encrypt a file of the input directory within its own disk blocks,
+     * replacing it with "filename.encrypted", for hosts without room for a
+     * second copy
+     */
+    @PostMapping("/in-place")
+    @SuppressWarnings("try")
+    public ResponseEntity<ApiResponse<Map<String, Object>>> encryptInPlace(
+            @RequestBody Map<String, String> payload) {
+        String filename = payload.get("filename");
+        if (filename == null || filename.isEmpty()) {
+            return ResponseEntity.badRequest()
+                    .body(ApiResponse.error("Please provide a filename"));
+        }
+        try {
+            long size = Files.size(fileStorageService.resolveInput(filename));
+            long encryptedSize;
+            try (var reservation = admissionController.admit(inPlaceEncryptionService.workingSet(), size)) {
+                encryptedSize = inPlaceEncryptionService.encrypt(filename);
+            }
+
+            var response = new HashMap<String, Object>();
+            response.put("filename", filename);
+            response.put("encryptedFilename", filename + ".encrypted");
+            response.put("originalSize", size);
+            response.put("encryptedSize", encryptedSize);
+            return ResponseEntity.ok(ApiResponse.success("File encrypted in place", response));
+
+        } catch (AdmissionRejectedException e) {
+            auditLogService.failure("file.encrypt", filename, e);
+            log.warn("In-place encryption rejected by admission control: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, e.getRetryAfterMs() / 1000)))
+                    .body(ApiResponse.error("Server busy: " + e.getMessage()));
+        } catch (HsmUnavailableException e) {
+            log.warn("HSM unavailable during in-place encryption: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, e.getRetryAfterMs() / 1000)))
+                    .body(ApiResponse.error("HSM temporarily unavailable: " + e.getMessage()));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(ApiResponse.error(e.getMessage()));
+        } catch (Exception e) {
+            log.error("Error encrypting {} in place", filename, e);
+            return ResponseEntity.internalServerError()
+                    .body(ApiResponse.error("Encryption failed: " + e.getMessage()));
+        }
+    }
+
     /**
      * Download encrypted file
      */
     @GetMapping("/download/file/{fileId}")
     public ResponseEntity<Resource> downloadEncryptedFile(@PathVariable String fileId) {
         try {
-            var session = sessions.get(fileId);
-            if (session == null || session.encryptedFileId == null) {
+            var session = sessionStore.load(SESSION_TYPE, fileId, EncryptionSession.class);
+            if (session == null || session.getEncryptedFileId() == null) {
                 return ResponseEntity.notFound().build();
             }
 
-            var data = fileStorageService.loadTemp(session.encryptedFileId);
-            var resource = new ByteArrayResource(data);
+            var resource = new FileSystemResource(fileStorageService.tempPath(session.getEncryptedFileId()));
 
             return ResponseEntity.ok()
                     .header(HttpHeaders.CONTENT_DISPOSITION,
-                            "attachment; filename=\"" + session.originalFilename + ".encrypted\"")
+                            "attachment; filename=\"" + session.getOriginalFilename() + ".encrypted\"")
                     .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                    .contentLength(data.length)
+                    .contentLength(resource.contentLength())
                     .body(resource);
 
         } catch (Exception e) {
@@ -183,17 +280,17 @@ public class EncryptionController {
     @GetMapping("/download/dek/{fileId}")
     public ResponseEntity<Resource> downloadEncryptedDek(@PathVariable String fileId) {
         try {
-            var session = sessions.get(fileId);
-            if (session == null || session.encryptedDek == null) {
+            var session = sessionStore.load(SESSION_TYPE, fileId, EncryptionSession.class);
+            if (session == null || session.getEncryptedDek() == null) {
                 return ResponseEntity.notFound().build();
             }
 
-            var data = session.encryptedDek.getBytes();
+            var data = session.getEncryptedDek().getBytes();
             var resource = new ByteArrayResource(data);
 
             return ResponseEntity.ok()
                     .header(HttpHeaders.CONTENT_DISPOSITION,
-                            "attachment; filename=\"" + session.originalFilename + ".dek\"")
+                            "attachment; filename=\"" + session.getOriginalFilename() + ".dek\"")
                     .contentType(MediaType.TEXT_PLAIN)
                     .contentLength(data.length)
                     .body(resource);
@@ -203,16 +300,4 @@ public class EncryptionController {
             return ResponseEntity.internalServerError().build();
         }
     }
-
-    /**
-     * Internal class to store encryption session data
-     */
-    private static class EncryptionSession {
-        String fileId;
-        String originalFilename;
-        long originalSize;
-        String encryptedFileId;
-        String encryptedDek;
-        long encryptedSize;
-    }
 }
@@ -1,21 +1,39 @@
 package com.crypto.fileencryption.controller;
 
 import com.crypto.fileencryption.model.ApiResponse;
+import com.crypto.fileencryption.model.ChunkedUpload;
+import com.crypto.fileencryption.service.AdmissionRejectedException;
+import com.crypto.fileencryption.service.AuditLogService;
+import com.crypto.fileencryption.service.ChunkedUploadService;
 import com.crypto.fileencryption.service.FileStorageService;
+import com.crypto.fileencryption.service.HsmUnavailableException;
+import lombok.Data;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import javax.servlet.http.HttpServletRequest;
+import java.nio.channels.Channels;
 import java.util.List;
 
+@Slf4j
 @RestController
 @RequestMapping("/api/files")
 @RequiredArgsConstructor
 public class FileBrowserController {
 
     private final FileStorageService fileStorageService;
+    private final AuditLogService auditLogService;
+    private final ChunkedUploadService chunkedUploadService;
 
     @GetMapping("/list")
     public ResponseEntity<ApiResponse<List<String>>> listInputFiles() {
@@ -32,14 +50,15 @@ public class FileBrowserController {
     public ResponseEntity<org.springframework.core.io.Resource> downloadFile(
             @org.springframework.web.bind.annotation.PathVariable String filename) {
         try {
-            var data = fileStorageService.readFromInput(filename);
-            var resource = new org.springframework.core.io.ByteArrayResource(data);
+            var resource = new org.springframework.core.io.FileSystemResource(
+                    fileStorageService.resolveInput(filename));
+            auditLogService.success("file.download", filename, null);
 
             return ResponseEntity.ok()
                     .header(org.springframework.http.HttpHeaders.CONTENT_DISPOSITION,
                             "attachment; filename=\"" + filename + "\"")
                     .contentType(org.springframework.http.MediaType.APPLICATION_OCTET_STREAM)
-                    .contentLength(data.length)
+                    .contentLength(resource.contentLength())
                     .body(resource);
         } catch (Exception e) {
             return ResponseEntity.internalServerError().build();
@@ -54,7 +73,10 @@ public class FileBrowserController {
                 return ResponseEntity.badRequest().body(ApiResponse.error("File is empty"));
             }
             String filename = file.getOriginalFilename();
-            fileStorageService.writeToOutput(filename, file.getBytes());
+            try (var in = java.nio.channels.Channels.newChannel(file.getInputStream())) {
+                fileStorageService.writeToOutput(filename, in);
+            }
+            auditLogService.success("file.upload", filename, "bytes=" + file.getSize());
             return ResponseEntity.ok(ApiResponse.success("File uploaded successfully", filename));
         } catch (Exception e) {
             return ResponseEntity.internalServerError()
@@ -62,11 +84,119 @@ public class FileBrowserController {
         }
     }
 
+    /**
+     * Start a resumable chunked upload; the response gives the chunk size and count
+     */
+    @org.springframework.web.bind.annotation.PostMapping("/uploads")
+    public ResponseEntity<ApiResponse<ChunkedUpload>> createUpload(@RequestBody UploadRequest request) {
+        if (request.getFilename() == null || request.getFilename().isEmpty() || request.getSize() == null) {
+            return ResponseEntity.badRequest().body(ApiResponse.error("Please provide a filename and size"));
+        }
+        try {
+            var upload = chunkedUploadService.create(request.getFilename(), request.getSize(),
+                    Boolean.TRUE.equals(request.getEncrypt()));
+            return ResponseEntity.status(HttpStatus.CREATED).body(ApiResponse.success("Upload created", upload));
+        } catch (IllegalArgumentException | SecurityException e) {
+            return ResponseEntity.badRequest().body(ApiResponse.error(e.getMessage()));
+        } catch (HsmUnavailableException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, e.getRetryAfterMs() / 1000)))
+                    .body(ApiResponse.error("HSM temporarily unavailable: " + e.getMessage()));
+        } catch (Exception e) {
+            log.error("Error creating upload", e);
+            return ResponseEntity.internalServerError()
+                    .body(ApiResponse.error("Failed to create upload: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Store one chunk; the body is the raw chunk and X-Chunk-Sha256 its hex SHA-256 (optional).
+     * Chunks may be sent in any order, in parallel and more than once.
+     */
+    @PutMapping(value = "/uploads/{uploadId}/chunks/{index}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<ApiResponse<Void>> uploadChunk(
+            @org.springframework.web.bind.annotation.PathVariable String uploadId,
+            @org.springframework.web.bind.annotation.PathVariable long index,
+            @RequestHeader(value = "X-Chunk-Sha256", required = false) String sha256,
+            HttpServletRequest request) {
+        try {
+            if (!chunkedUploadService.receiveChunk(uploadId, index, sha256,
+                    Channels.newChannel(request.getInputStream()))) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                        .body(ApiResponse.error("Unknown upload: " + uploadId));
+            }
+            return ResponseEntity.ok(ApiResponse.success("Chunk received", null));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(ApiResponse.error(e.getMessage()));
+        } catch (AdmissionRejectedException e) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, e.getRetryAfterMs() / 1000)))
+                    .body(ApiResponse.error("Server busy: " + e.getMessage()));
+        } catch (HsmUnavailableException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, e.getRetryAfterMs() / 1000)))
+                    .body(ApiResponse.error("HSM temporarily unavailable: " + e.getMessage()));
+        } catch (Exception e) {
+            log.error("Error receiving chunk {} of upload {}", index, uploadId, e);
+            return ResponseEntity.internalServerError()
+                    .body(ApiResponse.error("Failed to store chunk: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Progress of an upload, including the ranges of chunks still missing
+     */
+    @GetMapping("/uploads/{uploadId}")
+    public ResponseEntity<ApiResponse<ChunkedUpload>> getUpload(
+            @org.springframework.web.bind.annotation.PathVariable String uploadId) {
+        try {
+            var upload = chunkedUploadService.getUpload(uploadId);
+            if (upload == null) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                        .body(ApiResponse.error("Unknown upload: " + uploadId));
+            }
+            return ResponseEntity.ok(ApiResponse.success(upload));
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError()
+                    .body(ApiResponse.error("Failed to read upload: " + e.getMessage()));
+        }
+    }
+
+    @org.springframework.web.bind.annotation.PostMapping("/uploads/{uploadId}/complete")
+    public ResponseEntity<ApiResponse<ChunkedUpload>> completeUpload(
+            @org.springframework.web.bind.annotation.PathVariable String uploadId) {
+        try {
+            var upload = chunkedUploadService.complete(uploadId);
+            if (upload == null) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                        .body(ApiResponse.error("Unknown upload: " + uploadId));
+            }
+            return ResponseEntity.ok(ApiResponse.success("File uploaded successfully", upload));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(ApiResponse.error(e.getMessage()));
+        } catch (Exception e) {
+            log.error("Error completing upload {}", uploadId, e);
+            return ResponseEntity.internalServerError()
+                    .body(ApiResponse.error("Failed to complete upload: " + e.getMessage()));
+        }
+    }
+
+    @org.springframework.web.bind.annotation.DeleteMapping("/uploads/{uploadId}")
+    public ResponseEntity<ApiResponse<Void>> abortUpload(
+            @org.springframework.web.bind.annotation.PathVariable String uploadId) {
+        if (!chunkedUploadService.abort(uploadId)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(ApiResponse.error("Unknown upload: " + uploadId));
+        }
+        return ResponseEntity.ok(ApiResponse.success("Upload aborted", null));
+    }
+
     @org.springframework.web.bind.annotation.DeleteMapping("/{filename}")
     public ResponseEntity<ApiResponse<Void>> deleteFile(
             @org.springframework.web.bind.annotation.PathVariable String filename) {
         try {
             fileStorageService.deleteFile(filename);
+            auditLogService.success("file.delete", filename, null);
             return ResponseEntity.ok(ApiResponse.success("File deleted successfully", null));
         } catch (Exception e) {
             return ResponseEntity.internalServerError()
@@ -84,4 +214,11 @@ public class FileBrowserController {
                     .body(ApiResponse.error("Failed to clean temp directory: " + e.getMessage()));
         }
     }
+
+    @Data
+    public static class UploadRequest {
+        private String filename;
+        private Long size;
+        private Boolean encrypt;
+    }
 }
@@ -1,6 +1,11 @@
 package com.crypto.fileencryption.controller;
 
+import com.crypto.fileencryption.model.HsmSlotStatus;
+import com.crypto.fileencryption.model.SimulatedHsmProfile;
+import com.crypto.fileencryption.model.SimulatedSlotFault;
+import com.crypto.fileencryption.service.AuditLogService;
 import com.crypto.fileencryption.service.HsmRouterService;
+import com.crypto.fileencryption.service.SimulatedHsmService;
 import lombok.Data;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -8,7 +13,9 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 @Slf4j
 @RestController
@@ -17,14 +24,46 @@ import java.util.Map;
 public class HsmSettingsController {
 
     private final HsmRouterService hsmRouterService;
+    private final SimulatedHsmService simulatedHsmService;
+    private final AuditLogService auditLogService;
 
     @GetMapping("/status")
     public ResponseEntity<Map<String, Boolean>> getStatus() {
         Map<String, Boolean> status = new HashMap<>();
         status.put("useHsm", hsmRouterService.isUseHsm());
+        status.put("realHsmConnected", hsmRouterService.isRealHsmConnected());
         return ResponseEntity.ok(status);
     }
 
+    @GetMapping("/slots")
+    public ResponseEntity<List<HsmSlotStatus>> getSlots() {
+        List<HsmSlotStatus> slots = hsmRouterService.getActiveSlots().stream()
+                .map(slot -> new HsmSlotStatus(
+                        slot.getId(),
+                        slot.isHealthy(),
+                        slot.getOutstanding(),
+                        slot.getCompleted(),
+                        slot.getFailed(),
+                        slot.getLastError()))
+                .collect(Collectors.toList());
+        return ResponseEntity.ok(slots);
+    }
+
+    /**
+     * Take a single simulated slot offline or make it flaky
+     */
+    @PutMapping("/slots/{id}/fault")
+    public ResponseEntity<?> setSlotFault(@PathVariable String id, @RequestBody SimulatedSlotFault fault) {
+        try {
+            hsmRouterService.setSimulatedSlotFault(id, fault.isOffline(), fault.getErrorRate());
+            auditLogService.success("hsm.slot.fault", id,
+                    "offline=" + fault.isOffline() + " errorRate=" + fault.getErrorRate());
+            return ResponseEntity.ok(fault);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
     @PostMapping("/config")
     public ResponseEntity<?> configure(@RequestBody HsmConfigRequest request) {
         try {
@@ -38,6 +77,25 @@ public class HsmSettingsController {
         }
     }
 
+    /**
+     * Latency and fault profile of the simulated HSM
+     */
+    @GetMapping("/simulation")
+    public ResponseEntity<SimulatedHsmProfile> getSimulation() {
+        return ResponseEntity.ok(simulatedHsmService.getProfile());
+    }
+
+    @PutMapping("/simulation")
+    public ResponseEntity<?> updateSimulation(@RequestBody SimulatedHsmProfile profile) {
+        try {
+            simulatedHsmService.applyProfile(profile);
+            auditLogService.success("hsm.simulation", profile.getLatencyDistribution(), null);
+            return ResponseEntity.ok(simulatedHsmService.getProfile());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
     @Data
     public static class HsmConfigRequest {
         private boolean useHsm;
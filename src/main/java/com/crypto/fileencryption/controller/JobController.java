@@ -0,0 +1,108 @@
+package com.crypto.fileencryption.controller;
+
+import com.crypto.fileencryption.model.ApiResponse;
+import com.crypto.fileencryption.model.CryptoJob;
+import com.crypto.fileencryption.service.HsmUnavailableException;
+import com.crypto.fileencryption.service.ResumableJobService;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+/**
+ * REST Controller for resumable encryption and decryption jobs on files in
+ * the DATA directory. Jobs run in the background; poll the returned job ID.
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/jobs")
+@RequiredArgsConstructor
+public class JobController {
+
+    private final ResumableJobService resumableJobService;
+
+    @PostMapping("/encrypt")
+    public ResponseEntity<ApiResponse<CryptoJob>> startEncrypt(@RequestBody JobRequest request) {
+        if (request.getFilename() == null || request.getFilename().isEmpty()) {
+            return ResponseEntity.badRequest().body(ApiResponse.error("Please provide a filename"));
+        }
+        return start(() -> resumableJobService.startEncrypt(request.getFilename()));
+    }
+
+    @PostMapping("/decrypt")
+    public ResponseEntity<ApiResponse<CryptoJob>> startDecrypt(@RequestBody JobRequest request) {
+        if (request.getEncryptedFilename() == null || request.getDekFilename() == null) {
+            return ResponseEntity.badRequest()
+                    .body(ApiResponse.error("Please provide both encrypted file and DEK file names"));
+        }
+        return start(() -> resumableJobService.startDecrypt(request.getEncryptedFilename(),
+                request.getDekFilename()));
+    }
+
+    @GetMapping
+    public ResponseEntity<ApiResponse<List<CryptoJob>>> listJobs() {
+        return ResponseEntity.ok(ApiResponse.success(resumableJobService.getJobs()));
+    }
+
+    @GetMapping("/{jobId}")
+    public ResponseEntity<ApiResponse<CryptoJob>> getJob(@PathVariable String jobId) {
+        return found(jobId, resumableJobService.getJob(jobId));
+    }
+
+    /**
+     * Continue a failed job from its last checkpoint
+     */
+    @PostMapping("/{jobId}/resume")
+    public ResponseEntity<ApiResponse<CryptoJob>> resumeJob(@PathVariable String jobId) {
+        return found(jobId, resumableJobService.resume(jobId));
+    }
+
+    /**
+     * Cancel a job and discard its partial output
+     */
+    @DeleteMapping("/{jobId}")
+    public ResponseEntity<ApiResponse<CryptoJob>> cancelJob(@PathVariable String jobId) {
+        return found(jobId, resumableJobService.cancel(jobId));
+    }
+
+    @FunctionalInterface
+    private interface JobStarter {
+        CryptoJob start() throws Exception;
+    }
+
+    private ResponseEntity<ApiResponse<CryptoJob>> start(JobStarter starter) {
+        try {
+            return ResponseEntity.status(HttpStatus.ACCEPTED)
+                    .body(ApiResponse.success("Job started", starter.start()));
+        } catch (HsmUnavailableException e) {
+            log.warn("HSM unavailable while starting job: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, e.getRetryAfterMs() / 1000)))
+                    .body(ApiResponse.error("HSM temporarily unavailable: " + e.getMessage()));
+        } catch (Exception e) {
+            log.error("Error starting job", e);
+            return ResponseEntity.internalServerError()
+                    .body(ApiResponse.error("Failed to start job: " + e.getMessage()));
+        }
+    }
+
+    private static ResponseEntity<ApiResponse<CryptoJob>> found(String jobId, CryptoJob job) {
+        if (job == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(ApiResponse.error("Unknown job: " + jobId));
+        }
+        return ResponseEntity.ok(ApiResponse.success(job));
+    }
+
+    @Data
+    public static class JobRequest {
+        private String filename;
+        private String encryptedFilename;
+        private String dekFilename;
+    }
+}
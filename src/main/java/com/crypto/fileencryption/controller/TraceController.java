@@ -0,0 +1,50 @@
+package com.crypto.fileencryption.controller;
+
+import com.crypto.fileencryption.model.ApiResponse;
+import com.crypto.fileencryption.model.TraceRecord;
+import com.crypto.fileencryption.service.Tracer;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * REST Controller for recent slow request traces
+ */
+@RestController
+@RequestMapping("/api/traces")
+@RequiredArgsConstructor
+public class TraceController {
+
+    private final Tracer tracer;
+
+    /**
+     * Recent traces slower than tracing.slow-threshold-ms, newest first
+     */
+    @GetMapping("/slow")
+    public ResponseEntity<ApiResponse<List<TraceRecord>>> getSlowTraces(
+            @RequestParam(defaultValue = "20") int limit) {
+        var traces = tracer.getSlowTraces().stream()
+                .limit(Math.max(0, limit))
+                .collect(Collectors.toList());
+        return ResponseEntity.ok(ApiResponse.success(
+                "Traces slower than " + tracer.getSlowThresholdMs() + " ms", traces));
+    }
+
+    @GetMapping("/slow/{traceId}")
+    public ResponseEntity<ApiResponse<TraceRecord>> getSlowTrace(@PathVariable String traceId) {
+        var trace = tracer.getSlowTrace(traceId);
+        if (trace == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(ApiResponse.error("Unknown or expired trace: " + traceId));
+        }
+        return ResponseEntity.ok(ApiResponse.success(trace));
+    }
+}
@@ -0,0 +1,59 @@
+package com.crypto.fileencryption.controller;
+
+import com.crypto.fileencryption.service.Tracer;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Opens the root span of a trace for every API request and returns its ID
+ * in the X-Trace-Id response header
+ */
+@Component
+@RequiredArgsConstructor
+public class TracingFilter extends OncePerRequestFilter {
+
+    public static final String TRACE_HEADER = "X-Trace-Id";
+
+    private final Tracer tracer;
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        // Traces of trace lookups would only crowd out the ones being looked for
+        String path = request.getRequestURI();
+        return !path.startsWith("/api/") || path.startsWith("/api/traces");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        try (var span = tracer.span(request.getMethod() + " " + request.getRequestURI())) {
+            if (span.getTraceId() != null) {
+                response.setHeader(TRACE_HEADER, span.getTraceId());
+            }
+            try {
+                chain.doFilter(request, response);
+            } catch (IOException | ServletException | RuntimeException e) {
+                span.error(e);
+                throw e;
+            } finally {
+                // Name by mapping rather than raw URI, so traces of one endpoint group together
+                Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+                if (pattern != null) {
+                    span.rename(request.getMethod() + " " + pattern);
+                }
+                span.tag("http.status", response.getStatus());
+                if (response.getStatus() >= 500) {
+                    span.error(new ServletException("HTTP " + response.getStatus()));
+                }
+            }
+        }
+    }
+}
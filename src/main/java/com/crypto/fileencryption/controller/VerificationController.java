@@ -0,0 +1,68 @@
+package com.crypto.fileencryption.controller;
+
+import com.crypto.fileencryption.model.ApiResponse;
+import com.crypto.fileencryption.model.VerificationReport;
+import com.crypto.fileencryption.service.AuditLogService;
+import com.crypto.fileencryption.service.IntegrityVerificationService;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+/**
+ * REST Controller for integrity verification scans of the DATA tree
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/verify")
+@RequiredArgsConstructor
+public class VerificationController {
+
+    private final IntegrityVerificationService integrityVerificationService;
+    private final AuditLogService auditLogService;
+
+    /**
+     * Start a scan of all encrypted files; poll the returned job ID for progress
+     */
+    @PostMapping("/scan")
+    public ResponseEntity<ApiResponse<VerificationReport>> startScan(
+            @RequestBody(required = false) ScanRequest request) {
+        try {
+            var threads = request != null ? request.getThreads() : null;
+            var bytesPerSecond = request != null ? request.getMaxBytesPerSecond() : null;
+            var report = integrityVerificationService.start(threads, bytesPerSecond);
+            auditLogService.success("verify.scan", report.getJobId(), null);
+            return ResponseEntity.status(HttpStatus.ACCEPTED)
+                    .body(ApiResponse.success("Verification scan started", report));
+        } catch (Exception e) {
+            log.error("Error starting verification scan", e);
+            return ResponseEntity.internalServerError()
+                    .body(ApiResponse.error("Failed to start verification scan: " + e.getMessage()));
+        }
+    }
+
+    @GetMapping("/scan/{jobId}")
+    public ResponseEntity<ApiResponse<VerificationReport>> getScan(@PathVariable String jobId) {
+        var report = integrityVerificationService.getReport(jobId);
+        if (report == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(ApiResponse.error("Unknown verification job: " + jobId));
+        }
+        return ResponseEntity.ok(ApiResponse.success(report));
+    }
+
+    @GetMapping("/scan")
+    public ResponseEntity<ApiResponse<List<VerificationReport>>> listScans() {
+        return ResponseEntity.ok(ApiResponse.success(integrityVerificationService.getReports()));
+    }
+
+    @Data
+    public static class ScanRequest {
+        private Integer threads;
+        private Long maxBytesPerSecond;
+    }
+}
@@ -0,0 +1,40 @@
+package com.crypto.fileencryption.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Lookup in one of the unwrapped key caches that save HSM round trips
+ */
+@Name("com.crypto.fileencryption.DekCache")
+@Label("DEK Cache Lookup")
+@Category({ "File Encryption", "Crypto" })
+@Description("Hit or miss in a cache of unwrapped keys; a miss costs an HSM unwrap")
+@Enabled(false)
+@StackTrace(false)
+public class DekCacheEvent extends Event {
+
+    @Label("Cache")
+    @Description("intermediate (envelope keys) or upload (DEKs of encrypting uploads)")
+    public String cache;
+
+    @Label("Hit")
+    public boolean hit;
+
+    /**
+     * Record an instant lookup
+     */
+    public static void lookup(String cache, boolean hit) {
+        DekCacheEvent event = new DekCacheEvent();
+        if (event.shouldCommit()) {
+            event.cache = cache;
+            event.hit = hit;
+            event.commit();
+        }
+    }
+}
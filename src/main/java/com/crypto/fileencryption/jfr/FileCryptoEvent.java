@@ -0,0 +1,48 @@
+package com.crypto.fileencryption.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Encryption or decryption of one file stream by FileEncryptionService
+ */
+@Name("com.crypto.fileencryption.FileCrypto")
+@Label("File Encrypt/Decrypt")
+@Category({ "File Encryption", "Crypto" })
+@Description("AES-GCM encryption or decryption of a file, from the first chunk read to the last chunk written")
+@Enabled(false)
+@StackTrace(false)
+public class FileCryptoEvent extends Event {
+
+    @Label("Operation")
+    @Description("encrypt or decrypt")
+    public String operation;
+
+    @Label("Plaintext Size")
+    @DataAmount
+    public long plaintextBytes;
+
+    @Label("Encrypted Size")
+    @DataAmount
+    public long encryptedBytes;
+
+    @Label("Chunks")
+    @Description("Chunks processed by this call, 0 for a single-shot legacy file")
+    public long chunks;
+
+    @Label("First Chunk")
+    @Description("Chunk the call started from; greater than 0 when resuming")
+    public long firstChunk;
+
+    @Label("Provider")
+    public String provider;
+
+    @Label("Success")
+    public boolean success;
+}
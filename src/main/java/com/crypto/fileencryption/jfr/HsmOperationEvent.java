@@ -0,0 +1,43 @@
+package com.crypto.fileencryption.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * One KEK wrap or unwrap routed by HsmRouterService, including the wait for
+ * a limiter permit
+ */
+@Name("com.crypto.fileencryption.HsmOperation")
+@Label("HSM Wrap/Unwrap")
+@Category({ "File Encryption", "HSM" })
+@Description("KEK wrap or unwrap through the HSM router, from the request for a permit to the slot's reply")
+@Enabled(false)
+@StackTrace(false)
+public class HsmOperationEvent extends Event {
+
+    @Label("Operation")
+    @Description("wrap or unwrap")
+    public String operation;
+
+    @Label("Mode")
+    @Description("real or simulated")
+    public String mode;
+
+    @Label("Slot")
+    @Description("Slot the call was routed to; null if it was rejected before reaching one")
+    public String slot;
+
+    @Label("Session Wait")
+    @Description("Time spent waiting for an HSM permit before the slot call")
+    @Timespan(Timespan.NANOSECONDS)
+    public long sessionWait;
+
+    @Label("Success")
+    public boolean success;
+}
@@ -0,0 +1,40 @@
+package com.crypto.fileencryption.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Read, write or commit of a file in the DATA directory by FileStorageService
+ */
+@Name("com.crypto.fileencryption.StorageIo")
+@Label("Storage Read/Write")
+@Category({ "File Encryption", "Storage" })
+@Description("File read, staged write or atomic commit in the DATA directory")
+@Enabled(false)
+@StackTrace(false)
+public class StorageIoEvent extends Event {
+
+    @Label("Operation")
+    @Description("read, write, commit or copy-to-temp")
+    public String operation;
+
+    @Label("File")
+    public String file;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+    @Label("Durability")
+    @Description("Durability mode of a commit")
+    public String durability;
+
+    @Label("Success")
+    public boolean success;
+}
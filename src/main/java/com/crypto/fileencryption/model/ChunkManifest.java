@@ -0,0 +1,35 @@
+package com.crypto.fileencryption.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Per-chunk record of the plaintext last encrypted into "filename.encrypted",
+ * for incremental re-encryption
+ */
+@Data
+@NoArgsConstructor
+public class ChunkManifest {
+    private int version;
+    private String filename;
+    private int chunkSize;
+    private long plaintextSize;
+    /**
+     * Base64 SHA-256 of the ".dek" file the chunks are sealed under
+     */
+    private String dekSha256;
+    /**
+     * Base64 SHA-256 over the GCM tags of all chunks, identifying the
+     * encrypted file the manifest describes
+     */
+    private String tagsSha256;
+    /**
+     * Base64 concatenation of the keyed 32-byte hash of each chunk's plaintext
+     */
+    private String chunkHashes;
+    /**
+     * Base64 HMAC over all of the above, keyed from the DEK
+     */
+    private String mac;
+    private long updatedAt;
+}
@@ -0,0 +1,37 @@
+package com.crypto.fileencryption.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * A resumable chunked upload into the DATA directory
+ */
+@Data
+@NoArgsConstructor
+public class ChunkedUpload {
+    private String uploadId;
+    private String filename;
+    private long size;
+    private int chunkSize;
+    private long chunkCount;
+    /**
+     * Encrypt chunks as they arrive, producing "filename.encrypted" and "filename.dek"
+     */
+    private boolean encrypt;
+    /**
+     * Base64 wrapped DEK of an encrypting upload
+     */
+    private String encryptedDek;
+    private long createdAt;
+
+    /**
+     * Progress, filled in when the upload is queried
+     */
+    private long receivedChunks;
+    /**
+     * Inclusive [first, last] ranges of chunk indices not received yet
+     */
+    private List<long[]> missingChunks;
+}
@@ -0,0 +1,59 @@
+package com.crypto.fileencryption.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A resumable encryption or decryption job and its last checkpoint.
+ *
+ * The checkpoint is everything needed to continue after a crash: the wrapped
+ * DEK, the chunk size and plaintext size that define the chunk layout, and the
+ * number of chunks known to be on disk. It never contains key material in the
+ * clear.
+ */
+@Data
+@NoArgsConstructor
+public class CryptoJob {
+    private String jobId;
+    /**
+     * encrypt or decrypt
+     */
+    private String operation;
+    /**
+     * QUEUED, RUNNING, FAILED, COMPLETED or CANCELLED
+     */
+    private String status;
+    private String message;
+
+    private String sourceFilename;
+    private String targetFilename;
+    private String dekFilename;
+    /**
+     * Base64 wrapped DEK, as stored in the .dek file
+     */
+    private String encryptedDek;
+
+    /**
+     * Size and modification time of the source when the job started; a
+     * checkpoint is only reused if the source is unchanged
+     */
+    private long sourceSize;
+    private long sourceModified;
+
+    /**
+     * Chunk size of the encrypted file (encryption jobs)
+     */
+    private int chunkSize;
+    /**
+     * Chunks durably written to the partial output
+     */
+    private long nextChunk;
+    /**
+     * Size of the partial output at the checkpoint
+     */
+    private long outputOffset;
+    private int resumeCount;
+
+    private long createdAt;
+    private long updatedAt;
+}
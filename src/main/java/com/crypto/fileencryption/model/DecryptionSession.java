@@ -0,0 +1,18 @@
+package com.crypto.fileencryption.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * State of a decryption select/process session, kept in the SessionStore
+ */
+@Data
+@NoArgsConstructor
+public class DecryptionSession {
+    private String fileId;
+    private String originalFilename;
+    private long encryptedSize;
+    private String encryptedDek;
+    private String decryptedFileId;
+    private long decryptedSize;
+}
@@ -0,0 +1,18 @@
+package com.crypto.fileencryption.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * State of an encryption select/process session, kept in the SessionStore
+ */
+@Data
+@NoArgsConstructor
+public class EncryptionSession {
+    private String fileId;
+    private String originalFilename;
+    private long originalSize;
+    private String encryptedFileId;
+    private String encryptedDek;
+    private long encryptedSize;
+}
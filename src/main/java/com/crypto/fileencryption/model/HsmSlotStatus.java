@@ -0,0 +1,20 @@
+package com.crypto.fileencryption.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Response model for the state of a single HSM slot
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class HsmSlotStatus {
+    private String id;
+    private boolean healthy;
+    private int outstanding;
+    private long completed;
+    private long failed;
+    private String lastError;
+}
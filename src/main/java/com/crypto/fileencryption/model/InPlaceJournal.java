@@ -0,0 +1,23 @@
+package com.crypto.fileencryption.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Fixed parameters of an in-place encryption, written before the file is
+ * touched so that an interrupted run can be completed after a crash. The
+ * progress itself is in the journal's chunk slots.
+ */
+@Data
+@NoArgsConstructor
+public class InPlaceJournal {
+    private String journalId;
+    private String filename;
+    private long plaintextSize;
+    private int chunkSize;
+    /**
+     * Base64 wrapped DEK, written to "filename.dek" when the file is done
+     */
+    private String encryptedDek;
+    private long createdAt;
+}
@@ -0,0 +1,44 @@
+package com.crypto.fileencryption.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Performance and fault behaviour of the simulated HSM
+ */
+@Data
+@NoArgsConstructor
+public class SimulatedHsmProfile {
+    /**
+     * none, fixed, normal or long-tail
+     */
+    private String latencyDistribution;
+    /**
+     * Fixed latency, mean of the normal distribution, or median of the long tail
+     */
+    private double latencyMs;
+    /**
+     * Standard deviation of the normal distribution
+     */
+    private double latencyStddevMs;
+    /**
+     * 99th percentile of the long tail (log-normal)
+     */
+    private double latencyP99Ms;
+    /**
+     * Operations per second across all callers, 0 = unlimited
+     */
+    private int maxOpsPerSecond;
+    /**
+     * Operations executing at once, 0 = unlimited; further callers wait
+     */
+    private int maxConcurrency;
+    /**
+     * Probability (0..1) that a wrap fails with a device error
+     */
+    private double wrapErrorRate;
+    /**
+     * Probability (0..1) that an unwrap fails with a device error
+     */
+    private double unwrapErrorRate;
+}
@@ -0,0 +1,22 @@
+package com.crypto.fileencryption.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Faults injected into a single simulated HSM slot
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SimulatedSlotFault {
+    /**
+     * Every operation on the slot fails
+     */
+    private boolean offline;
+    /**
+     * Probability (0..1) that an operation on the slot fails with a device error
+     */
+    private double errorRate;
+}
@@ -0,0 +1,40 @@
+package com.crypto.fileencryption.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Response model for a finished trace and its spans
+ */
+@Data
+@NoArgsConstructor
+public class TraceRecord {
+    private String traceId;
+    private String name;
+    private String startedAt;
+    private double durationMs;
+    private boolean error;
+    private boolean truncated;
+    private List<SpanRecord> spans = new ArrayList<>();
+
+    /**
+     * A span, timed relative to the start of its trace
+     */
+    @Data
+    @NoArgsConstructor
+    public static class SpanRecord {
+        private String spanId;
+        private String parentSpanId;
+        private String name;
+        private String thread;
+        private double startOffsetMs;
+        private double durationMs;
+        private Map<String, Object> attributes = new LinkedHashMap<>();
+        private String error;
+    }
+}
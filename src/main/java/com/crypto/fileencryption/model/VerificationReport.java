@@ -0,0 +1,41 @@
+package com.crypto.fileencryption.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Response model for an integrity verification scan of the DATA tree
+ */
+@Data
+@NoArgsConstructor
+public class VerificationReport {
+    private String jobId;
+    private String status;
+    private String startedAt;
+    private String finishedAt;
+    private int threads;
+    private long throttleBytesPerSecond;
+    private int filesTotal;
+    private int filesVerified;
+    private int filesAuthentic;
+    private long bytesVerified;
+    private double elapsedSeconds;
+    private double gigabytesPerSecond;
+    private List<FileFailure> corrupted = new ArrayList<>();
+    private String message;
+
+    /**
+     * An encrypted file that failed verification
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class FileFailure {
+        private String filename;
+        private String reason;
+    }
+}
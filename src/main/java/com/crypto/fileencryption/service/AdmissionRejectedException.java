@@ -0,0 +1,25 @@
+package com.crypto.fileencryption.service;
+
+/**
+ * Thrown when an operation is not admitted because its memory reservation
+ * did not fit the admission budget, either immediately (queue full) or
+ * within the queue deadline.
+ */
+public class AdmissionRejectedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterMs;
+
+    public AdmissionRejectedException(String message, long retryAfterMs) {
+        super(message);
+        this.retryAfterMs = retryAfterMs;
+    }
+
+    /**
+     * Suggested delay before the caller retries
+     */
+    public long getRetryAfterMs() {
+        return retryAfterMs;
+    }
+}
@@ -0,0 +1,449 @@
+package com.crypto.fileencryption.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Asynchronous, append-only audit trail of key and file operations.
+ *
+ * Callers only enqueue an event on a lock-free queue. A single writer thread
+ * drains the queue in batches and appends them as JSON lines to segment files
+ * (audit-000001.log, ...) in audit.directory, rolling to a new segment once
+ * audit.max-segment-bytes is reached. With audit.fsync each batch is flushed
+ * to disk with one fsync.
+ *
+ * Records are hash-chained across segments: every record carries the hash of
+ * its predecessor in "prev", and its own "hash" is the hex SHA-256 of the
+ * record's JSON without the trailing hash field. Removing, reordering or
+ * editing a record therefore breaks the chain from that point on.
+ *
+ * When the queue is full (audit.max-queue), events are dropped and counted
+ * rather than blocking the request path.
+ *
+ * A chain has exactly one writer: the directory is locked (.lock) for the
+ * lifetime of the service, and a second process pointed at the same
+ * directory fails to start instead of forking the chain. On restart the
+ * writer continues in the newest segment until it is full, after cutting off
+ * a record torn by a crash.
+ */
+@Slf4j
+@Service
+public class AuditLogService {
+
+    public static final String SUCCESS = "success";
+    public static final String FAILURE = "failure";
+
+    private static final String GENESIS = "0".repeat(64);
+    private static final Pattern SEGMENT_NAME = Pattern.compile("audit-(\\d{6})\\.log");
+    private static final String LOCK_FILE = ".lock";
+    private static final int TAIL_BLOCK = 8192;
+
+    private final MeterRegistry meterRegistry;
+    // Streaming API only: records are flat, and databind would add to every CLI run's startup
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    @Value("${audit.enabled:true}")
+    private boolean enabled;
+
+    @Value("${audit.directory:./audit}")
+    private String directory;
+
+    @Value("${audit.max-segment-bytes:67108864}")
+    private long maxSegmentBytes;
+
+    @Value("${audit.batch-size:512}")
+    private int batchSize;
+
+    @Value("${audit.flush-interval-ms:200}")
+    private long flushIntervalMs;
+
+    @Value("${audit.max-queue:100000}")
+    private int maxQueue;
+
+    @Value("${audit.fsync:true}")
+    private boolean fsync;
+
+    private final ConcurrentLinkedQueue<AuditEvent> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private Path auditDirectory;
+    private FileChannel lockChannel;
+    private Thread writer;
+    private volatile boolean running;
+
+    // Writer thread state
+    private FileChannel segment;
+    private int segmentNumber;
+    private long segmentSize;
+    private long sequence;
+    private String lastHash = GENESIS;
+    private MessageDigest digest;
+
+    private Counter dropped;
+    private Counter written;
+    private DistributionSummary batches;
+
+    public AuditLogService(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() throws Exception {
+        dropped = Counter.builder("audit.dropped")
+                .description("Audit events dropped because the queue was full")
+                .register(meterRegistry);
+        written = Counter.builder("audit.written")
+                .description("Audit records written")
+                .register(meterRegistry);
+        batches = DistributionSummary.builder("audit.batch")
+                .description("Audit records per write")
+                .register(meterRegistry);
+        Gauge.builder("audit.queue", queued, AtomicInteger::get)
+                .description("Audit events waiting to be written")
+                .register(meterRegistry);
+
+        if (!enabled) {
+            log.info("Audit log disabled");
+            return;
+        }
+        digest = MessageDigest.getInstance("SHA-256");
+        auditDirectory = Paths.get(directory).toAbsolutePath().normalize();
+        Files.createDirectories(auditDirectory);
+        lockDirectory();
+        resumeChain();
+
+        running = true;
+        writer = new Thread(this::writeLoop, "audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+        log.info("Audit log at {} (segment {}, sequence {})", auditDirectory, segmentNumber, sequence);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (writer == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        writer.join(TimeUnit.SECONDS.toMillis(10));
+        try {
+            // Releases the directory lock
+            lockChannel.close();
+        } catch (IOException e) {
+            log.warn("Failed to release audit directory lock", e);
+        }
+    }
+
+    /**
+     * Take the single-writer lock of the audit directory
+     *
+     * @throws IllegalStateException if another process (or context) already writes to it
+     */
+    private void lockDirectory() throws IOException {
+        lockChannel = FileChannel.open(auditDirectory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new IllegalStateException("Audit directory " + auditDirectory
+                    + " is in use by another process; every process needs its own audit.directory");
+        }
+    }
+
+    /**
+     * Enqueue an audit event; never blocks
+     *
+     * @param action  What happened, e.g. "dek.wrap" or "file.encrypt"
+     * @param subject What it happened to, e.g. a filename or slot
+     * @param outcome SUCCESS or FAILURE
+     * @param detail  Optional free-form detail
+     */
+    public void record(String action, String subject, String outcome, String detail) {
+        if (!running) {
+            return;
+        }
+        if (queued.incrementAndGet() > maxQueue) {
+            queued.decrementAndGet();
+            dropped.increment();
+            return;
+        }
+        queue.offer(new AuditEvent(System.currentTimeMillis(), Thread.currentThread().getName(),
+                action, subject, outcome, detail));
+        if (queued.get() >= batchSize) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    public void success(String action, String subject, String detail) {
+        record(action, subject, SUCCESS, detail);
+    }
+
+    public void failure(String action, String subject, Exception e) {
+        record(action, subject, FAILURE, e.getClass().getSimpleName() + ": " + e.getMessage());
+    }
+
+    private void writeLoop() {
+        List<AuditEvent> batch = new ArrayList<>(batchSize);
+        while (true) {
+            boolean stopping = !running;
+            AuditEvent event;
+            while (batch.size() < batchSize && (event = queue.poll()) != null) {
+                batch.add(event);
+            }
+            if (!batch.isEmpty()) {
+                queued.addAndGet(-batch.size());
+                try {
+                    writeBatch(batch);
+                } catch (Exception e) {
+                    log.error("Failed to write {} audit records", batch.size(), e);
+                }
+                batch.clear();
+                if (!queue.isEmpty()) {
+                    continue;
+                }
+            }
+            if (stopping) {
+                break;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(flushIntervalMs));
+        }
+        closeSegment();
+    }
+
+    private void writeBatch(List<AuditEvent> batch) throws IOException {
+        for (AuditEvent event : batch) {
+            byte[] line = chain(event);
+            if (segment == null || (segmentSize > 0 && segmentSize + line.length > maxSegmentBytes)) {
+                rollSegment();
+            }
+            var buffer = ByteBuffer.wrap(line);
+            while (buffer.hasRemaining()) {
+                segment.write(buffer);
+            }
+            segmentSize += line.length;
+        }
+        if (fsync) {
+            segment.force(false);
+        }
+        written.increment(batch.size());
+        batches.record(batch.size());
+    }
+
+    /**
+     * Serialize an event as the next record in the chain
+     */
+    private byte[] chain(AuditEvent event) throws IOException {
+        var json = new StringWriter(256);
+        try (JsonGenerator generator = jsonFactory.createGenerator(json)) {
+            generator.writeStartObject();
+            generator.writeNumberField("seq", ++sequence);
+            generator.writeStringField("ts", Instant.ofEpochMilli(event.timestamp).toString());
+            generator.writeStringField("thread", event.thread);
+            generator.writeStringField("action", event.action);
+            generator.writeStringField("subject", event.subject);
+            generator.writeStringField("outcome", event.outcome);
+            generator.writeStringField("detail", event.detail);
+            generator.writeStringField("prev", lastHash);
+            generator.writeEndObject();
+        }
+
+        String body = json.toString();
+        lastHash = hex(digest.digest(body.getBytes(StandardCharsets.UTF_8)));
+        // Hash field appended to the hashed body: {...,"prev":"..."} -> {...,"prev":"...","hash":"..."}
+        String line = body.substring(0, body.length() - 1) + ",\"hash\":\"" + lastHash + "\"}\n";
+        return line.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void rollSegment() throws IOException {
+        closeSegment();
+        openSegment(segmentNumber + 1);
+    }
+
+    private void openSegment(int number) throws IOException {
+        segmentNumber = number;
+        Path path = auditDirectory.resolve(segmentName(segmentNumber));
+        segment = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        segmentSize = segment.size();
+        log.info("Audit log segment {}", path);
+    }
+
+    private void closeSegment() {
+        if (segment == null) {
+            return;
+        }
+        try {
+            segment.force(true);
+            segment.close();
+        } catch (IOException e) {
+            log.warn("Failed to close audit segment", e);
+        }
+        segment = null;
+    }
+
+    /**
+     * Continue the chain from the last record, appending to the newest segment
+     */
+    private void resumeChain() throws IOException {
+        List<Integer> numbers;
+        try (var files = Files.list(auditDirectory)) {
+            numbers = files
+                    .map(path -> SEGMENT_NAME.matcher(path.getFileName().toString()))
+                    .filter(Matcher::matches)
+                    .map(m -> Integer.parseInt(m.group(1)))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        if (numbers.isEmpty()) {
+            return;
+        }
+        // The newest segment may hold no complete record yet (rolled or torn just before a crash)
+        String last = null;
+        for (int i = numbers.size() - 1; i >= 0 && last == null; i--) {
+            last = lastRecord(auditDirectory.resolve(segmentName(numbers.get(i))));
+        }
+        if (last != null) {
+            try (JsonParser parser = jsonFactory.createParser(last)) {
+                for (JsonToken token = parser.nextToken(); token != null; token = parser.nextToken()) {
+                    if (token != JsonToken.FIELD_NAME) {
+                        continue;
+                    }
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    if ("seq".equals(field)) {
+                        sequence = parser.getLongValue();
+                    } else if ("hash".equals(field)) {
+                        lastHash = parser.getText();
+                    }
+                }
+            }
+        }
+        // Continue in the newest segment; writeBatch rolls over once it is full
+        openSegment(numbers.get(numbers.size() - 1));
+    }
+
+    /**
+     * Cut a record torn by a crash (no trailing newline) off the end of a
+     * segment and return its last complete record
+     *
+     * @return The last record, or null if the segment holds none
+     */
+    private static String lastRecord(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long end = previousNewline(channel, size);
+            if (end + 1 < size) {
+                log.warn("Truncating torn audit record at the end of {} ({} bytes)", path, size - end - 1);
+                channel.truncate(end + 1);
+                channel.force(true);
+            }
+            if (end < 0) {
+                return null;
+            }
+            long start = previousNewline(channel, end) + 1;
+            var record = ByteBuffer.allocate(Math.toIntExact(end - start));
+            readFully(channel, record, start);
+            return new String(record.array(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @return Position of the last newline before the given position, or -1 if there is none
+     */
+    private static long previousNewline(FileChannel channel, long before) throws IOException {
+        var block = ByteBuffer.allocate(TAIL_BLOCK);
+        long end = before;
+        while (end > 0) {
+            long start = Math.max(0, end - TAIL_BLOCK);
+            block.clear().limit(Math.toIntExact(end - start));
+            readFully(channel, block, start);
+            for (int i = block.position() - 1; i >= 0; i--) {
+                if (block.get(i) == '\n') {
+                    return start + i;
+                }
+            }
+            end = start;
+        }
+        return -1;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position() - start);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    private static String segmentName(int number) {
+        return String.format("audit-%06d.log", number);
+    }
+
+    private static String hex(byte[] bytes) {
+        var sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static final class AuditEvent {
+        final long timestamp;
+        final String thread;
+        final String action;
+        final String subject;
+        final String outcome;
+        final String detail;
+
+        AuditEvent(long timestamp, String thread, String action, String subject, String outcome, String detail) {
+            this.timestamp = timestamp;
+            this.thread = thread;
+            this.action = action;
+            this.subject = subject;
+            this.outcome = outcome;
+            this.detail = detail;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.crypto.fileencryption.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the combined read bandwidth of several threads.
+ *
+ * Readers pay for bytes after reading them and sleep off any debt, so a
+ * single large read is never blocked outright. The bucket holds at most
+ * 100 ms worth of tokens, which keeps short bursts from overshooting the rate.
+ */
+public class BandwidthThrottle {
+
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final long bytesPerSecond;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond Allowed rate; 0 or less means unlimited
+     */
+    public BandwidthThrottle(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.capacity = bytesPerSecond * (double) BURST_NANOS / TimeUnit.SECONDS.toNanos(1);
+        this.tokens = capacity;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public boolean isUnlimited() {
+        return bytesPerSecond <= 0;
+    }
+
+    /**
+     * Account for bytes read, sleeping if the rate has been exceeded
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        if (isUnlimited() || bytes <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * (double) bytesPerSecond / 1e9);
+            lastRefill = now;
+            tokens -= bytes;
+            waitNanos = tokens < 0 ? (long) (-tokens * 1e9 / bytesPerSecond) : 0;
+        }
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+
+    /**
+     * Wrap a channel so that its reads are charged to this throttle
+     */
+    public SeekableByteChannel throttle(SeekableByteChannel channel) {
+        if (isUnlimited()) {
+            return channel;
+        }
+        return new SeekableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                int n = channel.read(dst);
+                acquire(n);
+                return n;
+            }
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                return channel.write(src);
+            }
+
+            @Override
+            public long position() throws IOException {
+                return channel.position();
+            }
+
+            @Override
+            public SeekableByteChannel position(long newPosition) throws IOException {
+                channel.position(newPosition);
+                return this;
+            }
+
+            @Override
+            public long size() throws IOException {
+                return channel.size();
+            }
+
+            @Override
+            public SeekableByteChannel truncate(long size) throws IOException {
+                channel.truncate(size);
+                return this;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,187 @@
+package com.crypto.fileencryption.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Non-interactive encrypt/decrypt/verify/rewrap operations on files in the
+ * DATA directory, without the select/process session flow of the web API.
+ *
+ * Output naming follows the controllers: "name" encrypts to
+ * "name.encrypted" + "name.dek", and "name.encrypted" decrypts to "name".
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class BatchCryptoService {
+
+    public static final String ENCRYPTED_SUFFIX = ".encrypted";
+    public static final String DEK_SUFFIX = ".dek";
+
+    // Plaintext sink for verification: counts bytes, keeps nothing
+    private static final WritableByteChannel DISCARD = new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private final DekService dekService;
+    private final FileEncryptionService fileEncryptionService;
+    private final FileStorageService fileStorageService;
+    private final AuditLogService auditLogService;
+    private final Tracer tracer;
+
+    /**
+     * Encrypt a file and write "name.encrypted" and "name.dek"
+     *
+     * @return Size of the encrypted file
+     */
+    public long encrypt(String filename) throws Exception {
+        return audited("file.encrypt", filename, () -> {
+            var dek = dekService.generateDek();
+            try {
+                var encryptedDekBase64 = dekService.encryptDekToBase64(dek);
+
+                long encryptedSize;
+                try (var in = fileStorageService.openInput(filename)) {
+                    long size = in.size();
+                    encryptedSize = fileStorageService.writeToOutput(filename + ENCRYPTED_SUFFIX,
+                            out -> fileEncryptionService.encrypt(in, size, out, dek));
+                }
+                fileStorageService.writeToOutput(filename + DEK_SUFFIX, encryptedDekBase64.getBytes());
+                return encryptedSize;
+            } finally {
+                dekService.destroyDek(dek);
+            }
+        });
+    }
+
+    /**
+     * Decrypt "name.encrypted" with its DEK file and write "name"
+     *
+     * @return Size of the decrypted file
+     */
+    public long decrypt(String encryptedFilename, String dekFilename) throws Exception {
+        return audited("file.decrypt", encryptedFilename, () -> {
+            var dek = dekService.decryptDekFromBase64(readDek(dekFilename));
+            try (var in = fileStorageService.openInput(encryptedFilename)) {
+                return fileStorageService.writeToOutput(decryptedFilename(encryptedFilename),
+                        out -> fileEncryptionService.decrypt(in, out, dek));
+            } finally {
+                dekService.destroyDek(dek);
+            }
+        });
+    }
+
+    /**
+     * Unwrap the DEK and authenticate the encrypted file without writing plaintext
+     *
+     * @return Size of the verified plaintext
+     */
+    public long verify(String encryptedFilename, String dekFilename) throws Exception {
+        return verify(encryptedFilename, dekFilename, null);
+    }
+
+    /**
+     * Verify with the encrypted file's reads charged to a bandwidth throttle
+     *
+     * @param throttle Shared throttle, or null for unlimited
+     * @return Size of the verified plaintext
+     */
+    public long verify(String encryptedFilename, String dekFilename, BandwidthThrottle throttle) throws Exception {
+        return audited("file.verify", encryptedFilename, () -> {
+            var dek = dekService.decryptDekFromBase64(readDek(dekFilename));
+            try (var in = fileStorageService.openInput(encryptedFilename)) {
+                var channel = throttle != null ? throttle.throttle(in) : in;
+                return fileEncryptionService.decrypt(channel, DISCARD, dek);
+            } finally {
+                dekService.destroyDek(dek);
+            }
+        });
+    }
+
+    /**
+     * Unwrap a DEK and wrap it again with the current KEK, replacing the DEK file.
+     * Used after a KEK rotation or when moving to another HSM.
+     */
+    public void rewrap(String dekFilename) throws Exception {
+        audited("dek.rewrap", dekFilename, () -> {
+            var dek = dekService.decryptDekFromBase64(readDek(dekFilename));
+            try {
+                var rewrapped = dekService.encryptDekToBase64(dek);
+                fileStorageService.writeToOutput(dekFilename, rewrapped.getBytes());
+            } finally {
+                dekService.destroyDek(dek);
+            }
+            return null;
+        });
+    }
+
+    @FunctionalInterface
+    private interface AuditedCall<T> {
+        T call() throws Exception;
+    }
+
+    /**
+     * Run an operation as a traced span (the root of a trace in the CLI and
+     * verification scans) and audit its outcome
+     */
+    private <T> T audited(String action, String subject, AuditedCall<T> call) throws Exception {
+        try (var span = tracer.span(action).tag("file", subject)) {
+            try {
+                T result = call.call();
+                auditLogService.success(action, subject, null);
+                return result;
+            } catch (Exception e) {
+                span.error(e);
+                auditLogService.failure(action, subject, e);
+                throw e;
+            }
+        }
+    }
+
+    private String readDek(String dekFilename) throws Exception {
+        var dekData = fileStorageService.readFromInput(dekFilename);
+        var encryptedDekBase64 = new String(dekData, StandardCharsets.US_ASCII).trim();
+        // Fail early with a clear message instead of an HSM error on garbage input
+        Base64.getDecoder().decode(encryptedDekBase64);
+        return encryptedDekBase64;
+    }
+
+    /**
+     * Name of the DEK file belonging to an encrypted file
+     */
+    public static String dekFilename(String encryptedFilename) {
+        return stripSuffix(encryptedFilename, ENCRYPTED_SUFFIX) + DEK_SUFFIX;
+    }
+
+    /**
+     * Name of the plaintext file produced by decrypting an encrypted file
+     */
+    public static String decryptedFilename(String encryptedFilename) {
+        String name = stripSuffix(encryptedFilename, ENCRYPTED_SUFFIX);
+        return name.equals(encryptedFilename) ? "decrypted_" + encryptedFilename : name;
+    }
+
+    private static String stripSuffix(String name, String suffix) {
+        return name.endsWith(suffix) ? name.substring(0, name.length() - suffix.length()) : name;
+    }
+}
@@ -0,0 +1,359 @@
+package com.crypto.fileencryption.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Runs chunked file processing as overlapping read, cipher and write stages.
+ *
+ * A reader thread fills input buffers, cipher workers transform them and the
+ * calling thread writes the results in order. The stages hand chunks to each
+ * other through a fixed ring of slots coordinated by sequence counters and
+ * per-slot states, without locks: the reader can run at most one ring ahead
+ * of the writer, which bounds memory to depth x (input + output) buffers per
+ * file. End-to-end time approaches the slowest stage instead of the sum of
+ * all three.
+ *
+ * Files with fewer than encryption.pipeline.min-chunks chunks, or with
+ * encryption.pipeline.workers set to 0, are processed inline on the calling
+ * thread.
+ *
+ * A ChunkGate, taken from the installed gate supplier on the thread that
+ * starts a run, is passed before each chunk is read and may hold the run
+ * back; MemoryAdmissionController uses it to make large files yield to
+ * small ones.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class ChunkPipeline {
+
+    private static final int FREE = 0;
+    private static final int READ = 1;
+    private static final int DONE = 2;
+
+    private final DirectBufferPool bufferPool;
+
+    @Value("${encryption.pipeline.workers:2}")
+    private int workers;
+
+    @Value("${encryption.pipeline.depth:4}")
+    private int depth;
+
+    @Value("${encryption.pipeline.min-chunks:2}")
+    private int minChunks;
+
+    private ExecutorService executor;
+    private volatile Supplier<ChunkGate> gates = () -> null;
+
+    /**
+     * Fills a buffer with the input of a chunk and flips it
+     */
+    @FunctionalInterface
+    public interface ChunkReader {
+        void read(long index, ByteBuffer buffer) throws Exception;
+    }
+
+    /**
+     * Transforms a chunk from the input buffer into the output buffer and flips the output.
+     * Each worker gets its own instance, so transforms may keep per-thread state such as a Cipher.
+     */
+    @FunctionalInterface
+    public interface ChunkTransform {
+        void apply(long index, ByteBuffer in, ByteBuffer out) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface TransformFactory {
+        ChunkTransform create() throws Exception;
+    }
+
+    /**
+     * Consumes the output of a chunk; called in chunk order
+     */
+    @FunctionalInterface
+    public interface ChunkWriter {
+        void write(long index, ByteBuffer buffer) throws Exception;
+    }
+
+    /**
+     * Passed before each chunk is read; may block to let other work run first
+     */
+    @FunctionalInterface
+    public interface ChunkGate {
+        void pass(long index) throws InterruptedException;
+    }
+
+    @PostConstruct
+    public void init() {
+        // Power of two so that slot lookup is a mask
+        depth = depth <= 2 ? 2 : Integer.highestOneBit(depth - 1) << 1;
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "crypto-pipeline-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        log.info("Chunk pipeline initialized with {} cipher worker(s), depth {}", workers, depth);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Install the supplier of gates, called on the thread that starts each run
+     */
+    public void setGates(Supplier<ChunkGate> gates) {
+        this.gates = gates;
+    }
+
+    /**
+     * Gate for chunk loops of the current thread that do not go through the
+     * pipeline
+     *
+     * @return The gate, or null if chunks may run freely
+     */
+    public ChunkGate currentGate() {
+        return gates.get();
+    }
+
+    /**
+     * Process chunkCount chunks through reader, transform and writer
+     *
+     * @param inCapacity  Largest input of a chunk
+     * @param outCapacity Largest output of a chunk
+     */
+    public void run(long chunkCount, int inCapacity, int outCapacity, ChunkReader reader,
+            TransformFactory transforms, ChunkWriter writer) throws Exception {
+        ChunkGate gate = gates.get();
+        if (!isPipelined(chunkCount)) {
+            runInline(chunkCount, inCapacity, outCapacity, gate, reader, transforms.create(), writer);
+        } else {
+            new Run(chunkCount, inCapacity, outCapacity, gate).execute(reader, transforms, writer);
+        }
+    }
+
+    /**
+     * Number of chunks held in buffers at once while processing chunkCount chunks
+     */
+    public int bufferedChunks(long chunkCount) {
+        return isPipelined(chunkCount) ? depth : 1;
+    }
+
+    private boolean isPipelined(long chunkCount) {
+        return workers > 0 && chunkCount >= Math.max(2, minChunks);
+    }
+
+    private void runInline(long chunkCount, int inCapacity, int outCapacity, ChunkGate gate, ChunkReader reader,
+            ChunkTransform transform, ChunkWriter writer) throws Exception {
+        try (var inLease = bufferPool.lease(inCapacity);
+                var outLease = bufferPool.lease(outCapacity)) {
+            var in = inLease.buffer();
+            var out = outLease.buffer();
+            for (long index = 0; index < chunkCount; index++) {
+                if (gate != null) {
+                    gate.pass(index);
+                }
+                in.clear().limit(inCapacity);
+                reader.read(index, in);
+                out.clear().limit(outCapacity);
+                transform.apply(index, in, out);
+                writer.write(index, out);
+            }
+        }
+    }
+
+    /**
+     * A ring slot: one chunk's input and output buffers
+     */
+    private static final class Slot {
+        final DirectBufferPool.Lease in;
+        final DirectBufferPool.Lease out;
+        volatile int state = FREE;
+
+        Slot(DirectBufferPool.Lease in, DirectBufferPool.Lease out) {
+            this.in = in;
+            this.out = out;
+        }
+    }
+
+    /**
+     * Raised in a stage when another stage has failed
+     */
+    private static final class Aborted extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Aborted() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * State of one pipelined file
+     */
+    private final class Run {
+        final long chunkCount;
+        final int inCapacity;
+        final int outCapacity;
+        final ChunkGate gate;
+        final int mask = depth - 1;
+        final Slot[] slots = new Slot[depth];
+        // Chunks filled by the reader / claimed by workers
+        final AtomicLong published = new AtomicLong();
+        final AtomicLong claimed = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Run(long chunkCount, int inCapacity, int outCapacity, ChunkGate gate) {
+            this.chunkCount = chunkCount;
+            this.inCapacity = inCapacity;
+            this.outCapacity = outCapacity;
+            this.gate = gate;
+        }
+
+        void execute(ChunkReader reader, TransformFactory transforms, ChunkWriter writer) throws Exception {
+            List<Future<?>> stages = new ArrayList<>();
+            try {
+                for (int i = 0; i < depth; i++) {
+                    slots[i] = new Slot(bufferPool.lease(inCapacity), bufferPool.lease(outCapacity));
+                }
+                stages.add(executor.submit(() -> stage(() -> read(reader))));
+                int workerCount = (int) Math.min(workers, chunkCount);
+                for (int i = 0; i < workerCount; i++) {
+                    stages.add(executor.submit(() -> stage(() -> transform(transforms.create()))));
+                }
+                stage(() -> write(writer));
+            } finally {
+                // Stop the other stages and wait for them before their buffers are released
+                failure.compareAndSet(null, new Aborted());
+                for (Future<?> stage : stages) {
+                    try {
+                        stage.get();
+                    } catch (Exception ignored) {
+                        // Failures are recorded in the failure reference
+                    }
+                }
+                for (Slot slot : slots) {
+                    if (slot != null) {
+                        slot.in.close();
+                        slot.out.close();
+                    }
+                }
+            }
+            Throwable cause = failure.get();
+            if (!(cause instanceof Aborted)) {
+                rethrow(cause);
+            }
+        }
+
+        private void read(ChunkReader reader) throws Exception {
+            for (long seq = 0; seq < chunkCount; seq++) {
+                if (gate != null) {
+                    // Holding back the reader stalls the whole run
+                    gate.pass(seq);
+                }
+                Slot slot = slots[(int) seq & mask];
+                awaitState(slot, FREE);
+                ByteBuffer in = slot.in.buffer();
+                in.clear().limit(inCapacity);
+                reader.read(seq, in);
+                slot.state = READ;
+                published.lazySet(seq + 1);
+            }
+        }
+
+        private void transform(ChunkTransform transform) throws Exception {
+            int idle = 0;
+            while (true) {
+                long seq = claimed.get();
+                if (seq >= chunkCount) {
+                    return;
+                }
+                if (seq >= published.get() || !claimed.compareAndSet(seq, seq + 1)) {
+                    idle = backoff(idle);
+                    continue;
+                }
+                idle = 0;
+                Slot slot = slots[(int) seq & mask];
+                ByteBuffer out = slot.out.buffer();
+                out.clear().limit(outCapacity);
+                transform.apply(seq, slot.in.buffer(), out);
+                slot.state = DONE;
+            }
+        }
+
+        private void write(ChunkWriter writer) throws Exception {
+            for (long seq = 0; seq < chunkCount; seq++) {
+                Slot slot = slots[(int) seq & mask];
+                awaitState(slot, DONE);
+                writer.write(seq, slot.out.buffer());
+                slot.state = FREE;
+            }
+        }
+
+        private void awaitState(Slot slot, int state) {
+            int idle = 0;
+            while (slot.state != state) {
+                idle = backoff(idle);
+            }
+        }
+
+        /**
+         * Spin, then yield, then park briefly; bails out once any stage has failed
+         */
+        private int backoff(int idle) {
+            if (failure.get() != null) {
+                throw new Aborted();
+            }
+            if (idle < 100) {
+                Thread.onSpinWait();
+            } else if (idle < 200) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(50_000);
+            }
+            return idle + 1;
+        }
+
+        private Void stage(StageBody body) {
+            try {
+                body.run();
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+            return null;
+        }
+    }
+
+    @FunctionalInterface
+    private interface StageBody {
+        void run() throws Exception;
+    }
+
+    private static void rethrow(Throwable cause) throws Exception {
+        if (cause instanceof Exception) {
+            throw (Exception) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new IllegalStateException(cause);
+    }
+}
@@ -0,0 +1,432 @@
+package com.crypto.fileencryption.service;
+
+import com.crypto.fileencryption.jfr.DekCacheEvent;
+import com.crypto.fileencryption.model.ChunkedUpload;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Resumable chunked uploads into the DATA directory.
+ *
+ * An upload is created with its final size, which fixes the chunk layout
+ * (encryption.chunk-size). Chunks may then arrive in any order and in
+ * parallel, normally each with the SHA-256 of its content (optional, since
+ * browsers only offer SHA-256 in secure contexts); a chunk is written at its
+ * offset in a partial file in uploads.directory and only then marked as
+ * received, so after a dropped connection or a restart the client asks which
+ * chunks are missing and sends just those. Nothing is buffered beyond one
+ * chunk per request.
+ *
+ * With encryption on arrival, every chunk is sealed as it arrives and written
+ * directly in the chunked encrypted format (see FileEncryptionService), so the
+ * plaintext never touches the disk. Completing the upload publishes the file
+ * (or "name.encrypted" and "name.dek") through FileStorageService.
+ */
+@Slf4j
+@Service
+public class ChunkedUploadService {
+
+    private static final String METADATA = "upload.json";
+    private static final String DATA = "data.part";
+    // One byte per chunk, set once the chunk has been written
+    private static final String RECEIVED = "received.map";
+
+    // IDs come from request paths; anything else could escape the directory
+    private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9-]{1,64}");
+    private static final Pattern SHA256_HEX = Pattern.compile("[0-9a-fA-F]{64}");
+
+    private final DekService dekService;
+    private final FileEncryptionService fileEncryptionService;
+    private final FileStorageService fileStorageService;
+    private final OutputCommitter outputCommitter;
+    private final DirectBufferPool bufferPool;
+    private final MemoryAdmissionController admissionController;
+    private final AuditLogService auditLogService;
+    private final Tracer tracer;
+    private final MeterRegistry meterRegistry;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Value("${uploads.directory:${file.storage.location:./DATA}/.uploads}")
+    private String directory;
+
+    @Value("${uploads.ttl-hours:24}")
+    private long ttlHours;
+
+    private Path uploadDirectory;
+    private final Map<String, ChunkedUpload> uploads = new ConcurrentHashMap<>();
+    // Plaintext DEKs of encrypting uploads, unwrapped once per upload and process
+    private final Map<String, SecretKey> deks = new ConcurrentHashMap<>();
+
+    private Counter chunksReceived;
+    private Counter checksumMismatches;
+
+    public ChunkedUploadService(DekService dekService, FileEncryptionService fileEncryptionService,
+            FileStorageService fileStorageService, OutputCommitter outputCommitter, DirectBufferPool bufferPool,
+            MemoryAdmissionController admissionController, AuditLogService auditLogService, Tracer tracer,
+            MeterRegistry meterRegistry) {
+        this.dekService = dekService;
+        this.fileEncryptionService = fileEncryptionService;
+        this.fileStorageService = fileStorageService;
+        this.outputCommitter = outputCommitter;
+        this.bufferPool = bufferPool;
+        this.admissionController = admissionController;
+        this.auditLogService = auditLogService;
+        this.tracer = tracer;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        uploadDirectory = Paths.get(directory).toAbsolutePath().normalize();
+        Files.createDirectories(uploadDirectory);
+        chunksReceived = chunkCounter("ok");
+        checksumMismatches = chunkCounter("checksum_mismatch");
+        log.info("Chunked uploads: {}", uploadDirectory);
+    }
+
+    private Counter chunkCounter(String result) {
+        return Counter.builder("upload.chunks")
+                .description("Upload chunks received")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Start an upload
+     *
+     * @param filename Name of the file in the DATA directory
+     * @param size     Final size of the file
+     * @param encrypt  Encrypt chunks as they arrive
+     */
+    public ChunkedUpload create(String filename, long size, boolean encrypt) throws Exception {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid size: " + size);
+        }
+        // Reject names outside the DATA directory now rather than on completion
+        fileStorageService.resolveOutput(outputName(filename, encrypt));
+
+        var upload = new ChunkedUpload();
+        upload.setUploadId(UUID.randomUUID().toString());
+        upload.setFilename(filename);
+        upload.setSize(size);
+        upload.setChunkSize(fileEncryptionService.getChunkSize());
+        upload.setChunkCount(FileEncryptionService.chunkCount(size, upload.getChunkSize()));
+        upload.setEncrypt(encrypt);
+        upload.setCreatedAt(System.currentTimeMillis());
+
+        SecretKey dek = null;
+        if (encrypt) {
+            dek = dekService.generateDek();
+            try {
+                upload.setEncryptedDek(dekService.encryptDekToBase64(dek));
+            } catch (Exception e) {
+                dekService.destroyDek(dek);
+                throw e;
+            }
+        }
+
+        Path dir = uploadDirectory.resolve(upload.getUploadId());
+        Files.createDirectories(dir);
+        try (var data = FileChannel.open(dir.resolve(DATA), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            if (encrypt) {
+                writeAt(data, ByteBuffer.wrap(FileEncryptionService.header(upload.getChunkSize())), 0);
+            }
+        }
+        Files.createFile(dir.resolve(RECEIVED));
+        writeMetadata(dir, upload);
+
+        if (dek != null) {
+            deks.put(upload.getUploadId(), dek);
+        }
+        uploads.put(upload.getUploadId(), upload);
+        auditLogService.success("upload.create", filename, "bytes=" + size + " encrypt=" + encrypt);
+        log.info("Upload {} created for {} ({} bytes, {} chunks{})", upload.getUploadId(), filename, size,
+                upload.getChunkCount(), encrypt ? ", encrypted on arrival" : "");
+        return status(upload);
+    }
+
+    /**
+     * Store one chunk. The body must be exactly the chunk's length, and its
+     * SHA-256 must match when one is given; otherwise the chunk is rejected and
+     * stays missing.
+     *
+     * @param sha256 Hex SHA-256 of the chunk, or null to skip the check
+     *
+     * @return false if the upload is unknown
+     * @throws IllegalArgumentException for an invalid index, length or checksum
+     */
+    @SuppressWarnings("try")
+    public boolean receiveChunk(String uploadId, long index, String sha256, ReadableByteChannel body)
+            throws Exception {
+        var upload = find(uploadId);
+        if (upload == null) {
+            return false;
+        }
+        if (index < 0 || index >= upload.getChunkCount()) {
+            throw new IllegalArgumentException("Invalid chunk index " + index + " of " + upload.getChunkCount());
+        }
+        if (sha256 != null && !SHA256_HEX.matcher(sha256).matches()) {
+            throw new IllegalArgumentException("Malformed chunk SHA-256");
+        }
+        int chunkSize = upload.getChunkSize();
+        int expected = (int) Math.min(chunkSize, upload.getSize() - index * chunkSize);
+        int sealedSize = chunkSize + FileEncryptionService.getChunkOverhead();
+        long workingSet = chunkSize + (upload.isEncrypt() ? sealedSize : 0);
+
+        Path dir = uploadDirectory.resolve(uploadId);
+        try (var reservation = admissionController.admit(workingSet, chunkSize);
+                var span = tracer.span("upload.chunk").tag("upload", uploadId).tag("index", index);
+                var lease = bufferPool.lease(chunkSize)) {
+            var plain = lease.buffer();
+            plain.limit(expected);
+            while (plain.hasRemaining() && body.read(plain) >= 0) {
+                // Read until the chunk is complete or the body ends
+            }
+            if (plain.hasRemaining() || body.read(ByteBuffer.allocate(1)) > 0) {
+                throw new IllegalArgumentException("Chunk " + index + " must be " + expected + " bytes");
+            }
+            plain.flip();
+
+            if (sha256 != null) {
+                var digest = MessageDigest.getInstance("SHA-256");
+                digest.update(plain.duplicate());
+                if (!MessageDigest.isEqual(digest.digest(), hex(sha256))) {
+                    checksumMismatches.increment();
+                    throw new IllegalArgumentException("Checksum mismatch for chunk " + index);
+                }
+            }
+
+            try (var data = FileChannel.open(dir.resolve(DATA), StandardOpenOption.WRITE)) {
+                if (upload.isEncrypt()) {
+                    try (var sealedLease = bufferPool.lease(sealedSize)) {
+                        var sealed = sealedLease.buffer();
+                        fileEncryptionService.sealChunk(dek(upload), chunkSize, upload.getSize(), index, plain,
+                                sealed);
+                        writeAt(data, sealed,
+                                FileEncryptionService.encryptedSize(upload.getSize(), chunkSize, index));
+                    }
+                } else {
+                    writeAt(data, plain, index * chunkSize);
+                }
+                // The chunk must be on disk before it counts as received
+                if (outputCommitter.getDurability() != OutputCommitter.Durability.NONE) {
+                    data.force(false);
+                }
+            }
+            try (var received = FileChannel.open(dir.resolve(RECEIVED), StandardOpenOption.WRITE)) {
+                writeAt(received, ByteBuffer.wrap(new byte[] { 1 }), index);
+            }
+        }
+        chunksReceived.increment();
+        return true;
+    }
+
+    /**
+     * Upload with its progress and missing chunks, or null if it is unknown
+     */
+    public ChunkedUpload getUpload(String uploadId) throws IOException {
+        var upload = find(uploadId);
+        return upload != null ? status(upload) : null;
+    }
+
+    /**
+     * Publish a fully received upload
+     *
+     * @return The completed upload, or null if it is unknown
+     * @throws IllegalStateException if chunks are missing
+     */
+    public ChunkedUpload complete(String uploadId) throws Exception {
+        var upload = find(uploadId);
+        if (upload == null) {
+            return null;
+        }
+        var status = status(upload);
+        if (status.getReceivedChunks() < upload.getChunkCount()) {
+            throw new IllegalStateException((upload.getChunkCount() - status.getReceivedChunks())
+                    + " chunk(s) missing");
+        }
+
+        Path dir = uploadDirectory.resolve(uploadId);
+        String target = outputName(upload.getFilename(), upload.isEncrypt());
+        if (upload.isEncrypt()) {
+            // The DEK file first: an encrypted file without its DEK would be unreadable
+            fileStorageService.writeToOutput(upload.getFilename() + BatchCryptoService.DEK_SUFFIX,
+                    upload.getEncryptedDek().getBytes(StandardCharsets.US_ASCII));
+        }
+        long written = fileStorageService.commitToOutput(dir.resolve(DATA), target);
+        remove(uploadId);
+
+        auditLogService.success("file.upload", upload.getFilename(),
+                "bytes=" + upload.getSize() + " chunks=" + upload.getChunkCount());
+        if (upload.isEncrypt()) {
+            auditLogService.success("file.encrypt", upload.getFilename(), "bytes=" + upload.getSize());
+        }
+        log.info("Upload {} completed: {} ({} bytes)", uploadId, target, written);
+        return status;
+    }
+
+    /**
+     * Discard an upload and its partial data
+     *
+     * @return false if the upload is unknown
+     */
+    public boolean abort(String uploadId) {
+        if (find(uploadId) == null) {
+            return false;
+        }
+        remove(uploadId);
+        auditLogService.success("upload.abort", uploadId, null);
+        return true;
+    }
+
+    /**
+     * Remove uploads that have not received a chunk within uploads.ttl-hours
+     */
+    @Scheduled(fixedDelayString = "${uploads.cleanup-interval-ms:3600000}")
+    public void evictExpired() {
+        long cutoff = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(ttlHours);
+        try (var dirs = Files.list(uploadDirectory)) {
+            dirs.forEach(dir -> {
+                try {
+                    if (Files.getLastModifiedTime(dir.resolve(RECEIVED)).toMillis() < cutoff) {
+                        log.info("Removing expired upload {}", dir.getFileName());
+                        remove(dir.getFileName().toString());
+                    }
+                } catch (IOException ignored) {
+                    // Completed or removed concurrently
+                }
+            });
+        } catch (IOException e) {
+            log.warn("Failed to evict expired uploads", e);
+        }
+    }
+
+    private ChunkedUpload find(String uploadId) {
+        if (uploadId == null || !VALID_ID.matcher(uploadId).matches()) {
+            return null;
+        }
+        var upload = uploads.get(uploadId);
+        if (upload != null) {
+            return upload;
+        }
+        // Created before a restart or by another instance
+        Path metadata = uploadDirectory.resolve(uploadId).resolve(METADATA);
+        if (!Files.exists(metadata)) {
+            return null;
+        }
+        try {
+            upload = objectMapper.readValue(metadata.toFile(), ChunkedUpload.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load upload " + uploadId, e);
+        }
+        var existing = uploads.putIfAbsent(uploadId, upload);
+        return existing != null ? existing : upload;
+    }
+
+    private SecretKey dek(ChunkedUpload upload) throws Exception {
+        var dek = deks.get(upload.getUploadId());
+        DekCacheEvent.lookup("upload", dek != null);
+        if (dek == null) {
+            dek = dekService.decryptDekFromBase64(upload.getEncryptedDek());
+            var existing = deks.putIfAbsent(upload.getUploadId(), dek);
+            if (existing != null) {
+                dekService.destroyDek(dek);
+                dek = existing;
+            }
+        }
+        return dek;
+    }
+
+    private ChunkedUpload status(ChunkedUpload upload) throws IOException {
+        var status = objectMapper.convertValue(upload, ChunkedUpload.class);
+        byte[] received = Files.readAllBytes(uploadDirectory.resolve(upload.getUploadId()).resolve(RECEIVED));
+        long count = 0;
+        List<long[]> missing = new ArrayList<>();
+        for (long i = 0; i < upload.getChunkCount(); i++) {
+            if (i < received.length && received[(int) i] != 0) {
+                count++;
+            } else if (!missing.isEmpty() && missing.get(missing.size() - 1)[1] == i - 1) {
+                missing.get(missing.size() - 1)[1] = i;
+            } else {
+                missing.add(new long[] { i, i });
+            }
+        }
+        status.setReceivedChunks(count);
+        status.setMissingChunks(missing);
+        return status;
+    }
+
+    private void remove(String uploadId) {
+        uploads.remove(uploadId);
+        dekService.destroyDek(deks.remove(uploadId));
+        Path dir = uploadDirectory.resolve(uploadId);
+        try (var files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    log.warn("Failed to delete {}", path, e);
+                }
+            });
+        } catch (IOException e) {
+            log.warn("Failed to remove upload {}", uploadId, e);
+        }
+    }
+
+    private void writeMetadata(Path dir, ChunkedUpload upload) throws IOException {
+        Path staging = dir.resolve("." + METADATA + ".tmp");
+        objectMapper.writeValue(staging.toFile(), upload);
+        try {
+            Files.move(staging, dir.resolve(METADATA), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(staging, dir.resolve(METADATA), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static String outputName(String filename, boolean encrypt) {
+        return encrypt ? filename + BatchCryptoService.ENCRYPTED_SUFFIX : filename;
+    }
+
+    private static void writeAt(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,324 @@
+package com.crypto.fileencryption.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.info.Info;
+import org.springframework.boot.actuate.info.InfoContributor;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Chooses the JCE provider used for AES-GCM.
+ *
+ * By default (encryption.provider.name "auto") the candidate providers
+ * (SunJCE with AES-NI intrinsics, Bouncy Castle) are calibrated at startup,
+ * before the instance reports ready, and the fastest is pinned for
+ * FileEncryptionService and SimulatedHsmService. Every candidate is first
+ * warmed up for benchmark-warmup-millis, long enough for C2 to compile the
+ * GCM paths, and only then measured on each payload size, so the result
+ * reflects steady state rather than which provider compiles first.
+ *
+ * The result is cached per host in encryption.provider.calibration-directory,
+ * together with the JVM, CPU and benchmark settings it was measured with, so
+ * a restart on the same host skips the benchmark; it is measured again when
+ * any of them changes. A provider name pins that provider without
+ * calibrating, and "default" keeps whatever the JVM resolves. The choice is
+ * reported under "crypto" on the actuator info endpoint.
+ */
+@Slf4j
+@Service
+public class CipherProviderService implements InfoContributor {
+
+    private static final String ALGORITHM = "AES/GCM/NoPadding";
+    private static final int IV_SIZE = 12;
+    private static final int TAG_SIZE = 128;
+    private static final String AUTO = "auto";
+    private static final String DEFAULT = "default";
+    private static final String BOUNCY_CASTLE = "BC";
+
+    @Value("${encryption.provider.name:auto}")
+    private String configuredProvider;
+
+    @Value("${encryption.provider.candidates:SunJCE,BC}")
+    private String[] candidates;
+
+    @Value("${encryption.provider.benchmark-sizes:4096,65536,1048576}")
+    private int[] benchmarkSizes;
+
+    @Value("${encryption.provider.benchmark-warmup-millis:2000}")
+    private long benchmarkWarmupMillis;
+
+    @Value("${encryption.provider.benchmark-millis:300}")
+    private long benchmarkMillis;
+
+    @Value("${encryption.provider.calibration-directory:${file.storage.location:./DATA}/.calibration}")
+    private Path calibrationDirectory;
+
+    private Provider provider;
+    private String selectionReason;
+    private final Map<String, Map<String, Double>> benchmarkResults = new LinkedHashMap<>();
+
+    @PostConstruct
+    public void init() throws Exception {
+        if (DEFAULT.equalsIgnoreCase(configuredProvider)) {
+            // Whatever Cipher.getInstance resolves, without benchmarking (e.g. short CLI runs)
+            provider = Cipher.getInstance(ALGORITHM).getProvider();
+            selectionReason = "default";
+            return;
+        }
+
+        boolean auto = AUTO.equalsIgnoreCase(configuredProvider);
+        if ((auto || BOUNCY_CASTLE.equalsIgnoreCase(configuredProvider))
+                && Security.getProvider(BOUNCY_CASTLE) == null) {
+            // Appended last, so it never changes what Cipher.getInstance resolves by default
+            BouncyCastle.register();
+        }
+        if (!auto) {
+            provider = Security.getProvider(configuredProvider);
+            if (provider == null) {
+                throw new IllegalStateException("Configured JCE provider not available: " + configuredProvider);
+            }
+            selectionReason = "configured";
+            log.info("Using configured JCE provider {} for {}", provider.getName(), ALGORITHM);
+            return;
+        }
+
+        String fingerprint = calibrationFingerprint();
+        Path calibrationFile = calibrationDirectory.resolve("provider-" + hostName() + ".properties");
+        provider = loadCalibration(calibrationFile, fingerprint);
+        if (provider != null) {
+            selectionReason = "calibration";
+            log.info("Using JCE provider {} for {} calibrated earlier on this host ({})", provider.getName(),
+                    ALGORITHM, calibrationFile);
+            return;
+        }
+
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        SecretKey key = keyGen.generateKey();
+        List<Provider> available = new ArrayList<>();
+        for (String candidate : candidates) {
+            Provider p = Security.getProvider(candidate.trim());
+            if (p == null) {
+                log.info("JCE provider {} not available, skipping", candidate);
+                continue;
+            }
+            try {
+                warmUp(p, key);
+                available.add(p);
+            } catch (Exception e) {
+                log.warn("Warm-up failed for JCE provider {}", p.getName(), e);
+            }
+        }
+
+        double bestScore = -1;
+        for (Provider p : available) {
+            try {
+                double score = benchmark(p, key);
+                if (score > bestScore) {
+                    bestScore = score;
+                    provider = p;
+                }
+            } catch (Exception e) {
+                log.warn("Benchmark failed for JCE provider {}", p.getName(), e);
+            }
+        }
+        if (provider == null) {
+            provider = Cipher.getInstance(ALGORITHM).getProvider();
+            selectionReason = "default";
+        } else {
+            selectionReason = "benchmark";
+            saveCalibration(calibrationFile, fingerprint);
+        }
+        log.info("Selected JCE provider {} for {} ({})", provider.getName(), ALGORITHM, selectionReason);
+    }
+
+    /**
+     * Everything a calibration depends on; a cached result with another
+     * fingerprint is measured again
+     */
+    private String calibrationFingerprint() {
+        return String.join("|", System.getProperty("java.vm.vendor"), System.getProperty("java.vm.version"),
+                System.getProperty("os.arch"), String.valueOf(Runtime.getRuntime().availableProcessors()),
+                String.join(",", candidates), Arrays.toString(benchmarkSizes),
+                String.valueOf(benchmarkWarmupMillis), String.valueOf(benchmarkMillis));
+    }
+
+    /**
+     * @return The cached provider, or null if there is no usable calibration
+     */
+    private Provider loadCalibration(Path calibrationFile, String fingerprint) {
+        var calibration = new Properties();
+        try (var in = Files.newInputStream(calibrationFile)) {
+            calibration.load(in);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable JCE provider calibration {}: {}", calibrationFile, e.getMessage());
+            return null;
+        }
+        if (!fingerprint.equals(calibration.getProperty("fingerprint"))) {
+            log.info("JCE provider calibration {} is for another JVM or settings, calibrating again",
+                    calibrationFile);
+            return null;
+        }
+        return Security.getProvider(calibration.getProperty("provider", ""));
+    }
+
+    /**
+     * Best effort: without a writable calibration directory the next start
+     * calibrates again
+     */
+    private void saveCalibration(Path calibrationFile, String fingerprint) {
+        var calibration = new Properties();
+        calibration.setProperty("fingerprint", fingerprint);
+        calibration.setProperty("provider", provider.getName());
+        benchmarkResults.forEach((name, results) -> calibration.setProperty("throughput." + name, results.toString()));
+        try {
+            Files.createDirectories(calibrationDirectory);
+            Path temp = Files.createTempFile(calibrationDirectory, "provider-", ".tmp");
+            try {
+                try (var out = Files.newOutputStream(temp)) {
+                    calibration.store(out, "AES-GCM provider calibration");
+                }
+                Files.move(temp, calibrationFile, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            log.warn("Could not save JCE provider calibration to {}: {}", calibrationFile, e.getMessage());
+        }
+    }
+
+    private static String hostName() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "localhost";
+        }
+        return host.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Run every payload size for an equal share of benchmark-warmup-millis,
+     * so the provider's code is compiled by C2 before it is measured
+     */
+    private void warmUp(Provider p, SecretKey key) throws Exception {
+        SecureRandom random = new SecureRandom();
+        for (int size : benchmarkSizes) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            runRounds(p, key, data, benchmarkWarmupMillis / benchmarkSizes.length);
+        }
+    }
+
+    /**
+     * Measure AES-GCM encrypt+decrypt throughput for each payload size.
+     *
+     * @return Geometric mean throughput in MB/s across sizes
+     */
+    private double benchmark(Provider p, SecretKey key) throws Exception {
+        SecureRandom random = new SecureRandom();
+
+        Map<String, Double> results = new LinkedHashMap<>();
+        double logSum = 0;
+        for (int size : benchmarkSizes) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+
+            long start = System.nanoTime();
+            long rounds = runRounds(p, key, data, benchmarkMillis);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            double mbPerSecond = (double) size * rounds / seconds / (1024 * 1024);
+            results.put(String.valueOf(size), Math.round(mbPerSecond * 10) / 10.0);
+            logSum += Math.log(mbPerSecond);
+        }
+        benchmarkResults.put(p.getName(), results);
+
+        double score = Math.exp(logSum / benchmarkSizes.length);
+        log.info("JCE provider {} AES-GCM throughput (MB/s by size): {}", p.getName(), results);
+        return score;
+    }
+
+    /**
+     * Encrypt and decrypt the payload repeatedly for the given time
+     *
+     * @return Number of completed rounds
+     */
+    private static long runRounds(Provider p, SecretKey key, byte[] data, long millis) throws Exception {
+        byte[] iv = new byte[IV_SIZE];
+        long deadline = System.nanoTime() + millis * 1_000_000L;
+        long i = 0;
+        for (; System.nanoTime() < deadline; i++) {
+            // Benchmark data only, but keep IVs distinct within a run anyway
+            iv[0] = (byte) i;
+            iv[1] = (byte) (i >>> 8);
+            iv[2] = (byte) (i >>> 16);
+            Cipher encrypt = Cipher.getInstance(ALGORITHM, p);
+            encrypt.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE, iv));
+            byte[] ciphertext = encrypt.doFinal(data);
+
+            Cipher decrypt = Cipher.getInstance(ALGORITHM, p);
+            decrypt.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE, iv));
+            decrypt.doFinal(ciphertext);
+        }
+        return i;
+    }
+
+    /**
+     * Create an AES/GCM/NoPadding cipher from the selected provider
+     */
+    public Cipher newCipher() throws Exception {
+        return Cipher.getInstance(ALGORITHM, provider);
+    }
+
+    public Provider getProvider() {
+        return provider;
+    }
+
+    @Override
+    public void contribute(Info.Builder builder) {
+        Map<String, Object> crypto = new LinkedHashMap<>();
+        crypto.put("algorithm", ALGORITHM);
+        crypto.put("provider", provider.getName());
+        crypto.put("providerVersion", provider.getVersionStr());
+        crypto.put("selection", selectionReason);
+        crypto.put("benchmarkMBps", benchmarkResults);
+        builder.withDetail("crypto", crypto);
+    }
+
+    /**
+     * Kept out of this class, so Bouncy Castle is only loaded when it is used:
+     * bcprov is a signed jar, and verifying it costs a short CLI run ~200 ms
+     */
+    private static final class BouncyCastle {
+        static void register() {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+}
@@ -2,11 +2,19 @@ package com.crypto.fileencryption.service;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
-import java.security.SecureRandom;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Base64;
 
 /**
@@ -15,6 +23,13 @@ import java.util.Base64;
  * DEK is used to encrypt the actual file data.
  * The DEK itself is encrypted by the KEK (stored in HSM) before
  * storage/transmission.
+ *
+ * With dek.envelope.enabled the DEK is instead wrapped locally under an
+ * intermediate key (see IntermediateKeyService), and the HSM-wrapped
+ * intermediate key is stored in front of it:
+ * "CFE" + version 1 + 2-byte length + wrapped intermediate key
+ * + nonce(12) + encrypted DEK + tag(16), with everything before the nonce as
+ * AAD. Both formats are always accepted when decrypting.
  */
 @Slf4j
 @Service
@@ -22,9 +37,21 @@ import java.util.Base64;
 public class DekService {
 
     private final HsmService hsmService;
-    private final SecureRandom secureRandom = new SecureRandom();
+    private final AuditLogService auditLogService;
+    private final Tracer tracer;
+    private final IntermediateKeyService intermediateKeyService;
+    private final CipherProviderService cipherProviderService;
+    private final RandomSource randomSource;
 
     private static final int DEK_KEY_SIZE = 256; // AES-256
+    private static final byte[] ENVELOPE_MAGIC = { 'C', 'F', 'E' };
+    private static final byte ENVELOPE_VERSION = 1;
+    private static final int ENVELOPE_PREFIX = ENVELOPE_MAGIC.length + 1 + 2;
+    private static final int NONCE_SIZE = 12;
+    private static final int TAG_SIZE = 128;
+
+    @Value("${dek.envelope.enabled:false}")
+    private boolean envelopeEnabled;
 
     /**
      * Generate a new random DEK
@@ -32,48 +59,190 @@ public class DekService {
      * @return Generated DEK
      */
     public SecretKey generateDek() throws Exception {
-        log.debug("Generating new DEK with {} bits", DEK_KEY_SIZE);
-
-        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
-        keyGen.init(DEK_KEY_SIZE, secureRandom);
-        SecretKey dek = keyGen.generateKey();
-
-        log.debug("DEK generated successfully");
+        SecretKey dek = newDek();
+        auditLogService.success("dek.generate", null, null);
         return dek;
     }
 
     /**
-     * Encrypt DEK using HSM's KEK
+     * Encrypt DEK using HSM's KEK, or under the current intermediate key when
+     * the envelope hierarchy is enabled
      * 
      * @param dek The DEK to encrypt
-     * @return Encrypted DEK bytes (IV + ciphertext + tag)
+     * @return Encrypted DEK bytes (IV + ciphertext + tag, or the envelope format)
      */
     public byte[] encryptDek(SecretKey dek) throws Exception {
-        log.debug("Encrypting DEK with HSM KEK");
-
-        byte[] dekBytes = dek.getEncoded();
-        byte[] encryptedDek = hsmService.encryptWithKek(dekBytes);
-
-        log.debug("DEK encrypted successfully. Size: {} bytes", encryptedDek.length);
+        byte[] encryptedDek;
+        try {
+            encryptedDek = wrap(dek);
+        } catch (Exception e) {
+            auditLogService.failure("dek.wrap", null, e);
+            throw e;
+        }
+        auditLogService.success("dek.wrap", fingerprint(encryptedDek), null);
         return encryptedDek;
     }
 
     /**
-     * Decrypt DEK using HSM's KEK
+     * Decrypt DEK using HSM's KEK, or under its intermediate key if it is in
+     * the envelope format
      * 
-     * @param encryptedDek Encrypted DEK bytes (IV + ciphertext + tag)
+     * @param encryptedDek Encrypted DEK bytes (IV + ciphertext + tag, or the envelope format)
      * @return Decrypted DEK
      */
     public SecretKey decryptDek(byte[] encryptedDek) throws Exception {
-        log.debug("Decrypting DEK with HSM KEK");
+        SecretKey dek;
+        try {
+            dek = unwrap(encryptedDek);
+        } catch (Exception e) {
+            auditLogService.failure("dek.unwrap", fingerprint(encryptedDek), e);
+            throw e;
+        }
+        auditLogService.success("dek.unwrap", fingerprint(encryptedDek), null);
+        return dek;
+    }
 
-        byte[] dekBytes = hsmService.decryptWithKek(encryptedDek);
-        SecretKey dek = new javax.crypto.spec.SecretKeySpec(dekBytes, "AES");
+    /**
+     * Warm-up before the instance reports ready: generate/wrap/unwrap cycles
+     * on the same paths as live DEKs (which also creates the intermediate key
+     * when the envelope hierarchy is enabled), but without audit records,
+     * since no file is involved.
+     *
+     * @return Completed cycles
+     */
+    public int warmUp(int cycles) throws Exception {
+        for (int i = 0; i < cycles; i++) {
+            SecretKey dek = newDek();
+            SecretKey unwrapped = unwrap(wrap(dek));
+            try {
+                if (!Arrays.equals(dek.getEncoded(), unwrapped.getEncoded())) {
+                    throw new IllegalStateException("Unwrapped DEK did not match");
+                }
+            } finally {
+                destroyDek(dek);
+                destroyDek(unwrapped);
+            }
+        }
+        return cycles;
+    }
+
+    @SuppressWarnings("try")
+    private SecretKey newDek() throws Exception {
+        log.debug("Generating new DEK with {} bits", DEK_KEY_SIZE);
+
+        SecretKey dek;
+        try (var span = tracer.span("dek.generate")) {
+            KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+            keyGen.init(DEK_KEY_SIZE, randomSource.current());
+            dek = keyGen.generateKey();
+        }
+
+        log.debug("DEK generated successfully");
+        return dek;
+    }
+
+    @SuppressWarnings("try")
+    private byte[] wrap(SecretKey dek) throws Exception {
+        log.debug("Encrypting DEK with {}", envelopeEnabled ? "intermediate key" : "HSM KEK");
+
+        byte[] dekBytes = dek.getEncoded();
+        byte[] encryptedDek;
+        try (var span = tracer.span("dek.wrap").tag("envelope", envelopeEnabled)) {
+            encryptedDek = envelopeEnabled ? wrapLocally(dekBytes) : hsmService.encryptWithKek(dekBytes);
+        } finally {
+            Arrays.fill(dekBytes, (byte) 0);
+        }
+
+        log.debug("DEK encrypted successfully. Size: {} bytes", encryptedDek.length);
+        return encryptedDek;
+    }
+
+    @SuppressWarnings("try")
+    private SecretKey unwrap(byte[] encryptedDek) throws Exception {
+        boolean envelope = isEnvelope(encryptedDek);
+        log.debug("Decrypting DEK with {}", envelope ? "intermediate key" : "HSM KEK");
+
+        byte[] dekBytes;
+        try (var span = tracer.span("dek.unwrap").tag("envelope", envelope)) {
+            dekBytes = envelope ? unwrapEnvelope(encryptedDek) : hsmService.decryptWithKek(encryptedDek);
+        }
+        SecretKey dek;
+        try {
+            dek = new SecretKeySpec(dekBytes, "AES");
+        } finally {
+            Arrays.fill(dekBytes, (byte) 0);
+        }
 
         log.debug("DEK decrypted successfully");
         return dek;
     }
 
+    private byte[] wrapLocally(byte[] dekBytes) throws Exception {
+        IntermediateKeyService.Intermediate intermediate = intermediateKeyService.current();
+        byte[] wrappedKey = intermediate.getWrapped();
+
+        byte[] nonce = new byte[NONCE_SIZE];
+        randomSource.nextBytes(nonce);
+        Cipher cipher = cipherProviderService.newCipher();
+        cipher.init(Cipher.ENCRYPT_MODE, intermediate.getKey(), new GCMParameterSpec(TAG_SIZE, nonce));
+
+        int aadLength = ENVELOPE_PREFIX + wrappedKey.length;
+        ByteBuffer out = ByteBuffer.allocate(aadLength + NONCE_SIZE + cipher.getOutputSize(dekBytes.length));
+        out.put(ENVELOPE_MAGIC).put(ENVELOPE_VERSION).putShort((short) wrappedKey.length).put(wrappedKey);
+        cipher.updateAAD(out.array(), 0, aadLength);
+        out.put(nonce);
+        cipher.doFinal(ByteBuffer.wrap(dekBytes), out);
+        return out.array();
+    }
+
+    /**
+     * Unwrap a DEK that looks like the envelope format. A legacy DEK whose
+     * random IV happens to start with the envelope prefix fails to unwrap as
+     * an envelope, so it is then tried as a legacy DEK before giving up.
+     */
+    private byte[] unwrapEnvelope(byte[] encryptedDek) throws Exception {
+        try {
+            return unwrapLocally(encryptedDek);
+        } catch (Exception envelopeFailure) {
+            try {
+                byte[] dekBytes = hsmService.decryptWithKek(encryptedDek);
+                log.debug("DEK with an envelope prefix unwrapped as a legacy DEK");
+                return dekBytes;
+            } catch (Exception legacyFailure) {
+                envelopeFailure.addSuppressed(legacyFailure);
+                throw envelopeFailure;
+            }
+        }
+    }
+
+    private byte[] unwrapLocally(byte[] encryptedDek) throws Exception {
+        int wrappedKeyLength = ByteBuffer.wrap(encryptedDek, ENVELOPE_MAGIC.length + 1, 2).getShort() & 0xFFFF;
+        int aadLength = ENVELOPE_PREFIX + wrappedKeyLength;
+        if (encryptedDek.length < aadLength + NONCE_SIZE + TAG_SIZE / 8) {
+            throw new GeneralSecurityException("Truncated envelope DEK");
+        }
+        byte[] wrappedKey = Arrays.copyOfRange(encryptedDek, ENVELOPE_PREFIX, aadLength);
+        SecretKey intermediateKey = intermediateKeyService.unwrap(wrappedKey);
+
+        Cipher cipher = cipherProviderService.newCipher();
+        cipher.init(Cipher.DECRYPT_MODE, intermediateKey,
+                new GCMParameterSpec(TAG_SIZE, encryptedDek, aadLength, NONCE_SIZE));
+        cipher.updateAAD(encryptedDek, 0, aadLength);
+        int offset = aadLength + NONCE_SIZE;
+        return cipher.doFinal(encryptedDek, offset, encryptedDek.length - offset);
+    }
+
+    /**
+     * Whether a wrapped DEK starts with the envelope prefix. A legacy DEK starts
+     * with a random IV, so it matches with probability 2^-32; unwrapEnvelope
+     * falls back to the legacy format for those.
+     */
+    private static boolean isEnvelope(byte[] encryptedDek) {
+        return encryptedDek.length > ENVELOPE_PREFIX
+                && Arrays.equals(encryptedDek, 0, ENVELOPE_MAGIC.length, ENVELOPE_MAGIC, 0, ENVELOPE_MAGIC.length)
+                && encryptedDek[ENVELOPE_MAGIC.length] == ENVELOPE_VERSION;
+    }
+
     /**
      * Encrypt DEK and return as Base64 string for easy transmission
      * 
@@ -96,6 +265,23 @@ public class DekService {
         return decryptDek(encryptedDek);
     }
 
+    /**
+     * Short, non-secret identifier of a wrapped DEK for the audit log:
+     * the first 16 hex digits of its SHA-256
+     */
+    public static String fingerprint(byte[] encryptedDek) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(encryptedDek);
+            var sb = new StringBuilder(16);
+            for (int i = 0; i < 8; i++) {
+                sb.append(String.format("%02x", hash[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     /**
      * Destroy the plaintext DEK explicitly if possible
      * Note: Standard Java SecretKeySpec might not support this, but good practice.
@@ -109,7 +295,8 @@ public class DekService {
                 log.debug("DEK explicitly destroyed");
             }
         } catch (javax.security.auth.DestroyFailedException e) {
-            log.warn("DEK does not support explicit destruction (likely standard SecretKeySpec/immutable)", e);
+            // Expected for SecretKeySpec; not worth a stack trace on every file
+            log.debug("DEK does not support explicit destruction (likely standard SecretKeySpec/immutable)");
         } catch (Exception e) {
             log.warn("Error destroying DEK", e);
         }
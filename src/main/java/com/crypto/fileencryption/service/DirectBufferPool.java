@@ -0,0 +1,171 @@
+package com.crypto.fileencryption.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct (off-heap) buffers in fixed size classes for file I/O and
+ * cipher work, so heap size does not have to grow with payload size.
+ *
+ * Buffers are leased with try-with-resources and are zeroised before they
+ * go back to the pool. Each buffer has a little headroom above its class
+ * size for chunk framing (nonce and tag), so a full chunk plus framing still
+ * fits its class. Requests larger than the largest class are served by
+ * unpooled buffers.
+ */
+@Slf4j
+@Component
+public class DirectBufferPool {
+
+    // Headroom above the nominal class size for per-chunk framing
+    private static final int FRAME_SLACK = 64;
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(64 * 1024).asReadOnlyBuffer();
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${buffer.pool.size-classes:65536,1048576,4194304}")
+    private int[] sizeClasses;
+
+    @Value("${buffer.pool.max-buffers-per-class:16}")
+    private int maxBuffersPerClass;
+
+    private SizeClass[] classes;
+    private Counter oversizeLeases;
+
+    public DirectBufferPool(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        int[] sorted = sizeClasses.clone();
+        Arrays.sort(sorted);
+        classes = new SizeClass[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            classes[i] = new SizeClass(sorted[i]);
+        }
+        oversizeLeases = Counter.builder("buffer.pool.oversize")
+                .description("Leases larger than the largest size class (served unpooled)")
+                .register(meterRegistry);
+        log.info("Direct buffer pool initialized with size classes {} (max {} buffers each)",
+                Arrays.toString(sorted), maxBuffersPerClass);
+    }
+
+    /**
+     * Lease a direct buffer with at least the given capacity.
+     * The buffer is cleared, with its limit set to the requested capacity.
+     */
+    public Lease lease(int minCapacity) {
+        for (SizeClass sizeClass : classes) {
+            if (sizeClass.capacity >= minCapacity) {
+                return sizeClass.lease(minCapacity);
+            }
+        }
+        oversizeLeases.increment();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(minCapacity);
+        return new Lease(buffer, null);
+    }
+
+    /**
+     * Largest payload a pooled buffer can hold, not counting framing headroom
+     */
+    public int getLargestClassSize() {
+        return classes[classes.length - 1].size;
+    }
+
+    private static void zeroise(ByteBuffer buffer) {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            ByteBuffer zeros = ZEROS.duplicate();
+            zeros.limit(Math.min(zeros.capacity(), buffer.remaining()));
+            buffer.put(zeros);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * A leased buffer. Closing it zeroises the buffer and returns it to the pool.
+     */
+    public static final class Lease implements AutoCloseable {
+        private final ByteBuffer buffer;
+        private final SizeClass owner;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Lease(ByteBuffer buffer, SizeClass owner) {
+            this.buffer = buffer;
+            this.owner = owner;
+        }
+
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        @Override
+        public void close() {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            zeroise(buffer);
+            if (owner != null) {
+                owner.release(buffer);
+            }
+        }
+    }
+
+    private final class SizeClass {
+        final int size;
+        final int capacity;
+        final BlockingQueue<ByteBuffer> available;
+        final AtomicInteger leased = new AtomicInteger();
+        final Counter misses;
+
+        SizeClass(int size) {
+            this.size = size;
+            this.capacity = size + FRAME_SLACK;
+            this.available = new ArrayBlockingQueue<>(maxBuffersPerClass);
+
+            String tag = String.valueOf(size);
+            Gauge.builder("buffer.pool.available", available, BlockingQueue::size)
+                    .description("Pooled direct buffers ready to lease")
+                    .tag("class", tag)
+                    .register(meterRegistry);
+            Gauge.builder("buffer.pool.leased", leased, AtomicInteger::get)
+                    .description("Direct buffers currently leased")
+                    .tag("class", tag)
+                    .register(meterRegistry);
+            this.misses = Counter.builder("buffer.pool.misses")
+                    .description("Leases that had to allocate a new direct buffer")
+                    .tag("class", tag)
+                    .register(meterRegistry);
+        }
+
+        Lease lease(int minCapacity) {
+            ByteBuffer buffer = available.poll();
+            if (buffer == null) {
+                misses.increment();
+                buffer = ByteBuffer.allocateDirect(capacity);
+            }
+            leased.incrementAndGet();
+            buffer.limit(minCapacity);
+            return new Lease(buffer, this);
+        }
+
+        void release(ByteBuffer buffer) {
+            leased.decrementAndGet();
+            // When the pool is full the buffer is dropped and freed by its cleaner
+            available.offer(buffer);
+        }
+    }
+}
@@ -1,89 +1,735 @@
 package com.crypto.fileencryption.service;
 
+import com.crypto.fileencryption.jfr.FileCryptoEvent;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
-import java.security.SecureRandom;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.Arrays;
 
 /**
  * Service for file encryption and decryption operations.
- * 
- * Uses AES-256-GCM for authenticated encryption of file data.
+ *
+ * Uses AES-256-GCM for authenticated encryption of file data, with the JCE
+ * provider selected by CipherProviderService. Files are streamed through
+ * pooled direct buffers one chunk at a time, so memory use does not depend on
+ * file size, and reading, sealing and writing of chunks overlap in a
+ * ChunkPipeline.
+ *
+ * Encrypted file format:
+ *
+ * <pre>
+ * header:  "CFK" | version (1) | chunk size (4)
+ * chunk*:  nonce (12) | ciphertext | tag (16)
+ * [commitment (32), version 3 only]
+ * </pre>
+ *
+ * Every chunk is sealed with its own nonce, and its additional authenticated
+ * data binds the header, the chunk index and a final-chunk flag, so chunks
+ * cannot be reordered, dropped or truncated without detection. A streamed
+ * encryption draws one random 8-byte nonce prefix and appends the 4-byte chunk
+ * index to it, so sealing a chunk needs no random draw; chunks sealed on their
+ * own (sealChunk) get fully random nonces. Either way the nonce is stored with
+ * the chunk, so decryption does not depend on how it was made.
+ *
+ * Version 3 is written by reencrypt, whose successive versions of a file
+ * share one DEK. Each chunk's data alone would not stop a sealed chunk of an
+ * older version from being put back at its index, so these files end with a
+ * commitment to the header and the tags of all their chunks, an HMAC under a
+ * key derived from the DEK. Decryption checks it before releasing any
+ * plaintext. The version is part of every chunk's authenticated data, so the
+ * commitment cannot be stripped by rewriting the file as version 2.
+ *
+ * Files without the header are the original single-shot format
+ * (IV + ciphertext + tag) and are still decrypted.
  */
 @Slf4j
 @Service
+@RequiredArgsConstructor
 public class FileEncryptionService {
 
-    private static final String ALGORITHM = "AES/GCM/NoPadding";
     private static final int IV_SIZE = 12; // 96 bits for GCM
     private static final int TAG_SIZE = 128; // 128 bits authentication tag
+    private static final int TAG_BYTES = TAG_SIZE / 8;
 
-    private final SecureRandom secureRandom = new SecureRandom();
+    private static final byte[] MAGIC = { 'C', 'F', 'K' };
+    private static final byte FORMAT_VERSION = 2;
+    private static final byte COMMITTED_VERSION = 3;
+    private static final int HEADER_SIZE = MAGIC.length + 1 + 4;
+    private static final int CHUNK_OVERHEAD = IV_SIZE + TAG_BYTES;
+    private static final int MIN_CHUNK_SIZE = 4 * 1024;
+    private static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+    private static final int NONCE_PREFIX_SIZE = IV_SIZE - 4;
+    private static final long MAX_COUNTER_CHUNKS = 1L << 32;
+    private static final String HMAC = "HmacSHA256";
+    private static final int COMMITMENT_SIZE = 32;
+    private static final byte[] COMMITMENT_KEY_LABEL = "CFK chunk commitment v3".getBytes(StandardCharsets.US_ASCII);
+
+    // Heap buffer size for the legacy single-shot path
+    private static final int LEGACY_BUFFER_SIZE = 64 * 1024;
+
+    private final CipherProviderService cipherProviderService;
+    private final DirectBufferPool bufferPool;
+    private final ChunkPipeline chunkPipeline;
+    private final Tracer tracer;
+    private final RandomSource randomSource;
+
+    @Value("${encryption.chunk-size:1048576}")
+    private int chunkSize;
+
+    @PostConstruct
+    public void init() {
+        if (chunkSize < MIN_CHUNK_SIZE || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalStateException("encryption.chunk-size must be between "
+                    + MIN_CHUNK_SIZE + " and " + MAX_CHUNK_SIZE + ": " + chunkSize);
+        }
+        if (chunkSize > bufferPool.getLargestClassSize()) {
+            log.warn("encryption.chunk-size {} exceeds the largest buffer pool class {}; chunk buffers will not be pooled",
+                    chunkSize, bufferPool.getLargestClassSize());
+        }
+    }
 
     /**
-     * Encrypt file data using the provided DEK
-     * 
-     * @param fileData Original file data
-     * @param dek      Data Encryption Key
-     * @return Encrypted data (IV + ciphertext + tag)
+     * Called in chunk order after each chunk has been written to the output
      */
-    public byte[] encryptFile(byte[] fileData, SecretKey dek) throws Exception {
-        log.debug("Encrypting file data. Size: {} bytes", fileData.length);
+    @FunctionalInterface
+    public interface ChunkListener {
+        void chunkWritten(long index) throws Exception;
+    }
 
-        // Generate random IV
-        var iv = new byte[IV_SIZE];
-        secureRandom.nextBytes(iv);
+    /**
+     * Encrypt a file stream using the provided DEK
+     *
+     * @param in            Plaintext source, positioned at the start
+     * @param plaintextSize Number of plaintext bytes to read from the source
+     * @param out           Destination for the encrypted file
+     * @param dek           Data Encryption Key
+     * @return Encrypted size in bytes
+     */
+    public long encrypt(ReadableByteChannel in, long plaintextSize, WritableByteChannel out, SecretKey dek)
+            throws Exception {
+        return encrypt(in, plaintextSize, out, dek, chunkSize, 0, null);
+    }
+
+    /**
+     * Encrypt a file stream from a given chunk on, to continue an interrupted
+     * encryption. Chunks are sealed independently, so the only state needed
+     * is the DEK, the chunk size and the plaintext size (which decides the
+     * final chunk). Every call draws a new nonce prefix, so resumed chunks
+     * never reuse a nonce of an earlier attempt, even if the source changed.
+     *
+     * @param in            Plaintext source, positioned at firstChunk x fileChunkSize
+     * @param plaintextSize Total plaintext size
+     * @param out           Destination, positioned after the first firstChunk chunks
+     *                      (see encryptedSize(plaintextSize, fileChunkSize, firstChunk))
+     * @param dek           Data Encryption Key
+     * @param fileChunkSize Chunk size of the file being written
+     * @param firstChunk    Index of the first chunk to encrypt; the header is
+     *                      written only when starting from 0
+     * @param listener      Notified after each chunk is written, or null
+     * @return Size of the complete encrypted file in bytes
+     */
+    public long encrypt(ReadableByteChannel in, long plaintextSize, WritableByteChannel out, SecretKey dek,
+            int fileChunkSize, long firstChunk, ChunkListener listener) throws Exception {
+        return encryptChunks(in, plaintextSize, out, dek, fileChunkSize, firstChunk, listener, null, 0, null,
+                false);
+    }
 
-        // Initialize cipher
-        var cipher = Cipher.getInstance(ALGORITHM);
-        var parameterSpec = new GCMParameterSpec(TAG_SIZE, iv);
-        cipher.init(Cipher.ENCRYPT_MODE, dek, parameterSpec);
+    /**
+     * Decides which chunks of a re-encryption are unchanged, and sees every
+     * chunk's output. Both methods are called on cipher workers, concurrently
+     * for different chunks.
+     */
+    public interface ChunkReuse {
+        /**
+         * Whether the plaintext of a chunk is the same as when the previous
+         * file was encrypted. Called for every chunk; plain is read-only.
+         */
+        boolean unchanged(long index, ByteBuffer plain) throws Exception;
+
+        /**
+         * The output of a chunk (read-only), either copied from the previous
+         * file (kept) or newly sealed
+         */
+        void sealed(long index, ByteBuffer sealed, boolean kept) throws Exception;
+    }
+
+    /**
+     * Encrypt a new version of a file under the DEK of its previous
+     * encryption, copying the sealed chunks whose plaintext did not change
+     * and sealing only the others, with a fresh nonce prefix. A chunk is kept
+     * only if reuse reports it unchanged and it is at the same position
+     * relative to the end of the file, since the final-chunk flag is part of
+     * its authenticated data. The output has the chunk size of the previous
+     * file, or encryption.chunk-size if there is none, and is written in
+     * version 3, with a commitment to all of its chunks.
+     *
+     * @param in            Plaintext source, positioned at the start
+     * @param plaintextSize Number of plaintext bytes to read from the source
+     * @param previous      Previous version 3 encryption of the file, or null to
+     *                      seal every chunk (reuse still sees them all)
+     * @param out           Destination for the encrypted file
+     * @param dek           Data Encryption Key of the previous file
+     * @param reuse         Decides which chunks are unchanged
+     * @return Encrypted size in bytes
+     */
+    public long reencrypt(ReadableByteChannel in, long plaintextSize, FileChannel previous, WritableByteChannel out,
+            SecretKey dek, ChunkReuse reuse) throws Exception {
+        if (previous == null) {
+            return encryptChunks(in, plaintextSize, out, dek, chunkSize, 0, null, null, 0, reuse, true);
+        }
+        var header = new byte[HEADER_SIZE];
+        int previousChunkSize = -1;
+        if (readFully(previous, ByteBuffer.wrap(header), 0) == HEADER_SIZE) {
+            previousChunkSize = parseChunkSize(header);
+        }
+        // Chunks are only kept under the same header, which is part of their authenticated data
+        if (previousChunkSize < 0 || !isCommitted(header)) {
+            throw new IllegalArgumentException("Previous encryption is not in the committed chunked format");
+        }
+        long recordSize = (long) previousChunkSize + CHUNK_OVERHEAD;
+        long previousChunks = (previous.size() - HEADER_SIZE - COMMITMENT_SIZE + recordSize - 1) / recordSize;
+        return encryptChunks(in, plaintextSize, out, dek, previousChunkSize, 0, null, previous, previousChunks,
+                reuse, true);
+    }
 
-        // Encrypt
-        var ciphertext = cipher.doFinal(fileData);
+    private long encryptChunks(ReadableByteChannel in, long plaintextSize, WritableByteChannel out, SecretKey dek,
+            int fileChunkSize, long firstChunk, ChunkListener listener, FileChannel previous, long previousChunks,
+            ChunkReuse reuse, boolean committed) throws Exception {
+        log.debug("Encrypting file data. Size: {} bytes, from chunk {}", plaintextSize, firstChunk);
+        if (fileChunkSize < MIN_CHUNK_SIZE || fileChunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Invalid chunk size: " + fileChunkSize);
+        }
+        if (committed && firstChunk > 0) {
+            // The commitment needs the tags of every chunk
+            throw new IllegalArgumentException("Committed files cannot be resumed");
+        }
 
-        // Combine IV + ciphertext (ciphertext already includes GCM tag)
-        var result = new byte[IV_SIZE + ciphertext.length];
-        System.arraycopy(iv, 0, result, 0, IV_SIZE);
-        System.arraycopy(ciphertext, 0, result, IV_SIZE, ciphertext.length);
+        var header = committed ? committedHeader(fileChunkSize) : header(fileChunkSize);
+        long chunkCount = chunkCount(plaintextSize, fileChunkSize);
+        long lastLength = plaintextSize - (chunkCount - 1) * fileChunkSize;
+        if (firstChunk < 0 || firstChunk > chunkCount) {
+            throw new IllegalArgumentException("Invalid first chunk " + firstChunk + " of " + chunkCount);
+        }
+        if (chunkCount > MAX_COUNTER_CHUNKS) {
+            throw new IllegalArgumentException("File too large for chunk size " + fileChunkSize
+                    + ": " + chunkCount + " chunks");
+        }
+        var noncePrefix = new byte[NONCE_PREFIX_SIZE];
+        randomSource.nextBytes(noncePrefix);
+        long written = encryptedSize(plaintextSize, fileChunkSize, chunkCount) + (committed ? COMMITMENT_SIZE : 0);
+        Mac commitment = committed ? commitment(dek, header) : null;
+        var event = new FileCryptoEvent();
+        event.begin();
+        boolean success = false;
+        try (var span = tracer.span("cipher.encrypt")
+                .tag("bytes", plaintextSize)
+                .tag("chunks", chunkCount)
+                .tag("provider", cipherProviderService.getProvider().getName())) {
+            if (firstChunk > 0) {
+                span.tag("resumedFrom", firstChunk);
+            } else {
+                writeFully(out, ByteBuffer.wrap(header));
+            }
+            if (previous != null) {
+                span.tag("incremental", true);
+            }
+            chunkPipeline.run(chunkCount - firstChunk, fileChunkSize, fileChunkSize + CHUNK_OVERHEAD,
+                    (offset, plain) -> {
+                        long index = firstChunk + offset;
+                        int length = (int) (index == chunkCount - 1 ? lastLength : fileChunkSize);
+                        plain.limit(length);
+                        if (readFully(in, plain) < length) {
+                            throw new EOFException(
+                                    "File changed while encrypting: expected " + plaintextSize + " bytes");
+                        }
+                        plain.flip();
+                    },
+                    () -> {
+                        var cipher = cipherProviderService.newCipher();
+                        var nonce = new byte[IV_SIZE];
+                        var counter = ByteBuffer.wrap(nonce).put(noncePrefix);
+                        return (offset, plain, sealed) -> {
+                            long index = firstChunk + offset;
+                            boolean last = index == chunkCount - 1;
+                            boolean kept = reuse != null && reuse.unchanged(index, plain.asReadOnlyBuffer())
+                                    && index < previousChunks && last == (index == previousChunks - 1)
+                                    && copyPrevious(previous, fileChunkSize, index, plain.remaining(), sealed);
+                            if (!kept) {
+                                counter.putInt(NONCE_PREFIX_SIZE, (int) index);
+                                cipher.init(Cipher.ENCRYPT_MODE, dek, new GCMParameterSpec(TAG_SIZE, nonce));
+                                cipher.updateAAD(chunkAad(header, index, last));
+                                sealed.put(nonce);
+                                cipher.doFinal(plain, sealed);
+                            }
+                            sealed.flip();
+                            if (reuse != null) {
+                                reuse.sealed(index, sealed.asReadOnlyBuffer(), kept);
+                            }
+                        };
+                    },
+                    (offset, sealed) -> {
+                        if (commitment != null) {
+                            // Chunks are written in order, so the tags go into the commitment in order
+                            commitment.update(sealed.duplicate().position(sealed.limit() - TAG_BYTES));
+                        }
+                        writeFully(out, sealed);
+                        if (listener != null) {
+                            listener.chunkWritten(firstChunk + offset);
+                        }
+                    });
+            if (commitment != null) {
+                writeFully(out, ByteBuffer.wrap(commitment.doFinal()));
+            }
+            success = true;
+        } finally {
+            record(event, "encrypt", plaintextSize, written, chunkCount - firstChunk, firstChunk, success);
+        }
 
         log.info("File encrypted successfully. Original size: {} bytes, Encrypted size: {} bytes",
-                fileData.length, result.length);
-        return result;
+                plaintextSize, written);
+        return written;
     }
 
     /**
-     * Decrypt file data using the provided DEK
-     * 
-     * @param encryptedData Encrypted file data (IV + ciphertext + tag)
-     * @param dek           Data Encryption Key
-     * @return Decrypted file data
+     * Copy the sealed chunk at index from a previous encryption with the same
+     * chunk size, if it has the expected length
+     */
+    private static boolean copyPrevious(FileChannel previous, int fileChunkSize, long index, int plainLength,
+            ByteBuffer sealed) throws IOException {
+        long position = HEADER_SIZE + index * ((long) fileChunkSize + CHUNK_OVERHEAD);
+        int length = plainLength + CHUNK_OVERHEAD;
+        if (previous == null || previous.size() < position + length) {
+            return false;
+        }
+        int start = sealed.position();
+        int limit = sealed.limit();
+        sealed.limit(start + length);
+        if (readFully(previous, sealed, position) == length) {
+            return true;
+        }
+        // Truncated meanwhile; seal the chunk instead
+        sealed.limit(limit).position(start);
+        return false;
+    }
+
+    /**
+     * Seal a single chunk of a file whose plaintext size is known up front, for
+     * writers that receive chunks out of order (e.g. chunked uploads). The file
+     * starts with header(fileChunkSize) and the sealed chunk belongs at offset
+     * encryptedSize(plaintextSize, fileChunkSize, index).
+     *
+     * @param plain  Plaintext of the chunk, flipped
+     * @param sealed Receives nonce + ciphertext + tag, flipped
+     */
+    public void sealChunk(SecretKey dek, int fileChunkSize, long plaintextSize, long index, ByteBuffer plain,
+            ByteBuffer sealed) throws Exception {
+        long chunkCount = chunkCount(plaintextSize, fileChunkSize);
+        // Retried chunks may carry different plaintext, so no counter nonce here
+        var nonce = new byte[IV_SIZE];
+        randomSource.nextBytes(nonce);
+        var cipher = cipherProviderService.newCipher();
+        cipher.init(Cipher.ENCRYPT_MODE, dek, new GCMParameterSpec(TAG_SIZE, nonce));
+        cipher.updateAAD(chunkAad(header(fileChunkSize), index, index == chunkCount - 1));
+        sealed.put(nonce);
+        cipher.doFinal(plain, sealed);
+        sealed.flip();
+    }
+
+    /**
+     * Decrypt an encrypted file stream using the provided DEK.
+     * Chunked files are authenticated chunk by chunk; a failure leaves a partial
+     * output, which callers must discard.
+     *
+     * @param in  Encrypted file, positioned at the start
+     * @param out Destination for the plaintext
+     * @param dek Data Encryption Key
+     * @return Decrypted size in bytes
+     */
+    public long decrypt(SeekableByteChannel in, WritableByteChannel out, SecretKey dek) throws Exception {
+        return decrypt(in, out, dek, 0, null);
+    }
+
+    /**
+     * Decrypt from a given chunk on, to continue an interrupted decryption.
+     * Only chunked files can be resumed; a legacy single-shot file has one tag
+     * over the whole file and must start from 0.
+     *
+     * @param in         Encrypted file, positioned at the start
+     * @param out        Destination, positioned after the plaintext of the
+     *                   first firstChunk chunks
+     * @param dek        Data Encryption Key
+     * @param firstChunk Index of the first chunk to decrypt
+     * @param listener   Notified after each chunk is written, or null
+     * @return Size of the complete plaintext in bytes
+     */
+    public long decrypt(SeekableByteChannel in, WritableByteChannel out, SecretKey dek, long firstChunk,
+            ChunkListener listener) throws Exception {
+        long encryptedSize = in.size();
+        log.debug("Decrypting file data. Size: {} bytes, from chunk {}", encryptedSize, firstChunk);
+
+        var header = new byte[HEADER_SIZE];
+        var headerBuffer = ByteBuffer.wrap(header);
+        int fileChunkSize = -1;
+        if (readFully(in, headerBuffer) == HEADER_SIZE) {
+            fileChunkSize = parseChunkSize(header);
+        }
+
+        long plaintextSize = 0;
+        long chunks = 0;
+        var event = new FileCryptoEvent();
+        event.begin();
+        boolean success = false;
+        try (var span = tracer.span("cipher.decrypt")
+                .tag("bytes", encryptedSize)
+                .tag("format", fileChunkSize > 0 ? "chunked" : "legacy")
+                .tag("provider", cipherProviderService.getProvider().getName())) {
+            if (fileChunkSize > 0) {
+                if (firstChunk > 0) {
+                    span.tag("resumedFrom", firstChunk);
+                }
+                plaintextSize = decryptChunked(in, encryptedSize, header, fileChunkSize, out, dek,
+                        firstChunk, listener);
+                chunks = chunkCount(plaintextSize, fileChunkSize) - firstChunk;
+            } else if (firstChunk > 0) {
+                throw new IllegalStateException("Single-shot encrypted files cannot be resumed");
+            } else {
+                in.position(0);
+                plaintextSize = decryptLegacy(in, encryptedSize, out, dek);
+            }
+            success = true;
+        } finally {
+            record(event, "decrypt", plaintextSize, encryptedSize, chunks, firstChunk, success);
+        }
+
+        log.info("File decrypted successfully. Encrypted size: {} bytes, Decrypted size: {} bytes",
+                encryptedSize, plaintextSize);
+        return plaintextSize;
+    }
+
+    /**
+     * Size of the encrypted file for a plaintext of the given size
+     */
+    public long encryptedSize(long plaintextSize) {
+        return encryptedSize(plaintextSize, chunkSize, chunkCount(plaintextSize, chunkSize));
+    }
+
+    /**
+     * Size of the encrypted output after its first chunks chunks, where all
+     * but the final chunk are full
      */
-    public byte[] decryptFile(byte[] encryptedData, SecretKey dek) throws Exception {
-        log.debug("Decrypting file data. Size: {} bytes", encryptedData.length);
+    public static long encryptedSize(long plaintextSize, int fileChunkSize, long chunks) {
+        long plaintext = Math.min(plaintextSize, chunks * fileChunkSize);
+        return HEADER_SIZE + plaintext + chunks * CHUNK_OVERHEAD;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
 
-        if (encryptedData.length < IV_SIZE) {
+    /**
+     * Bytes added to each chunk by sealing: nonce and tag
+     */
+    public static int getChunkOverhead() {
+        return CHUNK_OVERHEAD;
+    }
+
+    /**
+     * Bytes of the commitment at the end of a version 3 file
+     */
+    public static int getCommitmentSize() {
+        return COMMITMENT_SIZE;
+    }
+
+    /**
+     * Memory needed to encrypt a plaintext of the given size: the chunk
+     * buffers in flight, each holding a plaintext and a sealed chunk
+     */
+    public long encryptWorkingSet(long plaintextSize) {
+        return chunkWorkingSet(chunkCount(plaintextSize, chunkSize), chunkSize);
+    }
+
+    /**
+     * Memory needed to decrypt an encrypted file. Chunked files need their
+     * chunk buffers in flight; legacy single-shot files are buffered whole by
+     * the cipher, plus the plaintext it releases at the end. Leaves the
+     * channel at position 0.
+     */
+    public long decryptWorkingSet(SeekableByteChannel in) throws IOException {
+        long encryptedSize = in.size();
+        var header = new byte[HEADER_SIZE];
+        int fileChunkSize = -1;
+        in.position(0);
+        if (readFully(in, ByteBuffer.wrap(header)) == HEADER_SIZE) {
+            fileChunkSize = parseChunkSize(header);
+        }
+        in.position(0);
+        if (fileChunkSize < 0) {
+            return 2 * encryptedSize;
+        }
+        long recordSize = (long) fileChunkSize + CHUNK_OVERHEAD;
+        long body = encryptedSize - HEADER_SIZE - (isCommitted(header) ? COMMITMENT_SIZE : 0);
+        long chunkCount = Math.max(1, (body + recordSize - 1) / recordSize);
+        return chunkWorkingSet(chunkCount, fileChunkSize);
+    }
+
+    private void record(FileCryptoEvent event, String operation, long plaintextBytes, long encryptedBytes,
+            long chunks, long firstChunk, boolean success) {
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.plaintextBytes = plaintextBytes;
+            event.encryptedBytes = encryptedBytes;
+            event.chunks = chunks;
+            event.firstChunk = firstChunk;
+            event.provider = cipherProviderService.getProvider().getName();
+            event.success = success;
+            event.commit();
+        }
+    }
+
+    private long chunkWorkingSet(long chunkCount, int chunkSize) {
+        return (long) chunkPipeline.bufferedChunks(chunkCount) * (2L * chunkSize + CHUNK_OVERHEAD);
+    }
+
+    private long decryptChunked(SeekableByteChannel in, long encryptedSize, byte[] header, int fileChunkSize,
+            WritableByteChannel out, SecretKey dek, long firstChunk, ChunkListener listener) throws Exception {
+        long recordSize = (long) fileChunkSize + CHUNK_OVERHEAD;
+        boolean committed = isCommitted(header);
+        long body = encryptedSize - HEADER_SIZE - (committed ? COMMITMENT_SIZE : 0);
+        long chunkCount = body <= 0 ? 0 : (body + recordSize - 1) / recordSize;
+        long lastRecord = body - (chunkCount - 1) * recordSize;
+        if (chunkCount == 0 || lastRecord < CHUNK_OVERHEAD) {
+            throw new IllegalArgumentException("Encrypted data truncated");
+        }
+        if (firstChunk >= chunkCount) {
+            throw new IllegalArgumentException("Invalid first chunk " + firstChunk + " of " + chunkCount);
+        }
+        if (committed) {
+            verifyCommitment(in, header, recordSize, chunkCount, lastRecord, dek);
+        }
+        in.position(HEADER_SIZE + firstChunk * recordSize);
+
+        chunkPipeline.run(chunkCount - firstChunk, (int) recordSize, fileChunkSize,
+                (offset, sealed) -> {
+                    long index = firstChunk + offset;
+                    int length = (int) (index == chunkCount - 1 ? lastRecord : recordSize);
+                    sealed.limit(length);
+                    if (readFully(in, sealed) < length) {
+                        throw new EOFException("Encrypted data truncated");
+                    }
+                    sealed.flip();
+                },
+                () -> {
+                    var cipher = cipherProviderService.newCipher();
+                    var nonce = new byte[IV_SIZE];
+                    return (offset, sealed, plain) -> {
+                        long index = firstChunk + offset;
+                        sealed.get(nonce);
+                        cipher.init(Cipher.DECRYPT_MODE, dek, new GCMParameterSpec(TAG_SIZE, nonce));
+                        cipher.updateAAD(chunkAad(header, index, index == chunkCount - 1));
+                        cipher.doFinal(sealed, plain);
+                        plain.flip();
+                    };
+                },
+                (offset, plain) -> {
+                    writeFully(out, plain);
+                    if (listener != null) {
+                        listener.chunkWritten(firstChunk + offset);
+                    }
+                });
+        return body - chunkCount * CHUNK_OVERHEAD;
+    }
+
+    /**
+     * Check the commitment of a version 3 file against the tags of all of its
+     * chunks, before any of them is decrypted
+     *
+     * @throws AEADBadTagException if the chunks are not the ones the file was
+     *                             written with, e.g. a chunk of an older version
+     */
+    private static void verifyCommitment(SeekableByteChannel in, byte[] header, long recordSize, long chunkCount,
+            long lastRecord, SecretKey dek) throws Exception {
+        Mac commitment = commitment(dek, header);
+        var tag = ByteBuffer.allocate(TAG_BYTES);
+        for (long index = 0; index < chunkCount; index++) {
+            long end = HEADER_SIZE + index * recordSize + (index == chunkCount - 1 ? lastRecord : recordSize);
+            in.position(end - TAG_BYTES);
+            if (readFully(in, tag.clear()) < TAG_BYTES) {
+                throw new EOFException("Encrypted data truncated");
+            }
+            commitment.update(tag.flip());
+        }
+        var expected = ByteBuffer.allocate(COMMITMENT_SIZE);
+        in.position(HEADER_SIZE + (chunkCount - 1) * recordSize + lastRecord);
+        if (readFully(in, expected) < COMMITMENT_SIZE) {
+            throw new EOFException("Encrypted data truncated");
+        }
+        if (!MessageDigest.isEqual(commitment.doFinal(), expected.array())) {
+            throw new AEADBadTagException("Chunks do not match the commitment of the encrypted file");
+        }
+    }
+
+    /**
+     * HMAC for the commitment of a version 3 file, already fed its header.
+     * Keyed from the DEK, so only holders of the DEK can compute it.
+     */
+    private static Mac commitment(SecretKey dek, byte[] header) throws Exception {
+        Mac mac = Mac.getInstance(HMAC);
+        byte[] dekBytes = dek.getEncoded();
+        byte[] key;
+        try {
+            mac.init(new SecretKeySpec(dekBytes, HMAC));
+            key = mac.doFinal(COMMITMENT_KEY_LABEL);
+        } finally {
+            Arrays.fill(dekBytes, (byte) 0);
+        }
+        try {
+            mac.init(new SecretKeySpec(key, HMAC));
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+        mac.update(header);
+        return mac;
+    }
+
+    /**
+     * Single-shot files carry one GCM tag over the whole file. Plaintext is only
+     * released once the tag has been checked, so the provider buffers it in heap.
+     */
+    private long decryptLegacy(SeekableByteChannel in, long encryptedSize, WritableByteChannel out, SecretKey dek)
+            throws Exception {
+        if (encryptedSize < IV_SIZE) {
             throw new IllegalArgumentException("Encrypted data too short");
         }
 
-        // Extract IV and encrypted data
-        var iv = Arrays.copyOfRange(encryptedData, 0, IV_SIZE);
-        var ciphertext = Arrays.copyOfRange(encryptedData, IV_SIZE, encryptedData.length);
+        var iv = new byte[IV_SIZE];
+        readFully(in, ByteBuffer.wrap(iv));
 
-        // Initialize cipher
-        var cipher = Cipher.getInstance(ALGORITHM);
-        var parameterSpec = new GCMParameterSpec(TAG_SIZE, iv);
-        cipher.init(Cipher.DECRYPT_MODE, dek, parameterSpec);
+        var cipher = cipherProviderService.newCipher();
+        cipher.init(Cipher.DECRYPT_MODE, dek, new GCMParameterSpec(TAG_SIZE, iv));
 
-        // Decrypt
-        var plaintext = cipher.doFinal(ciphertext);
+        long written = 0;
+        var chunk = new byte[LEGACY_BUFFER_SIZE];
+        try (var lease = bufferPool.lease(LEGACY_BUFFER_SIZE)) {
+            var buffer = lease.buffer();
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                int length = buffer.remaining();
+                buffer.get(chunk, 0, length);
+                buffer.clear();
+                var output = cipher.update(chunk, 0, length);
+                if (output != null) {
+                    written += writeFully(out, ByteBuffer.wrap(output));
+                }
+            }
+        }
+        written += writeFully(out, ByteBuffer.wrap(cipher.doFinal()));
+        return written;
+    }
 
-        log.info("File decrypted successfully. Encrypted size: {} bytes, Decrypted size: {} bytes",
-                encryptedData.length, plaintext.length);
-        return plaintext;
+    /**
+     * Header of a chunked file
+     */
+    public static byte[] header(int chunkSize) {
+        return header(FORMAT_VERSION, chunkSize);
+    }
+
+    /**
+     * Header of a chunked file with a commitment (version 3), as written by reencrypt
+     */
+    public static byte[] committedHeader(int chunkSize) {
+        return header(COMMITTED_VERSION, chunkSize);
+    }
+
+    private static byte[] header(byte version, int chunkSize) {
+        return ByteBuffer.allocate(HEADER_SIZE)
+                .put(MAGIC)
+                .put(version)
+                .putInt(chunkSize)
+                .array();
+    }
+
+    /**
+     * Chunk size from a chunked-format header, or -1 for a legacy file.
+     * A legacy IV matching the magic and a plausible chunk size by chance is
+     * vanishingly unlikely.
+     */
+    private static int parseChunkSize(byte[] header) {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) {
+                return -1;
+            }
+        }
+        if (header[MAGIC.length] != FORMAT_VERSION && header[MAGIC.length] != COMMITTED_VERSION) {
+            return -1;
+        }
+        int size = ByteBuffer.wrap(header, MAGIC.length + 1, 4).getInt();
+        return size >= MIN_CHUNK_SIZE && size <= MAX_CHUNK_SIZE ? size : -1;
+    }
+
+    private static boolean isCommitted(byte[] header) {
+        return header[MAGIC.length] == COMMITTED_VERSION;
+    }
+
+    private static byte[] chunkAad(byte[] header, long index, boolean last) {
+        return ByteBuffer.allocate(HEADER_SIZE + 8 + 1)
+                .put(header)
+                .putLong(index)
+                .put((byte) (last ? 1 : 0))
+                .array();
+    }
+
+    // An empty file still has one (empty) final chunk, so truncation is always detectable
+    public static long chunkCount(long plaintextSize, int chunkSize) {
+        return Math.max(1, (plaintextSize + chunkSize - 1) / chunkSize);
+    }
+
+    private static int readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int n = in.read(buffer, position + total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    private static int readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int n = in.read(buffer);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    private static int writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            total += out.write(buffer);
+        }
+        return total;
     }
 }
@@ -1,27 +1,48 @@
 package com.crypto.fileencryption.service;
 
+import com.crypto.fileencryption.jfr.StorageIoEvent;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.UUID;
 
 /**
  * Service for managing temporary file storage.
  * Handles uploaded files, encrypted files, and decrypted files.
+ *
+ * Large files are handled as channels: copies use FileChannel.transferTo or
+ * pooled direct buffers, so file contents never pass through the heap.
  */
 @Slf4j
 @Service
+@RequiredArgsConstructor
 public class FileStorageService {
 
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final DirectBufferPool bufferPool;
+    private final OutputCommitter outputCommitter;
+    private final Tracer tracer;
+
     @Value("${file.storage.location:./DATA}")
     private String baseLocation;
 
+    @Value("${file.storage.clean-temp-on-startup:true}")
+    private boolean cleanTempOnStartup;
+
     private Path inputLocation;
     private Path outputLocation;
     private Path tempLocation;
@@ -38,7 +59,9 @@ public class FileStorageService {
             Files.createDirectories(outputLocation);
             Files.createDirectories(tempLocation);
 
-            cleanTempDirectory();
+            if (cleanTempOnStartup) {
+                cleanTempDirectory();
+            }
 
             log.info("File storage initialized.");
             log.info("Base Root (DATA): {}", root);
@@ -63,9 +86,49 @@ public class FileStorageService {
     }
 
     /**
-     * Read file from input directory
+     * List all files in the input directory tree, as paths relative to it.
+     * Hidden directories such as .temp and .sessions are skipped.
      */
+    public java.util.List<String> walkInputFiles() throws IOException {
+        try (var stream = Files.walk(inputLocation)) {
+            return stream
+                    .filter(path -> !isInHiddenDirectory(inputLocation.relativize(path)))
+                    .filter(Files::isRegularFile)
+                    .map(path -> inputLocation.relativize(path).toString().replace(File.separatorChar, '/'))
+                    .collect(java.util.stream.Collectors.toList());
+        }
+    }
+
+    private static boolean isInHiddenDirectory(Path relative) {
+        for (int i = 0; i < relative.getNameCount() - 1; i++) {
+            if (relative.getName(i).toString().startsWith(".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read file from input directory.
+     * Only for small files such as DEKs; use openInput for file contents.
+     */
+    @SuppressWarnings("try")
     public byte[] readFromInput(String filename) throws IOException {
+        var event = new StorageIoEvent();
+        event.begin();
+        byte[] data = null;
+        try (var span = tracer.span("storage.read").tag("file", filename)) {
+            data = Files.readAllBytes(resolveInput(filename));
+            return data;
+        } finally {
+            record(event, "read", filename, data != null ? data.length : 0, data != null);
+        }
+    }
+
+    /**
+     * Resolve an existing file in the input directory
+     */
+    public Path resolveInput(String filename) throws IOException {
         var filePath = inputLocation.resolve(filename).normalize();
         if (!filePath.startsWith(inputLocation)) {
             throw new SecurityException("Invalid file path");
@@ -73,7 +136,14 @@ public class FileStorageService {
         if (!Files.exists(filePath)) {
             throw new IOException("File not found: " + filename);
         }
-        return Files.readAllBytes(filePath);
+        return filePath;
+    }
+
+    /**
+     * Open a file in the input directory for reading
+     */
+    public FileChannel openInput(String filename) throws IOException {
+        return FileChannel.open(resolveInput(filename), StandardOpenOption.READ);
     }
 
     /**
@@ -92,13 +162,136 @@ public class FileStorageService {
      * Write data to output directory
      */
     public void writeToOutput(String filename, byte[] data) throws IOException {
+        try {
+            writeToOutput(filename, out -> {
+                var buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Writes file contents to a channel
+     */
+    @FunctionalInterface
+    public interface OutputWriter {
+        void write(WritableByteChannel out) throws Exception;
+    }
+
+    /**
+     * Write a file to the output directory through a channel.
+     * Content is staged in the temp directory and only renamed into place by
+     * the OutputCommitter when the writer completes, so a failed write or a
+     * crash never leaves a partial file behind or replaces an existing one.
+     *
+     * @return Size of the written file
+     */
+    public long writeToOutput(String filename, OutputWriter writer) throws Exception {
+        var filePath = resolveOutput(filename);
+        var staging = tempLocation.resolve(UUID.randomUUID() + ".part");
+        var event = new StorageIoEvent();
+        event.begin();
+        long size = -1;
+        try (var span = tracer.span("storage.write").tag("file", filename)) {
+            try (var channel = FileChannel.open(staging, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                writer.write(channel);
+            }
+            size = Files.size(staging);
+            span.tag("bytes", size);
+            commit(staging, filePath, size);
+            return size;
+        } finally {
+            Files.deleteIfExists(staging);
+            record(event, "write", filename, Math.max(size, 0), size >= 0);
+        }
+    }
+
+    /**
+     * Publish a file that was staged elsewhere (e.g. by a resumable job) under
+     * its name in the output directory, with the configured durability
+     *
+     * @return Size of the published file
+     */
+    public long commitToOutput(Path staged, String filename) throws IOException {
+        var filePath = resolveOutput(filename);
+        long size = Files.size(staged);
+        commit(staged, filePath, size);
+        return size;
+    }
+
+    @SuppressWarnings("try")
+    private void commit(Path staged, Path filePath, long size) throws IOException {
+        String durability = outputCommitter.getDurability().name().toLowerCase();
+        var event = new StorageIoEvent();
+        event.begin();
+        boolean success = false;
+        try (var commitSpan = tracer.span("storage.commit").tag("durability", durability)) {
+            outputCommitter.commit(staged, filePath);
+            success = true;
+        } finally {
+            if (event.shouldCommit()) {
+                event.durability = durability;
+            }
+            record(event, "commit", filePath.getFileName().toString(), size, success);
+        }
+        log.info("Saved result to: {}", filePath);
+    }
+
+    private static void record(StorageIoEvent event, String operation, String file, long bytes,
+            boolean success) {
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.file = file;
+            event.bytes = bytes;
+            event.success = success;
+            event.commit();
+        }
+    }
+
+    /**
+     * Resolve a file name in the output directory
+     */
+    public Path resolveOutput(String filename) {
         var filePath = outputLocation.resolve(filename).normalize();
         if (!filePath.startsWith(outputLocation)) {
             throw new SecurityException("Invalid file path");
         }
-        Files.write(filePath, data, java.nio.file.StandardOpenOption.CREATE,
-                java.nio.file.StandardOpenOption.TRUNCATE_EXISTING, java.nio.file.StandardOpenOption.WRITE);
-        log.info("Saved result to: {}", filePath);
+        return filePath;
+    }
+
+    /**
+     * Write everything from a channel to a file in the output directory
+     *
+     * @return Size of the written file
+     */
+    public long writeToOutput(String filename, ReadableByteChannel source) throws Exception {
+        return writeToOutput(filename, out -> copy(source, out));
+    }
+
+    /**
+     * Copy a channel to another through a pooled direct buffer
+     *
+     * @return Number of bytes copied
+     */
+    public long copy(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        long total = 0;
+        try (var lease = bufferPool.lease(COPY_BUFFER_SIZE)) {
+            var buffer = lease.buffer();
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    total += out.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
+        return total;
     }
 
     // Legacy temp storage support for internal processing if needed
@@ -109,6 +302,46 @@ public class FileStorageService {
         return fileId;
     }
 
+    /**
+     * Copy a file from the input directory into temp storage
+     *
+     * @return Temp file ID
+     */
+    public String copyToTemp(String filename) throws IOException {
+        var source = resolveInput(filename);
+        var fileId = UUID.randomUUID().toString();
+        var event = new StorageIoEvent();
+        event.begin();
+        long copied = -1;
+        try (var span = tracer.span("storage.copy-to-temp").tag("file", filename);
+                var in = FileChannel.open(source, StandardOpenOption.READ);
+                var out = FileChannel.open(tempLocation.resolve(fileId),
+                        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+            span.tag("bytes", size);
+            copied = size;
+        } finally {
+            record(event, "copy-to-temp", filename, Math.max(copied, 0), copied >= 0);
+        }
+        return fileId;
+    }
+
+    public Path tempPath(String fileId) {
+        var filePath = tempLocation.resolve(fileId).normalize();
+        if (!filePath.startsWith(tempLocation)) {
+            throw new SecurityException("Invalid file path");
+        }
+        return filePath;
+    }
+
+    public FileChannel openTemp(String fileId) throws IOException {
+        return FileChannel.open(tempPath(fileId), StandardOpenOption.READ);
+    }
+
     public byte[] loadTemp(String fileId) throws IOException {
         var filePath = tempLocation.resolve(fileId);
         return Files.readAllBytes(filePath);
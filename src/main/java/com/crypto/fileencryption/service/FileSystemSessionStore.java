@@ -0,0 +1,140 @@
+package com.crypto.fileencryption.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Session store on a directory shared by all instances (e.g. on the shared
+ * DATA volume), so that select and process calls can land on different nodes.
+ *
+ * Each session is one JSON file, written to a temporary name and renamed
+ * atomically so readers never see a partial file. Expiry is based on the
+ * file's modification time, so every node can evict expired sessions.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "session.store", havingValue = "filesystem")
+public class FileSystemSessionStore implements SessionStore {
+
+    // IDs come from request paths; anything else could escape the directory
+    private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9-]{1,64}");
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Value("${session.directory:${file.storage.location:./DATA}/.sessions}")
+    private String directory;
+
+    @Value("${session.ttl-minutes:60}")
+    private long ttlMinutes;
+
+    private Path sessionDirectory;
+
+    @PostConstruct
+    public void init() throws IOException {
+        sessionDirectory = Paths.get(directory).toAbsolutePath().normalize();
+        Files.createDirectories(sessionDirectory);
+        log.info("Session store: {}", sessionDirectory);
+    }
+
+    @Override
+    public void save(String type, String id, Object session) {
+        Path target = path(type, id);
+        if (target == null) {
+            throw new IllegalArgumentException("Invalid session ID");
+        }
+        Path staging = sessionDirectory.resolve("." + UUID.randomUUID() + ".tmp");
+        try {
+            objectMapper.writeValue(staging.toFile(), session);
+            try {
+                Files.move(staging, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(staging, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to save session " + id, e);
+        } finally {
+            try {
+                Files.deleteIfExists(staging);
+            } catch (IOException ignored) {
+                // Best effort; stale temp files are removed by evictExpired
+            }
+        }
+    }
+
+    @Override
+    public <T> T load(String type, String id, Class<T> sessionType) {
+        Path path = path(type, id);
+        if (path == null) {
+            return null;
+        }
+        try {
+            if (isExpired(Files.getLastModifiedTime(path))) {
+                return null;
+            }
+            return objectMapper.readValue(path.toFile(), sessionType);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load session " + id, e);
+        }
+    }
+
+    @Override
+    public void delete(String type, String id) {
+        Path path = path(type, id);
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Failed to delete session {}", id, e);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${session.cleanup-interval-ms:60000}")
+    public void evictExpired() {
+        try (var files = Files.list(sessionDirectory)) {
+            files.forEach(path -> {
+                try {
+                    if (isExpired(Files.getLastModifiedTime(path))) {
+                        Files.deleteIfExists(path);
+                    }
+                } catch (IOException ignored) {
+                    // Removed concurrently by another node
+                }
+            });
+        } catch (IOException e) {
+            log.warn("Failed to evict expired sessions", e);
+        }
+    }
+
+    private boolean isExpired(FileTime modified) {
+        return modified.toMillis() + TimeUnit.MINUTES.toMillis(ttlMinutes) < System.currentTimeMillis();
+    }
+
+    private Path path(String type, String id) {
+        if (id == null || !VALID_ID.matcher(id).matches()) {
+            return null;
+        }
+        return sessionDirectory.resolve(type + "-" + id + ".json");
+    }
+}
@@ -0,0 +1,299 @@
+package com.crypto.fileencryption.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive concurrency limiter and circuit breaker in front of the HSM.
+ *
+ * The concurrency limit follows the gradient between the long-term average
+ * latency and the latest sample: when the HSM slows down the limit shrinks,
+ * so excess callers wait in a bounded queue (with a deadline) instead of
+ * piling up inside HSM calls. Sustained failures open the circuit, after
+ * which callers fail fast until a trial call succeeds.
+ */
+@Slf4j
+@Component
+public class HsmConcurrencyLimiter {
+
+    public enum CircuitState {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    @FunctionalInterface
+    public interface LimitedCall<T> {
+        T call() throws Exception;
+    }
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${hsm.limiter.initial-limit:8}")
+    private int initialLimit;
+
+    @Value("${hsm.limiter.min-limit:1}")
+    private int minLimit;
+
+    @Value("${hsm.limiter.max-limit:64}")
+    private int maxLimit;
+
+    @Value("${hsm.limiter.max-queue:64}")
+    private int maxQueue;
+
+    @Value("${hsm.limiter.queue-timeout-ms:2000}")
+    private long queueTimeoutMs;
+
+    @Value("${hsm.limiter.smoothing:0.2}")
+    private double smoothing;
+
+    @Value("${hsm.circuit.failure-threshold:5}")
+    private int failureThreshold;
+
+    @Value("${hsm.circuit.open-ms:30000}")
+    private long openMs;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition permitReleased = lock.newCondition();
+
+    // All state below is guarded by lock
+    private double limit;
+    private double longRttNanos;
+    private int inFlight;
+    private int queued;
+    private int consecutiveFailures;
+    private CircuitState circuitState = CircuitState.CLOSED;
+    private long openedAt;
+    private boolean trialInFlight;
+
+    private Counter queueFullRejections;
+    private Counter timeoutRejections;
+    private Counter circuitOpenRejections;
+
+    public HsmConcurrencyLimiter(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        limit = initialLimit;
+
+        Gauge.builder("hsm.limiter.limit", this, HsmConcurrencyLimiter::getLimit)
+                .description("Current adaptive concurrency limit for HSM calls")
+                .register(meterRegistry);
+        Gauge.builder("hsm.limiter.inflight", this, HsmConcurrencyLimiter::getInFlight)
+                .description("HSM calls currently executing")
+                .register(meterRegistry);
+        Gauge.builder("hsm.limiter.queue", this, HsmConcurrencyLimiter::getQueued)
+                .description("Callers waiting for an HSM permit")
+                .register(meterRegistry);
+        Gauge.builder("hsm.circuit.state", this, limiter -> limiter.getCircuitState().ordinal())
+                .description("HSM circuit breaker state (0=closed, 1=half-open, 2=open)")
+                .register(meterRegistry);
+
+        queueFullRejections = rejectionCounter("queue_full");
+        timeoutRejections = rejectionCounter("timeout");
+        circuitOpenRejections = rejectionCounter("circuit_open");
+    }
+
+    private Counter rejectionCounter(String reason) {
+        return Counter.builder("hsm.limiter.rejections")
+                .description("HSM calls rejected without being attempted")
+                .tag("reason", reason)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Run an HSM call under the limiter.
+     *
+     * @throws HsmUnavailableException if the circuit is open, the queue is
+     *                                 full or no permit became available in time
+     */
+    public <T> T execute(LimitedCall<T> call) throws Exception {
+        acquire();
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            T result = call.call();
+            success = true;
+            return result;
+        } catch (Exception e) {
+            // Bad input says nothing about the HSM's health
+            success = HsmSlot.isCallerError(e);
+            throw e;
+        } finally {
+            release(System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * Forget learned latency and failures, e.g. after switching HSM mode
+     */
+    public void reset() {
+        lock.lock();
+        try {
+            limit = initialLimit;
+            longRttNanos = 0;
+            consecutiveFailures = 0;
+            circuitState = CircuitState.CLOSED;
+            trialInFlight = false;
+            permitReleased.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            if (circuitState == CircuitState.OPEN) {
+                long remaining = openedAt + TimeUnit.MILLISECONDS.toNanos(openMs) - System.nanoTime();
+                if (remaining > 0) {
+                    circuitOpenRejections.increment();
+                    throw new HsmUnavailableException("HSM circuit breaker is open",
+                            TimeUnit.NANOSECONDS.toMillis(remaining));
+                }
+                circuitState = CircuitState.HALF_OPEN;
+                log.info("HSM circuit breaker half-open, allowing a trial call");
+            }
+            if (circuitState == CircuitState.HALF_OPEN) {
+                // Only one trial call at a time while half-open
+                if (trialInFlight) {
+                    circuitOpenRejections.increment();
+                    throw new HsmUnavailableException("HSM circuit breaker is half-open", openMs);
+                }
+                trialInFlight = true;
+                inFlight++;
+                return;
+            }
+
+            if (inFlight < (int) limit) {
+                inFlight++;
+                return;
+            }
+            if (queued >= maxQueue) {
+                queueFullRejections.increment();
+                throw new HsmUnavailableException("HSM request queue is full", queueTimeoutMs);
+            }
+
+            queued++;
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMs);
+                while (inFlight >= (int) limit) {
+                    if (remaining <= 0) {
+                        timeoutRejections.increment();
+                        throw new HsmUnavailableException("Timed out waiting for an HSM permit", queueTimeoutMs);
+                    }
+                    remaining = permitReleased.awaitNanos(remaining);
+                }
+                inFlight++;
+            } finally {
+                queued--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(long rttNanos, boolean success) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (success) {
+                onSuccess(rttNanos);
+            } else {
+                onFailure();
+            }
+            permitReleased.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onSuccess(long rttNanos) {
+        consecutiveFailures = 0;
+        if (circuitState == CircuitState.HALF_OPEN) {
+            trialInFlight = false;
+            circuitState = CircuitState.CLOSED;
+            log.info("HSM circuit breaker closed after successful trial call");
+        }
+
+        if (longRttNanos == 0) {
+            longRttNanos = rttNanos;
+            return;
+        }
+        // Long-term latency average; pulled down quickly if it drifted far above the sample
+        longRttNanos = longRttNanos / rttNanos > 2 ? rttNanos : longRttNanos * 0.95 + rttNanos * 0.05;
+
+        // gradient < 1 means latency is rising above the long-term average
+        double gradient = Math.max(0.5, Math.min(1.0, longRttNanos / rttNanos));
+        double queueAllowance = Math.sqrt(limit);
+        double newLimit = limit * gradient + queueAllowance;
+
+        // Do not grow the limit while callers are not actually using it
+        if (newLimit > limit && inFlight + 1 < limit / 2) {
+            return;
+        }
+        limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - smoothing) + newLimit * smoothing));
+    }
+
+    private void onFailure() {
+        if (circuitState == CircuitState.HALF_OPEN) {
+            trialInFlight = false;
+            openCircuit();
+            return;
+        }
+        if (++consecutiveFailures >= failureThreshold && circuitState == CircuitState.CLOSED) {
+            openCircuit();
+        }
+    }
+
+    private void openCircuit() {
+        circuitState = CircuitState.OPEN;
+        openedAt = System.nanoTime();
+        log.warn("HSM circuit breaker opened after {} consecutive failures", consecutiveFailures);
+    }
+
+    public double getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public CircuitState getCircuitState() {
+        lock.lock();
+        try {
+            return circuitState;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,14 +1,35 @@
 package com.crypto.fileencryption.service;
 
+import com.crypto.fileencryption.jfr.HsmOperationEvent;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Primary;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Routes HSM operations to either the Real HSM or Simulated HSM based on
  * configuration.
- * Also handles dynamic login/logout for the Real HSM.
+ * Also handles dynamic login/logout for the Real HSM. The real HSM is only
+ * connected on first use (or during the startup warm-up when hsm.provider is
+ * "real", see WarmUpService), so simulated mode works on hosts without the
+ * PKCS#11 library.
+ *
+ * Each mode is backed by a pool of slots (HSM slots or partitions sharing the
+ * same KEK). Operations go to the healthy slot with the fewest outstanding
+ * requests; slots failing health checks are ejected and re-admitted
+ * automatically. All operations pass through HsmConcurrencyLimiter, which
+ * bounds concurrency and fails fast while the HSM is unhealthy.
  */
 @Slf4j
 @Service
@@ -16,31 +37,171 @@ import org.springframework.stereotype.Service;
 @RequiredArgsConstructor
 public class HsmRouterService implements HsmService {
 
-    private final RealHsmService realHsmService;
     private final SimulatedHsmService simulatedHsmService;
+    private final HsmConcurrencyLimiter limiter;
+    private final AuditLogService auditLogService;
+    private final Tracer tracer;
+
+    private static final String REAL_PROVIDER = "real";
+    private static final String SIMULATED_PROVIDER = "simulated";
+
+    @Value("${hsm.provider:simulated}")
+    private String provider;
+
+    @Value("${hsm.slots.real:0}")
+    private long[] realSlotIds;
+
+    @Value("${hsm.slots.simulated:1}")
+    private int simulatedSlotCount;
+
+    @Value("${hsm.health.failure-threshold:3}")
+    private int failureThreshold;
+
+    private final List<HsmSlot> realSlots = new CopyOnWriteArrayList<>();
+    private final List<HsmSlot> simulatedSlots = new ArrayList<>();
+    private final AtomicInteger roundRobin = new AtomicInteger();
+
+    private volatile boolean useHsm = false;
+
+    @PostConstruct
+    public void init() {
+        // Simulated slots share the in-process KEK, just like partitions sharing a KEK,
+        // but each has its own fault injection
+        for (int i = 0; i < simulatedSlotCount; i++) {
+            String id = "simulated-" + i;
+            simulatedSlots.add(new HsmSlot(id, new SimulatedSlotHsm(id, simulatedHsmService), failureThreshold));
+        }
+        log.info("HSM router initialized with {} simulated slot(s); real HSM slots {} will connect on demand",
+                simulatedSlots.size(), Arrays.toString(realSlotIds));
+    }
 
-    private boolean useHsm = false;
+    /**
+     * Warm-up before the instance reports ready: open the real HSM sessions
+     * when it is the configured provider, then run wrap/unwrap cycles on
+     * every healthy slot of the active mode, so no request pays for the first
+     * session, key lookup or JNI call. Cycles are health probes, so a failing
+     * slot is ejected here rather than on live traffic.
+     *
+     * @return Successful cycles
+     */
+    public int warmUp(int cycles) {
+        if (REAL_PROVIDER.equalsIgnoreCase(provider)) {
+            try {
+                ensureRealSlots();
+            } catch (Exception e) {
+                log.warn("Real HSM warm-up failed; will retry on first use: {}", e.getMessage());
+            }
+        }
+        int succeeded = 0;
+        for (HsmSlot slot : getActiveSlots()) {
+            for (int i = 0; i < cycles && slot.isHealthy(); i++) {
+                boolean wasHealthy = slot.isHealthy();
+                if (slot.probe()) {
+                    succeeded++;
+                }
+                auditHealthChange(slot, wasHealthy);
+            }
+        }
+        return succeeded;
+    }
+
+    /**
+     * Connect to the real HSM slots that are not connected yet.
+     * Called on first use; failures (including a missing PKCS#11 library) are
+     * reported to the caller and retried on the next call, without affecting
+     * simulated mode.
+     */
+    private synchronized void ensureRealSlots() {
+        Throwable lastFailure = null;
+        for (long slotId : realSlotIds) {
+            String id = "real-" + slotId;
+            if (realSlots.stream().anyMatch(slot -> slot.getId().equals(id))) {
+                continue;
+            }
+            try {
+                RealHsmService realHsmService = new RealHsmService(slotId);
+                realHsmService.init();
+                realSlots.add(new HsmSlot(id, realHsmService, failureThreshold));
+            } catch (RuntimeException | LinkageError e) {
+                log.warn("Could not connect to real HSM slot {}", slotId, e);
+                lastFailure = e;
+            }
+        }
+        if (realSlots.isEmpty()) {
+            throw new IllegalStateException("Real HSM unavailable: "
+                    + (lastFailure != null ? lastFailure : "no slots configured"));
+        }
+    }
+
+    @PreDestroy
+    public void cleanup() {
+        if (realSlots.isEmpty()) {
+            return; // Never connected; do not load the PKCS#11 library just to shut it down
+        }
+        for (HsmSlot slot : realSlots) {
+            ((RealHsmService) slot.getDelegate()).cleanup();
+        }
+        RealHsmService.finalizeLibrary();
+    }
 
     /**
      * Configure HSM usage.
-     * 
+     *
      * @param useHsm Whether to use the Real HSM
      * @param pin    The PIN for the Real HSM (required if useHsm is true)
-     * @throws Exception If login fails
+     * @throws Exception If login fails on every slot
      */
     public synchronized void configure(boolean useHsm, String pin) throws Exception {
+        String mode = useHsm ? REAL_PROVIDER : SIMULATED_PROVIDER;
+        try {
+            switchMode(useHsm, pin);
+            auditLogService.success("hsm.mode", mode, null);
+        } catch (Exception e) {
+            auditLogService.failure("hsm.mode", mode, e);
+            throw e;
+        }
+    }
+
+    private void switchMode(boolean useHsm, String pin) throws Exception {
         if (useHsm) {
             if (pin == null || pin.trim().isEmpty()) {
                 throw new IllegalArgumentException("PIN is required to enable Real HSM");
             }
             log.info("Switching to Real HSM mode...");
-            realHsmService.login(pin);
+            ensureRealSlots();
+            Exception lastFailure = null;
+            int loggedIn = 0;
+            for (HsmSlot slot : realSlots) {
+                boolean wasHealthy = slot.isHealthy();
+                try {
+                    ((RealHsmService) slot.getDelegate()).login(pin);
+                    slot.admit();
+                    loggedIn++;
+                } catch (Exception e) {
+                    log.warn("Login failed on HSM slot {}", slot.getId(), e);
+                    // No traffic to a slot that cannot serve it; the health check re-admits it
+                    slot.eject("Login failed: " + e.getMessage());
+                    lastFailure = e;
+                }
+                auditHealthChange(slot, wasHealthy);
+            }
+            if (loggedIn == 0) {
+                for (HsmSlot slot : realSlots) {
+                    ((RealHsmService) slot.getDelegate()).logout();
+                }
+                throw lastFailure != null ? lastFailure : new IllegalStateException("No real HSM slots configured");
+            }
             this.useHsm = true;
-            log.info("Switched to Real HSM mode successfully.");
+            limiter.reset();
+            log.info("Switched to Real HSM mode successfully ({} of {} slots logged in).", loggedIn, realSlots.size());
         } else {
             log.info("Switching to Simulated HSM mode...");
-            realHsmService.logout();
+            // Nothing to log out of if the real HSM was never used
+            for (HsmSlot slot : realSlots) {
+                ((RealHsmService) slot.getDelegate()).logout();
+            }
             this.useHsm = false;
+            limiter.reset();
             log.info("Switched to Simulated HSM mode.");
         }
     }
@@ -50,27 +211,145 @@ public class HsmRouterService implements HsmService {
     }
 
     @Override
-    public byte[] encryptWithKek(byte[] plaintext) throws Exception {
-        if (useHsm) {
-            return realHsmService.encryptWithKek(plaintext);
-        } else {
-            return simulatedHsmService.encryptWithKek(plaintext);
+    public String getMode() {
+        return useHsm ? REAL_PROVIDER : SIMULATED_PROVIDER;
+    }
+
+    /**
+     * Whether at least one real HSM slot is connected
+     */
+    public boolean isRealHsmConnected() {
+        return !realSlots.isEmpty();
+    }
+
+    /**
+     * Slots of the currently active mode
+     */
+    public List<HsmSlot> getActiveSlots() {
+        return Collections.unmodifiableList(useHsm ? realSlots : simulatedSlots);
+    }
+
+    /**
+     * Set the faults of a simulated slot
+     *
+     * @throws IllegalArgumentException if there is no such simulated slot or the error rate is out of range
+     */
+    public void setSimulatedSlotFault(String slotId, boolean offline, double errorRate) {
+        HsmSlot slot = simulatedSlots.stream()
+                .filter(candidate -> candidate.getId().equals(slotId))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Unknown simulated HSM slot: " + slotId));
+        ((SimulatedSlotHsm) slot.getDelegate()).setFault(offline, errorRate);
+        log.info("Simulated HSM slot {}: offline {}, error rate {}", slotId, offline, errorRate);
+    }
+
+    /**
+     * Periodic health check of the active slots
+     */
+    @Scheduled(fixedDelayString = "${hsm.health.interval-ms:10000}")
+    public void checkSlotHealth() {
+        for (HsmSlot slot : getActiveSlots()) {
+            boolean wasHealthy = slot.isHealthy();
+            slot.probe();
+            auditHealthChange(slot, wasHealthy);
         }
     }
 
+    /**
+     * Pick the healthy slot with the fewest outstanding requests.
+     * Ties are broken round-robin so idle slots share the load.
+     */
+    private HsmSlot selectSlot() {
+        List<HsmSlot> slots = getActiveSlots();
+        int size = slots.size();
+        int start = Math.floorMod(roundRobin.getAndIncrement(), Math.max(size, 1));
+
+        HsmSlot best = null;
+        for (int i = 0; i < size; i++) {
+            HsmSlot slot = slots.get((start + i) % size);
+            if (slot.isHealthy() && (best == null || slot.getOutstanding() < best.getOutstanding())) {
+                best = slot;
+            }
+        }
+        if (best == null) {
+            throw new IllegalStateException("No healthy HSM slot available");
+        }
+        return best;
+    }
+
+    @Override
+    public byte[] encryptWithKek(byte[] plaintext) throws Exception {
+        return execute("hsm.wrap", hsm -> hsm.encryptWithKek(plaintext));
+    }
+
     @Override
     public byte[] decryptWithKek(byte[] ciphertext) throws Exception {
-        if (useHsm) {
-            return realHsmService.decryptWithKek(ciphertext);
-        } else {
-            return simulatedHsmService.decryptWithKek(ciphertext);
+        return execute("hsm.unwrap", hsm -> hsm.decryptWithKek(ciphertext));
+    }
+
+    /**
+     * Run a KEK operation on a slot under the concurrency limit.
+     * Successful operations are audited by DekService; failures are audited
+     * here, with the slot they happened on.
+     *
+     * Traced as a span for the whole operation, including the wait for a
+     * limiter permit, with a child "hsm.call" span for the slot round trip,
+     * and recorded as an HsmOperationEvent for JFR.
+     */
+    private byte[] execute(String action, HsmSlot.HsmCall<byte[]> call) throws Exception {
+        String mode = getMode();
+        var event = new HsmOperationEvent();
+        event.begin();
+        long requested = System.nanoTime();
+        try (var span = tracer.span(action).tag("mode", mode)) {
+            try {
+                byte[] result = limiter.execute(() -> {
+                    event.sessionWait = System.nanoTime() - requested;
+                    HsmSlot slot = selectSlot();
+                    event.slot = slot.getId();
+                    boolean wasHealthy = slot.isHealthy();
+                    try (var callSpan = tracer.span("hsm.call").tag("slot", slot.getId())) {
+                        try {
+                            return slot.execute(call);
+                        } catch (Exception e) {
+                            callSpan.error(e);
+                            auditLogService.failure(action, slot.getId(), e);
+                            auditHealthChange(slot, wasHealthy);
+                            throw e;
+                        }
+                    }
+                });
+                event.success = true;
+                return result;
+            } catch (Exception e) {
+                span.error(e);
+                throw e;
+            }
+        } finally {
+            if (event.shouldCommit()) {
+                event.operation = action.substring(action.indexOf('.') + 1);
+                event.mode = mode;
+                if (event.slot == null) {
+                    // Rejected by the limiter: the whole duration was spent waiting
+                    event.sessionWait = System.nanoTime() - requested;
+                }
+                event.commit();
+            }
+        }
+    }
+
+    private void auditHealthChange(HsmSlot slot, boolean wasHealthy) {
+        if (wasHealthy && !slot.isHealthy()) {
+            auditLogService.record("hsm.slot.ejected", slot.getId(), AuditLogService.FAILURE, slot.getLastError());
+        } else if (!wasHealthy && slot.isHealthy()) {
+            auditLogService.success("hsm.slot.readmitted", slot.getId(), null);
         }
     }
 
     @Override
     public String getKekAlgorithm() {
         if (useHsm) {
-            return realHsmService.getKekAlgorithm();
+            return realSlots.get(0).getDelegate().getKekAlgorithm();
         } else {
             return simulatedHsmService.getKekAlgorithm();
         }
@@ -79,7 +358,7 @@ public class HsmRouterService implements HsmService {
     @Override
     public int getKekKeySize() {
         if (useHsm) {
-            return realHsmService.getKekKeySize();
+            return realSlots.get(0).getDelegate().getKekKeySize();
         } else {
             return simulatedHsmService.getKekKeySize();
         }
@@ -39,4 +39,23 @@ public interface HsmService {
      * @return Key size (e.g., 256)
      */
     int getKekKeySize();
+
+    /**
+     * Which KEK operations currently go to, e.g. the simulated or real HSM.
+     * Keys wrapped in one mode cannot be unwrapped in another, so callers
+     * that keep wrapped keys around separate them by mode.
+     *
+     * @return Mode name (e.g., "simulated")
+     */
+    default String getMode() {
+        return "default";
+    }
+
+    /**
+     * Re-open the connection after a failure, e.g. a new session and login
+     * once the HSM is back from a restart. Nothing to do for implementations
+     * without a session.
+     */
+    default void reconnect() throws Exception {
+    }
 }
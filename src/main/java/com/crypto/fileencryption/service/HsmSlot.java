@@ -0,0 +1,170 @@
+package com.crypto.fileencryption.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single HSM slot (or partition) managed by HsmRouterService.
+ *
+ * Wraps an HsmService delegate and keeps the bookkeeping needed for
+ * least-outstanding-requests balancing and health-based ejection.
+ */
+@Slf4j
+public class HsmSlot {
+
+    /**
+     * An operation executed against the slot's delegate
+     */
+    @FunctionalInterface
+    public interface HsmCall<T> {
+        T apply(HsmService hsm) throws Exception;
+    }
+
+    private static final int PROBE_KEY_SIZE = 32;
+    private static final SecureRandom PROBE_RANDOM = new SecureRandom();
+
+    private final String id;
+    private final HsmService delegate;
+    private final int failureThreshold;
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private volatile boolean healthy = true;
+    private volatile String lastError;
+
+    public HsmSlot(String id, HsmService delegate, int failureThreshold) {
+        this.id = id;
+        this.delegate = delegate;
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * Run an operation on this slot, tracking outstanding requests and failures.
+     */
+    public <T> T execute(HsmCall<T> call) throws Exception {
+        outstanding.incrementAndGet();
+        try {
+            T result = call.apply(delegate);
+            completed.incrementAndGet();
+            consecutiveFailures.set(0);
+            return result;
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            // Bad input (e.g. a corrupted DEK file) says nothing about the slot itself
+            if (!isCallerError(e)) {
+                recordFailure(e.getMessage());
+            }
+            throw e;
+        } finally {
+            outstanding.decrementAndGet();
+        }
+    }
+
+    /**
+     * Health check: wrap and unwrap a random key and compare the result.
+     * A slot is ejected after failureThreshold consecutive failures and
+     * re-admitted on the first successful probe. An ejected slot reconnects
+     * first, since a slot whose session or login died only recovers on a
+     * new one.
+     */
+    public boolean probe() {
+        try {
+            if (!healthy) {
+                delegate.reconnect();
+            }
+            byte[] probeKey = new byte[PROBE_KEY_SIZE];
+            PROBE_RANDOM.nextBytes(probeKey);
+            byte[] roundTrip = delegate.decryptWithKek(delegate.encryptWithKek(probeKey));
+            if (!Arrays.equals(probeKey, roundTrip)) {
+                throw new IllegalStateException("Probe round trip returned different key material");
+            }
+            consecutiveFailures.set(0);
+            if (!healthy) {
+                healthy = true;
+                log.info("HSM slot {} passed health check, re-admitted", id);
+            }
+            return true;
+        } catch (Exception e) {
+            log.warn("HSM slot {} failed health check: {}", id, e.getMessage());
+            recordFailure(e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Take the slot out of rotation at once, e.g. when its login failed;
+     * the health check re-admits it
+     */
+    public void eject(String reason) {
+        lastError = reason;
+        if (healthy) {
+            healthy = false;
+            log.warn("HSM slot {} ejected: {}", id, reason);
+        }
+    }
+
+    /**
+     * Put the slot back into rotation after a successful login
+     */
+    public void admit() {
+        consecutiveFailures.set(0);
+        if (!healthy) {
+            healthy = true;
+            log.info("HSM slot {} re-admitted", id);
+        }
+    }
+
+    private void recordFailure(String message) {
+        lastError = message;
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold && healthy) {
+            healthy = false;
+            log.warn("HSM slot {} ejected after {} consecutive failures", id, failureThreshold);
+        }
+    }
+
+    /**
+     * Whether the exception is caused by bad input rather than by the HSM
+     */
+    static boolean isCallerError(Exception e) {
+        return e instanceof AEADBadTagException
+                || e instanceof BadPaddingException
+                || e instanceof IllegalArgumentException;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public HsmService getDelegate() {
+        return delegate;
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+}
@@ -0,0 +1,25 @@
+package com.crypto.fileencryption.service;
+
+/**
+ * Thrown when an HSM operation is rejected without being attempted,
+ * because the circuit breaker is open or the concurrency limit was not
+ * reached within the queue deadline.
+ */
+public class HsmUnavailableException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterMs;
+
+    public HsmUnavailableException(String message, long retryAfterMs) {
+        super(message);
+        this.retryAfterMs = retryAfterMs;
+    }
+
+    /**
+     * Suggested delay before the caller retries
+     */
+    public long getRetryAfterMs() {
+        return retryAfterMs;
+    }
+}
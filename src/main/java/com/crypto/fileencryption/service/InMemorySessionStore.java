@@ -0,0 +1,66 @@
+package com.crypto.fileencryption.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-instance session store. Sessions are lost on restart and are not
+ * visible to other nodes, so it needs sticky sessions behind a load balancer.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "session.store", havingValue = "memory", matchIfMissing = true)
+public class InMemorySessionStore implements SessionStore {
+
+    @Value("${session.ttl-minutes:60}")
+    private long ttlMinutes;
+
+    private final Map<String, Entry> sessions = new ConcurrentHashMap<>();
+
+    @Override
+    public void save(String type, String id, Object session) {
+        long expiresAt = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(ttlMinutes);
+        sessions.put(key(type, id), new Entry(session, expiresAt));
+    }
+
+    @Override
+    public <T> T load(String type, String id, Class<T> sessionType) {
+        Entry entry = sessions.get(key(type, id));
+        if (entry == null || entry.expiresAt < System.currentTimeMillis()) {
+            return null;
+        }
+        return sessionType.cast(entry.session);
+    }
+
+    @Override
+    public void delete(String type, String id) {
+        sessions.remove(key(type, id));
+    }
+
+    @Scheduled(fixedDelayString = "${session.cleanup-interval-ms:60000}")
+    public void evictExpired() {
+        long now = System.currentTimeMillis();
+        sessions.values().removeIf(entry -> entry.expiresAt < now);
+    }
+
+    private static String key(String type, String id) {
+        return type + ":" + id;
+    }
+
+    private static final class Entry {
+        final Object session;
+        final long expiresAt;
+
+        Entry(Object session, long expiresAt) {
+            this.session = session;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,468 @@
+package com.crypto.fileencryption.service;
+
+import com.crypto.fileencryption.model.InPlaceJournal;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encrypts a file in the DATA directory within its own blocks and renames
+ * it to "filename.encrypted", for hosts without room for a second copy.
+ * Besides the growth of the file itself (header plus nonce and tag per
+ * chunk), the extra disk space is a journal of two chunks.
+ *
+ * Every sealed chunk is longer than its plaintext, so chunk i lands at
+ * header + i x (chunk size + overhead), past its own plaintext offset. Going
+ * from the last chunk to the first, each sealed chunk only overwrites its
+ * own plaintext and that of later chunks, which have already been
+ * encrypted; the header is written last, over the start of chunk 0.
+ *
+ * The journal (encryption.in-place.directory, default DATA/.inplace) is a
+ * JSON file with the wrapped DEK and the layout, and a redo log of two
+ * alternating slots. Before a sealed chunk is written into the file it is
+ * written and fsynced to the slot of its parity with a checksum, after the
+ * file itself has been fsynced, so the slot it replaces is no longer
+ * needed. After a crash, the lowest chunk with a valid slot is written
+ * again and encryption continues below it; interrupted runs are completed
+ * on startup (encryption.in-place.recover-on-startup) or by the CLI.
+ */
+@Slf4j
+@Service
+public class InPlaceEncryptionService {
+
+    private static final String JOURNAL_SUFFIX = ".json";
+    private static final String SLOTS_SUFFIX = ".slots";
+    private static final byte[] SLOT_MAGIC = { 'C', 'F', 'J', 1 };
+    private static final int SLOT_HEADER = SLOT_MAGIC.length + 8 + 4;
+    private static final int SLOT_HASH = 32;
+
+    private final DekService dekService;
+    private final FileEncryptionService fileEncryptionService;
+    private final FileStorageService fileStorageService;
+    private final DirectBufferPool bufferPool;
+    private final ChunkPipeline chunkPipeline;
+    private final AuditLogService auditLogService;
+    private final MeterRegistry meterRegistry;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    /**
+     * Files being encrypted in place by this process
+     */
+    private final Set<String> active = ConcurrentHashMap.newKeySet();
+    private volatile WriteObserver writeObserver = (step, index) -> { };
+
+    @Value("${encryption.in-place.directory:${file.storage.location:./DATA}/.inplace}")
+    private String directory;
+
+    @Value("${encryption.in-place.recover-on-startup:true}")
+    private boolean recoverOnStartup;
+
+    private Path journalDirectory;
+    private Counter chunks;
+    private Counter recovered;
+
+    public InPlaceEncryptionService(DekService dekService, FileEncryptionService fileEncryptionService,
+            FileStorageService fileStorageService, DirectBufferPool bufferPool, ChunkPipeline chunkPipeline,
+            AuditLogService auditLogService, MeterRegistry meterRegistry) {
+        this.dekService = dekService;
+        this.fileEncryptionService = fileEncryptionService;
+        this.fileStorageService = fileStorageService;
+        this.bufferPool = bufferPool;
+        this.chunkPipeline = chunkPipeline;
+        this.auditLogService = auditLogService;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Called before each write of a run that a crash could cut short: "slot"
+     * and "chunk" with the chunk index, then "header", "dek", "rename" and
+     * "cleanup" with -1
+     */
+    @FunctionalInterface
+    interface WriteObserver {
+        void beforeWrite(String step, long index) throws IOException;
+    }
+
+    /**
+     * Observe the writes of runs, e.g. to stop a run where a crash would
+     */
+    void setWriteObserver(WriteObserver writeObserver) {
+        this.writeObserver = writeObserver;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        journalDirectory = Paths.get(directory).toAbsolutePath().normalize();
+        Files.createDirectories(journalDirectory);
+        chunks = Counter.builder("encryption.in-place.chunks")
+                .description("Chunks encrypted in place")
+                .register(meterRegistry);
+        recovered = Counter.builder("encryption.in-place.recovered")
+                .description("Interrupted in-place encryptions completed from their journal")
+                .register(meterRegistry);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onReady() {
+        if (recoverOnStartup) {
+            // Large files take a while; the journal covers a shutdown before it finishes
+            Thread thread = new Thread(this::recoverAll, "in-place-recovery");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Memory used by one in-place encryption: a plaintext and a sealed chunk
+     */
+    public long workingSet() {
+        return 2L * fileEncryptionService.getChunkSize() + FileEncryptionService.getChunkOverhead();
+    }
+
+    /**
+     * Encrypt a file in place, replacing it with "filename.encrypted" and
+     * writing "filename.dek". An interrupted in-place encryption of the same
+     * file is completed instead.
+     *
+     * @return Size of the encrypted file
+     * @throws IllegalStateException if the file is being encrypted in place
+     */
+    public long encrypt(String filename) throws Exception {
+        Path source = fileStorageService.resolveInput(filename);
+        if (!active.add(filename)) {
+            throw new IllegalStateException("In-place encryption of " + filename + " is in progress");
+        }
+        try {
+            for (InPlaceJournal pending : pendingJournals()) {
+                if (pending.getFilename().equals(filename)) {
+                    return recover(pending);
+                }
+            }
+
+            var journal = new InPlaceJournal();
+            journal.setJournalId(UUID.randomUUID().toString());
+            journal.setFilename(filename);
+            journal.setPlaintextSize(Files.size(source));
+            journal.setChunkSize(fileEncryptionService.getChunkSize());
+            journal.setCreatedAt(System.currentTimeMillis());
+
+            SecretKey dek = dekService.generateDek();
+            try {
+                journal.setEncryptedDek(dekService.encryptDekToBase64(dek));
+                persist(journal);
+                long encryptedSize = run(journal, dek, source, false);
+                auditLogService.success("file.encrypt", filename, "bytes=" + journal.getPlaintextSize() + " inPlace");
+                return encryptedSize;
+            } catch (Exception e) {
+                auditLogService.failure("file.encrypt", filename, e);
+                throw e;
+            } finally {
+                dekService.destroyDek(dek);
+            }
+        } finally {
+            active.remove(filename);
+        }
+    }
+
+    /**
+     * Complete every interrupted in-place encryption
+     *
+     * @return Number of files completed
+     */
+    public int recoverAll() {
+        int count = 0;
+        for (InPlaceJournal journal : pendingJournals()) {
+            if (!active.add(journal.getFilename())) {
+                continue;
+            }
+            try {
+                recover(journal);
+                count++;
+            } catch (Exception e) {
+                log.error("Could not complete in-place encryption of {} (journal {}): {}",
+                        journal.getFilename(), journal.getJournalId(), e.getMessage());
+            } finally {
+                active.remove(journal.getFilename());
+            }
+        }
+        return count;
+    }
+
+    private long recover(InPlaceJournal journal) throws Exception {
+        String filename = journal.getFilename();
+        Path source = fileStorageService.resolveOutput(filename);
+        Path target = fileStorageService.resolveOutput(filename + BatchCryptoService.ENCRYPTED_SUFFIX);
+        long encryptedSize = encryptedSize(journal);
+        if (!Files.exists(source)) {
+            if (!Files.exists(target)) {
+                throw new IllegalStateException("Neither " + filename + " nor its encrypted file exists");
+            }
+            // Crashed after the rename; only the journal was left
+            log.info("In-place encryption of {} had already completed", filename);
+            deleteJournal(journal);
+            return Files.size(target);
+        }
+        long size = Files.size(source);
+        if (size != journal.getPlaintextSize() && size != encryptedSize) {
+            throw new IllegalStateException(filename + " has been modified since its in-place encryption started");
+        }
+
+        log.info("Completing interrupted in-place encryption of {}", filename);
+        SecretKey dek = dekService.decryptDekFromBase64(journal.getEncryptedDek());
+        try {
+            run(journal, dek, source, true);
+        } finally {
+            dekService.destroyDek(dek);
+        }
+        recovered.increment();
+        auditLogService.success("file.encrypt", filename, "bytes=" + journal.getPlaintextSize() + " inPlace recovered");
+        return encryptedSize;
+    }
+
+    /**
+     * Encrypt the chunks of the file from the last one not yet journaled down
+     * to chunk 0, write the header, the ".dek", rename and drop the journal
+     */
+    private long run(InPlaceJournal journal, SecretKey dek, Path source, boolean recovering) throws Exception {
+        String filename = journal.getFilename();
+        long plaintextSize = journal.getPlaintextSize();
+        int chunkSize = journal.getChunkSize();
+        long chunkCount = FileEncryptionService.chunkCount(plaintextSize, chunkSize);
+        long encryptedSize = encryptedSize(journal);
+        int sealedCapacity = chunkSize + FileEncryptionService.getChunkOverhead();
+        int slotSize = SLOT_HEADER + sealedCapacity + SLOT_HASH;
+
+        try (var file = FileChannel.open(source, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                var slots = FileChannel.open(slotsPath(journal), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                var lock = slots.tryLock();
+                var plainLease = bufferPool.lease(chunkSize);
+                var sealedLease = bufferPool.lease(sealedCapacity)) {
+            if (lock == null) {
+                throw new IllegalStateException("In-place encryption of " + filename + " is in progress");
+            }
+            var plain = plainLease.buffer();
+            var sealed = sealedLease.buffer();
+
+            long next = chunkCount - 1;
+            if (recovering) {
+                long redo = readLowestSlot(slots, slotSize, chunkCount, sealed);
+                if (redo >= 0) {
+                    // The slot's chunk may only be partly in the file
+                    writeFully(file, sealed, chunkOffset(plaintextSize, chunkSize, redo));
+                    next = redo - 1;
+                }
+            }
+            if (file.size() < encryptedSize) {
+                // Room for the growth, past the end of the plaintext
+                writeFully(file, ByteBuffer.allocate(1), encryptedSize - 1);
+            }
+
+            ChunkPipeline.ChunkGate gate = chunkPipeline.currentGate();
+            for (long index = next; index >= 0; index--) {
+                if (gate != null) {
+                    gate.pass(index);
+                }
+                int length = (int) Math.min(chunkSize, plaintextSize - index * chunkSize);
+                plain.clear().limit(length);
+                readFully(file, plain, index * chunkSize);
+                plain.flip();
+                sealed.clear();
+                fileEncryptionService.sealChunk(dek, chunkSize, plaintextSize, index, plain, sealed);
+
+                // The previous chunk must be on disk before the slot that could redo it is replaced
+                file.force(false);
+                writeObserver.beforeWrite("slot", index);
+                writeSlot(slots, slotSize, index, sealed);
+                writeObserver.beforeWrite("chunk", index);
+                writeFully(file, sealed.duplicate(), chunkOffset(plaintextSize, chunkSize, index));
+                chunks.increment();
+            }
+            writeObserver.beforeWrite("header", -1);
+            writeFully(file, ByteBuffer.wrap(FileEncryptionService.header(chunkSize)), 0);
+            file.force(true);
+        }
+
+        Path target = fileStorageService.resolveOutput(filename + BatchCryptoService.ENCRYPTED_SUFFIX);
+        writeObserver.beforeWrite("dek", -1);
+        fileStorageService.writeToOutput(filename + BatchCryptoService.DEK_SUFFIX,
+                journal.getEncryptedDek().getBytes(StandardCharsets.UTF_8));
+        writeObserver.beforeWrite("rename", -1);
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        writeObserver.beforeWrite("cleanup", -1);
+        deleteJournal(journal);
+        log.info("Encrypted {} in place: {} chunks, {} bytes", filename, chunkCount, encryptedSize);
+        return encryptedSize;
+    }
+
+    private static long encryptedSize(InPlaceJournal journal) {
+        long chunkCount = FileEncryptionService.chunkCount(journal.getPlaintextSize(), journal.getChunkSize());
+        return FileEncryptionService.encryptedSize(journal.getPlaintextSize(), journal.getChunkSize(), chunkCount);
+    }
+
+    private static long chunkOffset(long plaintextSize, int chunkSize, long index) {
+        return FileEncryptionService.encryptedSize(plaintextSize, chunkSize, index);
+    }
+
+    /**
+     * Write a sealed chunk with its index and checksum to the slot of its
+     * parity, and fsync it
+     */
+    private static void writeSlot(FileChannel slots, int slotSize, long index, ByteBuffer sealed)
+            throws IOException {
+        var header = ByteBuffer.allocate(SLOT_HEADER).put(SLOT_MAGIC).putLong(index).putInt(sealed.remaining());
+        header.flip();
+        var hash = ByteBuffer.wrap(checksum(header.duplicate(), sealed.duplicate()));
+        long position = (index & 1) * slotSize;
+        for (ByteBuffer part : new ByteBuffer[] { header, sealed.duplicate(), hash }) {
+            position += writeFully(slots, part, position);
+        }
+        slots.force(false);
+    }
+
+    /**
+     * Read the valid slot with the lowest chunk index into sealed
+     *
+     * @return Its chunk index, or -1 if no slot is valid
+     */
+    private static long readLowestSlot(FileChannel slots, int slotSize, long chunkCount, ByteBuffer sealed)
+            throws IOException {
+        long lowest = -1;
+        for (int slot = 0; slot < 2; slot++) {
+            long position = (long) slot * slotSize;
+            if (slots.size() < position + SLOT_HEADER) {
+                continue;
+            }
+            var header = ByteBuffer.allocate(SLOT_HEADER);
+            readFully(slots, header, position);
+            header.flip();
+            byte[] magic = new byte[SLOT_MAGIC.length];
+            header.get(magic);
+            long index = header.getLong();
+            int length = header.getInt();
+            if (!MessageDigest.isEqual(magic, SLOT_MAGIC) || index < 0 || index >= chunkCount
+                    || length <= 0 || length > sealed.capacity()
+                    || slots.size() < position + SLOT_HEADER + length + SLOT_HASH) {
+                continue;
+            }
+            var data = ByteBuffer.allocate(length);
+            var hash = ByteBuffer.allocate(SLOT_HASH);
+            readFully(slots, data, position + SLOT_HEADER);
+            readFully(slots, hash, position + SLOT_HEADER + length);
+            header.rewind();
+            data.flip();
+            if (!MessageDigest.isEqual(checksum(header, data.duplicate()), hash.array())
+                    || (lowest >= 0 && index > lowest)) {
+                continue;
+            }
+            lowest = index;
+            sealed.clear();
+            sealed.put(data).flip();
+        }
+        return lowest;
+    }
+
+    private static byte[] checksum(ByteBuffer header, ByteBuffer data) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            digest.update(header);
+            digest.update(data);
+            return digest.digest();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private List<InPlaceJournal> pendingJournals() {
+        List<InPlaceJournal> journals = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(journalDirectory, "*" + JOURNAL_SUFFIX)) {
+            for (Path path : stream) {
+                try {
+                    journals.add(objectMapper.readValue(path.toFile(), InPlaceJournal.class));
+                } catch (IOException e) {
+                    log.warn("Skipping unreadable in-place journal {}: {}", path, e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Could not list in-place journals in {}: {}", journalDirectory, e.getMessage());
+        }
+        return journals;
+    }
+
+    /**
+     * Write the journal to a temporary file, fsync it and rename it into place
+     */
+    private void persist(InPlaceJournal journal) throws IOException {
+        Path staging = journalDirectory.resolve("." + journal.getJournalId() + ".tmp");
+        try {
+            try (var channel = FileChannel.open(staging, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                writeFully(channel, ByteBuffer.wrap(objectMapper.writeValueAsBytes(journal)), 0);
+                channel.force(true);
+            }
+            Path target = journalDirectory.resolve(journal.getJournalId() + JOURNAL_SUFFIX);
+            try {
+                Files.move(staging, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(staging, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(staging);
+        }
+    }
+
+    private void deleteJournal(InPlaceJournal journal) throws IOException {
+        // The JSON goes last: without it the slots are never read
+        Files.deleteIfExists(slotsPath(journal));
+        Files.deleteIfExists(journalDirectory.resolve(journal.getJournalId() + JOURNAL_SUFFIX));
+    }
+
+    private Path slotsPath(InPlaceJournal journal) {
+        return journalDirectory.resolve(journal.getJournalId() + SLOTS_SUFFIX);
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            total += channel.write(buffer, position + total);
+        }
+        return total;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position() - start);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+}
@@ -0,0 +1,447 @@
+package com.crypto.fileencryption.service;
+
+import com.crypto.fileencryption.model.ChunkManifest;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Incremental re-encryption of files that changed slightly since they were
+ * last encrypted.
+ *
+ * Every encryption through this service also writes a manifest
+ * (encryption.incremental.directory, default DATA/.manifests) with a keyed
+ * hash of each chunk's plaintext. When the file is encrypted again and the
+ * manifest still matches its ".dek" and ".encrypted", the existing DEK is
+ * unwrapped and only chunks whose hash changed are sealed again, with fresh
+ * nonces; the others are copied from the previous ciphertext. The cipher
+ * cost is proportional to the change; the plaintext is still read and
+ * hashed in full to find it.
+ *
+ * Hashes are HMAC-SHA256 under a key derived from the DEK, so the manifest
+ * does not reveal chunk contents to anyone without the DEK, and the manifest
+ * itself carries an HMAC under the same key. It also records the SHA-256 of
+ * the ".dek" file and of the chunk tags of ".encrypted", so a manifest that
+ * does not describe the current files exactly (another tool re-encrypted
+ * them, or a crash came between committing ".encrypted" and the manifest)
+ * is ignored and the file is encrypted in full under a new DEK.
+ *
+ * The new ".encrypted" is staged and renamed into place, then the manifest
+ * is replaced the same way; the ".dek" stays as it is.
+ *
+ * Since all versions share the DEK, a chunk copied from an older version
+ * would still pass its own tag at the same index. Files written here are
+ * therefore in the committed format (version 3), whose trailer binds the
+ * tags of all chunks of one version; decryption rejects a mix. Manifests of
+ * version 1 describe files without it and are ignored, so such files are
+ * encrypted in full once.
+ */
+@Slf4j
+@Service
+public class IncrementalEncryptionService {
+
+    private static final int MANIFEST_VERSION = 2;
+    private static final String HMAC = "HmacSHA256";
+    private static final int HASH_SIZE = 32;
+    private static final int TAG_SIZE = 16;
+    private static final byte[] MANIFEST_KEY_LABEL = "CFK chunk manifest v1".getBytes(StandardCharsets.US_ASCII);
+
+    private final DekService dekService;
+    private final FileEncryptionService fileEncryptionService;
+    private final FileStorageService fileStorageService;
+    private final MeterRegistry meterRegistry;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Value("${encryption.incremental.enabled:false}")
+    private boolean enabled;
+
+    @Value("${encryption.incremental.directory:${file.storage.location:./DATA}/.manifests}")
+    private String directory;
+
+    private Path manifestDirectory;
+
+    private Counter keptChunks;
+    private Counter sealedChunks;
+    private Counter staleManifests;
+
+    public IncrementalEncryptionService(DekService dekService, FileEncryptionService fileEncryptionService,
+            FileStorageService fileStorageService, MeterRegistry meterRegistry) {
+        this.dekService = dekService;
+        this.fileEncryptionService = fileEncryptionService;
+        this.fileStorageService = fileStorageService;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        manifestDirectory = Paths.get(directory).toAbsolutePath().normalize();
+        if (enabled) {
+            Files.createDirectories(manifestDirectory);
+            log.info("Incremental re-encryption enabled, manifests in {}", manifestDirectory);
+        }
+        keptChunks = chunkCounter("kept");
+        sealedChunks = chunkCounter("sealed");
+        staleManifests = Counter.builder("encryption.incremental.stale")
+                .description("Manifests ignored because they no longer match the encrypted file")
+                .register(meterRegistry);
+    }
+
+    private Counter chunkCounter(String result) {
+        return Counter.builder("encryption.incremental.chunks")
+                .description("Chunks of incremental encryptions, kept from the previous ciphertext or sealed")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Outcome of an encryption through this service
+     */
+    public static final class Result {
+        private final long encryptedSize;
+        private final String encryptedDek;
+        private final long chunks;
+        private final long sealed;
+        private final boolean incremental;
+
+        private Result(long encryptedSize, String encryptedDek, long chunks, long sealed, boolean incremental) {
+            this.encryptedSize = encryptedSize;
+            this.encryptedDek = encryptedDek;
+            this.chunks = chunks;
+            this.sealed = sealed;
+            this.incremental = incremental;
+        }
+
+        public long getEncryptedSize() {
+            return encryptedSize;
+        }
+
+        /**
+         * Base64 wrapped DEK, as stored in the ".dek" file
+         */
+        public String getEncryptedDek() {
+            return encryptedDek;
+        }
+
+        public long getChunks() {
+            return chunks;
+        }
+
+        /**
+         * Chunks sealed by this encryption; the rest were kept
+         */
+        public long getSealed() {
+            return sealed;
+        }
+
+        /**
+         * Whether the previous encryption was reused, as opposed to a full
+         * encryption under a new DEK
+         */
+        public boolean isIncremental() {
+            return incremental;
+        }
+    }
+
+    /**
+     * Encrypt a file into "filename.encrypted" and "filename.dek",
+     * incrementally if a matching manifest exists
+     *
+     * @param filename Name of the file in the DATA directory
+     * @param in       Plaintext, positioned at the start
+     * @param size     Plaintext size
+     */
+    public Result encrypt(String filename, FileChannel in, long size) throws Exception {
+        Path manifestPath = manifestPath(filename);
+        ChunkManifest manifest = null;
+        try {
+            manifest = objectMapper.readValue(Files.readAllBytes(manifestPath), ChunkManifest.class);
+        } catch (NoSuchFileException e) {
+            // First encryption through this service
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable manifest {}: {}", manifestPath, e.getMessage());
+        }
+        if (manifest != null && manifest.getVersion() == MANIFEST_VERSION) {
+            Result result = encryptIncrementally(filename, in, size, manifest, manifestPath);
+            if (result != null) {
+                return result;
+            }
+            staleManifests.increment();
+            in.position(0);
+        }
+        return encryptFully(filename, in, size, manifestPath);
+    }
+
+    private Result encryptFully(String filename, FileChannel in, long size, Path manifestPath) throws Exception {
+        SecretKey dek = dekService.generateDek();
+        try {
+            String encryptedDek = dekService.encryptDekToBase64(dek);
+            byte[] manifestKey = manifestKey(dek);
+            var tracker = new Tracker(manifestKey, null, size, fileEncryptionService.getChunkSize());
+            long encryptedSize = fileStorageService.writeToOutput(filename + ".encrypted",
+                    out -> fileEncryptionService.reencrypt(in, size, null, out, dek, tracker));
+            byte[] dekFile = encryptedDek.getBytes(StandardCharsets.UTF_8);
+            fileStorageService.writeToOutput(filename + ".dek", dekFile);
+            saveManifest(manifestPath, filename, size, fileEncryptionService.getChunkSize(), dekFile, tracker,
+                    manifestKey);
+            sealedChunks.increment(tracker.chunks);
+            return new Result(encryptedSize, encryptedDek, tracker.chunks, tracker.chunks, false);
+        } finally {
+            dekService.destroyDek(dek);
+        }
+    }
+
+    /**
+     * @return null if the manifest does not describe the current ".dek" and
+     *         ".encrypted"
+     */
+    private Result encryptIncrementally(String filename, FileChannel in, long size, ChunkManifest manifest,
+            Path manifestPath) throws Exception {
+        String encryptedFilename = filename + ".encrypted";
+        byte[] dekFile;
+        Path previousPath;
+        try {
+            dekFile = fileStorageService.readFromInput(filename + ".dek");
+            previousPath = fileStorageService.resolveInput(encryptedFilename);
+        } catch (IOException e) {
+            log.info("Previous encryption of {} not found, encrypting in full", filename);
+            return null;
+        }
+        if (!Arrays.equals(sha256(dekFile), decode(manifest.getDekSha256()))) {
+            log.info("Manifest of {} is for another DEK, encrypting in full", filename);
+            return null;
+        }
+
+        String encryptedDek = new String(dekFile, StandardCharsets.UTF_8).trim();
+        SecretKey dek = dekService.decryptDekFromBase64(encryptedDek);
+        try {
+            byte[] manifestKey = manifestKey(dek);
+            if (!MessageDigest.isEqual(manifestMac(manifestKey, manifest), decode(manifest.getMac()))) {
+                log.warn("Manifest of {} failed authentication, encrypting in full", filename);
+                return null;
+            }
+            byte[] previousHashes = decode(manifest.getChunkHashes());
+            try (var previous = FileChannel.open(previousPath, StandardOpenOption.READ)) {
+                if (!describes(manifest, previousHashes.length / HASH_SIZE, previous)) {
+                    log.warn("Manifest of {} does not match {}, encrypting in full", filename, encryptedFilename);
+                    return null;
+                }
+                var tracker = new Tracker(manifestKey, previousHashes, size, manifest.getChunkSize());
+                long encryptedSize = fileStorageService.writeToOutput(encryptedFilename,
+                        out -> fileEncryptionService.reencrypt(in, size, previous, out, dek, tracker));
+                saveManifest(manifestPath, filename, size, manifest.getChunkSize(), dekFile, tracker,
+                        manifestKey);
+
+                long sealed = tracker.sealed.get();
+                keptChunks.increment(tracker.chunks - sealed);
+                sealedChunks.increment(sealed);
+                log.info("Re-encrypted {} incrementally: {} of {} chunks sealed", filename, sealed,
+                        tracker.chunks);
+                return new Result(encryptedSize, encryptedDek, tracker.chunks, sealed, true);
+            }
+        } finally {
+            dekService.destroyDek(dek);
+        }
+    }
+
+    /**
+     * Whether the encrypted file has the manifest's header, size and chunk tags
+     */
+    private static boolean describes(ChunkManifest manifest, long chunks, FileChannel encrypted) throws IOException {
+        int chunkSize = manifest.getChunkSize();
+        long plaintextSize = manifest.getPlaintextSize();
+        if (chunks != FileEncryptionService.chunkCount(plaintextSize, chunkSize)
+                || encrypted.size() != FileEncryptionService.encryptedSize(plaintextSize, chunkSize, chunks)
+                        + FileEncryptionService.getCommitmentSize()) {
+            return false;
+        }
+        byte[] header = FileEncryptionService.committedHeader(chunkSize);
+        var actualHeader = ByteBuffer.allocate(header.length);
+        readFully(encrypted, actualHeader, 0);
+        if (!Arrays.equals(header, actualHeader.array())) {
+            return false;
+        }
+        MessageDigest digest = sha256();
+        var tag = ByteBuffer.allocate(TAG_SIZE);
+        for (long index = 0; index < chunks; index++) {
+            tag.clear();
+            readFully(encrypted, tag, FileEncryptionService.encryptedSize(plaintextSize, chunkSize, index + 1)
+                    - TAG_SIZE);
+            digest.update(tag.array());
+        }
+        return Arrays.equals(digest.digest(), decode(manifest.getTagsSha256()));
+    }
+
+    /**
+     * Hashes each chunk's plaintext, compares it with the previous manifest
+     * and collects the tags of the new file
+     */
+    private static final class Tracker implements FileEncryptionService.ChunkReuse {
+        private final SecretKeySpec hashKey;
+        private final byte[] previousHashes;
+        private final long chunks;
+        private final byte[] hashes;
+        private final byte[] tags;
+        private final AtomicLong sealed = new AtomicLong();
+
+        Tracker(byte[] manifestKey, byte[] previousHashes, long plaintextSize, int chunkSize) {
+            this.hashKey = new SecretKeySpec(manifestKey, HMAC);
+            this.previousHashes = previousHashes;
+            this.chunks = FileEncryptionService.chunkCount(plaintextSize, chunkSize);
+            if (chunks > Integer.MAX_VALUE / HASH_SIZE) {
+                throw new IllegalArgumentException("Too many chunks for a manifest: " + chunks);
+            }
+            this.hashes = new byte[(int) chunks * HASH_SIZE];
+            this.tags = new byte[(int) chunks * TAG_SIZE];
+        }
+
+        @Override
+        public boolean unchanged(long index, ByteBuffer plain) throws Exception {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(hashKey);
+            mac.update(plain);
+            byte[] hash = mac.doFinal();
+            int offset = (int) index * HASH_SIZE;
+            System.arraycopy(hash, 0, hashes, offset, HASH_SIZE);
+            return previousHashes != null && offset + HASH_SIZE <= previousHashes.length
+                    && MessageDigest.isEqual(hash, Arrays.copyOfRange(previousHashes, offset, offset + HASH_SIZE));
+        }
+
+        @Override
+        public void sealed(long index, ByteBuffer sealed, boolean kept) {
+            sealed.position(sealed.limit() - TAG_SIZE).get(tags, (int) index * TAG_SIZE, TAG_SIZE);
+            if (!kept) {
+                this.sealed.incrementAndGet();
+            }
+        }
+    }
+
+    private void saveManifest(Path manifestPath, String filename, long size, int chunkSize, byte[] dekFile,
+            Tracker tracker, byte[] manifestKey) throws Exception {
+        var manifest = new ChunkManifest();
+        manifest.setVersion(MANIFEST_VERSION);
+        manifest.setFilename(filename);
+        manifest.setChunkSize(chunkSize);
+        manifest.setPlaintextSize(size);
+        manifest.setDekSha256(encode(sha256(dekFile)));
+        manifest.setTagsSha256(encode(sha256().digest(tracker.tags)));
+        manifest.setChunkHashes(encode(tracker.hashes));
+        manifest.setUpdatedAt(System.currentTimeMillis());
+        manifest.setMac(encode(manifestMac(manifestKey, manifest)));
+
+        // Written to a temporary file, fsynced and renamed into place
+        Files.createDirectories(manifestPath.getParent());
+        Path staging = manifestPath.resolveSibling("." + UUID.randomUUID() + ".tmp");
+        try {
+            try (var channel = FileChannel.open(staging, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                var buffer = ByteBuffer.wrap(objectMapper.writeValueAsBytes(manifest));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            try {
+                Files.move(staging, manifestPath, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(staging, manifestPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(staging);
+        }
+    }
+
+    private Path manifestPath(String filename) {
+        Path path = manifestDirectory.resolve(filename + ".json").normalize();
+        if (!path.startsWith(manifestDirectory)) {
+            throw new SecurityException("Invalid file path");
+        }
+        return path;
+    }
+
+    /**
+     * Key for chunk hashes and the manifest MAC, derived from the DEK so that
+     * only holders of the DEK can compute or forge them
+     */
+    private static byte[] manifestKey(SecretKey dek) throws Exception {
+        Mac mac = Mac.getInstance(HMAC);
+        byte[] dekBytes = dek.getEncoded();
+        try {
+            mac.init(new SecretKeySpec(dekBytes, HMAC));
+        } finally {
+            Arrays.fill(dekBytes, (byte) 0);
+        }
+        return mac.doFinal(MANIFEST_KEY_LABEL);
+    }
+
+    private static byte[] manifestMac(byte[] manifestKey, ChunkManifest manifest) throws Exception {
+        Mac mac = Mac.getInstance(HMAC);
+        mac.init(new SecretKeySpec(manifestKey, HMAC));
+        byte[] filename = manifest.getFilename().getBytes(StandardCharsets.UTF_8);
+        mac.update(ByteBuffer.allocate(4 + 4 + filename.length + 4 + 8)
+                .putInt(manifest.getVersion())
+                .putInt(filename.length).put(filename)
+                .putInt(manifest.getChunkSize())
+                .putLong(manifest.getPlaintextSize())
+                .flip());
+        mac.update(decode(manifest.getDekSha256()));
+        mac.update(decode(manifest.getTagsSha256()));
+        mac.update(decode(manifest.getChunkHashes()));
+        return mac.doFinal();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new IOException("Unexpected end of encrypted file");
+            }
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] sha256(byte[] data) {
+        return sha256().digest(data);
+    }
+
+    private static String encode(byte[] data) {
+        return Base64.getEncoder().encodeToString(data);
+    }
+
+    private static byte[] decode(String data) {
+        return data == null ? new byte[0] : Base64.getDecoder().decode(data);
+    }
+}
@@ -0,0 +1,225 @@
+package com.crypto.fileencryption.service;
+
+import com.crypto.fileencryption.model.VerificationReport;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.crypto.AEADBadTagException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Integrity scan of every encrypted file in the DATA tree.
+ *
+ * Each file's DEK is unwrapped and every GCM tag is checked while streaming,
+ * with the plaintext discarded, so nothing is written to the output or temp
+ * directories. Files are verified in parallel on verify.threads threads,
+ * and their combined read rate can be capped with
+ * verify.max-bytes-per-second so that a scan does not starve live traffic.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class IntegrityVerificationService {
+
+    private static final int MAX_RETAINED_JOBS = 20;
+
+    private final BatchCryptoService batchCryptoService;
+    private final FileStorageService fileStorageService;
+
+    @Value("${verify.threads:4}")
+    private int defaultThreads;
+
+    @Value("${verify.max-bytes-per-second:0}")
+    private long defaultBytesPerSecond;
+
+    // Most recent scans, oldest evicted first
+    private final Map<String, ScanJob> jobs = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ScanJob> eldest) {
+            return size() > MAX_RETAINED_JOBS;
+        }
+    };
+
+    /**
+     * Start a scan in the background
+     *
+     * @param threads        Verification threads, or null for the default
+     * @param bytesPerSecond Read bandwidth cap (0 = unlimited), or null for the default
+     * @return Initial report, with the job ID to poll
+     */
+    public VerificationReport start(Integer threads, Long bytesPerSecond) {
+        var job = new ScanJob(threads != null ? threads : defaultThreads,
+                bytesPerSecond != null ? bytesPerSecond : defaultBytesPerSecond, null);
+        synchronized (jobs) {
+            jobs.put(job.id, job);
+        }
+        var runner = new Thread(job::run, "verify-scan-" + job.id.substring(0, 8));
+        runner.setDaemon(true);
+        runner.start();
+        return job.snapshot();
+    }
+
+    /**
+     * Run a scan with the default settings and wait for it
+     *
+     * @param listener Called with each file and its failure reason (null when authentic)
+     */
+    public VerificationReport scan(BiConsumer<String, String> listener) {
+        var job = new ScanJob(defaultThreads, defaultBytesPerSecond, listener);
+        job.run();
+        return job.snapshot();
+    }
+
+    public VerificationReport getReport(String jobId) {
+        synchronized (jobs) {
+            var job = jobs.get(jobId);
+            return job != null ? job.snapshot() : null;
+        }
+    }
+
+    public List<VerificationReport> getReports() {
+        List<VerificationReport> reports = new ArrayList<>();
+        synchronized (jobs) {
+            jobs.values().forEach(job -> reports.add(job.snapshot()));
+        }
+        return reports;
+    }
+
+    private final class ScanJob {
+        final String id = UUID.randomUUID().toString();
+        final int threads;
+        final BandwidthThrottle throttle;
+        final BiConsumer<String, String> listener;
+
+        final AtomicInteger verified = new AtomicInteger();
+        final AtomicInteger authentic = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        final List<VerificationReport.FileFailure> corrupted = new ArrayList<>();
+        volatile String status = "RUNNING";
+        volatile String message;
+        volatile int total;
+        volatile Instant startedAt = Instant.now();
+        volatile Instant finishedAt;
+
+        ScanJob(int threads, long bytesPerSecond, BiConsumer<String, String> listener) {
+            this.threads = Math.max(1, threads);
+            this.throttle = new BandwidthThrottle(bytesPerSecond);
+            this.listener = listener;
+        }
+
+        void run() {
+            ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "verify-" + id.substring(0, 8));
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                List<String> files = fileStorageService.walkInputFiles();
+                Set<String> available = new HashSet<>(files);
+                List<String> targets = new ArrayList<>();
+                for (String name : files) {
+                    if (name.endsWith(BatchCryptoService.ENCRYPTED_SUFFIX)) {
+                        targets.add(name);
+                    }
+                }
+                total = targets.size();
+                log.info("Integrity scan {} started: {} files, {} threads, throttle {}", id, total, threads,
+                        throttle.isUnlimited() ? "none" : throttle.getBytesPerSecond() + " B/s");
+
+                for (String name : targets) {
+                    pool.submit(() -> verify(name, available));
+                }
+                pool.shutdown();
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+                status = "COMPLETED";
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                status = "FAILED";
+                message = "Interrupted";
+            } catch (Exception e) {
+                log.error("Integrity scan {} failed", id, e);
+                status = "FAILED";
+                message = e.getMessage();
+            } finally {
+                pool.shutdownNow();
+                finishedAt = Instant.now();
+            }
+            var report = snapshot();
+            log.info("Integrity scan {} {}: {}/{} authentic, {} corrupted, {} bytes at {} GB/s", id, status,
+                    report.getFilesAuthentic(), report.getFilesTotal(), report.getCorrupted().size(),
+                    report.getBytesVerified(), report.getGigabytesPerSecond());
+        }
+
+        private void verify(String name, Set<String> available) {
+            String dekFilename = BatchCryptoService.dekFilename(name);
+            String failure = null;
+            try {
+                if (!available.contains(dekFilename)) {
+                    failure = "DEK file not found: " + dekFilename;
+                } else {
+                    batchCryptoService.verify(name, dekFilename, throttle);
+                    authentic.incrementAndGet();
+                }
+            } catch (AEADBadTagException e) {
+                failure = "Authentication failed (corrupted or wrong key)";
+            } catch (Exception e) {
+                failure = e.getClass().getSimpleName() + ": " + e.getMessage();
+            }
+            try {
+                bytes.addAndGet(fileStorageService.resolveInput(name).toFile().length());
+            } catch (Exception ignored) {
+                // File vanished during the scan; its failure is already recorded
+            }
+            if (failure != null) {
+                log.warn("Integrity check failed for {}: {}", name, failure);
+                synchronized (corrupted) {
+                    corrupted.add(new VerificationReport.FileFailure(name, failure));
+                }
+            }
+            verified.incrementAndGet();
+            if (listener != null) {
+                listener.accept(name, failure);
+            }
+        }
+
+        VerificationReport snapshot() {
+            var report = new VerificationReport();
+            report.setJobId(id);
+            report.setStatus(status);
+            report.setMessage(message);
+            report.setStartedAt(startedAt.toString());
+            Instant end = finishedAt;
+            report.setFinishedAt(end != null ? end.toString() : null);
+            report.setThreads(threads);
+            report.setThrottleBytesPerSecond(throttle.isUnlimited() ? 0 : throttle.getBytesPerSecond());
+            report.setFilesTotal(total);
+            report.setFilesVerified(verified.get());
+            report.setFilesAuthentic(authentic.get());
+            report.setBytesVerified(bytes.get());
+            double elapsed = ((end != null ? end : Instant.now()).toEpochMilli() - startedAt.toEpochMilli()) / 1000.0;
+            report.setElapsedSeconds(elapsed);
+            report.setGigabytesPerSecond(elapsed > 0
+                    ? Math.round(bytes.get() / elapsed / 1e9 * 1000) / 1000.0
+                    : 0);
+            synchronized (corrupted) {
+                report.setCorrupted(new ArrayList<>(corrupted));
+            }
+            return report;
+        }
+    }
+}
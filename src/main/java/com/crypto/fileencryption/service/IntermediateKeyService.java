@@ -0,0 +1,233 @@
+package com.crypto.fileencryption.service;
+
+import com.crypto.fileencryption.jfr.DekCacheEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Intermediate key encryption keys for the envelope key hierarchy.
+ *
+ * Instead of sending every DEK to the HSM, DekService wraps DEKs locally under
+ * a short-lived intermediate key, which is itself wrapped by the HSM KEK. The
+ * current intermediate key is replaced after dek.envelope.rotation-seconds or
+ * dek.envelope.max-uses wraps, whichever comes first, so the HSM is called
+ * once per rotation instead of once per file while the root of trust stays in
+ * the HSM.
+ *
+ * Unwrapped intermediate keys are cached by their wrapped form (LRU, bounded
+ * by dek.envelope.cache-size and dek.envelope.cache-ttl-seconds), so
+ * decrypting files that share an intermediate key also needs just one HSM
+ * call.
+ *
+ * Both are kept per HSM mode (HsmService.getMode()). After a switch from the
+ * simulated to the real HSM, the next DEK gets a new intermediate key
+ * wrapped by the real KEK, and envelopes from the other mode are not opened
+ * from the cache.
+ */
+@Slf4j
+@Service
+public class IntermediateKeyService {
+
+    private static final int KEY_SIZE = 256;
+
+    private final HsmService hsmService;
+    private final AuditLogService auditLogService;
+    private final MeterRegistry meterRegistry;
+    private final RandomSource randomSource;
+
+    @Value("${dek.envelope.rotation-seconds:300}")
+    private long rotationSeconds;
+
+    @Value("${dek.envelope.max-uses:10000}")
+    private long maxUses;
+
+    @Value("${dek.envelope.cache-size:1024}")
+    private int cacheSize;
+
+    @Value("${dek.envelope.cache-ttl-seconds:3600}")
+    private long cacheTtlSeconds;
+
+    private volatile Intermediate current;
+    private Map<String, CachedKey> cache;
+
+    private Counter rotations;
+    private Counter cacheHits;
+    private Counter cacheMisses;
+
+    public IntermediateKeyService(HsmService hsmService, AuditLogService auditLogService,
+            MeterRegistry meterRegistry, RandomSource randomSource) {
+        this.hsmService = hsmService;
+        this.auditLogService = auditLogService;
+        this.meterRegistry = meterRegistry;
+        this.randomSource = randomSource;
+    }
+
+    @PostConstruct
+    public void init() {
+        cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedKey> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        rotations = Counter.builder("dek.intermediate.rotations")
+                .description("Intermediate keys generated and wrapped by the HSM")
+                .register(meterRegistry);
+        cacheHits = cacheCounter("hit");
+        cacheMisses = cacheCounter("miss");
+    }
+
+    private Counter cacheCounter(String result) {
+        return Counter.builder("dek.intermediate.cache")
+                .description("Lookups of unwrapped intermediate keys")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    /**
+     * A usable intermediate key together with its HSM-wrapped form
+     */
+    public static final class Intermediate {
+        private final SecretKey key;
+        private final byte[] wrapped;
+        private final String mode;
+        private final long expiresAt;
+        private final AtomicLong uses = new AtomicLong();
+
+        private Intermediate(SecretKey key, byte[] wrapped, String mode, long expiresAt) {
+            this.key = key;
+            this.wrapped = wrapped;
+            this.mode = mode;
+            this.expiresAt = expiresAt;
+        }
+
+        public SecretKey getKey() {
+            return key;
+        }
+
+        public byte[] getWrapped() {
+            return wrapped.clone();
+        }
+    }
+
+    /**
+     * Intermediate key for wrapping one DEK; rotates it first if it has expired,
+     * reached its use limit or was wrapped in another HSM mode
+     */
+    public Intermediate current() throws Exception {
+        Intermediate intermediate = current;
+        if (intermediate != null && isUsable(intermediate) && intermediate.uses.incrementAndGet() <= maxUses) {
+            return intermediate;
+        }
+        synchronized (this) {
+            // Another caller may have rotated while this one waited
+            intermediate = current;
+            if (intermediate == null || !isUsable(intermediate) || intermediate.uses.incrementAndGet() > maxUses) {
+                intermediate = rotate();
+                intermediate.uses.incrementAndGet();
+                current = intermediate;
+            }
+            return intermediate;
+        }
+    }
+
+    /**
+     * Unwrap an intermediate key stored with a DEK, from the cache when possible
+     */
+    public SecretKey unwrap(byte[] wrapped) throws Exception {
+        String mode = hsmService.getMode();
+        String cacheKey = cacheKey(mode, wrapped);
+        long now = System.nanoTime();
+        synchronized (cache) {
+            CachedKey cached = cache.get(cacheKey);
+            if (cached != null && now - cached.expiresAt < 0) {
+                cacheHits.increment();
+                DekCacheEvent.lookup("intermediate", true);
+                return cached.key;
+            }
+        }
+        cacheMisses.increment();
+        DekCacheEvent.lookup("intermediate", false);
+        byte[] keyBytes = hsmService.decryptWithKek(wrapped);
+        SecretKey key;
+        try {
+            key = new SecretKeySpec(keyBytes, "AES");
+        } finally {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+        // Not cached if the mode changed during the call: it is unknown which KEK unwrapped it
+        if (mode.equals(hsmService.getMode())) {
+            cache(cacheKey, key);
+        }
+        return key;
+    }
+
+    private boolean isUsable(Intermediate intermediate) {
+        return System.nanoTime() - intermediate.expiresAt < 0 && intermediate.mode.equals(hsmService.getMode());
+    }
+
+    private Intermediate rotate() throws Exception {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(KEY_SIZE, randomSource.current());
+        SecretKey key = keyGen.generateKey();
+
+        byte[] keyBytes = key.getEncoded();
+        String mode;
+        byte[] wrapped;
+        try {
+            // Wrapped again if the mode changed during the call, so the key is never tagged with the wrong one
+            do {
+                mode = hsmService.getMode();
+                wrapped = hsmService.encryptWithKek(keyBytes);
+            } while (!mode.equals(hsmService.getMode()));
+        } catch (Exception e) {
+            auditLogService.failure("dek.intermediate.rotate", null, e);
+            throw e;
+        } finally {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+
+        rotations.increment();
+        String fingerprint = DekService.fingerprint(wrapped);
+        auditLogService.success("dek.intermediate.rotate", fingerprint, "mode=" + mode);
+        log.info("Rotated intermediate key {} ({} HSM)", fingerprint, mode);
+
+        cache(cacheKey(mode, wrapped), key);
+        return new Intermediate(key, wrapped, mode, System.nanoTime() + TimeUnit.SECONDS.toNanos(rotationSeconds));
+    }
+
+    private static String cacheKey(String mode, byte[] wrapped) {
+        return mode + ":" + Base64.getEncoder().encodeToString(wrapped);
+    }
+
+    private void cache(String cacheKey, SecretKey key) {
+        long expiresAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(cacheTtlSeconds);
+        synchronized (cache) {
+            cache.put(cacheKey, new CachedKey(key, expiresAt));
+        }
+    }
+
+    private static final class CachedKey {
+        final SecretKey key;
+        final long expiresAt;
+
+        CachedKey(SecretKey key, long expiresAt) {
+            this.key = key;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
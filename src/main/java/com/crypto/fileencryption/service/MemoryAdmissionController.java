@@ -0,0 +1,417 @@
+package com.crypto.fileencryption.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission control of file operations against a global memory budget.
+ *
+ * Before an operation starts it reserves the working set it needs (see
+ * FileEncryptionService.encryptWorkingSet / decryptWorkingSet). Operations
+ * that do not fit wait in a bounded queue until enough of the budget is
+ * released, and are rejected with AdmissionRejectedException when the queue
+ * is full or the deadline passes.
+ *
+ * Files up to admission.small-file-bytes are small jobs. Since files are
+ * streamed, a large file does not reserve much more than a small one, but it
+ * holds its reservation far longer. Large jobs are therefore admitted in
+ * arrival order and may only use the budget minus a small-job reserve, so
+ * small jobs always have room and are never stuck behind a large one. While
+ * large jobs are waiting, small jobs are limited to that reserve, so a stream
+ * of small jobs cannot starve the large ones either.
+ *
+ * Each lane can also be limited in the number of operations running at once
+ * (admission.small-concurrency, admission.large-concurrency). Memory alone
+ * does not keep small files fast, since large ones compete for the same
+ * cores: between chunks, a large operation pauses for up to
+ * admission.large-yield-max-ms while small ones are running or waiting,
+ * through the ChunkPipeline gate of the thread holding its reservation.
+ */
+@Slf4j
+@Component
+public class MemoryAdmissionController {
+
+    private static final String SMALL = "small";
+    private static final String LARGE = "large";
+
+    private final MeterRegistry meterRegistry;
+    private final Tracer tracer;
+    private final ChunkPipeline chunkPipeline;
+
+    @Value("${admission.enabled:true}")
+    private boolean enabled;
+
+    // 0 = half of the maximum heap size
+    @Value("${admission.memory-budget-bytes:0}")
+    private long budget;
+
+    @Value("${admission.small-file-bytes:8388608}")
+    private long smallFileBytes;
+
+    @Value("${admission.small-reserve-percent:10}")
+    private int smallReservePercent;
+
+    @Value("${admission.max-queue:64}")
+    private int maxQueue;
+
+    @Value("${admission.queue-timeout-ms:10000}")
+    private long queueTimeoutMs;
+
+    // 0 = unlimited
+    @Value("${admission.small-concurrency:0}")
+    private int smallConcurrency;
+
+    @Value("${admission.large-concurrency:2}")
+    private int largeConcurrency;
+
+    // 0 = large jobs never yield
+    @Value("${admission.large-yield-max-ms:50}")
+    private long largeYieldMaxMs;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    // All state below is guarded by lock
+    private long smallReserve;
+    private long reserved;
+    private long smallReserved;
+    private int smallRunning;
+    private int largeRunning;
+    private int smallWaiting;
+    private final Deque<Object> largeQueue = new ArrayDeque<>();
+
+    private Timer smallWait;
+    private Timer largeWait;
+    private Timer smallLatency;
+    private Timer largeLatency;
+    private Timer largeYield;
+    private Counter queueFullRejections;
+    private Counter timeoutRejections;
+
+    // Reservation held by the thread, for the chunk gate
+    private final ThreadLocal<Reservation> current = new ThreadLocal<>();
+    private final ChunkPipeline.ChunkGate yieldGate = index -> yieldToSmall();
+
+    public MemoryAdmissionController(MeterRegistry meterRegistry, Tracer tracer, ChunkPipeline chunkPipeline) {
+        this.meterRegistry = meterRegistry;
+        this.tracer = tracer;
+        this.chunkPipeline = chunkPipeline;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (budget <= 0) {
+            budget = Runtime.getRuntime().maxMemory() / 2;
+        }
+        if (smallReservePercent < 0 || smallReservePercent >= 100) {
+            throw new IllegalStateException("admission.small-reserve-percent must be between 0 and 99: "
+                    + smallReservePercent);
+        }
+        smallReserve = budget * smallReservePercent / 100;
+
+        Gauge.builder("admission.budget", this, controller -> controller.budget)
+                .description("Memory budget for admitted file operations")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("admission.reserved", this, MemoryAdmissionController::getReserved)
+                .description("Memory currently reserved by admitted file operations")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("admission.queue", this, MemoryAdmissionController::getSmallWaiting)
+                .description("File operations waiting for admission")
+                .tag("lane", SMALL)
+                .register(meterRegistry);
+        Gauge.builder("admission.queue", this, MemoryAdmissionController::getLargeWaiting)
+                .description("File operations waiting for admission")
+                .tag("lane", LARGE)
+                .register(meterRegistry);
+        Gauge.builder("admission.running", this, controller -> controller.getRunning(true))
+                .description("Admitted file operations in progress")
+                .tag("lane", SMALL)
+                .register(meterRegistry);
+        Gauge.builder("admission.running", this, controller -> controller.getRunning(false))
+                .description("Admitted file operations in progress")
+                .tag("lane", LARGE)
+                .register(meterRegistry);
+        smallWait = waitTimer(SMALL);
+        largeWait = waitTimer(LARGE);
+        smallLatency = latencyTimer(SMALL);
+        largeLatency = latencyTimer(LARGE);
+        largeYield = Timer.builder("admission.yield")
+                .description("Time large file operations paused between chunks for small ones")
+                .tag("lane", LARGE)
+                .register(meterRegistry);
+        queueFullRejections = rejectionCounter("queue_full");
+        timeoutRejections = rejectionCounter("timeout");
+
+        if (enabled && largeYieldMaxMs > 0) {
+            chunkPipeline.setGates(this::currentGate);
+        }
+
+        log.info("Memory admission {}: budget {} MB, {} MB reserved for files up to {} MB",
+                enabled ? "enabled" : "disabled", budget >> 20, smallReserve >> 20, smallFileBytes >> 20);
+        log.info("Admission lanes: small concurrency {}, large concurrency {}, large yield up to {} ms per chunk",
+                smallConcurrency > 0 ? smallConcurrency : "unlimited",
+                largeConcurrency > 0 ? largeConcurrency : "unlimited", largeYieldMaxMs);
+    }
+
+    private Timer waitTimer(String lane) {
+        return Timer.builder("admission.wait")
+                .description("Time file operations waited for admission")
+                .tag("lane", lane)
+                .register(meterRegistry);
+    }
+
+    private Timer latencyTimer(String lane) {
+        return Timer.builder("admission.latency")
+                .description("Time from requesting admission to releasing it (waiting plus processing)")
+                .tag("lane", lane)
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+    }
+
+    private Counter rejectionCounter(String reason) {
+        return Counter.builder("admission.rejections")
+                .description("File operations rejected for lack of memory budget")
+                .tag("reason", reason)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Reserve memory for an operation, waiting for budget if necessary.
+     * Close the returned reservation when the operation has finished.
+     *
+     * @param bytes    Working set of the operation
+     * @param fileSize Size of the file, which decides the lane
+     * @throws AdmissionRejectedException if the queue is full or the budget
+     *                                    did not become available in time
+     */
+    @SuppressWarnings("try")
+    public Reservation admit(long bytes, long fileSize) throws InterruptedException {
+        if (!enabled) {
+            return new Reservation(0, false, 0);
+        }
+        boolean small = fileSize <= smallFileBytes;
+        long limit = small ? budget : budget - smallReserve;
+        if (bytes > limit) {
+            // Would never fit; let it run once it has its lane to itself
+            log.warn("Working set of {} MB exceeds the admission budget; reserving {} MB",
+                    bytes >> 20, limit >> 20);
+            bytes = limit;
+        }
+        long start = System.nanoTime();
+        try (var span = tracer.span("admission").tag("bytes", bytes).tag("lane", small ? SMALL : LARGE)) {
+            Reservation reservation = small ? admitSmall(bytes, start) : admitLarge(bytes, start);
+            (small ? smallWait : largeWait).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            current.set(reservation);
+            return reservation;
+        }
+    }
+
+    private Reservation admitSmall(long bytes, long start) throws InterruptedException {
+        lock.lock();
+        try {
+            if (!fitsSmall(bytes)) {
+                checkQueue();
+                smallWaiting++;
+                try {
+                    long remaining = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMs);
+                    while (!fitsSmall(bytes)) {
+                        remaining = awaitRelease(remaining);
+                    }
+                } finally {
+                    smallWaiting--;
+                }
+            }
+            reserved += bytes;
+            smallReserved += bytes;
+            smallRunning++;
+            return new Reservation(bytes, true, start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Reservation admitLarge(long bytes, long start) throws InterruptedException {
+        lock.lock();
+        try {
+            if (!largeQueue.isEmpty() || !fitsLarge(bytes)) {
+                checkQueue();
+                Object ticket = new Object();
+                largeQueue.addLast(ticket);
+                try {
+                    long remaining = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMs);
+                    while (largeQueue.peekFirst() != ticket || !fitsLarge(bytes)) {
+                        remaining = awaitRelease(remaining);
+                    }
+                } finally {
+                    largeQueue.remove(ticket);
+                    // The next large job may now be at the head
+                    released.signalAll();
+                }
+            }
+            reserved += bytes;
+            largeRunning++;
+            return new Reservation(bytes, false, start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean fitsSmall(long bytes) {
+        // One small job can always run while large ones wait, even if it exceeds the reserve alone
+        return reserved + bytes <= budget
+                && (smallConcurrency <= 0 || smallRunning < smallConcurrency)
+                && (largeQueue.isEmpty() || smallReserved == 0 || smallReserved + bytes <= smallReserve);
+    }
+
+    private boolean fitsLarge(long bytes) {
+        return reserved + bytes <= budget - smallReserve
+                && (largeConcurrency <= 0 || largeRunning < largeConcurrency);
+    }
+
+    /**
+     * Gate for chunk loops of the current thread: large operations yield,
+     * small ones and threads without a reservation run freely
+     */
+    private ChunkPipeline.ChunkGate currentGate() {
+        Reservation reservation = current.get();
+        return reservation != null && !reservation.small ? yieldGate : null;
+    }
+
+    /**
+     * Pause a large operation while small ones are running or waiting, for at
+     * most admission.large-yield-max-ms, so that it keeps making progress
+     */
+    private void yieldToSmall() throws InterruptedException {
+        lock.lock();
+        try {
+            if (smallRunning == 0 && smallWaiting == 0) {
+                return;
+            }
+            long start = System.nanoTime();
+            long remaining = TimeUnit.MILLISECONDS.toNanos(largeYieldMaxMs);
+            while ((smallRunning > 0 || smallWaiting > 0) && remaining > 0) {
+                remaining = released.awaitNanos(remaining);
+            }
+            largeYield.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkQueue() {
+        if (smallWaiting + largeQueue.size() >= maxQueue) {
+            queueFullRejections.increment();
+            throw new AdmissionRejectedException("Too many file operations waiting for memory", queueTimeoutMs);
+        }
+    }
+
+    private long awaitRelease(long remaining) throws InterruptedException {
+        if (remaining <= 0) {
+            timeoutRejections.increment();
+            throw new AdmissionRejectedException("Timed out waiting for memory budget", queueTimeoutMs);
+        }
+        return released.awaitNanos(remaining);
+    }
+
+    private void release(Reservation reservation) {
+        lock.lock();
+        try {
+            reserved -= reservation.bytes;
+            if (reservation.small) {
+                smallReserved -= reservation.bytes;
+                smallRunning--;
+            } else {
+                largeRunning--;
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public long getReserved() {
+        lock.lock();
+        try {
+            return reserved;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int getRunning(boolean small) {
+        lock.lock();
+        try {
+            return small ? smallRunning : largeRunning;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int getSmallWaiting() {
+        lock.lock();
+        try {
+            return smallWaiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int getLargeWaiting() {
+        lock.lock();
+        try {
+            return largeQueue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Memory reserved for one operation; closing it returns the memory to the budget
+     */
+    public final class Reservation implements AutoCloseable {
+        private final long bytes;
+        private final boolean small;
+        private final long start;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Reservation(long bytes, boolean small, long start) {
+            this.bytes = bytes;
+            this.small = small;
+            this.start = start;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public void close() {
+            if (current.get() == this) {
+                current.remove();
+            }
+            if (start != 0 && closed.compareAndSet(false, true)) {
+                release(this);
+                (small ? smallLatency : largeLatency).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+}
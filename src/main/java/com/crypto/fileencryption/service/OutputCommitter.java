@@ -0,0 +1,241 @@
+package com.crypto.fileencryption.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes staged output files under their final names.
+ *
+ * A staged file is renamed atomically onto its target, so readers and crash
+ * recovery only ever see the old file or the complete new one. How much is
+ * flushed to disk first depends on file.storage.durability:
+ *
+ * <ul>
+ * <li>none: rename only; the OS page cache decides when data reaches disk</li>
+ * <li>fsync: fsync the file, rename, fsync the directory, per file</li>
+ * <li>group: like fsync, but only the renames and directory fsyncs of
+ * concurrent commits are batched. Each caller fsyncs its own file on its own
+ * thread, so file flushes still run in parallel, and a single committer
+ * thread then renames the files of a batch and fsyncs each directory once
+ * for the whole batch</li>
+ * </ul>
+ *
+ * Group commit needs no timer: while one batch is being flushed the next one
+ * accumulates, so batches grow with load and a lone write is committed
+ * immediately.
+ */
+@Slf4j
+@Component
+public class OutputCommitter {
+
+    public enum Durability {
+        NONE, FSYNC, GROUP
+    }
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${file.storage.durability:group}")
+    private String durabilitySetting;
+
+    @Value("${file.storage.group-commit.max-batch:64}")
+    private int maxBatch;
+
+    private Durability durability;
+    private final BlockingQueue<PendingCommit> queue = new LinkedBlockingQueue<>();
+    private Thread committer;
+    private volatile boolean running;
+
+    private Timer commitTimer;
+    private DistributionSummary batchSize;
+
+    public OutputCommitter(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        durability = Durability.valueOf(durabilitySetting.trim().toUpperCase(Locale.ROOT));
+        commitTimer = Timer.builder("storage.commit")
+                .description("Time to publish an output file, including fsyncs")
+                .tag("durability", durability.name().toLowerCase(Locale.ROOT))
+                .register(meterRegistry);
+        batchSize = DistributionSummary.builder("storage.commit.batch")
+                .description("Files per group commit")
+                .register(meterRegistry);
+
+        if (durability == Durability.GROUP) {
+            running = true;
+            committer = new Thread(this::commitLoop, "group-commit");
+            committer.setDaemon(true);
+            committer.start();
+        }
+        log.info("Output durability: {}", durability);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        if (committer != null) {
+            committer.interrupt();
+        }
+    }
+
+    /**
+     * Move a fully written staged file onto its target with the configured durability
+     */
+    public void commit(Path staged, Path target) throws IOException {
+        long start = System.nanoTime();
+        switch (durability) {
+            case NONE:
+                moveAtomically(staged, target);
+                break;
+            case FSYNC:
+                fsync(staged);
+                moveAtomically(staged, target);
+                fsyncDirectory(target.getParent());
+                break;
+            case GROUP:
+                awaitGroupCommit(staged, target);
+                break;
+            default:
+                throw new IllegalStateException("Unknown durability " + durability);
+        }
+        commitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    private void awaitGroupCommit(Path staged, Path target) throws IOException {
+        if (!running) {
+            throw new IOException("Output committer is shut down");
+        }
+        // The expensive part, done in parallel by the callers; only the directory fsync is shared
+        fsync(staged);
+        var pending = new PendingCommit(staged, target);
+        queue.add(pending);
+        if (!running && queue.remove(pending)) {
+            throw new IOException("Output committer is shut down");
+        }
+        try {
+            pending.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for group commit");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Group commit failed", e.getCause());
+        }
+    }
+
+    private void commitLoop() {
+        List<PendingCommit> batch = new ArrayList<>();
+        while (running) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, maxBatch - 1);
+                commitBatch(batch);
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                log.error("Group commit failed", e);
+                batch.forEach(pending -> pending.result.completeExceptionally(e));
+            } finally {
+                batch.clear();
+            }
+        }
+        // Fail anything still waiting, so callers do not hang on shutdown
+        PendingCommit pending;
+        while ((pending = queue.poll()) != null) {
+            pending.result.completeExceptionally(new IOException("Output committer is shut down"));
+        }
+    }
+
+    private void commitBatch(List<PendingCommit> batch) {
+        batchSize.record(batch.size());
+        List<PendingCommit> moved = new ArrayList<>(batch.size());
+        Set<Path> directories = new LinkedHashSet<>();
+        for (PendingCommit pending : batch) {
+            try {
+                moveAtomically(pending.staged, pending.target);
+                moved.add(pending);
+                directories.add(pending.target.getParent());
+            } catch (IOException e) {
+                pending.result.completeExceptionally(e);
+            }
+        }
+
+        for (Path directory : directories) {
+            fsyncDirectory(directory);
+        }
+        for (PendingCommit pending : moved) {
+            pending.result.complete(null);
+        }
+    }
+
+    private static void fsync(Path file) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Make renames durable. Not supported on every platform (e.g. Windows),
+     * where it is skipped.
+     */
+    private static void fsyncDirectory(Path directory) {
+        try (var channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            log.debug("Directory fsync not supported for {}: {}", directory, e.getMessage());
+        }
+    }
+
+    private static void moveAtomically(Path staged, Path target) throws IOException {
+        try {
+            Files.move(staged, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            log.warn("Atomic move not supported for {}, falling back to replace", target);
+            Files.move(staged, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static final class PendingCommit {
+        final Path staged;
+        final Path target;
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        PendingCommit(Path staged, Path target) {
+            this.staged = staged;
+            this.target = target;
+        }
+    }
+}
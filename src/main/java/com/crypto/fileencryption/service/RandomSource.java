@@ -0,0 +1,150 @@
+package com.crypto.fileencryption.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.ByteBuffer;
+import java.security.DrbgParameters;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-thread cryptographically secure random number generators for keys,
+ * IVs and nonces.
+ *
+ * A single SecureRandom shared by all request threads serialises them on its
+ * lock, and depending on the platform default it may also block on the
+ * kernel entropy pool. Instead every thread gets its own NIST SP 800-90A
+ * DRBG (Hash_DRBG with SHA-256 at 256-bit strength), instantiated from the
+ * JDK's system entropy source with a per-thread personalization string, so
+ * threads never contend with each other.
+ *
+ * Each generator reseeds itself from the entropy source after
+ * encryption.random.reseed-after-uses draws or
+ * encryption.random.reseed-interval-ms, whichever comes first, on the thread
+ * that uses it. Set encryption.random.algorithm=default to fall back to the
+ * platform's default SecureRandom per thread.
+ */
+@Slf4j
+@Component
+public class RandomSource {
+
+    private static final String DRBG = "DRBG";
+    private static final int SECURITY_STRENGTH = 256;
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${encryption.random.algorithm:DRBG}")
+    private String algorithm;
+
+    @Value("${encryption.random.reseed-interval-ms:600000}")
+    private long reseedIntervalMs;
+
+    @Value("${encryption.random.reseed-after-uses:1000000}")
+    private long reseedAfterUses;
+
+    private final AtomicInteger instances = new AtomicInteger();
+    private Counter reseeds;
+
+    private final ThreadLocal<Generator> generators = ThreadLocal.withInitial(this::newGenerator);
+
+    public RandomSource(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() throws NoSuchAlgorithmException {
+        // Fail at startup rather than on the first request if the algorithm is unavailable
+        create();
+        reseeds = Counter.builder("random.reseeds")
+                .description("Reseeds of per-thread random generators")
+                .register(meterRegistry);
+        Gauge.builder("random.generators", instances, AtomicInteger::get)
+                .description("Per-thread random generators instantiated")
+                .register(meterRegistry);
+        log.info("Random source: per-thread {} (reseed every {} uses or {} s)",
+                DRBG.equalsIgnoreCase(algorithm) ? "Hash_DRBG/SHA-256" : "default SecureRandom",
+                reseedAfterUses, TimeUnit.MILLISECONDS.toSeconds(reseedIntervalMs));
+    }
+
+    /**
+     * The calling thread's generator, e.g. for KeyGenerator.init. Use it on
+     * this thread only.
+     */
+    public SecureRandom current() {
+        return generators.get().use();
+    }
+
+    /**
+     * Fill an array with random bytes from the calling thread's generator
+     */
+    public void nextBytes(byte[] bytes) {
+        current().nextBytes(bytes);
+    }
+
+    /**
+     * Random long from the calling thread's generator
+     */
+    public long nextLong() {
+        return current().nextLong();
+    }
+
+    private Generator newGenerator() {
+        try {
+            instances.incrementAndGet();
+            return new Generator(create());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Random algorithm unavailable: " + algorithm, e);
+        }
+    }
+
+    private SecureRandom create() throws NoSuchAlgorithmException {
+        if (!DRBG.equalsIgnoreCase(algorithm)) {
+            return new SecureRandom();
+        }
+        // Distinct per thread and instantiation, so no two generators start from the same input
+        byte[] personalization = ByteBuffer.allocate(24)
+                .putLong(Thread.currentThread().getId())
+                .putLong(System.nanoTime())
+                .putLong(instances.get())
+                .array();
+        return SecureRandom.getInstance(DRBG,
+                DrbgParameters.instantiation(SECURITY_STRENGTH, DrbgParameters.Capability.RESEED_ONLY,
+                        personalization));
+    }
+
+    /**
+     * One thread's generator and its reseed bookkeeping
+     */
+    private final class Generator {
+        final SecureRandom random;
+        long uses;
+        long seededAt = System.nanoTime();
+
+        Generator(SecureRandom random) {
+            this.random = random;
+        }
+
+        SecureRandom use() {
+            if (++uses > reseedAfterUses
+                    || System.nanoTime() - seededAt > TimeUnit.MILLISECONDS.toNanos(reseedIntervalMs)) {
+                if (DRBG.equalsIgnoreCase(algorithm)) {
+                    random.reseed();
+                } else {
+                    random.setSeed(random.generateSeed(32));
+                }
+                uses = 1;
+                seededAt = System.nanoTime();
+                reseeds.increment();
+            }
+            return random;
+        }
+    }
+}
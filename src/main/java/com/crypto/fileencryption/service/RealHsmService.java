@@ -1,43 +1,79 @@
 package com.crypto.fileencryption.service;
 
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.context.annotation.Primary;
-import org.springframework.stereotype.Service;
 import safenet.jcprov.*;
 import safenet.jcprov.constants.*;
 
-import javax.annotation.PostConstruct;
-import javax.annotation.PreDestroy;
 import java.nio.charset.StandardCharsets;
 
 /**
  * Real HSM Service implementation using SafeNet JCProv.
  * Connects to a physical or simulated HSM via PKCS#11.
+ *
+ * One instance is bound to one slot (or partition). Instances are created and
+ * managed by HsmRouterService; the Cryptoki library itself is initialized once
+ * per process and shared by all slots.
  */
 @Slf4j
-@Service
-// @Primary removed - HsmRouterService will be primary
 public class RealHsmService implements HsmService {
 
-    private static final long SLOT_ID = 0;
     private static final String KEK_LABEL = "mk";
 
-    private CK_SESSION_HANDLE session;
+    private static boolean libraryInitialized = false;
+
+    private final long slotId;
+
+    private volatile CK_SESSION_HANDLE session;
     private boolean isLoggedIn = false;
+    // PIN of the current login, to log in again on a new session after a failure
+    private String pin;
+    // Resolved at login instead of a C_FindObjects round trip per operation
+    private volatile CK_OBJECT_HANDLE kekHandle;
+
+    public RealHsmService(long slotId) {
+        this.slotId = slotId;
+    }
+
+    /**
+     * Initialize the Cryptoki library once for all slots
+     */
+    static synchronized void initializeLibrary() {
+        if (libraryInitialized)
+            return;
+
+        log.info("Initializing Cryptoki library...");
+        CK_C_INITIALIZE_ARGS initArgs = new CK_C_INITIALIZE_ARGS(0);
+        CryptokiEx.C_Initialize(initArgs);
+        libraryInitialized = true;
+    }
+
+    /**
+     * Finalize the Cryptoki library after all slot sessions are closed
+     */
+    static synchronized void finalizeLibrary() {
+        if (!libraryInitialized)
+            return;
+
+        try {
+            Cryptoki.C_Finalize(null);
+            libraryInitialized = false;
+            log.info("Cryptoki library finalized");
+        } catch (Exception e) {
+            log.warn("Error finalizing Cryptoki library", e);
+        }
+    }
 
-    @PostConstruct
     public void init() {
         try {
-            log.info("Initializing Real HSM Service (Session Only)...");
+            log.info("Initializing Real HSM Service on slot {} (Session Only)...", slotId);
 
             // 1. Initialize Library
-            CK_C_INITIALIZE_ARGS initArgs = new CK_C_INITIALIZE_ARGS(0);
-            CryptokiEx.C_Initialize(initArgs);
+            initializeLibrary();
 
             // 2. Open Session
             session = new CK_SESSION_HANDLE();
-            CryptokiEx.C_OpenSession(SLOT_ID, CKF.RW_SESSION | CKF.SERIAL_SESSION, null, null, session);
-            log.info("HSM Session opened on slot {}", SLOT_ID);
+            CryptokiEx.C_OpenSession(slotId, CKF.RW_SESSION | CKF.SERIAL_SESSION, null, null, session);
+            log.info("HSM Session opened on slot {}", slotId);
 
             // No auto-login here anymore
 
@@ -54,7 +90,8 @@ public class RealHsmService implements HsmService {
             return;
         }
 
-        log.info("Attempting HSM Login with provided PIN on slot {}", SLOT_ID);
+        log.info("Attempting HSM Login with provided PIN on slot {}", slotId);
+        this.pin = pin;
         CryptokiEx.C_Login(session, CKU.USER, pin.getBytes(StandardCharsets.US_ASCII), pin.length());
         isLoggedIn = true;
         log.info("Logged into HSM successfully");
@@ -63,32 +100,70 @@ public class RealHsmService implements HsmService {
     }
 
     public synchronized void logout() {
+        pin = null;
         if (!isLoggedIn)
             return;
 
         try {
             Cryptoki.C_Logout(session);
             isLoggedIn = false;
-            log.info("Logged out from HSM");
+            kekHandle = null;
+            log.info("Logged out from HSM slot {}", slotId);
         } catch (Exception e) {
             log.warn("Error during logout", e);
         }
     }
 
+    /**
+     * Close the session, which may be dead after an HSM restart or network
+     * failure, open a new one and log in again with the PIN of the last login
+     */
+    @Override
+    public synchronized void reconnect() throws Exception {
+        log.info("Re-opening HSM session on slot {}", slotId);
+        try {
+            Cryptoki.C_CloseSession(session);
+        } catch (Exception e) {
+            log.debug("Closing the old session on slot {} failed: {}", slotId, e.getMessage());
+        }
+        isLoggedIn = false;
+        kekHandle = null;
+        CK_SESSION_HANDLE reopened = new CK_SESSION_HANDLE();
+        CryptokiEx.C_OpenSession(slotId, CKF.RW_SESSION | CKF.SERIAL_SESSION, null, null, reopened);
+        session = reopened;
+        if (pin != null) {
+            CryptokiEx.C_Login(session, CKU.USER, pin.getBytes(StandardCharsets.US_ASCII), pin.length());
+            isLoggedIn = true;
+            verifyKekAccess();
+        }
+    }
+
     private void verifyKekAccess() throws Exception {
         CK_OBJECT_HANDLE hKek = findKeyHandle(KEK_LABEL);
+        kekHandle = hKek;
         log.info("KEK Check Passed: Found KEK '{}' with handle ID: {}", KEK_LABEL, hKek.longValue());
     }
 
-    @PreDestroy
+    /**
+     * KEK handle, resolved once per login; a failed operation drops it so the
+     * next one looks the KEK up again (e.g. after it was replaced on the HSM)
+     */
+    private CK_OBJECT_HANDLE kek() throws Exception {
+        CK_OBJECT_HANDLE hKek = kekHandle;
+        if (hKek == null) {
+            hKek = findKeyHandle(KEK_LABEL);
+            kekHandle = hKek;
+        }
+        return hKek;
+    }
+
     public void cleanup() {
         try {
             if (isLoggedIn) {
                 logout(); // Use the new logout method
             }
             Cryptoki.C_CloseSession(session);
-            Cryptoki.C_Finalize(null);
-            log.info("HSM Service shutdown complete");
+            log.info("HSM session on slot {} closed", slotId);
         } catch (Exception e) {
             log.warn("Error during HSM cleanup", e);
         }
@@ -98,7 +173,7 @@ public class RealHsmService implements HsmService {
     public byte[] encryptWithKek(byte[] plaintext) throws Exception {
         log.debug("Wrapping key with HSM...");
 
-        CK_OBJECT_HANDLE hKek = findKeyHandle(KEK_LABEL);
+        CK_OBJECT_HANDLE hKek = kek();
         log.debug("Encrypting: Using KEK Handle: {}", hKek.longValue());
 
         CK_OBJECT_HANDLE hDek = null;
@@ -121,6 +196,9 @@ public class RealHsmService implements HsmService {
             log.debug("Wrap successful. Length: {}", wrappedBytes.length);
             return wrappedBytes;
 
+        } catch (Exception e) {
+            kekHandle = null;
+            throw e;
         } finally {
             if (hDek != null) {
                 try {
@@ -136,7 +214,7 @@ public class RealHsmService implements HsmService {
     public byte[] decryptWithKek(byte[] ciphertext) throws Exception {
         log.debug("Unwrapping key with HSM...");
 
-        CK_OBJECT_HANDLE hKek = findKeyHandle(KEK_LABEL);
+        CK_OBJECT_HANDLE hKek = kek();
         log.debug("Decrypting: Using KEK Handle: {}", hKek.longValue());
 
         CK_OBJECT_HANDLE hDek = new CK_OBJECT_HANDLE();
@@ -175,6 +253,9 @@ public class RealHsmService implements HsmService {
 
             return (byte[]) getAttributes[0].pValue;
 
+        } catch (Exception e) {
+            kekHandle = null;
+            throw e;
         } finally {
             if (hDek != null && hDek.longValue() != 0) {
                 try {
@@ -196,6 +277,10 @@ public class RealHsmService implements HsmService {
         return 256;
     }
 
+    public long getSlotId() {
+        return slotId;
+    }
+
     // Helper: Find Key Handle by Label
     private CK_OBJECT_HANDLE findKeyHandle(String label) throws Exception {
         CK_ATTRIBUTE[] template = {
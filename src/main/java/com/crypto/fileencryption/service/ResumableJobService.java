@@ -0,0 +1,543 @@
+package com.crypto.fileencryption.service;
+
+import com.crypto.fileencryption.model.CryptoJob;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Encryption and decryption jobs that survive a restart.
+ *
+ * A job writes its output to a partial file in jobs.directory and, every
+ * jobs.checkpoint-bytes of output, fsyncs it and records a checkpoint next to
+ * it: the number of chunks that are now durable, the size of the partial file
+ * at that point and the wrapped DEK. Because chunks are sealed independently,
+ * that is all the cipher state needed to continue: after a crash the partial
+ * file is truncated back to the checkpoint and the job continues with the next
+ * chunk, so the finished file authenticates end to end as if it had been
+ * written in one go. The checkpoint is replaced atomically; if the newest one
+ * is lost, the previous one is still valid because the partial file is only
+ * ever cut back to it.
+ *
+ * Unfinished jobs (including failed ones, e.g. during an HSM outage) are
+ * resumed at startup unless jobs.resume-on-startup is false. A checkpoint is
+ * only reused if the source file still has the size and modification time it
+ * had when the job was created; otherwise the job starts over. Finished output
+ * is published through FileStorageService like any other output file.
+ */
+@Slf4j
+@Service
+public class ResumableJobService {
+
+    public static final String ENCRYPT = "encrypt";
+    public static final String DECRYPT = "decrypt";
+
+    public static final String QUEUED = "QUEUED";
+    public static final String RUNNING = "RUNNING";
+    public static final String FAILED = "FAILED";
+    public static final String COMPLETED = "COMPLETED";
+    public static final String CANCELLED = "CANCELLED";
+
+    private static final int MAX_RETAINED_JOBS = 100;
+
+    // IDs come from request paths; anything else could escape the directory
+    private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9-]{1,64}");
+
+    private final DekService dekService;
+    private final FileEncryptionService fileEncryptionService;
+    private final FileStorageService fileStorageService;
+    private final MemoryAdmissionController admissionController;
+    private final AuditLogService auditLogService;
+    private final Tracer tracer;
+    private final MeterRegistry meterRegistry;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Value("${jobs.directory:${file.storage.location:./DATA}/.jobs}")
+    private String directory;
+
+    @Value("${jobs.workers:2}")
+    private int workers;
+
+    @Value("${jobs.checkpoint-bytes:67108864}")
+    private long checkpointBytes;
+
+    @Value("${jobs.resume-on-startup:true}")
+    private boolean resumeOnStartup;
+
+    private Path jobDirectory;
+    private ExecutorService executor;
+
+    // Most recent jobs, oldest evicted first; unfinished jobs can still be loaded from their checkpoint
+    private final Map<String, CryptoJob> jobs = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CryptoJob> eldest) {
+            return size() > MAX_RETAINED_JOBS;
+        }
+    };
+    // Queued or running in this process
+    private final Set<String> active = ConcurrentHashMap.newKeySet();
+    private final Set<String> cancelled = ConcurrentHashMap.newKeySet();
+
+    private Counter checkpoints;
+    private Counter resumed;
+
+    public ResumableJobService(DekService dekService, FileEncryptionService fileEncryptionService,
+            FileStorageService fileStorageService, MemoryAdmissionController admissionController,
+            AuditLogService auditLogService, Tracer tracer, MeterRegistry meterRegistry) {
+        this.dekService = dekService;
+        this.fileEncryptionService = fileEncryptionService;
+        this.fileStorageService = fileStorageService;
+        this.admissionController = admissionController;
+        this.auditLogService = auditLogService;
+        this.tracer = tracer;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        jobDirectory = Paths.get(directory).toAbsolutePath().normalize();
+        Files.createDirectories(jobDirectory);
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(Math.max(1, workers), r -> {
+            Thread thread = new Thread(r, "crypto-job-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        checkpoints = Counter.builder("jobs.checkpoints")
+                .description("Checkpoints written by resumable jobs")
+                .register(meterRegistry);
+        resumed = Counter.builder("jobs.resumed")
+                .description("Resumable jobs continued from a checkpoint")
+                .register(meterRegistry);
+        Gauge.builder("jobs.active", active, Set::size)
+                .description("Resumable jobs queued or running")
+                .register(meterRegistry);
+        log.info("Resumable jobs: {} ({} worker(s), checkpoint every {} MB)",
+                jobDirectory, Math.max(1, workers), checkpointBytes >> 20);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // Running jobs keep their last checkpoint and continue on the next start
+        executor.shutdownNow();
+    }
+
+    /**
+     * Continue the jobs that were unfinished when the process stopped
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeInterrupted() {
+        List<CryptoJob> unfinished = new ArrayList<>();
+        try (var files = Files.list(jobDirectory)) {
+            files.filter(path -> path.getFileName().toString().endsWith(".json"))
+                    .forEach(path -> {
+                        try {
+                            unfinished.add(objectMapper.readValue(path.toFile(), CryptoJob.class));
+                        } catch (IOException e) {
+                            log.warn("Ignoring unreadable job checkpoint {}: {}", path, e.getMessage());
+                        }
+                    });
+        } catch (IOException e) {
+            log.warn("Failed to list job checkpoints", e);
+            return;
+        }
+        for (CryptoJob job : unfinished) {
+            register(job);
+            if (resumeOnStartup) {
+                log.info("Resuming {} job {} for {} from chunk {}",
+                        job.getOperation(), job.getJobId(), job.getSourceFilename(), job.getNextChunk());
+                submit(job);
+            }
+        }
+    }
+
+    /**
+     * Queue encryption of a file in the DATA directory to "name.encrypted" and "name.dek"
+     */
+    public CryptoJob startEncrypt(String filename) throws Exception {
+        var source = fileStorageService.resolveInput(filename);
+        var job = newJob(ENCRYPT, filename, filename + BatchCryptoService.ENCRYPTED_SUFFIX, source);
+        job.setDekFilename(filename + BatchCryptoService.DEK_SUFFIX);
+        job.setChunkSize(fileEncryptionService.getChunkSize());
+
+        // Only the wrapped DEK is kept; the job unwraps it whenever it (re)starts
+        var dek = dekService.generateDek();
+        try {
+            job.setEncryptedDek(dekService.encryptDekToBase64(dek));
+        } finally {
+            dekService.destroyDek(dek);
+        }
+        return start(job);
+    }
+
+    /**
+     * Queue decryption of an encrypted file in the DATA directory with its DEK file
+     */
+    public CryptoJob startDecrypt(String encryptedFilename, String dekFilename) throws Exception {
+        var source = fileStorageService.resolveInput(encryptedFilename);
+        var job = newJob(DECRYPT, encryptedFilename, BatchCryptoService.decryptedFilename(encryptedFilename), source);
+        job.setDekFilename(dekFilename);
+        var encryptedDek = new String(fileStorageService.readFromInput(dekFilename), StandardCharsets.US_ASCII).trim();
+        // Fail early with a clear message instead of an HSM error on garbage input
+        Base64.getDecoder().decode(encryptedDek);
+        job.setEncryptedDek(encryptedDek);
+        return start(job);
+    }
+
+    /**
+     * Continue a failed or interrupted job from its last checkpoint
+     *
+     * @return The job, or null if it is unknown
+     */
+    public CryptoJob resume(String jobId) {
+        var job = find(jobId);
+        if (job == null) {
+            return null;
+        }
+        String status = job.getStatus();
+        if (!COMPLETED.equals(status) && !CANCELLED.equals(status)) {
+            submit(job);
+        }
+        return snapshot(job);
+    }
+
+    /**
+     * Cancel a job and remove its partial output. A running job stops after
+     * its current chunk.
+     *
+     * @return The job, or null if it is unknown
+     */
+    public CryptoJob cancel(String jobId) {
+        var job = find(jobId);
+        if (job == null) {
+            return null;
+        }
+        if (COMPLETED.equals(job.getStatus())) {
+            return snapshot(job);
+        }
+        cancelled.add(jobId);
+        if (!active.contains(jobId)) {
+            finishCancelled(job);
+        }
+        return snapshot(job);
+    }
+
+    public CryptoJob getJob(String jobId) {
+        var job = find(jobId);
+        return job != null ? snapshot(job) : null;
+    }
+
+    public List<CryptoJob> getJobs() {
+        List<CryptoJob> result = new ArrayList<>();
+        synchronized (jobs) {
+            jobs.values().forEach(job -> result.add(snapshot(job)));
+        }
+        return result;
+    }
+
+    private CryptoJob newJob(String operation, String source, String target, Path sourcePath) throws IOException {
+        var job = new CryptoJob();
+        job.setJobId(UUID.randomUUID().toString());
+        job.setOperation(operation);
+        job.setSourceFilename(source);
+        job.setTargetFilename(target);
+        job.setSourceSize(Files.size(sourcePath));
+        job.setSourceModified(Files.getLastModifiedTime(sourcePath).toMillis());
+        job.setStatus(QUEUED);
+        job.setCreatedAt(System.currentTimeMillis());
+        job.setUpdatedAt(job.getCreatedAt());
+        return job;
+    }
+
+    private CryptoJob start(CryptoJob job) {
+        persist(job);
+        register(job);
+        submit(job);
+        auditLogService.success("job." + job.getOperation(), job.getSourceFilename(), "job=" + job.getJobId());
+        return snapshot(job);
+    }
+
+    private void register(CryptoJob job) {
+        synchronized (jobs) {
+            jobs.put(job.getJobId(), job);
+        }
+    }
+
+    private void submit(CryptoJob job) {
+        if (active.add(job.getJobId())) {
+            executor.execute(() -> {
+                try {
+                    run(job);
+                } finally {
+                    active.remove(job.getJobId());
+                }
+            });
+        }
+    }
+
+    private CryptoJob find(String jobId) {
+        if (jobId == null || !VALID_ID.matcher(jobId).matches()) {
+            return null;
+        }
+        synchronized (jobs) {
+            var job = jobs.get(jobId);
+            if (job != null) {
+                return job;
+            }
+        }
+        Path checkpoint = checkpointPath(jobId);
+        if (!Files.exists(checkpoint)) {
+            return null;
+        }
+        try {
+            var job = objectMapper.readValue(checkpoint.toFile(), CryptoJob.class);
+            register(job);
+            return job;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load job " + jobId, e);
+        }
+    }
+
+    private void run(CryptoJob job) {
+        String jobId = job.getJobId();
+        String action = ENCRYPT.equals(job.getOperation()) ? "file.encrypt" : "file.decrypt";
+        try (var span = tracer.span("job." + job.getOperation())
+                .tag("job", jobId)
+                .tag("file", job.getSourceFilename());
+                var lockChannel = FileChannel.open(jobDirectory.resolve(jobId + ".lock"),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                var lock = lockChannel.tryLock()) {
+            if (lock == null) {
+                log.info("Job {} is running in another process", jobId);
+                return;
+            }
+            if (cancelled.contains(jobId)) {
+                finishCancelled(job);
+                return;
+            }
+            try {
+                long plaintextSize = execute(job);
+                update(job, COMPLETED, null);
+                deleteJobFiles(jobId);
+                auditLogService.success(action, job.getSourceFilename(), "job=" + jobId);
+                log.info("Job {} completed: {} -> {} ({} bytes)",
+                        jobId, job.getSourceFilename(), job.getTargetFilename(), plaintextSize);
+            } catch (CancellationException e) {
+                finishCancelled(job);
+            } catch (Exception e) {
+                span.error(e);
+                update(job, FAILED, e.getMessage());
+                auditLogService.failure(action, job.getSourceFilename(), e);
+                log.error("Job {} failed at chunk {}; resumable from its checkpoint", jobId, job.getNextChunk(), e);
+            }
+        } catch (Exception e) {
+            log.error("Job {} could not be started", jobId, e);
+        }
+    }
+
+    /**
+     * Run a job from its checkpoint to completion and publish its output
+     *
+     * @return Plaintext size
+     */
+    private long execute(CryptoJob job) throws Exception {
+        var source = fileStorageService.resolveInput(job.getSourceFilename());
+        var part = jobDirectory.resolve(job.getJobId() + ".part");
+        if (job.getNextChunk() > 0) {
+            if (!isUnchanged(job, source) || !Files.exists(part) || Files.size(part) < job.getOutputOffset()) {
+                log.warn("Job {}: source or partial output changed since the checkpoint; starting over",
+                        job.getJobId());
+                synchronized (job) {
+                    job.setNextChunk(0);
+                    job.setOutputOffset(0);
+                }
+            } else {
+                resumed.increment();
+                synchronized (job) {
+                    job.setResumeCount(job.getResumeCount() + 1);
+                }
+                auditLogService.success("job.resume", job.getSourceFilename(),
+                        "job=" + job.getJobId() + " chunk=" + job.getNextChunk());
+            }
+        }
+        update(job, RUNNING, null);
+
+        long plaintextSize;
+        var dek = dekService.decryptDekFromBase64(job.getEncryptedDek());
+        try (var in = FileChannel.open(source, StandardOpenOption.READ);
+                var out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            out.truncate(job.getOutputOffset());
+            out.position(job.getOutputOffset());
+            FileEncryptionService.ChunkListener listener = index -> checkpoint(job, out, index);
+            plaintextSize = ENCRYPT.equals(job.getOperation())
+                    ? encrypt(job, in, out, dek, listener)
+                    : decrypt(job, in, out, dek, listener);
+            out.force(false);
+        } finally {
+            dekService.destroyDek(dek);
+        }
+
+        if (ENCRYPT.equals(job.getOperation())) {
+            // The DEK file first: an encrypted file without its DEK would be unreadable
+            fileStorageService.writeToOutput(job.getDekFilename(),
+                    job.getEncryptedDek().getBytes(StandardCharsets.US_ASCII));
+        }
+        fileStorageService.commitToOutput(part, job.getTargetFilename());
+        return plaintextSize;
+    }
+
+    @SuppressWarnings("try")
+    private long encrypt(CryptoJob job, FileChannel in, FileChannel out, SecretKey dek,
+            FileEncryptionService.ChunkListener listener) throws Exception {
+        long size = job.getSourceSize();
+        in.position(job.getNextChunk() * job.getChunkSize());
+        try (var reservation = admissionController.admit(fileEncryptionService.encryptWorkingSet(size), size)) {
+            fileEncryptionService.encrypt(in, size, out, dek, job.getChunkSize(), job.getNextChunk(), listener);
+        }
+        return size;
+    }
+
+    @SuppressWarnings("try")
+    private long decrypt(CryptoJob job, FileChannel in, FileChannel out, SecretKey dek,
+            FileEncryptionService.ChunkListener listener) throws Exception {
+        try (var reservation = admissionController.admit(
+                fileEncryptionService.decryptWorkingSet(in), job.getSourceSize())) {
+            return fileEncryptionService.decrypt(in, out, dek, job.getNextChunk(), listener);
+        }
+    }
+
+    /**
+     * Called after every chunk; makes the output durable and records a
+     * checkpoint once enough has been written since the last one
+     */
+    private void checkpoint(CryptoJob job, FileChannel out, long index) throws IOException {
+        if (cancelled.contains(job.getJobId())) {
+            throw new CancellationException("Job cancelled");
+        }
+        long position = out.position();
+        if (position - job.getOutputOffset() < checkpointBytes) {
+            return;
+        }
+        out.force(false);
+        synchronized (job) {
+            job.setNextChunk(index + 1);
+            job.setOutputOffset(position);
+            job.setUpdatedAt(System.currentTimeMillis());
+        }
+        persist(job);
+        checkpoints.increment();
+    }
+
+    private boolean isUnchanged(CryptoJob job, Path source) throws IOException {
+        return Files.size(source) == job.getSourceSize()
+                && Files.getLastModifiedTime(source).toMillis() == job.getSourceModified();
+    }
+
+    private void update(CryptoJob job, String status, String message) {
+        synchronized (job) {
+            job.setStatus(status);
+            job.setMessage(message);
+            job.setUpdatedAt(System.currentTimeMillis());
+        }
+        if (!COMPLETED.equals(status) && !CANCELLED.equals(status)) {
+            persist(job);
+        }
+    }
+
+    private void finishCancelled(CryptoJob job) {
+        update(job, CANCELLED, null);
+        deleteJobFiles(job.getJobId());
+        cancelled.remove(job.getJobId());
+        auditLogService.success("job.cancel", job.getSourceFilename(), "job=" + job.getJobId());
+        log.info("Job {} cancelled", job.getJobId());
+    }
+
+    /**
+     * Write the checkpoint to a temporary file, fsync it and rename it into place
+     */
+    private void persist(CryptoJob job) {
+        Path staging = jobDirectory.resolve("." + UUID.randomUUID() + ".tmp");
+        try {
+            byte[] json;
+            synchronized (job) {
+                json = objectMapper.writeValueAsBytes(job);
+            }
+            try (var channel = FileChannel.open(staging, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                var buffer = ByteBuffer.wrap(json);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Path target = checkpointPath(job.getJobId());
+            try {
+                Files.move(staging, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(staging, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to save checkpoint of job " + job.getJobId(), e);
+        } finally {
+            try {
+                Files.deleteIfExists(staging);
+            } catch (IOException ignored) {
+                // Best effort
+            }
+        }
+    }
+
+    private void deleteJobFiles(String jobId) {
+        for (String suffix : new String[] { ".json", ".part", ".lock" }) {
+            try {
+                Files.deleteIfExists(jobDirectory.resolve(jobId + suffix));
+            } catch (IOException e) {
+                log.warn("Failed to delete {}{}", jobId, suffix, e);
+            }
+        }
+    }
+
+    private Path checkpointPath(String jobId) {
+        return jobDirectory.resolve(jobId + ".json");
+    }
+
+    private CryptoJob snapshot(CryptoJob job) {
+        synchronized (job) {
+            return objectMapper.convertValue(job, CryptoJob.class);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.crypto.fileencryption.service;
+
+/**
+ * Storage for select/process session metadata.
+ *
+ * Sessions are small beans keyed by a type name and the file ID handed to
+ * the client. With a store shared between instances (session.store:
+ * filesystem), any node can serve any step of a flow. Sessions expire
+ * session.ttl-minutes after they were last saved.
+ */
+public interface SessionStore {
+
+    void save(String type, String id, Object session);
+
+    /**
+     * @return The session, or null if it does not exist or has expired
+     */
+    <T> T load(String type, String id, Class<T> sessionType);
+
+    void delete(String type, String id);
+}
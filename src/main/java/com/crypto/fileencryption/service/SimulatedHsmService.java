@@ -1,5 +1,9 @@
 package com.crypto.fileencryption.service;
 
+import com.crypto.fileencryption.model.SimulatedHsmProfile;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
@@ -12,6 +16,10 @@ import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Simulated HSM Service for development and testing.
@@ -33,18 +41,64 @@ import java.util.Arrays;
  * - Use Azure Key Vault SDK
  * - Configure vault URL and credentials
  * - Access KEK via key identifier
+ *
+ * To make local performance tests resemble a real HSM, every operation can be
+ * given a latency (fixed, normal or long-tail), a throughput cap, a
+ * concurrency limit and an error rate per operation (hsm.simulated.*, or at
+ * runtime through /api/hsm/simulation). Limits apply to the simulated device
+ * as a whole, i.e. across all simulated slots. Injected errors look like
+ * device failures, so slot health checks and the circuit breaker react to
+ * them as they would to a failing HSM.
  */
 @Slf4j
 @Service
+@RequiredArgsConstructor
 public class SimulatedHsmService implements HsmService {
 
-    private static final String ALGORITHM = "AES/GCM/NoPadding";
     private static final int IV_SIZE = 12; // 96 bits for GCM
     private static final int TAG_SIZE = 128; // 128 bits authentication tag
 
     @Value("${hsm.kek.keySize:256}")
     private int kekKeySize;
 
+    private static final String NONE = "none";
+    private static final String FIXED = "fixed";
+    private static final String NORMAL = "normal";
+    private static final String LONG_TAIL = "long-tail";
+    // z-score of the 99th percentile of a standard normal distribution
+    private static final double Z_99 = 2.326;
+
+    private final CipherProviderService cipherProviderService;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${hsm.simulated.latency.distribution:none}")
+    private String latencyDistribution;
+
+    @Value("${hsm.simulated.latency.ms:0}")
+    private double latencyMs;
+
+    @Value("${hsm.simulated.latency.stddev-ms:0}")
+    private double latencyStddevMs;
+
+    @Value("${hsm.simulated.latency.p99-ms:0}")
+    private double latencyP99Ms;
+
+    @Value("${hsm.simulated.max-ops-per-second:0}")
+    private int maxOpsPerSecond;
+
+    @Value("${hsm.simulated.max-concurrency:0}")
+    private int maxConcurrency;
+
+    @Value("${hsm.simulated.error-rate.wrap:0}")
+    private double wrapErrorRate;
+
+    @Value("${hsm.simulated.error-rate.unwrap:0}")
+    private double unwrapErrorRate;
+
+    private volatile Behavior behavior;
+    private Counter wrapErrors;
+    private Counter unwrapErrors;
+
     private SecretKey kek;
     private final SecureRandom secureRandom = new SecureRandom();
 
@@ -57,6 +111,19 @@ public class SimulatedHsmService implements HsmService {
         log.info("Initializing simulated HSM service");
         log.warn("WARNING: Using simulated HSM. Replace with actual HSM in production!");
 
+        wrapErrors = injectedErrorCounter("wrap");
+        unwrapErrors = injectedErrorCounter("unwrap");
+        var profile = new SimulatedHsmProfile();
+        profile.setLatencyDistribution(latencyDistribution);
+        profile.setLatencyMs(latencyMs);
+        profile.setLatencyStddevMs(latencyStddevMs);
+        profile.setLatencyP99Ms(latencyP99Ms);
+        profile.setMaxOpsPerSecond(maxOpsPerSecond);
+        profile.setMaxConcurrency(maxConcurrency);
+        profile.setWrapErrorRate(wrapErrorRate);
+        profile.setUnwrapErrorRate(unwrapErrorRate);
+        applyProfile(profile);
+
         // Try to load existing KEK
         java.io.File kekFile = new java.io.File(KEK_FILE);
         if (kekFile.exists()) {
@@ -89,6 +156,17 @@ public class SimulatedHsmService implements HsmService {
 
     @Override
     public byte[] encryptWithKek(byte[] plaintext) throws Exception {
+        Behavior current = behavior;
+        current.enter();
+        try {
+            current.simulate(current.wrapErrorRate, wrapErrors);
+            return wrap(plaintext);
+        } finally {
+            current.exit();
+        }
+    }
+
+    private byte[] wrap(byte[] plaintext) throws Exception {
         log.debug("Encrypting {} bytes with KEK", plaintext.length);
 
         // Generate random IV
@@ -96,7 +174,7 @@ public class SimulatedHsmService implements HsmService {
         secureRandom.nextBytes(iv);
 
         // Initialize cipher
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
+        Cipher cipher = cipherProviderService.newCipher();
         GCMParameterSpec parameterSpec = new GCMParameterSpec(TAG_SIZE, iv);
         cipher.init(Cipher.ENCRYPT_MODE, kek, parameterSpec);
 
@@ -114,6 +192,17 @@ public class SimulatedHsmService implements HsmService {
 
     @Override
     public byte[] decryptWithKek(byte[] ciphertext) throws Exception {
+        Behavior current = behavior;
+        current.enter();
+        try {
+            current.simulate(current.unwrapErrorRate, unwrapErrors);
+            return unwrap(ciphertext);
+        } finally {
+            current.exit();
+        }
+    }
+
+    private byte[] unwrap(byte[] ciphertext) throws Exception {
         log.debug("Decrypting {} bytes with KEK", ciphertext.length);
 
         if (ciphertext.length < IV_SIZE) {
@@ -125,7 +214,7 @@ public class SimulatedHsmService implements HsmService {
         byte[] encryptedData = Arrays.copyOfRange(ciphertext, IV_SIZE, ciphertext.length);
 
         // Initialize cipher
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
+        Cipher cipher = cipherProviderService.newCipher();
         GCMParameterSpec parameterSpec = new GCMParameterSpec(TAG_SIZE, iv);
         cipher.init(Cipher.DECRYPT_MODE, kek, parameterSpec);
 
@@ -146,6 +235,143 @@ public class SimulatedHsmService implements HsmService {
         return kekKeySize;
     }
 
+    /**
+     * Current latency and fault profile
+     */
+    public SimulatedHsmProfile getProfile() {
+        return behavior.profile;
+    }
+
+    /**
+     * Replace the latency and fault profile. Operations already waiting or
+     * running finish under the previous profile.
+     *
+     * @throws IllegalArgumentException if the profile is invalid
+     */
+    public void applyProfile(SimulatedHsmProfile profile) {
+        var next = new Behavior(profile);
+        behavior = next;
+        log.info("Simulated HSM profile: latency {} ({} ms, stddev {} ms, p99 {} ms), "
+                        + "max {} ops/s, max concurrency {}, error rates wrap {} / unwrap {}",
+                next.distribution, profile.getLatencyMs(), profile.getLatencyStddevMs(), profile.getLatencyP99Ms(),
+                profile.getMaxOpsPerSecond(), profile.getMaxConcurrency(),
+                profile.getWrapErrorRate(), profile.getUnwrapErrorRate());
+    }
+
+    private Counter injectedErrorCounter(String operation) {
+        return Counter.builder("hsm.simulated.injected-errors")
+                .description("Errors injected by the simulated HSM fault profile")
+                .tag("operation", operation)
+                .register(meterRegistry);
+    }
+
+    /**
+     * A validated profile with the limiters it implies
+     */
+    private static final class Behavior {
+        final SimulatedHsmProfile profile;
+        final String distribution;
+        final double latencyNanos;
+        final double stddevNanos;
+        // Log-normal parameters of the long tail
+        final double mu;
+        final double sigma;
+        final BandwidthThrottle throughput;
+        final Semaphore concurrency;
+        final double wrapErrorRate;
+        final double unwrapErrorRate;
+
+        Behavior(SimulatedHsmProfile profile) {
+            String name = profile.getLatencyDistribution() == null ? NONE
+                    : profile.getLatencyDistribution().trim().toLowerCase(Locale.ROOT);
+            if (!name.equals(NONE) && !name.equals(FIXED) && !name.equals(NORMAL) && !name.equals(LONG_TAIL)) {
+                throw new IllegalArgumentException("Unknown latency distribution: " + name
+                        + " (expected none, fixed, normal or long-tail)");
+            }
+            if (profile.getLatencyMs() < 0 || profile.getLatencyStddevMs() < 0 || profile.getMaxOpsPerSecond() < 0
+                    || profile.getMaxConcurrency() < 0) {
+                throw new IllegalArgumentException("Latencies and limits must not be negative");
+            }
+            checkRate("wrap", profile.getWrapErrorRate());
+            checkRate("unwrap", profile.getUnwrapErrorRate());
+            if (name.equals(LONG_TAIL)
+                    && (profile.getLatencyMs() <= 0 || profile.getLatencyP99Ms() < profile.getLatencyMs())) {
+                throw new IllegalArgumentException("long-tail latency needs 0 < latency-ms <= latency-p99-ms");
+            }
+
+            var copy = new SimulatedHsmProfile();
+            copy.setLatencyDistribution(name);
+            copy.setLatencyMs(profile.getLatencyMs());
+            copy.setLatencyStddevMs(profile.getLatencyStddevMs());
+            copy.setLatencyP99Ms(profile.getLatencyP99Ms());
+            copy.setMaxOpsPerSecond(profile.getMaxOpsPerSecond());
+            copy.setMaxConcurrency(profile.getMaxConcurrency());
+            copy.setWrapErrorRate(profile.getWrapErrorRate());
+            copy.setUnwrapErrorRate(profile.getUnwrapErrorRate());
+            this.profile = copy;
+
+            this.distribution = name;
+            this.latencyNanos = profile.getLatencyMs() * 1e6;
+            this.stddevNanos = profile.getLatencyStddevMs() * 1e6;
+            boolean longTail = name.equals(LONG_TAIL);
+            this.mu = longTail ? Math.log(latencyNanos) : 0;
+            this.sigma = longTail ? Math.log(profile.getLatencyP99Ms() / profile.getLatencyMs()) / Z_99 : 0;
+            this.throughput = new BandwidthThrottle(profile.getMaxOpsPerSecond());
+            this.concurrency = profile.getMaxConcurrency() > 0
+                    ? new Semaphore(profile.getMaxConcurrency(), true)
+                    : null;
+            this.wrapErrorRate = profile.getWrapErrorRate();
+            this.unwrapErrorRate = profile.getUnwrapErrorRate();
+        }
+
+        private static void checkRate(String operation, double rate) {
+            if (rate < 0 || rate > 1) {
+                throw new IllegalArgumentException(operation + " error rate must be between 0 and 1: " + rate);
+            }
+        }
+
+        void enter() throws InterruptedException {
+            if (concurrency != null) {
+                concurrency.acquire();
+            }
+        }
+
+        void exit() {
+            if (concurrency != null) {
+                concurrency.release();
+            }
+        }
+
+        /**
+         * Wait for throughput and latency, then fail with the given probability
+         */
+        void simulate(double errorRate, Counter errors) throws Exception {
+            throughput.acquire(1);
+            long nanos = sampleLatencyNanos();
+            if (nanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            }
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                errors.increment();
+                throw new IllegalStateException("Simulated HSM device error (CKR_DEVICE_ERROR)");
+            }
+        }
+
+        private long sampleLatencyNanos() {
+            var random = ThreadLocalRandom.current();
+            switch (distribution) {
+                case FIXED:
+                    return (long) latencyNanos;
+                case NORMAL:
+                    return (long) Math.max(0, latencyNanos + stddevNanos * random.nextGaussian());
+                case LONG_TAIL:
+                    return (long) Math.exp(mu + sigma * random.nextGaussian());
+                default:
+                    return 0;
+            }
+        }
+    }
+
     /**
      * For testing purposes only - get the KEK bytes
      * In a real HSM, this would NEVER be possible!
@@ -0,0 +1,80 @@
+package com.crypto.fileencryption.service;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * One simulated HSM slot.
+ *
+ * Forwards to the shared SimulatedHsmService, so all simulated slots use
+ * the same KEK like partitions sharing a KEK, and adds faults of its own:
+ * a slot can be taken offline or given an error rate while the others keep
+ * serving, to exercise ejection and re-admission of a single slot.
+ */
+public class SimulatedSlotHsm implements HsmService {
+
+    private final String id;
+    private final SimulatedHsmService device;
+
+    private volatile boolean offline;
+    private volatile double errorRate;
+
+    public SimulatedSlotHsm(String id, SimulatedHsmService device) {
+        this.id = id;
+        this.device = device;
+    }
+
+    @Override
+    public byte[] encryptWithKek(byte[] plaintext) throws Exception {
+        injectFault();
+        return device.encryptWithKek(plaintext);
+    }
+
+    @Override
+    public byte[] decryptWithKek(byte[] ciphertext) throws Exception {
+        injectFault();
+        return device.decryptWithKek(ciphertext);
+    }
+
+    private void injectFault() {
+        if (offline) {
+            throw new IllegalStateException("Simulated HSM slot " + id + " is offline (CKR_DEVICE_REMOVED)");
+        }
+        double rate = errorRate;
+        if (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate) {
+            throw new IllegalStateException("Simulated HSM slot " + id + " device error (CKR_DEVICE_ERROR)");
+        }
+    }
+
+    /**
+     * Set the faults of this slot
+     *
+     * @param offline   Whether every operation fails
+     * @param errorRate Probability (0..1) that an operation fails
+     * @throws IllegalArgumentException if the error rate is out of range
+     */
+    public void setFault(boolean offline, double errorRate) {
+        if (errorRate < 0 || errorRate > 1) {
+            throw new IllegalArgumentException("Error rate must be between 0 and 1: " + errorRate);
+        }
+        this.offline = offline;
+        this.errorRate = errorRate;
+    }
+
+    public boolean isOffline() {
+        return offline;
+    }
+
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    @Override
+    public String getKekAlgorithm() {
+        return device.getKekAlgorithm();
+    }
+
+    @Override
+    public int getKekKeySize() {
+        return device.getKekKeySize();
+    }
+}
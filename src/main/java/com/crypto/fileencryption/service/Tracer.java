@@ -0,0 +1,413 @@
+package com.crypto.fileencryption.service;
+
+import com.crypto.fileencryption.model.TraceRecord;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lightweight in-process span tracing.
+ *
+ * A span opened while no span is active on the thread starts a new trace;
+ * spans opened inside it become its children, so a request traced from the
+ * controller down shows how long storage I/O, DEK handling, the HSM call and
+ * the cipher each took. The trace ID is put in the logging MDC ("traceId")
+ * for the lifetime of the root span.
+ *
+ * Finished traces slower than tracing.slow-threshold-ms are kept in a ring of
+ * the last tracing.slow-traces traces for inspection through /api/traces.
+ * With tracing.otlp.file set, traces are also appended to that file as OTLP
+ * JSON (one ExportTraceServiceRequest per line) by a background thread, which
+ * collectors and viewers can import offline.
+ *
+ * Context is per thread: work handed to other threads (e.g. ChunkPipeline
+ * stages) is covered by the span of the thread that waits for it.
+ */
+@Slf4j
+@Component
+public class Tracer {
+
+    public static final String MDC_TRACE_ID = "traceId";
+
+    private static final Span NOOP = new Span(null, null, null, null);
+
+    private final MeterRegistry meterRegistry;
+    private final ThreadLocal<Span> current = new ThreadLocal<>();
+
+    @Value("${tracing.enabled:true}")
+    private boolean enabled;
+
+    @Value("${tracing.slow-threshold-ms:500}")
+    private long slowThresholdMs;
+
+    @Value("${tracing.slow-traces:100}")
+    private int slowTraceCapacity;
+
+    @Value("${tracing.max-spans-per-trace:256}")
+    private int maxSpansPerTrace;
+
+    @Value("${tracing.otlp.file:}")
+    private String otlpFile;
+
+    @Value("${tracing.otlp.slow-only:false}")
+    private boolean otlpSlowOnly;
+
+    @Value("${tracing.otlp.max-queue:1024}")
+    private int otlpMaxQueue;
+
+    @Value("${spring.application.name:file-encryption-system}")
+    private String serviceName;
+
+    private AtomicReferenceArray<TraceRecord> slowTraces;
+    private final AtomicLong slowCursor = new AtomicLong();
+
+    private BlockingQueue<TraceRecord> exportQueue;
+    private Thread exporter;
+    private volatile boolean running;
+
+    private Counter slowCounter;
+    private Counter exportDropped;
+
+    public Tracer(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        slowTraces = new AtomicReferenceArray<>(Math.max(1, slowTraceCapacity));
+        slowCounter = Counter.builder("tracing.slow")
+                .description("Traces slower than tracing.slow-threshold-ms")
+                .register(meterRegistry);
+        exportDropped = Counter.builder("tracing.export.dropped")
+                .description("Traces not exported because the export queue was full")
+                .register(meterRegistry);
+
+        if (enabled && otlpFile != null && !otlpFile.isBlank()) {
+            Path path = Paths.get(otlpFile).toAbsolutePath().normalize();
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            exportQueue = new ArrayBlockingQueue<>(otlpMaxQueue);
+            running = true;
+            exporter = new Thread(() -> exportLoop(path), "trace-exporter");
+            exporter.setDaemon(true);
+            exporter.start();
+            log.info("Exporting {} traces as OTLP JSON to {}", otlpSlowOnly ? "slow" : "all", path);
+        }
+        log.info("Tracing {} (slow threshold {} ms)", enabled ? "enabled" : "disabled", slowThresholdMs);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (exporter == null) {
+            return;
+        }
+        running = false;
+        exporter.interrupt();
+        exporter.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    /**
+     * Open a span as a child of the current span, or as the root of a new
+     * trace when none is active. Use with try-with-resources.
+     */
+    public Span span(String name) {
+        if (!enabled) {
+            return NOOP;
+        }
+        Span parent = current.get();
+        Trace trace;
+        if (parent == null) {
+            trace = new Trace(randomHex(16));
+            MDC.put(MDC_TRACE_ID, trace.traceId);
+        } else {
+            trace = parent.trace;
+            if (trace.spanCount >= maxSpansPerTrace) {
+                trace.truncated = true;
+                return NOOP;
+            }
+        }
+        trace.spanCount++;
+        Span span = new Span(this, trace, parent, name);
+        current.set(span);
+        return span;
+    }
+
+    /**
+     * Recent slow traces, newest first
+     */
+    public List<TraceRecord> getSlowTraces() {
+        List<TraceRecord> traces = new ArrayList<>();
+        long end = slowCursor.get();
+        int capacity = slowTraces.length();
+        for (long i = end - 1; i >= Math.max(0, end - capacity); i--) {
+            TraceRecord trace = slowTraces.get((int) (i % capacity));
+            if (trace != null) {
+                traces.add(trace);
+            }
+        }
+        return traces;
+    }
+
+    public TraceRecord getSlowTrace(String traceId) {
+        for (TraceRecord trace : getSlowTraces()) {
+            if (trace.getTraceId().equals(traceId)) {
+                return trace;
+            }
+        }
+        return null;
+    }
+
+    public long getSlowThresholdMs() {
+        return slowThresholdMs;
+    }
+
+    private void finish(Span span) {
+        current.set(span.parent);
+        if (span.parent != null) {
+            return;
+        }
+        try {
+            record(span);
+        } finally {
+            MDC.remove(MDC_TRACE_ID);
+        }
+    }
+
+    private void record(Span root) {
+        boolean slow = root.durationNanos >= TimeUnit.MILLISECONDS.toNanos(slowThresholdMs);
+        if (!slow && (exportQueue == null || otlpSlowOnly)) {
+            return;
+        }
+        TraceRecord record = toRecord(root, root.trace);
+        if (slow) {
+            slowCounter.increment();
+            long slot = slowCursor.getAndIncrement();
+            slowTraces.set((int) (slot % slowTraces.length()), record);
+            log.info("Slow trace {} took {} ms", record.getName(), record.getDurationMs());
+        }
+        if (exportQueue != null && !exportQueue.offer(record)) {
+            exportDropped.increment();
+        }
+    }
+
+    private static TraceRecord toRecord(Span root, Trace trace) {
+        var record = new TraceRecord();
+        record.setTraceId(trace.traceId);
+        record.setName(root.name);
+        record.setStartedAt(Instant.ofEpochMilli(trace.startEpochMillis).toString());
+        record.setDurationMs(millis(root.durationNanos));
+        record.setError(root.error != null);
+        record.setTruncated(trace.truncated);
+        synchronized (trace.spans) {
+            for (Span span : trace.spans) {
+                var spanRecord = new TraceRecord.SpanRecord();
+                spanRecord.setSpanId(span.spanId);
+                spanRecord.setParentSpanId(span.parent != null ? span.parent.spanId : null);
+                spanRecord.setName(span.name);
+                spanRecord.setThread(span.thread);
+                spanRecord.setStartOffsetMs(millis(span.startNanos - trace.startNanos));
+                spanRecord.setDurationMs(millis(span.durationNanos));
+                spanRecord.setAttributes(span.attributes);
+                spanRecord.setError(span.error);
+                record.getSpans().add(spanRecord);
+            }
+        }
+        // Spans finish children-first; present them in start order
+        record.getSpans().sort((a, b) -> Double.compare(a.getStartOffsetMs(), b.getStartOffsetMs()));
+        return record;
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1_000.0) / 1_000.0;
+    }
+
+    private void exportLoop(Path path) {
+        // Only created when exporting: Jackson databind is a noticeable share of a short CLI run's startup
+        var objectMapper = new ObjectMapper();
+        while (running || !exportQueue.isEmpty()) {
+            try {
+                TraceRecord trace = running ? exportQueue.take() : exportQueue.poll();
+                if (trace == null) {
+                    break;
+                }
+                List<TraceRecord> batch = new ArrayList<>();
+                batch.add(trace);
+                exportQueue.drainTo(batch);
+                var lines = new StringBuilder();
+                for (TraceRecord record : batch) {
+                    lines.append(objectMapper.writeValueAsString(toOtlp(record))).append('\n');
+                }
+                Files.write(path, lines.toString().getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            } catch (InterruptedException e) {
+                // Drain what is left, then stop
+            } catch (Exception e) {
+                log.warn("Failed to export traces to {}", path, e);
+            }
+        }
+    }
+
+    /**
+     * OTLP/JSON encoding of a trace (ExportTraceServiceRequest)
+     */
+    private Map<String, Object> toOtlp(TraceRecord trace) {
+        long startNanos = Instant.parse(trace.getStartedAt()).toEpochMilli() * 1_000_000L;
+        List<Object> spans = new ArrayList<>();
+        for (TraceRecord.SpanRecord span : trace.getSpans()) {
+            long spanStart = startNanos + (long) (span.getStartOffsetMs() * 1_000_000);
+            Map<String, Object> otlpSpan = new LinkedHashMap<>();
+            otlpSpan.put("traceId", trace.getTraceId());
+            otlpSpan.put("spanId", span.getSpanId());
+            if (span.getParentSpanId() != null) {
+                otlpSpan.put("parentSpanId", span.getParentSpanId());
+            }
+            otlpSpan.put("name", span.getName());
+            otlpSpan.put("kind", span.getParentSpanId() == null ? 2 : 1); // SERVER for roots, else INTERNAL
+            otlpSpan.put("startTimeUnixNano", String.valueOf(spanStart));
+            otlpSpan.put("endTimeUnixNano", String.valueOf(spanStart + (long) (span.getDurationMs() * 1_000_000)));
+            List<Object> attributes = new ArrayList<>();
+            attributes.add(attribute("thread.name", span.getThread()));
+            span.getAttributes().forEach((key, value) -> attributes.add(attribute(key, value)));
+            otlpSpan.put("attributes", attributes);
+            otlpSpan.put("status", span.getError() != null
+                    ? Map.of("code", 2, "message", span.getError())
+                    : Map.of("code", 1));
+            spans.add(otlpSpan);
+        }
+        return Map.of("resourceSpans", List.of(Map.of(
+                "resource", Map.of("attributes", List.of(attribute("service.name", serviceName))),
+                "scopeSpans", List.of(Map.of(
+                        "scope", Map.of("name", Tracer.class.getPackageName()),
+                        "spans", spans)))));
+    }
+
+    private static Map<String, Object> attribute(String key, Object value) {
+        Object otlpValue;
+        if (value instanceof Integer || value instanceof Long) {
+            otlpValue = Map.of("intValue", String.valueOf(value));
+        } else if (value instanceof Number) {
+            otlpValue = Map.of("doubleValue", value);
+        } else if (value instanceof Boolean) {
+            otlpValue = Map.of("boolValue", value);
+        } else {
+            otlpValue = Map.of("stringValue", String.valueOf(value));
+        }
+        return Map.of("key", key, "value", otlpValue);
+    }
+
+    private static String randomHex(int bytes) {
+        var random = ThreadLocalRandom.current();
+        var sb = new StringBuilder(bytes * 2);
+        for (int i = 0; i < bytes; i++) {
+            int b = random.nextInt(256);
+            sb.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * State shared by the spans of one trace
+     */
+    private static final class Trace {
+        final String traceId;
+        final long startEpochMillis = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        final List<Span> spans = new ArrayList<>();
+        // Only touched by the thread that owns the trace
+        int spanCount;
+        boolean truncated;
+
+        Trace(String traceId) {
+            this.traceId = traceId;
+        }
+    }
+
+    /**
+     * A timed operation within a trace. Closing it records its duration and
+     * makes its parent current again.
+     */
+    public static final class Span implements AutoCloseable {
+        private final Tracer tracer;
+        private final Trace trace;
+        private final Span parent;
+        private final String spanId;
+        private final String thread;
+        private final long startNanos = System.nanoTime();
+        private final Map<String, Object> attributes = new LinkedHashMap<>();
+        private String name;
+        private String error;
+        private long durationNanos;
+
+        private Span(Tracer tracer, Trace trace, Span parent, String name) {
+            this.tracer = tracer;
+            this.trace = trace;
+            this.parent = parent;
+            this.name = name;
+            this.spanId = tracer != null ? randomHex(8) : null;
+            this.thread = tracer != null ? Thread.currentThread().getName() : null;
+        }
+
+        public Span tag(String key, Object value) {
+            if (tracer != null && value != null) {
+                attributes.put(key, value);
+            }
+            return this;
+        }
+
+        /**
+         * Rename the span, e.g. once the matched request mapping is known
+         */
+        public Span rename(String name) {
+            this.name = name;
+            return this;
+        }
+
+        public Span error(Throwable t) {
+            if (tracer != null) {
+                error = t.getClass().getSimpleName() + (t.getMessage() != null ? ": " + t.getMessage() : "");
+            }
+            return this;
+        }
+
+        public String getTraceId() {
+            return trace != null ? trace.traceId : null;
+        }
+
+        @Override
+        public void close() {
+            if (tracer == null || durationNanos != 0) {
+                return;
+            }
+            durationNanos = Math.max(1, System.nanoTime() - startNanos);
+            synchronized (trace.spans) {
+                trace.spans.add(this);
+            }
+            tracer.finish(this);
+        }
+    }
+}
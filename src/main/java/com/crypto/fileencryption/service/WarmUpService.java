@@ -0,0 +1,255 @@
+package com.crypto.fileencryption.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.actuate.info.Info;
+import org.springframework.boot.actuate.info.InfoContributor;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Warm-up of a freshly started instance before it reports ready.
+ *
+ * Runs as an ApplicationRunner, and Spring Boot only moves the readiness
+ * state (/actuator/health/readiness) to ACCEPTING_TRAFFIC after the runners
+ * have returned, so a load balancer probing readiness never sends traffic to
+ * a cold node. The phases, each on representative sizes (warmup.sizes):
+ *
+ * <ul>
+ * <li>cipher: AES-GCM encrypt/decrypt loops on the selected provider for
+ * warmup.cipher-millis, so the JIT compiles the GCM paths</li>
+ * <li>files: full round trips through FileEncryptionService (chunking,
+ * pipeline, buffer pool, temp file I/O)</li>
+ * <li>keys: DEK generate/wrap/unwrap through DekService, which also creates
+ * the intermediate key when the envelope hierarchy is enabled; these cycles
+ * are not audited</li>
+ * <li>hsm: opens the real HSM sessions when it is the configured provider and
+ * runs wrap/unwrap cycles on every slot of the active mode; this is the only
+ * place the real HSM is connected ahead of first use</li>
+ * <li>http: one request to each of warmup.http-paths, so Spring MVC, Jackson
+ * and Thymeleaf are initialized</li>
+ * </ul>
+ *
+ * A failing phase is logged and reported under "warmUp" in /actuator/info,
+ * but does not keep the instance from becoming ready.
+ */
+@Slf4j
+@Service
+public class WarmUpService implements ApplicationRunner, InfoContributor {
+
+    private static final int IV_SIZE = 12;
+    private static final int TAG_SIZE = 128;
+
+    private final CipherProviderService cipherProviderService;
+    private final FileEncryptionService fileEncryptionService;
+    private final FileStorageService fileStorageService;
+    private final DekService dekService;
+    private final HsmRouterService hsmRouterService;
+    private final RandomSource randomSource;
+    private final AuditLogService auditLogService;
+    private final Environment environment;
+
+    @Value("${warmup.enabled:true}")
+    private boolean enabled;
+
+    @Value("${warmup.sizes:4096,1048576,8388608}")
+    private int[] sizes;
+
+    @Value("${warmup.cipher-millis:1000}")
+    private long cipherMillis;
+
+    @Value("${warmup.file-rounds:3}")
+    private int fileRounds;
+
+    @Value("${warmup.key-cycles:10}")
+    private int keyCycles;
+
+    @Value("${warmup.hsm-cycles:10}")
+    private int hsmCycles;
+
+    @Value("${warmup.http-paths:/,/api/hsm/status,/api/files/list}")
+    private String[] httpPaths;
+
+    private final Map<String, Object> report = new LinkedHashMap<>();
+    private volatile String status = "pending";
+
+    public WarmUpService(CipherProviderService cipherProviderService, FileEncryptionService fileEncryptionService,
+            FileStorageService fileStorageService, DekService dekService, HsmRouterService hsmRouterService,
+            RandomSource randomSource, AuditLogService auditLogService, Environment environment) {
+        this.cipherProviderService = cipherProviderService;
+        this.fileEncryptionService = fileEncryptionService;
+        this.fileStorageService = fileStorageService;
+        this.dekService = dekService;
+        this.hsmRouterService = hsmRouterService;
+        this.randomSource = randomSource;
+        this.auditLogService = auditLogService;
+        this.environment = environment;
+    }
+
+    @FunctionalInterface
+    private interface Phase {
+        int run() throws Exception;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            status = "disabled";
+            return;
+        }
+        status = "running";
+        log.info("Warming up before accepting traffic...");
+        long start = System.nanoTime();
+        // Non-short-circuit: a failed phase does not skip the others
+        boolean complete = phase("cipher", this::warmCipher)
+                & phase("files", this::warmFiles)
+                & phase("keys", () -> dekService.warmUp(keyCycles))
+                & phase("hsm", () -> hsmRouterService.warmUp(hsmCycles))
+                & phase("http", this::warmHttp);
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        synchronized (report) {
+            report.put("totalMs", millis);
+        }
+        status = complete ? "completed" : "completed with failures";
+        auditLogService.record("app.warmup", null, complete ? AuditLogService.SUCCESS : AuditLogService.FAILURE,
+                "ms=" + millis);
+        log.info("Warm-up {} in {} ms: {}", status, millis, report);
+    }
+
+    /**
+     * Run a phase and record its duration and count of operations
+     *
+     * @return Whether it succeeded
+     */
+    private boolean phase(String name, Phase phase) {
+        long start = System.nanoTime();
+        Map<String, Object> result = new LinkedHashMap<>();
+        boolean succeeded = true;
+        try {
+            result.put("operations", phase.run());
+        } catch (Exception e) {
+            log.warn("Warm-up phase {} failed: {}", name, e.getMessage());
+            result.put("error", String.valueOf(e.getMessage()));
+            succeeded = false;
+        }
+        result.put("ms", (System.nanoTime() - start) / 1_000_000);
+        synchronized (report) {
+            report.put(name, result);
+        }
+        return succeeded;
+    }
+
+    /**
+     * AES-GCM encrypt/decrypt loops, an equal share of warmup.cipher-millis per size
+     */
+    private int warmCipher() throws Exception {
+        SecretKey key = newKey();
+        int rounds = 0;
+        for (int size : sizes) {
+            byte[] data = new byte[size];
+            randomSource.nextBytes(data);
+            byte[] iv = new byte[IV_SIZE];
+            long deadline = System.nanoTime() + cipherMillis * 1_000_000 / sizes.length;
+            do {
+                randomSource.nextBytes(iv);
+                Cipher encrypt = cipherProviderService.newCipher();
+                encrypt.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE, iv));
+                byte[] ciphertext = encrypt.doFinal(data);
+                Cipher decrypt = cipherProviderService.newCipher();
+                decrypt.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE, iv));
+                decrypt.doFinal(ciphertext);
+                rounds++;
+            } while (System.nanoTime() < deadline);
+        }
+        return rounds;
+    }
+
+    /**
+     * Encrypt to a temp file and decrypt back, checking the result once per size
+     */
+    private int warmFiles() throws Exception {
+        SecretKey dek = newKey();
+        var path = fileStorageService.tempPath(UUID.randomUUID() + ".warmup");
+        int rounds = 0;
+        try {
+            for (int size : sizes) {
+                byte[] data = new byte[size];
+                randomSource.nextBytes(data);
+                for (int round = 0; round < fileRounds; round++) {
+                    try (var file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        fileEncryptionService.encrypt(Channels.newChannel(new ByteArrayInputStream(data)), size,
+                                file, dek);
+                        file.position(0);
+                        var plaintext = new ByteArrayOutputStream(size);
+                        fileEncryptionService.decrypt(file, Channels.newChannel(plaintext), dek);
+                        if (round == 0 && !Arrays.equals(data, plaintext.toByteArray())) {
+                            throw new IllegalStateException("Round trip of " + size + " bytes did not match");
+                        }
+                    }
+                    rounds++;
+                }
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+        return rounds;
+    }
+
+    private int warmHttp() throws Exception {
+        String port = environment.getProperty("local.server.port");
+        if (port == null) {
+            return 0;
+        }
+        var client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+        int requests = 0;
+        for (String path : httpPaths) {
+            var request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + path.trim()))
+                    .timeout(Duration.ofSeconds(30))
+                    .GET()
+                    .build();
+            var response = client.send(request, HttpResponse.BodyHandlers.discarding());
+            log.debug("Warm-up request {} returned {}", path, response.statusCode());
+            requests++;
+        }
+        return requests;
+    }
+
+    private SecretKey newKey() throws Exception {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256, randomSource.current());
+        return keyGen.generateKey();
+    }
+
+    @Override
+    public void contribute(Info.Builder builder) {
+        Map<String, Object> warmUp = new LinkedHashMap<>();
+        warmUp.put("status", status);
+        synchronized (report) {
+            warmUp.putAll(report);
+        }
+        builder.withDetail("warmUp", warmUp);
+    }
+}
@@ -0,0 +1,446 @@
+package com.crypto.fileencryption.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Encrypts files dropped into watched directories under DATA
+ * (watch.directories, default DATA/inbox) without going through the web UI.
+ *
+ * A WatchService thread only marks files as pending, so a storm of events
+ * for one file (a producer writing it in many small appends) collapses into
+ * a single queue entry. A scheduled tick checks the pending files and hands
+ * one to the worker pool (watch.workers) once its size and modification
+ * time have not changed for watch.stable-ms; at most that many files are in
+ * flight at a time, under memory admission control like web requests.
+ *
+ * Pending files are persisted (watch.queue-file) and the directories are
+ * rescanned on startup, so files that arrived or were still queued while the
+ * server was down are picked up. A file is due when it has no
+ * "name.encrypted" at least as new as itself. With watch.delete-plaintext,
+ * the encrypted file is verified before the plaintext is removed.
+ */
+@Slf4j
+@Service
+public class WatchFolderService {
+
+    private final BatchCryptoService batchCryptoService;
+    private final FileEncryptionService fileEncryptionService;
+    private final FileStorageService fileStorageService;
+    private final MemoryAdmissionController admissionController;
+    private final MeterRegistry meterRegistry;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Value("${watch.enabled:false}")
+    private boolean enabled;
+
+    @Value("${watch.directories:inbox}")
+    private String directories;
+
+    @Value("${watch.stable-ms:2000}")
+    private long stableMs;
+
+    @Value("${watch.workers:2}")
+    private int workers;
+
+    @Value("${watch.delete-plaintext:false}")
+    private boolean deletePlaintext;
+
+    @Value("${watch.retry-delay-ms:30000}")
+    private long retryDelayMs;
+
+    @Value("${watch.queue-file:${file.storage.location:./DATA}/.watch/queue.json}")
+    private String queueFile;
+
+    @Value("${file.storage.location:./DATA}")
+    private String baseLocation;
+
+    private Path root;
+    private Path queuePath;
+    private final List<Path> watched = new ArrayList<>();
+    private volatile WatchService watchService;
+    private Thread watcher;
+    private ExecutorService executor;
+
+    // Guarded by itself; in arrival order, so the oldest stable file goes first
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile boolean dirty;
+
+    private Counter encrypted;
+    private Counter failed;
+    private Counter deferred;
+    private Counter bytes;
+    private Counter removed;
+    private Timer latency;
+
+    public WatchFolderService(BatchCryptoService batchCryptoService, FileEncryptionService fileEncryptionService,
+            FileStorageService fileStorageService, MemoryAdmissionController admissionController,
+            MeterRegistry meterRegistry) {
+        this.batchCryptoService = batchCryptoService;
+        this.fileEncryptionService = fileEncryptionService;
+        this.fileStorageService = fileStorageService;
+        this.admissionController = admissionController;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * A file waiting to become stable or for a retry
+     */
+    private static final class Pending {
+        final long firstSeen;
+        long size = -1;
+        long modified = -1;
+        long changedAt;
+        long notBefore;
+        boolean running;
+
+        Pending(long now) {
+            this.firstSeen = now;
+            this.changedAt = now;
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        root = Paths.get(baseLocation).toAbsolutePath().normalize();
+        queuePath = Paths.get(queueFile).toAbsolutePath().normalize();
+        Files.createDirectories(queuePath.getParent());
+        registerMetrics();
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(Math.max(1, workers), r -> {
+            Thread thread = new Thread(r, "watch-folder-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Published last: the scheduled tick runs once it is set
+        WatchService service = root.getFileSystem().newWatchService();
+        Map<WatchKey, Path> keys = new HashMap<>();
+        for (String name : directories.split(",")) {
+            if (name.isBlank()) {
+                continue;
+            }
+            Path directory = root.resolve(name.trim()).normalize();
+            if (!directory.startsWith(root)) {
+                throw new IllegalArgumentException("Watched directory must be inside DATA: " + name);
+            }
+            Files.createDirectories(directory);
+            keys.put(directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY), directory);
+            watched.add(directory);
+        }
+
+        watchService = service;
+        // Catch up on what was queued or arrived while the server was down
+        for (String filename : loadQueue()) {
+            touch(filename);
+        }
+        watched.forEach(this::scan);
+
+        watcher = new Thread(() -> watchLoop(keys), "watch-folder-events");
+        watcher.setDaemon(true);
+        watcher.start();
+        log.info("Watching {} for files to encrypt ({} worker(s), stable after {} ms, delete plaintext: {})",
+                watched, Math.max(1, workers), stableMs, deletePlaintext);
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException {
+        if (watchService == null) {
+            return;
+        }
+        watchService.close();
+        // Files in flight are still in the queue and are redone after a restart
+        executor.shutdownNow();
+        persistQueue();
+    }
+
+    private void registerMetrics() {
+        encrypted = Counter.builder("watch.files").tag("result", "encrypted")
+                .description("Watched files processed, by result")
+                .register(meterRegistry);
+        failed = Counter.builder("watch.files").tag("result", "failed")
+                .description("Watched files processed, by result")
+                .register(meterRegistry);
+        deferred = Counter.builder("watch.files").tag("result", "deferred")
+                .description("Watched files processed, by result")
+                .register(meterRegistry);
+        bytes = Counter.builder("watch.bytes").baseUnit("bytes")
+                .description("Plaintext bytes encrypted from watched directories")
+                .register(meterRegistry);
+        removed = Counter.builder("watch.plaintext.removed")
+                .description("Plaintext files removed after their encrypted file was verified")
+                .register(meterRegistry);
+        latency = Timer.builder("watch.latency")
+                .description("Time from a file first being seen to it being encrypted")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        Gauge.builder("watch.queue", pending, queue -> {
+            synchronized (queue) {
+                return queue.size();
+            }
+        }).description("Watched files waiting to be encrypted or in flight").register(meterRegistry);
+    }
+
+    private void watchLoop(Map<WatchKey, Path> keys) {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path directory = keys.get(key);
+                for (var event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were dropped; look at everything again
+                        scan(directory);
+                    } else {
+                        touch(root.relativize(directory.resolve((Path) event.context())).toString());
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            log.debug("Watch folder event loop stopped");
+        }
+    }
+
+    private void scan(Path directory) {
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> touch(root.relativize(file).toString()));
+        } catch (IOException e) {
+            log.warn("Could not scan watched directory {}: {}", directory, e.getMessage());
+        }
+    }
+
+    /**
+     * Note activity on a file; events for a file already pending only reset its
+     * stability clock at the next tick
+     */
+    private void touch(String filename) {
+        if (!isCandidate(filename)) {
+            return;
+        }
+        synchronized (pending) {
+            if (!pending.containsKey(filename)) {
+                pending.put(filename, new Pending(System.currentTimeMillis()));
+                dirty = true;
+            }
+        }
+    }
+
+    private boolean isCandidate(String filename) {
+        Path file = root.resolve(filename);
+        String name = file.getFileName().toString();
+        if (name.startsWith(".") || name.endsWith(BatchCryptoService.ENCRYPTED_SUFFIX)
+                || name.endsWith(BatchCryptoService.DEK_SUFFIX) || !Files.isRegularFile(file)) {
+            return false;
+        }
+        try {
+            Path target = root.resolve(filename + BatchCryptoService.ENCRYPTED_SUFFIX);
+            return !Files.exists(target)
+                    || Files.getLastModifiedTime(target).compareTo(Files.getLastModifiedTime(file)) < 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Dispatch pending files whose size and modification time have been
+     * stable for watch.stable-ms, while workers are free
+     */
+    @Scheduled(fixedDelayString = "${watch.poll-interval-ms:500}")
+    public void tick() {
+        if (watchService == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<String> due = new ArrayList<>();
+        synchronized (pending) {
+            var entries = pending.entrySet().iterator();
+            while (entries.hasNext()) {
+                var entry = entries.next();
+                var file = entry.getValue();
+                if (file.running) {
+                    continue;
+                }
+                Path path = root.resolve(entry.getKey());
+                long size;
+                long modified;
+                try {
+                    size = Files.size(path);
+                    modified = Files.getLastModifiedTime(path).toMillis();
+                } catch (IOException e) {
+                    // Deleted or renamed away before it became stable
+                    entries.remove();
+                    dirty = true;
+                    continue;
+                }
+                if (size != file.size || modified != file.modified) {
+                    file.size = size;
+                    file.modified = modified;
+                    file.changedAt = now;
+                } else if (now - file.changedAt >= stableMs && now >= file.notBefore
+                        && inFlight.get() + due.size() < Math.max(1, workers)) {
+                    file.running = true;
+                    due.add(entry.getKey());
+                }
+            }
+        }
+        for (String filename : due) {
+            inFlight.incrementAndGet();
+            executor.execute(() -> {
+                try {
+                    process(filename);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            });
+        }
+        if (dirty) {
+            persistQueue();
+        }
+    }
+
+    @SuppressWarnings("try")
+    private void process(String filename) {
+        Pending file;
+        synchronized (pending) {
+            file = pending.get(filename);
+        }
+        boolean done = false;
+        try {
+            if (!isCandidate(filename)) {
+                done = true;
+                return;
+            }
+            long size = file.size;
+            try (var reservation = admissionController.admit(fileEncryptionService.encryptWorkingSet(size), size)) {
+                batchCryptoService.encrypt(filename);
+            }
+            encrypted.increment();
+            bytes.increment(size);
+            latency.record(System.currentTimeMillis() - file.firstSeen, TimeUnit.MILLISECONDS);
+            log.info("Encrypted watched file {} ({} bytes)", filename, size);
+
+            if (deletePlaintext) {
+                batchCryptoService.verify(filename + BatchCryptoService.ENCRYPTED_SUFFIX,
+                        filename + BatchCryptoService.DEK_SUFFIX);
+                Path path = root.resolve(filename);
+                // A producer that rewrote the file meanwhile gets it encrypted again instead
+                if (Files.size(path) == size && Files.getLastModifiedTime(path).toMillis() == file.modified) {
+                    fileStorageService.deleteFile(filename);
+                    removed.increment();
+                }
+            }
+            done = true;
+        } catch (AdmissionRejectedException | HsmUnavailableException e) {
+            deferred.increment();
+            log.warn("Deferring watched file {}: {}", filename, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // Left for the next change to the file or the startup scan
+            failed.increment();
+            done = true;
+            log.error("Failed to encrypt watched file {}: {}", filename, e.getMessage());
+        } finally {
+            synchronized (pending) {
+                if (done) {
+                    pending.remove(filename);
+                    dirty = true;
+                } else {
+                    file.running = false;
+                    file.notBefore = System.currentTimeMillis() + retryDelayMs;
+                }
+            }
+        }
+    }
+
+    private List<String> loadQueue() {
+        if (!Files.exists(queuePath)) {
+            return List.of();
+        }
+        try {
+            return objectMapper.readValue(queuePath.toFile(), new TypeReference<List<String>>() {
+            });
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable watch queue {}: {}", queuePath, e.getMessage());
+            return List.of();
+        }
+    }
+
+    /**
+     * Write the pending file names to a temporary file, fsync it and rename it
+     * into place
+     */
+    private void persistQueue() {
+        List<String> names;
+        synchronized (pending) {
+            names = new ArrayList<>(pending.keySet());
+            dirty = false;
+        }
+        Path staging = queuePath.resolveSibling("." + UUID.randomUUID() + ".tmp");
+        try {
+            try (var channel = FileChannel.open(staging, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                var buffer = ByteBuffer.wrap(objectMapper.writeValueAsBytes(names));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            try {
+                Files.move(staging, queuePath, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(staging, queuePath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            dirty = true;
+            log.warn("Could not persist watch queue {}: {}", queuePath, e.getMessage());
+        } finally {
+            try {
+                Files.deleteIfExists(staging);
+            } catch (IOException e) {
+                log.debug("Could not delete {}", staging);
+            }
+        }
+    }
+}
@@ -55,6 +55,11 @@ const API = {
         return this.handleResponse(response);
     },
 
+    async put(url, body, headers = {}) {
+        const response = await fetch(url, { method: 'PUT', headers, body });
+        return this.handleResponse(response);
+    },
+
     async delete(url) {
         const response = await fetch(url, { method: 'DELETE' });
         // DELETE endpoints might not return JSON content, handle gracefully
@@ -73,6 +78,14 @@ const API = {
     // Specific API Calls
     listFiles: () => API.get('/api/files/list'),
     uploadFile: (formData) => API.postFormData('/api/files/upload', formData),
+    uploads: {
+        create: (filename, size, encrypt) => API.post('/api/files/uploads', { filename, size, encrypt }),
+        status: (uploadId) => API.get(`/api/files/uploads/${uploadId}`),
+        putChunk: (uploadId, index, data, sha256) => API.put(`/api/files/uploads/${uploadId}/chunks/${index}`, data,
+            sha256 ? { 'Content-Type': 'application/octet-stream', 'X-Chunk-Sha256': sha256 }
+                : { 'Content-Type': 'application/octet-stream' }),
+        complete: (uploadId) => API.post(`/api/files/uploads/${uploadId}/complete`)
+    },
     cleanupTemp: () => API.post('/api/files/cleanup-temp'),
 
     encrypt: {
@@ -318,6 +331,82 @@ const Settings = {
     }
 };
 
+// ==========================================
+// 3.6 UPLOAD MODULE (resumable chunked uploads)
+// ==========================================
+const Uploader = {
+    PARALLEL_CHUNKS: 4,
+    MAX_ATTEMPTS: 5,
+
+    // The server keeps received chunks, so after a failure or page reload only the missing ones are sent
+    storageKey(file, encrypt) {
+        return `upload:${file.name}:${file.size}:${file.lastModified}:${encrypt}`;
+    },
+
+    async upload(file, encrypt, onProgress) {
+        const key = this.storageKey(file, encrypt);
+        let upload = null;
+        const savedId = localStorage.getItem(key);
+        if (savedId) {
+            try {
+                upload = await API.uploads.status(savedId);
+            } catch (error) {
+                localStorage.removeItem(key); // Expired or completed elsewhere
+            }
+        }
+        if (!upload) {
+            upload = await API.uploads.create(file.name, file.size, encrypt);
+            localStorage.setItem(key, upload.uploadId);
+        }
+
+        const pending = [];
+        for (const [first, last] of upload.missingChunks) {
+            for (let i = first; i <= last; i++) pending.push(i);
+        }
+        let done = upload.receivedChunks;
+        onProgress(done, upload.chunkCount);
+
+        const worker = async () => {
+            while (pending.length > 0) {
+                const index = pending.shift();
+                await this.sendChunk(upload, file, index);
+                onProgress(++done, upload.chunkCount);
+            }
+        };
+        const workers = [];
+        for (let i = 0; i < Math.min(this.PARALLEL_CHUNKS, pending.length); i++) {
+            workers.push(worker());
+        }
+        await Promise.all(workers);
+
+        const result = await API.uploads.complete(upload.uploadId);
+        localStorage.removeItem(key);
+        return result;
+    },
+
+    async sendChunk(upload, file, index) {
+        const start = index * upload.chunkSize;
+        const data = await file.slice(start, Math.min(start + upload.chunkSize, file.size)).arrayBuffer();
+        const sha256 = await this.sha256Hex(data);
+        for (let attempt = 1; ; attempt++) {
+            try {
+                return await API.uploads.putChunk(upload.uploadId, index, data, sha256);
+            } catch (error) {
+                if (attempt >= this.MAX_ATTEMPTS) throw error;
+                await new Promise(resolve => setTimeout(resolve, 500 * 2 ** (attempt - 1)));
+            }
+        }
+    },
+
+    // WebCrypto only exists in secure contexts (HTTPS, localhost); over plain HTTP the
+    // checksum, which the server treats as optional, is left out
+    async sha256Hex(data) {
+        if (!window.isSecureContext || !window.crypto || !crypto.subtle) return null;
+        const hash = await crypto.subtle.digest('SHA-256', data);
+        return Array.from(new Uint8Array(hash), b => b.toString(16).padStart(2, '0')).join('');
+    }
+};
+
 // ==========================================
 // 4. APP CONTROLLER
 // ==========================================
@@ -384,20 +473,23 @@ const App = {
             return;
         }
 
+        const progress = UI.getElement('uploadProgress');
         try {
             let count = 0;
             for (let i = 0; i < files.length; i++) {
-                const formData = new FormData();
-                formData.append('file', files[i]);
-                await API.uploadFile(formData);
+                const file = files[i];
+                await Uploader.upload(file, false, (done, total) => {
+                    if (progress) progress.textContent = `${file.name}: ${Math.floor(done * 100 / total)}%`;
+                });
                 count++;
             }
+            if (progress) progress.textContent = '';
             alert(`Successfully uploaded ${count} file(s).`);
             input.value = '';
             await this.refreshFileList();
         } catch (error) {
             console.error('Upload error:', error);
-            UI.showError('Failed to upload files: ' + error.message);
+            UI.showError('Failed to upload files (upload again to resume): ' + error.message);
         }
     },
 
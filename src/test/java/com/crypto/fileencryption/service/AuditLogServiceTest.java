@@ -0,0 +1,158 @@
+package com.crypto.fileencryption.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * The hash chain across restarts: the writer continues from the last
+ * complete record, after cutting off one torn by a crash, and only one
+ * writer may own a chain
+ */
+class AuditLogServiceTest {
+
+    private static final String GENESIS = "0".repeat(64);
+
+    @TempDir
+    Path directory;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final List<AuditLogService> started = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (AuditLogService service : started) {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    void chainContinuesAcrossRestarts() throws Exception {
+        writeAndStop(start(Long.MAX_VALUE), 10);
+        writeAndStop(start(Long.MAX_VALUE), 10);
+
+        assertThat(segments()).hasSize(1);
+        assertThat(verifyChain()).isEqualTo(20);
+    }
+
+    @Test
+    void tornRecordIsCutOffOnRestart() throws Exception {
+        writeAndStop(start(Long.MAX_VALUE), 5);
+        Path segment = segments().get(0);
+        long complete = Files.size(segment);
+        Files.writeString(segment, "{\"seq\":6,\"ts\":\"2026-", StandardOpenOption.APPEND);
+
+        AuditLogService restarted = start(Long.MAX_VALUE);
+        assertThat(segment).hasSize(complete);
+        writeAndStop(restarted, 3);
+
+        assertThat(verifyChain()).isEqualTo(8);
+    }
+
+    @Test
+    void chainContinuesFromThePreviousSegmentWhenTheNewestHasNoRecord() throws Exception {
+        // A few records per segment
+        writeAndStop(start(1024), 12);
+        List<Path> segments = segments();
+        assertThat(segments).hasSizeGreaterThan(2);
+        // Rolled, and the first record torn, just before a crash
+        Path newest = directory.resolve(String.format("audit-%06d.log", segments.size() + 1));
+        Files.writeString(newest, "{\"seq\":13,\"ts\"");
+
+        writeAndStop(start(1024), 12);
+
+        assertThat(verifyChain()).isEqualTo(24);
+    }
+
+    @Test
+    void secondWriterOfTheSameChainIsRejected() throws Exception {
+        start(Long.MAX_VALUE);
+
+        assertThatThrownBy(() -> start(Long.MAX_VALUE))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("in use by another process");
+    }
+
+    private AuditLogService start(long maxSegmentBytes) throws Exception {
+        var service = new AuditLogService(new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(service, "enabled", true);
+        ReflectionTestUtils.setField(service, "directory", directory.toString());
+        ReflectionTestUtils.setField(service, "maxSegmentBytes", maxSegmentBytes);
+        ReflectionTestUtils.setField(service, "batchSize", 4);
+        ReflectionTestUtils.setField(service, "flushIntervalMs", 10L);
+        ReflectionTestUtils.setField(service, "maxQueue", 1000);
+        ReflectionTestUtils.setField(service, "fsync", false);
+        service.init();
+        started.add(service);
+        return service;
+    }
+
+    /**
+     * Record events and stop the writer, which drains the queue first
+     */
+    private void writeAndStop(AuditLogService service, int events) throws Exception {
+        for (int i = 0; i < events; i++) {
+            service.success("test.event", "subject-" + i, "detail " + i);
+        }
+        service.shutdown();
+        started.remove(service);
+    }
+
+    private List<Path> segments() throws Exception {
+        try (var files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().matches("audit-\\d{6}\\.log"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Check sequence numbers, links and hashes of every record in every segment
+     *
+     * @return Number of records
+     */
+    private long verifyChain() throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        String previous = GENESIS;
+        long records = 0;
+        for (Path segment : segments()) {
+            String content = Files.readString(segment, StandardCharsets.UTF_8);
+            assertThat(content).as("%s ends with a complete record", segment).matches("(?s)(.*\\n)?");
+            for (String line : content.lines().collect(Collectors.toList())) {
+                JsonNode record = objectMapper.readTree(line);
+                records++;
+                assertThat(record.get("seq").asLong()).isEqualTo(records);
+                assertThat(record.get("prev").asText()).isEqualTo(previous);
+                String body = line.substring(0, line.lastIndexOf(",\"hash\":")) + "}";
+                String hash = hex(digest.digest(body.getBytes(StandardCharsets.UTF_8)));
+                assertThat(record.get("hash").asText()).isEqualTo(hash);
+                previous = hash;
+            }
+        }
+        return records;
+    }
+
+    private static String hex(byte[] bytes) {
+        var sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,186 @@
+package com.crypto.fileencryption.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+/**
+ * The pipelined ring: chunks are written in order, the reader is held back
+ * by a slow writer, and a failing stage stops the others and releases every
+ * buffer
+ */
+@SpringJUnitConfig({ ChunkPipelineTest.Config.class, ChunkPipeline.class, DirectBufferPool.class })
+@TestPropertySource(properties = {
+        "encryption.pipeline.workers=3",
+        "encryption.pipeline.depth=4",
+        "encryption.pipeline.min-chunks=2"
+})
+class ChunkPipelineTest {
+
+    private static final int DEPTH = 4;
+    private static final int CHUNKS = 64;
+    private static final int CHUNK_SIZE = 1024;
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    @Autowired
+    private ChunkPipeline chunkPipeline;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Configuration
+    static class Config {
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+
+    @Test
+    void writesEveryChunkInOrder() throws Exception {
+        List<Long> written = Collections.synchronizedList(new ArrayList<>());
+
+        assertTimeoutPreemptively(TIMEOUT, () -> chunkPipeline.run(CHUNKS, CHUNK_SIZE, CHUNK_SIZE,
+                ChunkPipelineTest::fill,
+                () -> (index, in, out) -> {
+                    // Workers finish out of order
+                    if (index % 3 == 0) {
+                        Thread.sleep(1);
+                    }
+                    out.put(in).flip();
+                },
+                (index, out) -> {
+                    assertThat(out.getLong(0)).isEqualTo(index);
+                    written.add(index);
+                }));
+
+        assertThat(written).hasSize(CHUNKS).isSorted();
+        assertThat(leasedBuffers()).isZero();
+    }
+
+    @Test
+    void readerStaysWithinOneRingOfTheWriter() throws Exception {
+        AtomicLong read = new AtomicLong();
+
+        assertTimeoutPreemptively(TIMEOUT, () -> chunkPipeline.run(CHUNKS, CHUNK_SIZE, CHUNK_SIZE,
+                (index, in) -> {
+                    fill(index, in);
+                    read.incrementAndGet();
+                },
+                () -> (index, in, out) -> out.put(in).flip(),
+                (index, out) -> {
+                    if (index == 0) {
+                        // Give the reader time to run as far ahead as it can
+                        Thread.sleep(200);
+                        assertThat(read).hasValue(DEPTH);
+                    }
+                    assertThat(read.get() - index).isLessThanOrEqualTo(DEPTH);
+                }));
+
+        assertThat(read).hasValue(CHUNKS);
+    }
+
+    @Test
+    void aReaderFailureAbortsTheRun() {
+        List<Long> written = Collections.synchronizedList(new ArrayList<>());
+
+        assertThatThrownBy(() -> assertTimeoutPreemptively(TIMEOUT, () -> chunkPipeline.run(CHUNKS, CHUNK_SIZE,
+                CHUNK_SIZE,
+                (index, in) -> {
+                    if (index == 10) {
+                        throw new IllegalStateException("read failed at " + index);
+                    }
+                    fill(index, in);
+                },
+                () -> (index, in, out) -> out.put(in).flip(),
+                (index, out) -> written.add(index))))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("read failed at 10");
+
+        assertThat(written).allMatch(index -> index < 10);
+        assertThat(leasedBuffers()).isZero();
+    }
+
+    @Test
+    void aTransformFailureAbortsTheRun() {
+        AtomicLong read = new AtomicLong();
+        List<Long> written = Collections.synchronizedList(new ArrayList<>());
+
+        assertThatThrownBy(() -> assertTimeoutPreemptively(TIMEOUT, () -> chunkPipeline.run(CHUNKS, CHUNK_SIZE,
+                CHUNK_SIZE,
+                (index, in) -> {
+                    fill(index, in);
+                    read.incrementAndGet();
+                },
+                () -> (index, in, out) -> {
+                    if (index == 5) {
+                        throw new IllegalArgumentException("transform failed at " + index);
+                    }
+                    out.put(in).flip();
+                },
+                (index, out) -> written.add(index))))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("transform failed at 5");
+
+        assertThat(written).allMatch(index -> index < 5);
+        // The reader stops instead of filling the rest of the file
+        assertThat(read.get()).isLessThan(CHUNKS);
+        assertThat(leasedBuffers()).isZero();
+    }
+
+    @Test
+    void aWriterFailureAbortsTheRun() {
+        AtomicLong read = new AtomicLong();
+
+        assertThatThrownBy(() -> assertTimeoutPreemptively(TIMEOUT, () -> chunkPipeline.run(CHUNKS, CHUNK_SIZE,
+                CHUNK_SIZE,
+                (index, in) -> {
+                    fill(index, in);
+                    read.incrementAndGet();
+                },
+                () -> (index, in, out) -> out.put(in).flip(),
+                (index, out) -> {
+                    if (index == 2) {
+                        throw new IllegalStateException("write failed at " + index);
+                    }
+                })))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("write failed at 2");
+
+        // Chunks 0 and 1 were written; the reader cannot have gone more than a ring past chunk 2
+        assertThat(read.get()).isLessThanOrEqualTo(2 + DEPTH);
+        assertThat(leasedBuffers()).isZero();
+    }
+
+    private static void fill(long index, ByteBuffer in) {
+        in.putLong(index);
+        while (in.hasRemaining()) {
+            in.put((byte) index);
+        }
+        in.flip();
+    }
+
+    /**
+     * Buffers of every size class still leased from the pool
+     */
+    private double leasedBuffers() {
+        return meterRegistry.find("buffer.pool.leased").gauges().stream().mapToDouble(Gauge::value).sum();
+    }
+}
@@ -0,0 +1,104 @@
+package com.crypto.fileencryption.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.info.Info;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Provider calibration: measured on the first start, reused from the
+ * per-host cache afterwards, and measured again when the cache is for
+ * another JVM or other settings
+ */
+@SpringJUnitConfig(CipherProviderService.class)
+@TestPropertySource(properties = {
+        "encryption.provider.benchmark-sizes=1024",
+        "encryption.provider.benchmark-warmup-millis=20",
+        "encryption.provider.benchmark-millis=10"
+})
+class CipherProviderServiceTest {
+
+    @TempDir
+    static Path calibration;
+
+    @DynamicPropertySource
+    static void storage(DynamicPropertyRegistry registry) {
+        registry.add("encryption.provider.calibration-directory", () -> calibration.toString());
+    }
+
+    @Autowired
+    private CipherProviderService cipherProviderService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        // Calibrated with an empty directory, as on a new host
+        try (var files = Files.list(calibration)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        cipherProviderService.init();
+    }
+
+    @Test
+    void calibratesOnceAndReusesTheResultOnThisHost() throws Exception {
+        assertThat(selection()).isEqualTo("benchmark");
+        Path calibrationFile = calibrationFile();
+        assertThat(load(calibrationFile).getProperty("provider"))
+                .isEqualTo(cipherProviderService.getProvider().getName());
+
+        cipherProviderService.init();
+
+        assertThat(selection()).isEqualTo("calibration");
+        assertThat(cipherProviderService.newCipher().getProvider().getName())
+                .isEqualTo(load(calibrationFile).getProperty("provider"));
+    }
+
+    @Test
+    void calibratesAgainForAnotherJvmOrSettings() throws Exception {
+        Path calibrationFile = calibrationFile();
+        Properties stale = load(calibrationFile);
+        stale.setProperty("fingerprint", "another JVM");
+        try (var out = Files.newOutputStream(calibrationFile)) {
+            stale.store(out, null);
+        }
+
+        cipherProviderService.init();
+
+        assertThat(selection()).isEqualTo("benchmark");
+        assertThat(load(calibrationFile).getProperty("fingerprint")).isNotEqualTo("another JVM");
+    }
+
+    private String selection() {
+        var builder = new Info.Builder();
+        cipherProviderService.contribute(builder);
+        return (String) ((Map<?, ?>) builder.build().getDetails().get("crypto")).get("selection");
+    }
+
+    private static Path calibrationFile() throws Exception {
+        try (var files = Files.list(calibration)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".properties")).findFirst()
+                    .orElseThrow();
+        }
+    }
+
+    private static Properties load(Path file) throws Exception {
+        var properties = new Properties();
+        try (var in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,82 @@
+package com.crypto.fileencryption.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * Shared setup for tests of the file services: the real chunked format and
+ * storage, with DEKs "wrapped" as plain Base64 instead of by an HSM
+ */
+final class CryptoTestSupport {
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private CryptoTestSupport() {
+    }
+
+    /**
+     * The beans behind FileEncryptionService and FileStorageService
+     */
+    @Configuration
+    @Import({ FileEncryptionService.class, FileStorageService.class, CipherProviderService.class,
+            DirectBufferPool.class, ChunkPipeline.class, OutputCommitter.class, RandomSource.class, Tracer.class })
+    static class Storage {
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+
+    static void stubKeys(DekService dekService) throws Exception {
+        when(dekService.generateDek()).thenAnswer(invocation -> {
+            byte[] key = new byte[32];
+            RANDOM.nextBytes(key);
+            return new SecretKeySpec(key, "AES");
+        });
+        when(dekService.encryptDekToBase64(any()))
+                .thenAnswer(invocation -> encode(invocation.getArgument(0, SecretKey.class)));
+        when(dekService.decryptDekFromBase64(anyString()))
+                .thenAnswer(invocation -> new SecretKeySpec(Base64.getDecoder().decode(
+                        invocation.getArgument(0, String.class).trim()), "AES"));
+    }
+
+    static String encode(SecretKey dek) {
+        return Base64.getEncoder().encodeToString(dek.getEncoded());
+    }
+
+    static SecretKey decode(String encryptedDek) {
+        return new SecretKeySpec(Base64.getDecoder().decode(encryptedDek.trim()), "AES");
+    }
+
+    static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        RANDOM.nextBytes(data);
+        return data;
+    }
+
+    static byte[] decrypt(FileEncryptionService fileEncryptionService, Path encrypted, SecretKey dek)
+            throws Exception {
+        var plaintext = new ByteArrayOutputStream();
+        try (var in = FileChannel.open(encrypted, StandardOpenOption.READ)) {
+            fileEncryptionService.decrypt(in, Channels.newChannel(plaintext), dek);
+        }
+        return plaintext.toByteArray();
+    }
+}
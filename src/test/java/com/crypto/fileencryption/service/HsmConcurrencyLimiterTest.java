@@ -0,0 +1,202 @@
+package com.crypto.fileencryption.service;
+
+import com.crypto.fileencryption.service.HsmConcurrencyLimiter.CircuitState;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.crypto.AEADBadTagException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Circuit breaker and queue of the HSM limiter: sustained failures open the
+ * circuit, a single trial call after the open interval closes or reopens it,
+ * and callers over the limit wait in a bounded queue with a deadline
+ */
+class HsmConcurrencyLimiterTest {
+
+    private static final long OPEN_MS = 200;
+    private static final long QUEUE_TIMEOUT_MS = 200;
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger attempted = new AtomicInteger();
+    private HsmConcurrencyLimiter limiter;
+
+    @BeforeEach
+    void setUp() {
+        limiter = new HsmConcurrencyLimiter(meterRegistry);
+        ReflectionTestUtils.setField(limiter, "initialLimit", 2);
+        ReflectionTestUtils.setField(limiter, "minLimit", 1);
+        ReflectionTestUtils.setField(limiter, "maxLimit", 2);
+        ReflectionTestUtils.setField(limiter, "maxQueue", 1);
+        ReflectionTestUtils.setField(limiter, "queueTimeoutMs", QUEUE_TIMEOUT_MS);
+        ReflectionTestUtils.setField(limiter, "smoothing", 0.2);
+        ReflectionTestUtils.setField(limiter, "failureThreshold", 3);
+        ReflectionTestUtils.setField(limiter, "openMs", OPEN_MS);
+        limiter.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void consecutiveFailuresOpenTheCircuit() throws Exception {
+        fail(2);
+        succeed();
+        // The success started the count over
+        fail(2);
+        assertThat(limiter.getCircuitState()).isEqualTo(CircuitState.CLOSED);
+
+        fail(1);
+
+        assertThat(limiter.getCircuitState()).isEqualTo(CircuitState.OPEN);
+        int before = attempted.get();
+        assertThatThrownBy(this::succeed)
+                .isInstanceOfSatisfying(HsmUnavailableException.class, e -> assertThat(e.getRetryAfterMs())
+                        .isBetween(1L, OPEN_MS))
+                .hasMessage("HSM circuit breaker is open");
+        assertThat(attempted.get()).isEqualTo(before);
+        assertThat(rejections("circuit_open")).isEqualTo(1);
+    }
+
+    @Test
+    void callerErrorsDoNotOpenTheCircuit() {
+        for (int i = 0; i < 10; i++) {
+            assertThatThrownBy(() -> limiter.execute(() -> {
+                throw new AEADBadTagException("Tag mismatch");
+            })).isInstanceOf(AEADBadTagException.class);
+        }
+
+        assertThat(limiter.getCircuitState()).isEqualTo(CircuitState.CLOSED);
+    }
+
+    @Test
+    void successfulTrialClosesTheCircuit() throws Exception {
+        fail(3);
+        Thread.sleep(OPEN_MS + 50);
+
+        succeed();
+
+        assertThat(limiter.getCircuitState()).isEqualTo(CircuitState.CLOSED);
+        succeed();
+    }
+
+    @Test
+    void failedTrialReopensTheCircuit() throws Exception {
+        fail(3);
+        Thread.sleep(OPEN_MS + 50);
+
+        fail(1);
+
+        assertThat(limiter.getCircuitState()).isEqualTo(CircuitState.OPEN);
+        assertThatThrownBy(this::succeed).isInstanceOf(HsmUnavailableException.class);
+    }
+
+    @Test
+    void onlyOneTrialWhileHalfOpen() throws Exception {
+        fail(3);
+        Thread.sleep(OPEN_MS + 50);
+        var release = new CountDownLatch(1);
+        Future<?> trial = hold(release);
+        awaitInFlight(1);
+        assertThat(limiter.getCircuitState()).isEqualTo(CircuitState.HALF_OPEN);
+
+        assertThatThrownBy(this::succeed)
+                .isInstanceOf(HsmUnavailableException.class)
+                .hasMessage("HSM circuit breaker is half-open");
+
+        release.countDown();
+        trial.get(1, TimeUnit.SECONDS);
+        assertThat(limiter.getCircuitState()).isEqualTo(CircuitState.CLOSED);
+    }
+
+    @Test
+    void callersOverTheLimitWaitInABoundedQueue() throws Exception {
+        var release = new CountDownLatch(1);
+        Future<?> first = hold(release);
+        Future<?> second = hold(release);
+        awaitInFlight(2);
+        Future<?> queued = executor.submit(() -> {
+            succeed();
+            return null;
+        });
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (limiter.getQueued() < 1) {
+            assertThat(System.nanoTime()).isLessThan(deadline);
+            Thread.sleep(5);
+        }
+
+        assertThatThrownBy(this::succeed)
+                .isInstanceOf(HsmUnavailableException.class)
+                .hasMessage("HSM request queue is full");
+
+        release.countDown();
+        first.get(1, TimeUnit.SECONDS);
+        second.get(1, TimeUnit.SECONDS);
+        queued.get(1, TimeUnit.SECONDS);
+        assertThat(rejections("queue_full")).isEqualTo(1);
+    }
+
+    @Test
+    void queuedCallerGivesUpAtTheDeadline() throws Exception {
+        var release = new CountDownLatch(1);
+        hold(release);
+        hold(release);
+        awaitInFlight(2);
+
+        long start = System.nanoTime();
+        assertThatThrownBy(this::succeed)
+                .isInstanceOf(HsmUnavailableException.class)
+                .hasMessage("Timed out waiting for an HSM permit");
+
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThanOrEqualTo(QUEUE_TIMEOUT_MS);
+        assertThat(rejections("timeout")).isEqualTo(1);
+        release.countDown();
+    }
+
+    private void succeed() throws Exception {
+        limiter.execute(() -> attempted.incrementAndGet());
+    }
+
+    private void fail(int calls) {
+        for (int i = 0; i < calls; i++) {
+            assertThatThrownBy(() -> limiter.execute(() -> {
+                attempted.incrementAndGet();
+                throw new IllegalStateException("CKR_DEVICE_ERROR");
+            })).isInstanceOf(IllegalStateException.class);
+        }
+    }
+
+    /**
+     * Start a call that holds its permit until released
+     */
+    private Future<?> hold(CountDownLatch release) {
+        return executor.submit(() -> limiter.execute(() -> release.await(5, TimeUnit.SECONDS)));
+    }
+
+    private void awaitInFlight(int calls) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (limiter.getInFlight() < calls) {
+            assertThat(System.nanoTime()).isLessThan(deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private double rejections(String reason) {
+        return meterRegistry.get("hsm.limiter.rejections").tag("reason", reason).counter().count();
+    }
+}
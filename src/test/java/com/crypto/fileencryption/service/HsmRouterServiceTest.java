@@ -0,0 +1,175 @@
+package com.crypto.fileencryption.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Slot health of the router: a failing slot is ejected after the failure
+ * threshold and traffic moves to the healthy ones, and the health check
+ * re-admits it once it recovers
+ */
+@SpringJUnitConfig({ HsmRouterServiceTest.Config.class, HsmRouterService.class, HsmConcurrencyLimiter.class,
+        Tracer.class })
+@TestPropertySource(properties = {
+        "hsm.slots.simulated=3",
+        "hsm.health.failure-threshold=2",
+        // Slot ejection is under test, not the circuit breaker
+        "hsm.circuit.failure-threshold=1000",
+        "tracing.enabled=false"
+})
+class HsmRouterServiceTest {
+
+    private static final String FAULTY = "simulated-1";
+
+    @Autowired
+    private HsmRouterService router;
+
+    @Autowired
+    private HsmConcurrencyLimiter limiter;
+
+    @MockBean
+    private SimulatedHsmService device;
+
+    @MockBean
+    private AuditLogService auditLogService;
+
+    @Configuration
+    static class Config {
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        // A KEK that wraps keys as they are; probes only compare the round trip
+        when(device.encryptWithKek(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        when(device.decryptWithKek(any())).thenAnswer(invocation -> invocation.getArgument(0));
+    }
+
+    @AfterEach
+    void tearDown() {
+        for (HsmSlot slot : router.getActiveSlots()) {
+            router.setSimulatedSlotFault(slot.getId(), false, 0);
+        }
+        router.checkSlotHealth();
+        limiter.reset();
+    }
+
+    @Test
+    void faultySlotIsEjectedAndTrafficMovesToTheOthers() throws Exception {
+        HsmSlot faulty = slot(FAULTY);
+        long completedElsewhere = completed() - faulty.getCompleted();
+        long faultyCompleted = faulty.getCompleted();
+        router.setSimulatedSlotFault(FAULTY, true, 0);
+
+        assertThat(wrapAll(30)).isEqualTo(2);
+        assertThat(faulty.isHealthy()).isFalse();
+        assertThat(faulty.getCompleted()).isEqualTo(faultyCompleted);
+        verify(auditLogService).record(eq("hsm.slot.ejected"), eq(FAULTY), eq(AuditLogService.FAILURE), anyString());
+
+        // Once ejected, every call goes to a healthy slot
+        assertThat(wrapAll(30)).isZero();
+        assertThat(faulty.getCompleted()).isEqualTo(faultyCompleted);
+        assertThat(completed() - faulty.getCompleted() - completedElsewhere).isEqualTo(58);
+    }
+
+    @Test
+    void recoveredSlotIsReadmittedByTheHealthCheck() throws Exception {
+        router.setSimulatedSlotFault(FAULTY, true, 0);
+        wrapAll(30);
+
+        // Still offline: stays out of rotation
+        router.checkSlotHealth();
+        HsmSlot faulty = slot(FAULTY);
+        assertThat(faulty.isHealthy()).isFalse();
+        verify(auditLogService, never()).success(eq("hsm.slot.readmitted"), anyString(), any());
+
+        router.setSimulatedSlotFault(FAULTY, false, 0);
+        router.checkSlotHealth();
+        long faultyCompleted = faulty.getCompleted();
+
+        assertThat(faulty.isHealthy()).isTrue();
+        verify(auditLogService).success("hsm.slot.readmitted", FAULTY, null);
+        assertThat(wrapAll(30)).isZero();
+        // Back in the rotation with an equal share
+        assertThat(faulty.getCompleted() - faultyCompleted).isEqualTo(10);
+    }
+
+    @Test
+    void callerErrorsDoNotEjectASlot() throws Exception {
+        when(device.decryptWithKek(any())).thenThrow(new IllegalArgumentException("Ciphertext too short"));
+
+        for (int i = 0; i < 30; i++) {
+            assertThatThrownBy(() -> router.decryptWithKek(new byte[4]))
+                    .isInstanceOf(IllegalArgumentException.class);
+        }
+
+        assertThat(router.getActiveSlots()).allMatch(HsmSlot::isHealthy);
+    }
+
+    @Test
+    void failsWhenEverySlotIsEjected() throws Exception {
+        for (HsmSlot slot : router.getActiveSlots()) {
+            router.setSimulatedSlotFault(slot.getId(), true, 0);
+        }
+
+        assertThat(wrapAll(6)).isEqualTo(6);
+
+        assertThat(router.getActiveSlots()).noneMatch(HsmSlot::isHealthy);
+        assertThatThrownBy(() -> router.encryptWithKek(new byte[32]))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("No healthy HSM slot available");
+    }
+
+    /**
+     * Wrap keys one after another
+     *
+     * @return Number of failed wraps
+     */
+    private int wrapAll(int keys) {
+        int failed = 0;
+        for (int i = 0; i < keys; i++) {
+            try {
+                assertThat(router.encryptWithKek(new byte[32])).hasSize(32);
+            } catch (Exception e) {
+                assertThat(e).hasMessageContaining("offline");
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    private long completed() {
+        return router.getActiveSlots().stream().mapToLong(HsmSlot::getCompleted).sum();
+    }
+
+    private HsmSlot slot(String id) {
+        Map<String, HsmSlot> slots = router.getActiveSlots().stream()
+                .collect(Collectors.toMap(HsmSlot::getId, Function.identity()));
+        return slots.get(id);
+    }
+}
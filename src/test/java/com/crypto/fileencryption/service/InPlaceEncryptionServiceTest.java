@@ -0,0 +1,180 @@
+package com.crypto.fileencryption.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestFactory;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Crash recovery of in-place encryption: a run is cut short before each of
+ * its writes, as a crash would, and recovery must still produce a file that
+ * decrypts to the original
+ */
+@SpringJUnitConfig({ CryptoTestSupport.Storage.class, InPlaceEncryptionService.class })
+@TestPropertySource(properties = {
+        "encryption.chunk-size=4096",
+        // No provider calibration, which is not under test here
+        "encryption.provider.name=SunJCE",
+        "encryption.in-place.recover-on-startup=false",
+        "file.storage.durability=fsync"
+})
+class InPlaceEncryptionServiceTest {
+
+    private static final int CHUNK_SIZE = 4096;
+    // Three full chunks and a short last one
+    private static final int PLAINTEXT_SIZE = 3 * CHUNK_SIZE + 1000;
+
+    @TempDir
+    static Path data;
+
+    @DynamicPropertySource
+    static void storage(DynamicPropertyRegistry registry) {
+        registry.add("file.storage.location", () -> data.toString());
+    }
+
+    @Autowired
+    private InPlaceEncryptionService inPlaceEncryptionService;
+
+    @Autowired
+    private FileEncryptionService fileEncryptionService;
+
+    @MockBean
+    private DekService dekService;
+
+    @MockBean
+    private AuditLogService auditLogService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        CryptoTestSupport.stubKeys(dekService);
+    }
+
+    @AfterEach
+    void tearDown() {
+        inPlaceEncryptionService.setWriteObserver((step, index) -> { });
+    }
+
+    @Test
+    void writesChunksFromTheLastOneAndTheHeaderLast() throws Exception {
+        List<String> steps = new ArrayList<>();
+        inPlaceEncryptionService.setWriteObserver((step, index) -> steps.add(name(step, index)));
+        byte[] plaintext = createFile("ordered.bin");
+
+        long size = inPlaceEncryptionService.encrypt("ordered.bin");
+
+        assertThat(steps).isEqualTo(expectedWrites());
+        assertThat(size).isEqualTo(Files.size(data.resolve("ordered.bin.encrypted")));
+        assertEncrypted("ordered.bin", plaintext);
+    }
+
+    @TestFactory
+    Stream<DynamicTest> recoversFromACrashBeforeEachWrite() {
+        List<String> writes = expectedWrites();
+        return writes.stream().map(cut -> DynamicTest.dynamicTest("crash before " + cut,
+                () -> crashAndRecover("cut-" + writes.indexOf(cut) + ".bin", cut, false)));
+    }
+
+    @TestFactory
+    Stream<DynamicTest> recoversFromATornChunk() {
+        return expectedWrites().stream().filter(cut -> cut.startsWith("chunk")).map(cut -> DynamicTest.dynamicTest(
+                "crash during " + cut, () -> crashAndRecover("torn-" + cut.replace(' ', '-') + ".bin", cut, true)));
+    }
+
+    @Test
+    void recoveryIsANoOpWithoutJournals() {
+        assertThat(inPlaceEncryptionService.recoverAll()).isZero();
+    }
+
+    /**
+     * Stop the encryption of a new file before the write "cut", optionally
+     * leaving garbage where a chunk was being written, then recover it
+     */
+    private void crashAndRecover(String filename, String cut, boolean torn) throws Exception {
+        byte[] plaintext = createFile(filename);
+        Path source = data.resolve(filename);
+        inPlaceEncryptionService.setWriteObserver((step, index) -> {
+            if (name(step, index).equals(cut)) {
+                if (torn) {
+                    tear(source, index);
+                }
+                throw new IOException("Simulated crash before " + cut);
+            }
+        });
+
+        assertThatThrownBy(() -> inPlaceEncryptionService.encrypt(filename))
+                .hasMessage("Simulated crash before " + cut);
+        inPlaceEncryptionService.setWriteObserver((step, index) -> { });
+
+        assertThat(inPlaceEncryptionService.recoverAll()).isEqualTo(1);
+        assertEncrypted(filename, plaintext);
+        assertThat(inPlaceEncryptionService.recoverAll()).isZero();
+    }
+
+    /**
+     * Part of a sealed chunk reached the disk, the rest is still plaintext
+     */
+    private static void tear(Path source, long index) throws IOException {
+        long offset = FileEncryptionService.encryptedSize(PLAINTEXT_SIZE, CHUNK_SIZE, index);
+        long end = FileEncryptionService.encryptedSize(PLAINTEXT_SIZE, CHUNK_SIZE, index + 1);
+        try (var file = FileChannel.open(source, StandardOpenOption.WRITE)) {
+            var garbage = ByteBuffer.wrap(CryptoTestSupport.randomBytes((int) (end - offset) / 2));
+            while (garbage.hasRemaining()) {
+                file.write(garbage, offset + garbage.position());
+            }
+        }
+    }
+
+    private void assertEncrypted(String filename, byte[] plaintext) throws Exception {
+        assertThat(data.resolve(filename)).doesNotExist();
+        assertThat(data.resolve(".inplace")).isEmptyDirectory();
+        String encryptedDek = Files.readString(data.resolve(filename + ".dek"), StandardCharsets.UTF_8);
+        byte[] decrypted = CryptoTestSupport.decrypt(fileEncryptionService, data.resolve(filename + ".encrypted"),
+                CryptoTestSupport.decode(encryptedDek));
+        assertThat(decrypted).isEqualTo(plaintext);
+    }
+
+    private static byte[] createFile(String filename) throws IOException {
+        byte[] plaintext = CryptoTestSupport.randomBytes(PLAINTEXT_SIZE);
+        Files.write(data.resolve(filename), plaintext);
+        return plaintext;
+    }
+
+    private static List<String> expectedWrites() {
+        List<String> writes = new ArrayList<>();
+        for (long index = FileEncryptionService.chunkCount(PLAINTEXT_SIZE, CHUNK_SIZE) - 1; index >= 0; index--) {
+            writes.add(name("slot", index));
+            writes.add(name("chunk", index));
+        }
+        writes.add("header");
+        writes.add("dek");
+        writes.add("rename");
+        writes.add("cleanup");
+        return writes;
+    }
+
+    private static String name(String step, long index) {
+        return index < 0 ? step : step + " " + index;
+    }
+}
@@ -0,0 +1,197 @@
+package com.crypto.fileencryption.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Manifests of incremental re-encryption: unchanged chunks are kept, the
+ * result is bound to one version, and a manifest that does not describe the
+ * current files leads to a full encryption under a new DEK
+ */
+@SpringJUnitConfig({ CryptoTestSupport.Storage.class, IncrementalEncryptionService.class })
+@TestPropertySource(properties = {
+        "encryption.chunk-size=4096",
+        // No provider calibration, which is not under test here
+        "encryption.provider.name=SunJCE",
+        "encryption.incremental.enabled=true",
+        "file.storage.durability=fsync"
+})
+class IncrementalEncryptionServiceTest {
+
+    private static final int CHUNK_SIZE = 4096;
+    // Seven full chunks and a short last one
+    private static final int PLAINTEXT_SIZE = 7 * CHUNK_SIZE + 100;
+    private static final int CHUNKS = 8;
+
+    @TempDir
+    static Path data;
+
+    @DynamicPropertySource
+    static void storage(DynamicPropertyRegistry registry) {
+        registry.add("file.storage.location", () -> data.toString());
+    }
+
+    @Autowired
+    private IncrementalEncryptionService incrementalEncryptionService;
+
+    @Autowired
+    private FileEncryptionService fileEncryptionService;
+
+    @MockBean
+    private DekService dekService;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        CryptoTestSupport.stubKeys(dekService);
+    }
+
+    @Test
+    void sealsOnlyTheChangedChunks() throws Exception {
+        byte[] first = CryptoTestSupport.randomBytes(PLAINTEXT_SIZE);
+        var full = encrypt("changed.bin", first);
+        assertThat(full.isIncremental()).isFalse();
+        assertThat(full.getSealed()).isEqualTo(CHUNKS);
+        byte[] previous = Files.readAllBytes(data.resolve("changed.bin.encrypted"));
+        String dek = Files.readString(data.resolve("changed.bin.dek"));
+
+        byte[] second = first.clone();
+        second[3 * CHUNK_SIZE + 10] ^= 1;
+        var incremental = encrypt("changed.bin", second);
+
+        assertThat(incremental.isIncremental()).isTrue();
+        assertThat(incremental.getChunks()).isEqualTo(CHUNKS);
+        assertThat(incremental.getSealed()).isEqualTo(1);
+        assertThat(data.resolve("changed.bin.dek")).hasContent(dek);
+        byte[] current = Files.readAllBytes(data.resolve("changed.bin.encrypted"));
+        for (int index = 0; index < CHUNKS; index++) {
+            assertThat(Arrays.equals(chunk(previous, index), chunk(current, index)))
+                    .as("chunk %d kept", index)
+                    .isEqualTo(index != 3);
+        }
+        assertThat(decrypt("changed.bin")).isEqualTo(second);
+    }
+
+    @Test
+    void rejectsAChunkOfAnOlderVersion() throws Exception {
+        byte[] first = CryptoTestSupport.randomBytes(PLAINTEXT_SIZE);
+        encrypt("swapped.bin", first);
+        byte[] previous = Files.readAllBytes(data.resolve("swapped.bin.encrypted"));
+        byte[] second = first.clone();
+        second[2 * CHUNK_SIZE] ^= 1;
+        encrypt("swapped.bin", second);
+
+        // Put the old chunk 2 back: it passes its own tag, since the DEK and position are the same
+        Path encrypted = data.resolve("swapped.bin.encrypted");
+        byte[] current = Files.readAllBytes(encrypted);
+        byte[] oldChunk = chunk(previous, 2);
+        System.arraycopy(oldChunk, 0, current, (int) chunkOffset(2), oldChunk.length);
+        Files.write(encrypted, current);
+
+        assertThatThrownBy(() -> decrypt("swapped.bin")).isInstanceOf(AEADBadTagException.class);
+    }
+
+    @Test
+    void resealsTheOldLastChunkWhenTheFileGrows() throws Exception {
+        byte[] first = CryptoTestSupport.randomBytes(PLAINTEXT_SIZE);
+        encrypt("grown.bin", first);
+
+        byte[] second = Arrays.copyOf(first, PLAINTEXT_SIZE + 5000);
+        System.arraycopy(CryptoTestSupport.randomBytes(5000), 0, second, PLAINTEXT_SIZE, 5000);
+        var incremental = encrypt("grown.bin", second);
+
+        assertThat(incremental.isIncremental()).isTrue();
+        assertThat(incremental.getChunks()).isEqualTo(CHUNKS + 1);
+        assertThat(incremental.getSealed()).isEqualTo(2);
+        assertThat(decrypt("grown.bin")).isEqualTo(second);
+    }
+
+    @Test
+    void encryptsInFullWhenTheEncryptedFileWasReplaced() throws Exception {
+        byte[] plaintext = CryptoTestSupport.randomBytes(PLAINTEXT_SIZE);
+        encrypt("replaced.bin", plaintext);
+        String dek = Files.readString(data.resolve("replaced.bin.dek"));
+
+        // Encrypted again by another path, with the same ".dek"
+        try (var out = FileChannel.open(data.resolve("replaced.bin.encrypted"), StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            fileEncryptionService.encrypt(Channels.newChannel(new ByteArrayInputStream(plaintext)), PLAINTEXT_SIZE,
+                    out, CryptoTestSupport.decode(dek));
+        }
+        var result = encrypt("replaced.bin", plaintext);
+
+        assertThat(result.isIncremental()).isFalse();
+        assertThat(result.getSealed()).isEqualTo(CHUNKS);
+        assertThat(data.resolve("replaced.bin.dek")).content().isNotEqualTo(dek);
+        assertThat(decrypt("replaced.bin")).isEqualTo(plaintext);
+    }
+
+    @Test
+    void encryptsInFullWhenTheManifestWasTamperedWith() throws Exception {
+        byte[] first = CryptoTestSupport.randomBytes(PLAINTEXT_SIZE);
+        encrypt("tampered.bin", first);
+
+        // Claim that chunk 0 is what the next version will have there
+        byte[] second = first.clone();
+        second[0] ^= 1;
+        Path manifestPath = data.resolve(".manifests").resolve("tampered.bin.json");
+        var manifest = (ObjectNode) objectMapper.readTree(manifestPath.toFile());
+        byte[] hashes = Base64.getDecoder().decode(manifest.get("chunkHashes").asText());
+        hashes[0] ^= 1;
+        manifest.put("chunkHashes", Base64.getEncoder().encodeToString(hashes));
+        objectMapper.writeValue(manifestPath.toFile(), manifest);
+
+        var result = encrypt("tampered.bin", second);
+
+        assertThat(result.isIncremental()).isFalse();
+        assertThat(decrypt("tampered.bin")).isEqualTo(second);
+    }
+
+    private IncrementalEncryptionService.Result encrypt(String filename, byte[] plaintext) throws Exception {
+        Path source = data.resolve(filename);
+        Files.write(source, plaintext);
+        try (var in = FileChannel.open(source, StandardOpenOption.READ)) {
+            return incrementalEncryptionService.encrypt(filename, in, plaintext.length);
+        }
+    }
+
+    private byte[] decrypt(String filename) throws Exception {
+        SecretKey dek = CryptoTestSupport.decode(Files.readString(data.resolve(filename + ".dek")));
+        return CryptoTestSupport.decrypt(fileEncryptionService, data.resolve(filename + ".encrypted"), dek);
+    }
+
+    private static long chunkOffset(int index) {
+        return FileEncryptionService.encryptedSize(PLAINTEXT_SIZE, CHUNK_SIZE, index);
+    }
+
+    /**
+     * Sealed chunk of a file of PLAINTEXT_SIZE bytes
+     */
+    private static byte[] chunk(byte[] encrypted, int index) {
+        return Arrays.copyOfRange(encrypted, (int) chunkOffset(index), (int) chunkOffset(index + 1));
+    }
+}
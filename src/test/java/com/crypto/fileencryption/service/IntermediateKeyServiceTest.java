@@ -0,0 +1,138 @@
+package com.crypto.fileencryption.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import javax.crypto.AEADBadTagException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Intermediate keys across HSM mode switches: a key wrapped in one mode is
+ * neither used for new DEKs nor opened from the cache in another
+ */
+@SpringJUnitConfig({ IntermediateKeyServiceTest.Config.class, IntermediateKeyService.class, RandomSource.class })
+class IntermediateKeyServiceTest {
+
+    @Autowired
+    private IntermediateKeyService intermediateKeyService;
+
+    @Autowired
+    private SwitchableHsm hsm;
+
+    @MockBean
+    private AuditLogService auditLogService;
+
+    @Configuration
+    static class Config {
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+
+        @Bean
+        SwitchableHsm hsm() {
+            return new SwitchableHsm();
+        }
+    }
+
+    /**
+     * One KEK per mode: a key wrapped in one mode does not unwrap in the other
+     */
+    static class SwitchableHsm implements HsmService {
+        volatile String mode = "simulated";
+        final AtomicInteger wraps = new AtomicInteger();
+        final AtomicInteger unwraps = new AtomicInteger();
+
+        @Override
+        public byte[] encryptWithKek(byte[] plaintext) {
+            wraps.incrementAndGet();
+            byte[] marker = mode.getBytes();
+            byte[] wrapped = Arrays.copyOf(marker, marker.length + plaintext.length);
+            System.arraycopy(plaintext, 0, wrapped, marker.length, plaintext.length);
+            return wrapped;
+        }
+
+        @Override
+        public byte[] decryptWithKek(byte[] ciphertext) throws Exception {
+            unwraps.incrementAndGet();
+            byte[] marker = mode.getBytes();
+            if (ciphertext.length < marker.length
+                    || !Arrays.equals(marker, Arrays.copyOf(ciphertext, marker.length))) {
+                throw new AEADBadTagException("Wrapped under another KEK");
+            }
+            return Arrays.copyOfRange(ciphertext, marker.length, ciphertext.length);
+        }
+
+        @Override
+        public String getKekAlgorithm() {
+            return "AES";
+        }
+
+        @Override
+        public int getKekKeySize() {
+            return 256;
+        }
+
+        @Override
+        public String getMode() {
+            return mode;
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        hsm.mode = "simulated";
+    }
+
+    @Test
+    void modeSwitchWrapsANewIntermediateKeyUnderTheNewKek() throws Exception {
+        var simulated = intermediateKeyService.current();
+        assertThat(intermediateKeyService.current().getWrapped()).isEqualTo(simulated.getWrapped());
+        int wraps = hsm.wraps.get();
+
+        hsm.mode = "real";
+        var real = intermediateKeyService.current();
+
+        assertThat(hsm.wraps).hasValue(wraps + 1);
+        assertThat(real.getKey().getEncoded()).isNotEqualTo(simulated.getKey().getEncoded());
+        assertThat(new String(real.getWrapped(), 0, 4)).isEqualTo("real");
+        // Opens under the real KEK, and is reused while the mode stays
+        assertThat(hsm.decryptWithKek(real.getWrapped())).isEqualTo(real.getKey().getEncoded());
+        assertThat(intermediateKeyService.current().getWrapped()).isEqualTo(real.getWrapped());
+
+        hsm.mode = "simulated";
+        assertThat(intermediateKeyService.current().getWrapped()).isNotEqualTo(simulated.getWrapped())
+                .isNotEqualTo(real.getWrapped());
+    }
+
+    @Test
+    void cachedKeysDoNotOpenEnvelopesOfAnotherMode() throws Exception {
+        var simulated = intermediateKeyService.current();
+        int unwraps = hsm.unwraps.get();
+        assertThat(intermediateKeyService.unwrap(simulated.getWrapped()).getEncoded())
+                .isEqualTo(simulated.getKey().getEncoded());
+        assertThat(hsm.unwraps).hasValue(unwraps);
+
+        hsm.mode = "real";
+        assertThatThrownBy(() -> intermediateKeyService.unwrap(simulated.getWrapped()))
+                .isInstanceOf(AEADBadTagException.class);
+        assertThat(hsm.unwraps).hasValue(unwraps + 1);
+
+        // Still cached for its own mode
+        hsm.mode = "simulated";
+        assertThat(intermediateKeyService.unwrap(simulated.getWrapped()).getEncoded())
+                .isEqualTo(simulated.getKey().getEncoded());
+        assertThat(hsm.unwraps).hasValue(unwraps + 1);
+    }
+}
@@ -0,0 +1,259 @@
+package com.crypto.fileencryption.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Lanes of the admission controller: small jobs always have room, large jobs
+ * are admitted in arrival order and are not starved by small ones, and a
+ * large job yields to small ones between its chunks. Past the queue limit
+ * new work is rejected, and a working set larger than the budget still runs.
+ */
+@SpringJUnitConfig({ MemoryAdmissionControllerTest.Config.class, MemoryAdmissionController.class, Tracer.class,
+        ChunkPipeline.class, DirectBufferPool.class })
+@TestPropertySource(properties = {
+        "admission.memory-budget-bytes=1000",
+        "admission.small-file-bytes=100",
+        // 200 bytes only small jobs may use
+        "admission.small-reserve-percent=20",
+        "admission.max-queue=8",
+        "admission.queue-timeout-ms=5000",
+        "admission.small-concurrency=0",
+        "admission.large-concurrency=2",
+        "admission.large-yield-max-ms=300"
+})
+class MemoryAdmissionControllerTest {
+
+    private static final long SMALL = 100;
+    private static final long LARGE = 1_000_000;
+    // Long enough for a waiting admission to have gone through if it could
+    private static final long STILL_WAITING_MS = 200;
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @Autowired
+    private MemoryAdmissionController admissionController;
+
+    @Autowired
+    private ChunkPipeline chunkPipeline;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final List<Future<MemoryAdmissionController.Reservation>> admissions = new ArrayList<>();
+
+    @Configuration
+    static class Config {
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+
+    /**
+     * Release every reservation, including those of admissions still
+     * waiting, which go through as the others are released
+     */
+    @AfterEach
+    void tearDown() throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        List<Future<MemoryAdmissionController.Reservation>> pending = new ArrayList<>(admissions);
+        while (!pending.isEmpty() && System.nanoTime() < deadline) {
+            for (var iterator = pending.iterator(); iterator.hasNext();) {
+                var admission = iterator.next();
+                if (admission.isDone()) {
+                    admission.get().close();
+                    iterator.remove();
+                }
+            }
+            Thread.sleep(5);
+        }
+        assertThat(pending).isEmpty();
+        assertThat(admissionController.getReserved()).isZero();
+    }
+
+    @AfterAll
+    static void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void smallJobsAreNotStuckBehindLargeOnes() throws Exception {
+        admit(400, LARGE);
+        admit(400, LARGE);
+        Future<MemoryAdmissionController.Reservation> waitingLarge = admitAsync(400, LARGE);
+        assertStillWaiting(waitingLarge);
+
+        // Fits in the small-job reserve that large jobs cannot use
+        assertThat(admitAsync(150, SMALL).get(1, TimeUnit.SECONDS).getBytes()).isEqualTo(150);
+        assertStillWaiting(waitingLarge);
+    }
+
+    @Test
+    void largeJobsAreAdmittedInArrivalOrder() throws Exception {
+        var running = admit(750, LARGE);
+        Future<MemoryAdmissionController.Reservation> first = admitAsync(100, LARGE);
+        assertStillWaiting(first);
+        // Would fit on its own, but must not overtake the job that came first
+        Future<MemoryAdmissionController.Reservation> next = admitAsync(40, LARGE);
+        assertStillWaiting(next);
+
+        running.close();
+
+        assertThat(first.get(1, TimeUnit.SECONDS).getBytes()).isEqualTo(100);
+        assertThat(next.get(1, TimeUnit.SECONDS).getBytes()).isEqualTo(40);
+    }
+
+    @Test
+    void smallJobsCannotStarveLargeOnes() throws Exception {
+        admit(400, LARGE);
+        var small = admit(150, SMALL);
+        Future<MemoryAdmissionController.Reservation> large = admitAsync(400, LARGE);
+        assertStillWaiting(large);
+
+        // Memory is free, but with a large job waiting small ones are held to the reserve
+        Future<MemoryAdmissionController.Reservation> nextSmall = admitAsync(100, SMALL);
+        assertStillWaiting(nextSmall);
+
+        small.close();
+
+        assertThat(large.get(1, TimeUnit.SECONDS).getBytes()).isEqualTo(400);
+        assertThat(nextSmall.get(1, TimeUnit.SECONDS).getBytes()).isEqualTo(100);
+    }
+
+    @Test
+    void largeLaneIsLimitedInConcurrency() throws Exception {
+        var first = admit(100, LARGE);
+        admit(100, LARGE);
+        Future<MemoryAdmissionController.Reservation> third = admitAsync(100, LARGE);
+        assertStillWaiting(third);
+
+        first.close();
+
+        assertThat(third.get(1, TimeUnit.SECONDS).getBytes()).isEqualTo(100);
+    }
+
+    @Test
+    void largeJobYieldsUntilSmallOnesFinish() throws Exception {
+        var small = admit(50, SMALL);
+        var yielding = new CountDownLatch(1);
+        Future<Long> yielded = executor.submit(() -> {
+            try (var large = admissionController.admit(100, LARGE)) {
+                yielding.countDown();
+                return timePass(chunkPipeline.currentGate());
+            }
+        });
+        assertThat(yielding.await(1, TimeUnit.SECONDS)).isTrue();
+        Thread.sleep(100);
+        small.close();
+
+        long millis = yielded.get(1, TimeUnit.SECONDS);
+        assertThat(millis).isBetween(90L, 280L);
+    }
+
+    @Test
+    void largeJobYieldsForAtMostTheYieldLimit() throws Exception {
+        admit(50, SMALL);
+        Future<Long> yielded = executor.submit(() -> {
+            try (var large = admissionController.admit(100, LARGE)) {
+                return timePass(chunkPipeline.currentGate());
+            }
+        });
+
+        // Keeps making progress while small jobs keep running
+        assertThat(yielded.get(2, TimeUnit.SECONDS)).isBetween(280L, 1000L);
+    }
+
+    @Test
+    void onlyLargeJobsAreGated() throws Exception {
+        Future<Long> alone = executor.submit(() -> {
+            try (var large = admissionController.admit(100, LARGE)) {
+                return timePass(chunkPipeline.currentGate());
+            }
+        });
+        assertThat(alone.get(1, TimeUnit.SECONDS)).isLessThan(50L);
+
+        Future<Boolean> smallGated = executor.submit(() -> {
+            try (var small = admissionController.admit(50, SMALL)) {
+                return chunkPipeline.currentGate() != null;
+            }
+        });
+        assertThat(smallGated.get(1, TimeUnit.SECONDS)).isFalse();
+    }
+
+    @Test
+    void rejectsWhenTheQueueIsFull() throws Exception {
+        admit(800, LARGE);
+        for (int i = 0; i < 8; i++) {
+            admitAsync(300, SMALL);
+        }
+        awaitQueued(8);
+
+        assertThatThrownBy(() -> admissionController.admit(300, SMALL))
+                .isInstanceOf(AdmissionRejectedException.class)
+                .hasMessage("Too many file operations waiting for memory");
+    }
+
+    @Test
+    void workingSetLargerThanTheBudgetStillRuns() throws Exception {
+        // Reserves the whole lane rather than waiting forever
+        assertThat(admit(5000, SMALL).getBytes()).isEqualTo(1000);
+        tearDown();
+        assertThat(admit(5000, LARGE).getBytes()).isEqualTo(800);
+    }
+
+    private MemoryAdmissionController.Reservation admit(long bytes, long fileSize) throws Exception {
+        return admitAsync(bytes, fileSize).get(1, TimeUnit.SECONDS);
+    }
+
+    private Future<MemoryAdmissionController.Reservation> admitAsync(long bytes, long fileSize) {
+        Future<MemoryAdmissionController.Reservation> admission =
+                executor.submit(() -> admissionController.admit(bytes, fileSize));
+        admissions.add(admission);
+        return admission;
+    }
+
+    private void awaitQueued(int waiting) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (meterRegistry.find("admission.queue").gauges().stream().mapToDouble(Gauge::value).sum() < waiting) {
+            assertThat(System.nanoTime()).isLessThan(deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static void assertStillWaiting(Future<?> admission) {
+        assertThatThrownBy(() -> admission.get(STILL_WAITING_MS, TimeUnit.MILLISECONDS))
+                .isInstanceOf(TimeoutException.class);
+    }
+
+    /**
+     * @return Milliseconds the gate held the chunk back
+     */
+    private static long timePass(ChunkPipeline.ChunkGate gate) throws InterruptedException {
+        assertThat(gate).isNotNull();
+        long start = System.nanoTime();
+        gate.pass(0);
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}
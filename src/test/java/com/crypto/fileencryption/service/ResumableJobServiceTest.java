@@ -0,0 +1,222 @@
+package com.crypto.fileencryption.service;
+
+import com.crypto.fileencryption.model.CryptoJob;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checkpoints of resumable jobs: a job that fails part-way continues from
+ * its last checkpoint, and the finished file is the same as if it had been
+ * written in one go
+ */
+@SpringJUnitConfig({ CryptoTestSupport.Storage.class, ResumableJobService.class, MemoryAdmissionController.class })
+@TestPropertySource(properties = {
+        "encryption.chunk-size=4096",
+        // No provider calibration, which is not under test here
+        "encryption.provider.name=SunJCE",
+        // Chunks run on the job thread, so every chunk before the failure is written
+        "encryption.pipeline.workers=0",
+        // A checkpoint after every chunk
+        "jobs.checkpoint-bytes=1",
+        "jobs.workers=1",
+        "admission.enabled=false",
+        "file.storage.durability=fsync"
+})
+class ResumableJobServiceTest {
+
+    private static final int CHUNK_SIZE = 4096;
+    private static final int CHUNKS = 11;
+    private static final int PLAINTEXT_SIZE = (CHUNKS - 1) * CHUNK_SIZE + 123;
+    private static final long FAIL_AT = 6;
+
+    @TempDir
+    static Path data;
+
+    @DynamicPropertySource
+    static void storage(DynamicPropertyRegistry registry) {
+        registry.add("file.storage.location", () -> data.toString());
+    }
+
+    @Autowired
+    private ResumableJobService resumableJobService;
+
+    @Autowired
+    private FileEncryptionService fileEncryptionService;
+
+    @Autowired
+    private ChunkPipeline chunkPipeline;
+
+    @MockBean
+    private DekService dekService;
+
+    @MockBean
+    private AuditLogService auditLogService;
+
+    // Chunks that went through the pipeline since the last failure
+    private final AtomicLong chunksRun = new AtomicLong();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        CryptoTestSupport.stubKeys(dekService);
+    }
+
+    @AfterEach
+    void tearDown() {
+        chunkPipeline.setGates(() -> null);
+    }
+
+    @Test
+    void encryptionResumesFromItsCheckpoint() throws Exception {
+        byte[] plaintext = CryptoTestSupport.randomBytes(PLAINTEXT_SIZE);
+        Files.write(data.resolve("resume.bin"), plaintext);
+
+        failAtChunk(FAIL_AT);
+        CryptoJob failed = await(resumableJobService.startEncrypt("resume.bin").getJobId(),
+                ResumableJobService.FAILED);
+        assertThat(failed.getNextChunk()).isEqualTo(FAIL_AT);
+        appendToPartialOutput(failed.getJobId());
+
+        countChunks();
+        CryptoJob completed = resumeAndAwait(failed.getJobId());
+
+        assertThat(completed.getResumeCount()).isEqualTo(1);
+        assertThat(chunksRun).hasValue(CHUNKS - FAIL_AT);
+        SecretKey dek = CryptoTestSupport.decode(Files.readString(data.resolve("resume.bin.dek")));
+        assertThat(CryptoTestSupport.decrypt(fileEncryptionService, data.resolve("resume.bin.encrypted"), dek))
+                .isEqualTo(plaintext);
+        assertThat(data.resolve(".jobs")).isEmptyDirectory();
+    }
+
+    @Test
+    void decryptionResumesFromItsCheckpoint() throws Exception {
+        byte[] plaintext = CryptoTestSupport.randomBytes(PLAINTEXT_SIZE);
+        SecretKey dek = dekService.generateDek();
+        try (var out = FileChannel.open(data.resolve("restore.bin.encrypted"), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            fileEncryptionService.encrypt(Channels.newChannel(new ByteArrayInputStream(plaintext)), PLAINTEXT_SIZE,
+                    out, dek);
+        }
+        Files.writeString(data.resolve("restore.bin.dek"), CryptoTestSupport.encode(dek), StandardCharsets.US_ASCII);
+
+        failAtChunk(FAIL_AT);
+        CryptoJob failed = await(resumableJobService.startDecrypt("restore.bin.encrypted", "restore.bin.dek")
+                .getJobId(), ResumableJobService.FAILED);
+        assertThat(failed.getNextChunk()).isEqualTo(FAIL_AT);
+        appendToPartialOutput(failed.getJobId());
+
+        countChunks();
+        CryptoJob completed = resumeAndAwait(failed.getJobId());
+
+        assertThat(completed.getResumeCount()).isEqualTo(1);
+        assertThat(chunksRun).hasValue(CHUNKS - FAIL_AT);
+        assertThat(data.resolve("restore.bin")).hasBinaryContent(plaintext);
+    }
+
+    @Test
+    void startsOverWhenTheSourceChanged() throws Exception {
+        Path source = data.resolve("changed.bin");
+        Files.write(source, CryptoTestSupport.randomBytes(PLAINTEXT_SIZE));
+
+        failAtChunk(FAIL_AT);
+        CryptoJob failed = await(resumableJobService.startEncrypt("changed.bin").getJobId(),
+                ResumableJobService.FAILED);
+        assertThat(failed.getNextChunk()).isEqualTo(FAIL_AT);
+
+        // Same size, new content and modification time
+        byte[] plaintext = CryptoTestSupport.randomBytes(PLAINTEXT_SIZE);
+        Files.write(source, plaintext);
+        Files.setLastModifiedTime(source,
+                FileTime.fromMillis(Files.getLastModifiedTime(source).toMillis() + 10_000));
+
+        countChunks();
+        CryptoJob completed = resumeAndAwait(failed.getJobId());
+
+        assertThat(completed.getResumeCount()).isZero();
+        assertThat(chunksRun).hasValue(CHUNKS);
+        SecretKey dek = CryptoTestSupport.decode(Files.readString(data.resolve("changed.bin.dek")));
+        assertThat(CryptoTestSupport.decrypt(fileEncryptionService, data.resolve("changed.bin.encrypted"), dek))
+                .isEqualTo(plaintext);
+    }
+
+    @Test
+    void completedJobsAreNotRunAgain() throws Exception {
+        Files.write(data.resolve("done.bin"), CryptoTestSupport.randomBytes(PLAINTEXT_SIZE));
+        CryptoJob completed = await(resumableJobService.startEncrypt("done.bin").getJobId(),
+                ResumableJobService.COMPLETED);
+
+        countChunks();
+        assertThat(resumableJobService.resume(completed.getJobId()).getStatus())
+                .isEqualTo(ResumableJobService.COMPLETED);
+        assertThat(chunksRun).hasValue(0);
+    }
+
+    /**
+     * Fail the next job run when it reaches a chunk, as a crash would
+     */
+    private void failAtChunk(long failAt) {
+        chunkPipeline.setGates(() -> index -> {
+            if (index == failAt) {
+                throw new IllegalStateException("Simulated crash at chunk " + index);
+            }
+        });
+    }
+
+    private void countChunks() {
+        chunksRun.set(0);
+        chunkPipeline.setGates(() -> index -> chunksRun.incrementAndGet());
+    }
+
+    /**
+     * Output written after the checkpoint that was not yet durable, longer
+     * than what the job still has to write
+     */
+    private static void appendToPartialOutput(String jobId) throws Exception {
+        Files.write(data.resolve(".jobs").resolve(jobId + ".part"), CryptoTestSupport.randomBytes(PLAINTEXT_SIZE),
+                StandardOpenOption.APPEND);
+    }
+
+    private CryptoJob resumeAndAwait(String jobId) throws InterruptedException {
+        // Resuming is a no-op until the failed run has released the job, and again while the resumed run is active
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (ResumableJobService.FAILED.equals(resumableJobService.resume(jobId).getStatus())
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return await(jobId, ResumableJobService.COMPLETED);
+    }
+
+    private CryptoJob await(String jobId, String status) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30_000;
+        CryptoJob job = resumableJobService.getJob(jobId);
+        while (!status.equals(job.getStatus())) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Job " + jobId + " is " + job.getStatus() + " (" + job.getMessage()
+                        + "), expected " + status);
+            }
+            Thread.sleep(10);
+            job = resumableJobService.getJob(jobId);
+        }
+        return job;
+    }
+}
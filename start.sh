@@ -18,8 +18,29 @@ if [ -f "$PID_FILE" ]; then
     fi
 fi
 
+# The JFR settings ship inside the jar; extract them next to it, so a deployed jar needs no source tree
+# (also for jcmd <pid> JFR.start settings=default settings=target/file-encryption.jfc)
+JFC_ENTRY="BOOT-INF/classes/jfr/file-encryption.jfc"
+JFC_PATH="$(dirname "$JAR_PATH")/file-encryption.jfc"
+if [ ! -f "$JFC_PATH" ] || [ "$JAR_PATH" -nt "$JFC_PATH" ]; then
+    JAR_ABS="$(cd "$(dirname "$JAR_PATH")" && pwd)/$APP_NAME"
+    EXTRACT_DIR=$(mktemp -d)
+    (cd "$EXTRACT_DIR" && jar xf "$JAR_ABS" "$JFC_ENTRY") && mv "$EXTRACT_DIR/$JFC_ENTRY" "$JFC_PATH"
+    rm -rf "$EXTRACT_DIR"
+fi
+
+# JFR=1 ./start.sh records JDK and application events (jfr/file-encryption.jfc) to app.jfr
+JAVA_OPTS=""
+if [ "$JFR" = "1" ]; then
+    if [ ! -f "$JFC_PATH" ]; then
+        echo "Error: could not extract $JFC_ENTRY from $JAR_PATH."
+        exit 1
+    fi
+    JAVA_OPTS="-XX:StartFlightRecording=settings=default,settings=$JFC_PATH,filename=app.jfr,dumponexit=true"
+fi
+
 echo "Starting application..."
-nohup java -jar "$JAR_PATH" > app.log 2>&1 &
+nohup java $JAVA_OPTS -jar "$JAR_PATH" > app.log 2>&1 &
 PID=$!
 echo $PID > "$PID_FILE"
 echo "Application started with PID: $PID"